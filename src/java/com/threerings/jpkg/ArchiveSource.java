@@ -0,0 +1,325 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipFile;
+
+/**
+ * A {@link PackageSource} repacking the entries of an existing tar, gzipped tar or zip archive,
+ * e.g. a jar or a distribution tarball, streaming each entry straight into the package data
+ * without extracting the archive. Entries can have leading path components stripped and a prefix
+ * added, and are given permissions from the {@link PermissionsMap} and checksummed like any
+ * other entry. The format is detected from the content of the archive rather than its name.
+ *
+ * Tar archives are read once, in archive order, keeping their directories, regular files,
+ * symbolic links and hard links. Zip archives are read in path order, so that the package does
+ * not depend on the order the entries were written in, and keep symbolic links stored by unix
+ * zip tools. Entries keep the permissions stored in the archive, if any, otherwise the standard
+ * modes.
+ */
+public class ArchiveSource
+    implements PackageSource
+{
+    /**
+     * Construct an {@link ArchiveSource} adding every entry of the supplied archive at the same
+     * path in the package.
+     */
+    public ArchiveSource (File archive)
+    {
+        _archive = archive;
+    }
+
+    /**
+     * Set the path every entry is added beneath, after stripping any leading components. The
+     * default is the root of the package.
+     */
+    public void setPrefix (String prefix)
+    {
+        _prefix = prefix == null ? "" : PathUtils.stripLeadingSeparators(PathUtils.normalize(prefix));
+    }
+
+    /**
+     * Set the number of leading path components removed from every entry, e.g. 1 to drop the
+     * top level directory of a distribution tarball. Entries with no more components than this
+     * are skipped. The default is 0.
+     */
+    public void setStripComponents (int count)
+    {
+        if (count < 0) throw new IllegalArgumentException("The strip count cannot be negative.");
+        _stripComponents = count;
+    }
+
+    // from PackageSource
+    public void addTo (PackageTarFile tar)
+        throws DuplicatePermissionsException, IOException
+    {
+        final InputStream input = new BufferedInputStream(new FileInputStream(_archive));
+        try {
+            switch (detectFormat(input)) {
+                case ZIP:
+                    // zip archives are read through their central directory instead.
+                    IOUtils.closeQuietly(input);
+                    addZip(tar);
+                    return;
+
+                case GZIP:
+                    addTar(tar, new BufferedInputStream(new GZIPInputStream(input, BUFFER_SIZE)));
+                    return;
+
+                default:
+                    addTar(tar, input);
+                    return;
+            }
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    // from PackageSource
+    public void addTo (BuildFingerprint fingerprint)
+        throws IOException
+    {
+        // the archive is not read, so a changed archive is recognized by its size and timestamp.
+        fingerprint.add("archive=[" + _archive.getCanonicalPath() + "] " + _archive.length() + " " +
+            _archive.lastModified() + " prefix=[" + _prefix + "] strip=[" + _stripComponents + "]");
+    }
+
+    /**
+     * Add the entries of the tar data in the supplied stream, in archive order.
+     */
+    private void addTar (PackageTarFile tar, InputStream input)
+        throws DuplicatePermissionsException, IOException
+    {
+        // the checksums of the regular files added so far, for any hard links to them.
+        final Map<String, String> md5s = new HashMap<String, String>();
+        final TarReader reader = new TarReader(input);
+        while (reader.next()) {
+            final String path = toPath(reader.getName());
+            if (path == null) {
+                continue;
+            }
+
+            final long modTime = reader.getModTime();
+            switch (reader.getType()) {
+                case TarConstants.LF_DIR:
+                    tar.addDirectoryEntry(path, toMode(reader.getMode(), true), modTime);
+                    break;
+
+                case TarConstants.LF_NORMAL:
+                    md5s.put(path, tar.addEntry(path, reader.getSize(), reader,
+                        toMode(reader.getMode(), false), modTime));
+                    break;
+
+                case TarConstants.LF_SYMLINK:
+                    tar.addSymlink(path, reader.getLinkName(), modTime);
+                    break;
+
+                case TarConstants.LF_LINK:
+                    final String target = toPath(reader.getLinkName());
+                    final String md5 = target == null ? null : md5s.get(target);
+                    if (md5 == null) {
+                        throw new IOException("Hard link target is not a file in the archive. " +
+                            "archive=[" + _archive + "], path=[" + reader.getName() +
+                            "], target=[" + reader.getLinkName() + "].");
+                    }
+                    tar.addHardLink(path, target, md5, toMode(reader.getMode(), false), modTime);
+                    break;
+
+                default:
+                    throw new IOException("Unsupported tar entry type. archive=[" + _archive +
+                        "], path=[" + reader.getName() + "], type=[" + (char)reader.getType() +
+                        "].");
+            }
+        }
+    }
+
+    /**
+     * Add the entries of the zip archive, in path order.
+     */
+    private void addZip (PackageTarFile tar)
+        throws DuplicatePermissionsException, IOException
+    {
+        final ZipFile zip = new ZipFile(_archive, ZIP_ENCODING);
+        try {
+            for (final ZipEntry entry : listZipEntries(zip)) {
+                final String path = toPath(entry.getName());
+                if (path == null) {
+                    continue;
+                }
+
+                final boolean unix = entry.getPlatform() == ZIP_PLATFORM_UNIX;
+                final int unixMode = unix ? entry.getUnixMode() : 0;
+                final long modTime = entry.getTime();
+                if (entry.isDirectory()) {
+                    tar.addDirectoryEntry(path, toMode(unixMode, true), modTime);
+                    continue;
+                }
+
+                final InputStream input = zip.getInputStream(entry);
+                try {
+                    if ((unixMode & FILE_TYPE_MASK) == SYMLINK_TYPE) {
+                        // unix zip tools store the target of a symbolic link as its data.
+                        tar.addSymlink(path, IOUtils.toString(input, ZIP_ENCODING), modTime);
+
+                    } else {
+                        tar.addEntry(path, entry.getSize(), input, toMode(unixMode, false), modTime);
+                    }
+
+                } finally {
+                    IOUtils.closeQuietly(input);
+                }
+            }
+
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Returns the entries of the supplied zip archive, sorted by name.
+     */
+    private static List<ZipEntry> listZipEntries (ZipFile zip)
+    {
+        final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        for (final Enumeration<?> en = zip.getEntries(); en.hasMoreElements();) {
+            entries.add((ZipEntry)en.nextElement());
+        }
+        Collections.sort(entries, BY_NAME);
+        return entries;
+    }
+
+    /**
+     * Returns the package path of the supplied archive path, with the leading components
+     * stripped and beneath the prefix, or null if nothing is left once stripped.
+     */
+    private String toPath (String name)
+    {
+        String path = PathUtils.stripLeadingSeparators(PathUtils.normalize(name));
+        for (int ii = 0; ii < _stripComponents && path.length() > 0; ii++) {
+            final int slash = path.indexOf('/');
+            path = slash == -1 ? "" : path.substring(slash + 1);
+        }
+        if (path.length() == 0) {
+            return null;
+        }
+        return _prefix.length() == 0 ? path : _prefix + "/" + path;
+    }
+
+    /**
+     * Returns the mode of an entry with the supplied permission bits, which archives may not
+     * record at all, and the standard file type.
+     */
+    private static int toMode (int mode, boolean directory)
+    {
+        final int standard = directory ?
+            UnixStandardPermissions.STANDARD_DIR_MODE : UnixStandardPermissions.STANDARD_FILE_MODE;
+        final int permissions = mode & PERMISSIONS_MASK;
+        return permissions == 0 ? standard : (standard & ~PERMISSIONS_MASK) | permissions;
+    }
+
+    /**
+     * Returns the format of the archive in the supplied stream, from its first bytes, leaving
+     * the stream unread.
+     */
+    private static Format detectFormat (InputStream input)
+        throws IOException
+    {
+        final byte[] magic = new byte[4];
+        input.mark(magic.length);
+        int read = 0;
+        int count;
+        while (read < magic.length && (count = input.read(magic, read, magic.length - read)) != -1) {
+            read += count;
+        }
+        input.reset();
+
+        if (read >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return Format.GZIP;
+        }
+        if (read == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return Format.ZIP;
+        }
+        return Format.TAR;
+    }
+
+    /** The archive formats read. */
+    private enum Format { TAR, GZIP, ZIP };
+
+    /** Orders zip entries by name. */
+    private static final Comparator<ZipEntry> BY_NAME = new Comparator<ZipEntry>() {
+        public int compare (ZipEntry e1, ZipEntry e2) {
+            return e1.getName().compareTo(e2.getName());
+        }
+    };
+
+    /** The permission bits of a mode, without the file type. */
+    private static final int PERMISSIONS_MASK = 07777;
+
+    /** The file type bits of a unix mode, and the type of a symbolic link. */
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int SYMLINK_TYPE = 0120000;
+
+    /** The platform of zip entries written by unix tools, which store a unix mode. */
+    private static final int ZIP_PLATFORM_UNIX = 3;
+
+    /** Zip entry names and link targets are read as UTF-8, as written by jar and most tools. */
+    private static final String ZIP_ENCODING = "UTF-8";
+
+    /** The size of the buffer used when decompressing tar data. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The archive the entries are read from. */
+    private final File _archive;
+
+    /** The path every entry is added beneath, or the empty string for the package root. */
+    private String _prefix = "";
+
+    /** The number of leading path components removed from every entry. */
+    private int _stripComponents;
+}
@@ -0,0 +1,230 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A digest of everything which determines the contents of a package, used to skip building a
+ * package which would be identical to the one already built. The destroot is covered by the
+ * path, type, size and modification time of each entry rather than the file contents, so
+ * computing a fingerprint only requires scanning the destroot.
+ */
+public class BuildFingerprint
+{
+    public BuildFingerprint ()
+    {
+        try {
+            _digest = MessageDigest.getInstance("SHA-256");
+
+        } catch (final NoSuchAlgorithmException nsa) {
+            throw new RuntimeException("SHA-256 algorthm not found.", nsa);
+        }
+        add("jpkg-fingerprint-" + VERSION);
+    }
+
+    /**
+     * Add the path, type, size and modification time of every entry in the supplied destroot.
+     * @throws IOException If the destroot could not be scanned.
+     */
+    public void addDestroot (File destroot)
+        throws IOException
+    {
+        addDestroot(destroot, new DestrootFilter());
+    }
+
+    /**
+     * Add the path, type, size and modification time of every entry in the supplied destroot
+     * selected by the supplied {@link DestrootFilter}, along with the filter patterns.
+     * @throws IOException If the destroot could not be scanned.
+     */
+    public void addDestroot (File destroot, DestrootFilter filter)
+        throws IOException
+    {
+        addDestroot(destroot, filter, SymlinkPolicy.DEFAULT);
+    }
+
+    /**
+     * Add every entry in the supplied destroot selected by the supplied {@link DestrootFilter},
+     * reading symbolic links as the supplied {@link SymlinkPolicy} would. A symbolic link added as
+     * a link is recorded by its target.
+     * @see #addDestroot(File, DestrootFilter)
+     */
+    public void addDestroot (File destroot, DestrootFilter filter, SymlinkPolicy policy)
+        throws IOException
+    {
+        if (!filter.isEmpty()) {
+            add(filter.toString());
+        }
+        final DestrootScanner scanner =
+            new DestrootScanner(destroot, DestrootScanner.DEFAULT_THREADS, filter, policy);
+        addEntries(scanner.scan(), destroot);
+    }
+
+    /**
+     * Add the path, type, size and modification time of each of the supplied entries of the
+     * supplied destroot, as read when the destroot was scanned. Package private.
+     */
+    void addEntries (List<DestrootEntry> entries, File destroot)
+    {
+        final int rootLength = destroot.getAbsolutePath().length();
+        for (final DestrootEntry entry : entries) {
+            final BasicFileAttributes attributes = entry.getAttributes();
+            add(entry.getFile().getAbsolutePath().substring(rootLength));
+            if (entry.getLinkTarget() != null) {
+                add("l " + entry.getLinkTarget());
+                continue;
+            }
+            final char type = attributes.isDirectory() ? 'd' : (attributes.isRegularFile() ? 'f' : 'o');
+            add(type + " " + attributes.size() + " " +
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Add every path and its permissions from the supplied {@link PermissionsMap}.
+     */
+    public void addPermissions (PermissionsMap permissions)
+    {
+        // the map is unordered, so sort the paths to keep the fingerprint stable.
+        final TreeMap<String, PathPermissions> sorted = new TreeMap<String, PathPermissions>();
+        for (final Entry<String, PathPermissions> entry : permissions.getPermissions()) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<String, PathPermissions> entry : sorted.entrySet()) {
+            add(entry.getKey());
+            add(entry.getValue().toString());
+        }
+    }
+
+    /**
+     * Add the supplied string.
+     */
+    public void add (String value)
+    {
+        try {
+            add(value.getBytes("UTF-8"));
+
+        } catch (final UnsupportedEncodingException uee) {
+            throw new RuntimeException("UTF-8 encoding not found.", uee);
+        }
+    }
+
+    /**
+     * Add the supplied bytes.
+     */
+    public void add (byte[] value)
+    {
+        // prefix each value with its length so that values cannot run into each other.
+        addLength(value.length);
+        _digest.update(value);
+    }
+
+    /**
+     * Add the contents of the supplied stream, which is closed.
+     * @throws IOException If the stream could not be read.
+     */
+    public void add (InputStream input)
+        throws IOException
+    {
+        try {
+            add(IOUtils.toByteArray(input));
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Returns the hex encoded fingerprint. No more values may be added once it is computed.
+     */
+    public String getValue ()
+    {
+        if (_value == null) {
+            _value = new String(Hex.encodeHex(_digest.digest()));
+        }
+        return _value;
+    }
+
+    /**
+     * Returns true if the supplied file holds this fingerprint.
+     * @throws IOException If the file exists but could not be read.
+     */
+    public boolean matches (File file)
+        throws IOException
+    {
+        return file.isFile() && getValue().equals(FileUtils.readFileToString(file, "UTF-8").trim());
+    }
+
+    /**
+     * Store this fingerprint in the supplied file, replacing any existing contents.
+     * @throws IOException If the file could not be written.
+     */
+    public void store (File file)
+        throws IOException
+    {
+        FileUtils.writeStringToFile(file, getValue() + "\n", "UTF-8");
+    }
+
+    /**
+     * Add the supplied length as four bytes.
+     */
+    private void addLength (int length)
+    {
+        _digest.update((byte)(length >>> 24));
+        _digest.update((byte)(length >>> 16));
+        _digest.update((byte)(length >>> 8));
+        _digest.update((byte)length);
+    }
+
+    /** The version of the fingerprint contents, changed whenever they change. */
+    private static final int VERSION = 1;
+
+    /** The digest of the values added. */
+    private final MessageDigest _digest;
+
+    /** The computed fingerprint, or null if not yet computed. */
+    private String _value;
+}
@@ -0,0 +1,400 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.ParallelGZIPOutputStream;
+
+/**
+ * Writes gzip compressed tar data as a series of gzip members, each holding a group of whole tar
+ * entries, reusing members from a {@link MemberCache} for groups which are unchanged since an
+ * earlier build. A gzip stream may consist of any number of concatenated members, so the result
+ * is an ordinary tar.gz.
+ * <p>
+ * Groups end after entries whose key, a digest of the tar header and the content checksum, has
+ * its low bits clear, or once a group grows large. Since the boundaries depend only on the
+ * entries themselves, a changed entry only alters its own group, and the following group if the
+ * change moves a boundary.
+ * Package private.
+ * @see PackageTarFile
+ */
+class CachedMemberWriter
+{
+    /**
+     * Construct a {@link CachedMemberWriter}.
+     * @param output The stream receiving the compressed tar data. Closed by {@link #close()}.
+     * @param codec The gzip settings used to compress members.
+     * @param cache The {@link MemberCache} holding members from earlier builds.
+     */
+    public CachedMemberWriter (OutputStream output, GzipCodec codec, MemberCache cache)
+    {
+        _output = output;
+        _codec = codec;
+        _cache = cache;
+        _settings = "gzip " + codec.getLevel() + " " + codec.getStrategy() + " " + codec.getBlockSize();
+        _groupDigest = createGroupDigest();
+    }
+
+    /**
+     * Add an entry to the tar data.
+     * @param entry The {@link TarHeader} describing the entry.
+     * @param file The file holding the entry data, or null if the entry has no data.
+     * @param md5 The md5 checksum of the entry data, or null if the entry has no data.
+     * @throws IOException If the entry completed a group which could not be written.
+     */
+    public void add (TarHeader entry, File file, String md5)
+        throws IOException
+    {
+        final ByteBuffer records = entry.encode();
+        final byte[] header = new byte[records.remaining()];
+        records.get(header);
+
+        final MessageDigest entryDigest = createDigest();
+        entryDigest.update(header);
+        if (md5 != null) {
+            entryDigest.update(toBytes(md5));
+        }
+        final byte[] entryKey = entryDigest.digest();
+
+        _groupDigest.update(entryKey);
+        _group.add(new GroupEntry(header, file, entry.getSize(), md5));
+        _groupLength += header.length + entry.getSize() + getPadding(entry.getSize());
+
+        if ((entryKey[0] & GROUP_BOUNDARY_MASK) == 0 || _groupLength >= MAX_GROUP_LENGTH) {
+            writeGroup();
+        }
+    }
+
+    /**
+     * Start an entry whose data is only available as a stream, writing any pending group first.
+     * The entry data, exactly the size in the header, is written to the returned stream, which
+     * must not be closed. The entry is compressed into a member of its own which is never cached,
+     * as its data cannot be read again, and must be completed by {@link #endStreamEntry()} before
+     * any other entry is added.
+     */
+    public OutputStream startStreamEntry (TarHeader entry)
+        throws IOException
+    {
+        writeGroup();
+
+        final ByteBuffer records = entry.encode();
+        final byte[] header = new byte[records.remaining()];
+        records.get(header);
+
+        _streamSize = entry.getSize();
+        _streamMember = createMember(_output, header.length + _streamSize);
+        _streamMember.write(header);
+        return _streamMember;
+    }
+
+    /**
+     * Complete the entry started by {@link #startStreamEntry(TarHeader)}.
+     */
+    public void endStreamEntry ()
+        throws IOException
+    {
+        _streamMember.write(new byte[getPadding(_streamSize)]);
+        _streamMember.finish();
+        _streamMember = null;
+    }
+
+    /**
+     * Write any remaining entries and the end of the tar data, then close the output stream.
+     */
+    public void close ()
+        throws IOException
+    {
+        try {
+            writeGroup();
+
+            // the end of archive marker is compressed in a member of its own.
+            final ParallelGZIPOutputStream member = createMember(_output, END_OF_ARCHIVE.length);
+            member.write(END_OF_ARCHIVE);
+            member.finish();
+
+        } finally {
+            _output.close();
+        }
+    }
+
+    /**
+     * Write the current group, copying the cached member if there is one and otherwise
+     * compressing the group and storing the result in the cache.
+     */
+    private void writeGroup ()
+        throws IOException
+    {
+        if (_group.isEmpty()) {
+            return;
+        }
+
+        final String key = new String(Hex.encodeHex(_groupDigest.digest()));
+        final File cached = _cache.get(key);
+        if (cached != null) {
+            copyMember(cached);
+
+        } else {
+            compressGroup(key);
+        }
+
+        _group.clear();
+        _groupLength = 0;
+        _groupDigest = createGroupDigest();
+    }
+
+    /**
+     * Copy a cached member to the output.
+     */
+    private void copyMember (File cached)
+        throws IOException
+    {
+        final InputStream input = new FileInputStream(cached);
+        try {
+            IOUtils.copy(input, _output);
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Compress the current group into a member, writing it to the output and to the cache.
+     */
+    private void compressGroup (String key)
+        throws IOException
+    {
+        final File temp = _cache.createTempFile();
+        boolean stored = false;
+        final OutputStream tempOutput = new FileOutputStream(temp);
+        try {
+            final ParallelGZIPOutputStream member =
+                createMember(new TeeOutputStream(_output, tempOutput), _groupLength);
+            for (final GroupEntry entry : _group) {
+                member.write(entry.header);
+                if (entry.file != null) {
+                    copyData(entry, member);
+                }
+            }
+            member.finish();
+            tempOutput.close();
+
+            _cache.put(key, temp);
+            stored = true;
+
+        } finally {
+            IOUtils.closeQuietly(tempOutput);
+            if (!stored) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copy the data of a group entry into a member, followed by the padding to the next tar
+     * block. The data is checked against the size and checksum used for the group key, so that
+     * a file modified while the package was being built cannot poison the cache.
+     */
+    private void copyData (GroupEntry entry, OutputStream member)
+        throws IOException
+    {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+
+        } catch (final NoSuchAlgorithmException nsa) {
+            throw new RuntimeException("md5 algorthm not found.", nsa);
+        }
+
+        long length = 0;
+        final InputStream input = new FileInputStream(entry.file);
+        try {
+            final byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int len;
+            while ((len = input.read(buf)) > 0) {
+                md.update(buf, 0, len);
+                member.write(buf, 0, len);
+                length += len;
+            }
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+
+        if (length != entry.size || !entry.md5.equals(new String(Hex.encodeHex(md.digest())))) {
+            throw new IOException("File changed while being added to the tar file. path=[" +
+                entry.file.getAbsolutePath() + "].");
+        }
+
+        member.write(new byte[getPadding(entry.size)]);
+    }
+
+    /**
+     * Create a stream compressing a single gzip member of the supplied length. Members which fit
+     * in one block are compressed on the calling thread.
+     */
+    private ParallelGZIPOutputStream createMember (OutputStream output, long length)
+        throws IOException
+    {
+        final int threads = length > _codec.getBlockSize() ? _codec.getThreads() : 1;
+        return new ParallelGZIPOutputStream(output, _codec.getLevel(), _codec.getStrategy(), threads,
+            _codec.getBlockSize());
+    }
+
+    /**
+     * Create the digest for a new group, seeded with the compression settings so that members
+     * compressed differently are never confused.
+     */
+    private MessageDigest createGroupDigest ()
+    {
+        final MessageDigest digest = createDigest();
+        digest.update(toBytes(_settings));
+        return digest;
+    }
+
+    /**
+     * Returns the number of bytes needed to pad data of the supplied size to a whole tar block.
+     */
+    private static int getPadding (long size)
+    {
+        return (int)((TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE);
+    }
+
+    /**
+     * Create a digest used to build entry and group keys.
+     */
+    private static MessageDigest createDigest ()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+
+        } catch (final NoSuchAlgorithmException nsa) {
+            throw new RuntimeException("SHA-256 algorthm not found.", nsa);
+        }
+    }
+
+    /**
+     * Returns the ASCII bytes of the supplied string.
+     */
+    private static byte[] toBytes (String value)
+    {
+        try {
+            return value.getBytes("US-ASCII");
+
+        } catch (final UnsupportedEncodingException uee) {
+            throw new RuntimeException("US-ASCII encoding not found.", uee);
+        }
+    }
+
+    /**
+     * An entry in the current group.
+     */
+    private static class GroupEntry
+    {
+        public GroupEntry (byte[] header, File file, long size, String md5)
+        {
+            this.header = header;
+            this.file = file;
+            this.size = size;
+            this.md5 = md5;
+        }
+
+        /** The tar header blocks of the entry. */
+        public final byte[] header;
+
+        /** The file holding the entry data, or null. */
+        public final File file;
+
+        /** The size of the entry data. */
+        public final long size;
+
+        /** The md5 checksum of the entry data, or null. */
+        public final String md5;
+    }
+
+    /** The size of a tar block. */
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /** Two empty blocks mark the end of a tar file. */
+    private static final byte[] END_OF_ARCHIVE = new byte[TAR_BLOCK_SIZE * 2];
+
+    /** Groups end after an entry whose key has none of these bits set, 1 in 16 on average. */
+    private static final int GROUP_BOUNDARY_MASK = 0x0F;
+
+    /** Groups end once they hold this much uncompressed tar data. */
+    private static final long MAX_GROUP_LENGTH = 1024 * 1024;
+
+    /** The size of the buffer used to copy entry data. */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** The stream receiving the compressed tar data. */
+    private final OutputStream _output;
+
+    /** The gzip settings used to compress members. */
+    private final GzipCodec _codec;
+
+    /** The cache of members from earlier builds. */
+    private final MemberCache _cache;
+
+    /** The compression settings included in every group key. */
+    private final String _settings;
+
+    /** The entries in the current group. */
+    private final List<GroupEntry> _group = new ArrayList<GroupEntry>();
+
+    /** The uncompressed length of the current group. */
+    private long _groupLength;
+
+    /** The digest of the entry keys in the current group. */
+    private MessageDigest _groupDigest;
+
+    /** The member holding the current streamed entry, or null. */
+    private ParallelGZIPOutputStream _streamMember;
+
+    /** The size of the current streamed entry. */
+    private long _streamSize;
+}
@@ -0,0 +1,147 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file, directory or symbolic link to be added to a {@link PackageTarFile}, along with its
+ * attributes as read when it was found, so that they need not be read again.
+ * Package private.
+ */
+class DestrootEntry
+{
+    /**
+     * Read the attributes of the supplied path without following symbolic links. A symbolic link
+     * the {@link SymlinkPolicy} follows is read as its target instead, unless the target does not
+     * exist.
+     */
+    public static DestrootEntry read (Path path, SymlinkPolicy policy)
+        throws IOException
+    {
+        final BasicFileAttributes attributes =
+            Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isSymbolicLink()) {
+            return new DestrootEntry(path.toFile(), attributes);
+        }
+
+        if (policy != SymlinkPolicy.PRESERVE) {
+            try {
+                final BasicFileAttributes target =
+                    Files.readAttributes(path, BasicFileAttributes.class);
+                if (policy == SymlinkPolicy.FOLLOW || target.isRegularFile()) {
+                    return new DestrootEntry(path.toFile(), target);
+                }
+
+            } catch (final NoSuchFileException nsfe) {
+                // a dangling link has nothing to follow and is kept as a link.
+            }
+        }
+        return new DestrootEntry(path.toFile(), attributes,
+            Files.readSymbolicLink(path).toString());
+    }
+
+    public DestrootEntry (File file, BasicFileAttributes attributes)
+    {
+        this(file, attributes, null);
+    }
+
+    /**
+     * @param linkTarget The target of the symbolic link if this entry is to be added as a link,
+     * otherwise null.
+     */
+    public DestrootEntry (File file, BasicFileAttributes attributes, String linkTarget)
+    {
+        _file = file;
+        _attributes = attributes;
+        _linkTarget = linkTarget;
+    }
+
+    /**
+     * Returns the file or directory.
+     */
+    public File getFile ()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns the attributes of the file or directory.
+     */
+    public BasicFileAttributes getAttributes ()
+    {
+        return _attributes;
+    }
+
+    /**
+     * Returns the target of the symbolic link if this entry is to be added as a link, otherwise
+     * null.
+     */
+    public String getLinkTarget ()
+    {
+        return _linkTarget;
+    }
+
+    /**
+     * Returns the md5 checksum of the file contents if already known, e.g. from a
+     * {@link DigestCache}, otherwise null.
+     */
+    public String getMd5 ()
+    {
+        return _md5;
+    }
+
+    /**
+     * Set the known md5 checksum of the file contents.
+     */
+    public void setMd5 (String md5)
+    {
+        _md5 = md5;
+    }
+
+    /** The file or directory. */
+    private final File _file;
+
+    /** The attributes of the file or directory. */
+    private final BasicFileAttributes _attributes;
+
+    /** The target of the symbolic link to add, or null. */
+    private final String _linkTarget;
+
+    /** The known md5 checksum of the file contents, or null. */
+    private String _md5;
+}
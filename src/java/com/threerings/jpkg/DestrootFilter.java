@@ -0,0 +1,298 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the destroot paths added to a package using Ant style include and exclude patterns,
+ * e.g. <code>**&#47;*.jar</code> or <code>**&#47;.git/**</code>. Patterns are matched against paths
+ * relative to the destroot, separated by /. A * matches any part of a single path element, a ?
+ * matches a single character, and ** matches any number of path elements. A pattern ending in /
+ * matches everything beneath the path, as if followed by **.
+ * <p>
+ * A path is selected if it matches no exclude pattern and, if any include patterns are defined,
+ * matches an include pattern. An excluded directory is left out along with everything beneath it,
+ * so the destroot scan never descends into it, nor into a directory which cannot hold an included
+ * path. A directory which matches no include pattern is still added if anything beneath it is.
+ * Patterns are compiled once, when added.
+ */
+public class DestrootFilter
+{
+    /**
+     * Add a pattern selecting paths to include. If no include patterns are added, every path not
+     * excluded is included.
+     */
+    public void addInclude (String pattern)
+    {
+        _includes.add(new Glob(pattern));
+    }
+
+    /**
+     * Add a pattern selecting paths to exclude, along with everything beneath them.
+     */
+    public void addExclude (String pattern)
+    {
+        _excludes.add(new Glob(pattern));
+    }
+
+    /**
+     * Returns true if no patterns have been added, in which case every path is selected.
+     */
+    public boolean isEmpty ()
+    {
+        return _includes.isEmpty() && _excludes.isEmpty();
+    }
+
+    /**
+     * Returns true if the supplied relative path matches an exclude pattern.
+     */
+    public boolean isExcluded (String path)
+    {
+        final String[] elements = split(path);
+        for (final Glob glob : _excludes) {
+            if (glob.matches(elements, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the supplied relative path matches an include pattern, or there are none.
+     * Exclude patterns are not considered.
+     */
+    public boolean isIncluded (String path)
+    {
+        return _includes.isEmpty() || matchesInclude(split(path), false);
+    }
+
+    /**
+     * Returns true if a path beneath the supplied relative directory path could match an include
+     * pattern, or there are none. Exclude patterns are not considered.
+     */
+    public boolean couldIncludeBeneath (String directory)
+    {
+        return _includes.isEmpty() || matchesInclude(split(directory), true);
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        return "includes=[" + _includes + "], excludes=[" + _excludes + "].";
+    }
+
+    /**
+     * Returns true if the supplied path elements match any include pattern.
+     */
+    private boolean matchesInclude (String[] elements, boolean beneath)
+    {
+        for (final Glob glob : _includes) {
+            if (glob.matches(elements, beneath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Split a relative path into its elements, ignoring empty elements.
+     */
+    private static String[] split (String path)
+    {
+        final List<String> elements = new ArrayList<String>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > start) {
+                elements.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return elements.toArray(new String[elements.size()]);
+    }
+
+    /**
+     * A single pattern, compiled into one matcher per path element.
+     */
+    private static class Glob
+    {
+        public Glob (String pattern)
+        {
+            if (pattern == null || pattern.trim().length() == 0) {
+                throw new IllegalArgumentException("A destroot pattern cannot be empty.");
+            }
+            String normalized = pattern.trim().replace('\\', SEPARATOR);
+            if (normalized.endsWith(String.valueOf(SEPARATOR))) {
+                normalized = normalized + ANY_ELEMENTS;
+            }
+            _pattern = normalized;
+
+            final String[] elements = split(normalized);
+            _literals = new String[elements.length];
+            _wildcards = new Pattern[elements.length];
+            for (int ii = 0; ii < elements.length; ii++) {
+                final String element = elements[ii];
+                if (element.equals(ANY_ELEMENTS)) {
+                    // both left null.
+                    continue;
+                }
+                if (element.indexOf('*') == -1 && element.indexOf('?') == -1) {
+                    _literals[ii] = element;
+                } else {
+                    _wildcards[ii] = compile(element);
+                }
+            }
+        }
+
+        /**
+         * Returns true if the supplied path elements match this pattern. If beneath is true,
+         * returns true if the elements of some path beneath the supplied path could.
+         */
+        public boolean matches (String[] path, boolean beneath)
+        {
+            return matches(path, 0, 0, beneath);
+        }
+
+        @Override // from Object
+        public String toString ()
+        {
+            return _pattern;
+        }
+
+        /**
+         * Match the path from the supplied path element onwards against the pattern from the
+         * supplied pattern element onwards.
+         */
+        private boolean matches (String[] path, int pathIdx, int patternIdx, boolean beneath)
+        {
+            while (patternIdx < _literals.length) {
+                if (isAnyElements(patternIdx)) {
+                    // a run of ** is the same as one, and a trailing ** matches anything left.
+                    while (patternIdx < _literals.length && isAnyElements(patternIdx)) {
+                        patternIdx++;
+                    }
+                    if (patternIdx == _literals.length) {
+                        return true;
+                    }
+                    for (int skip = pathIdx; skip <= path.length; skip++) {
+                        if (matches(path, skip, patternIdx, beneath)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                // the path ran out first, so a longer path might still match.
+                if (pathIdx == path.length) {
+                    return beneath;
+                }
+                if (!matchesElement(patternIdx, path[pathIdx])) {
+                    return false;
+                }
+                pathIdx++;
+                patternIdx++;
+            }
+            return !beneath && pathIdx == path.length;
+        }
+
+        /**
+         * Returns true if the pattern element is **.
+         */
+        private boolean isAnyElements (int patternIdx)
+        {
+            return _literals[patternIdx] == null && _wildcards[patternIdx] == null;
+        }
+
+        /**
+         * Returns true if the path element matches the pattern element.
+         */
+        private boolean matchesElement (int patternIdx, String element)
+        {
+            if (_literals[patternIdx] != null) {
+                return _literals[patternIdx].equals(element);
+            }
+            return _wildcards[patternIdx].matcher(element).matches();
+        }
+
+        /**
+         * Compile a single pattern element holding * or ? into a regular expression.
+         */
+        private static Pattern compile (String element)
+        {
+            final StringBuilder regex = new StringBuilder();
+            final StringBuilder literal = new StringBuilder();
+            for (int ii = 0; ii < element.length(); ii++) {
+                final char c = element.charAt(ii);
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+        /** The pattern, as normalized. */
+        private final String _pattern;
+
+        /** The literal pattern elements, null where an element holds wildcards or is **. */
+        private final String[] _literals;
+
+        /** The pattern elements holding wildcards, null where an element is a literal or **. */
+        private final Pattern[] _wildcards;
+    }
+
+    /** The path separator used by patterns and relative paths. */
+    private static final char SEPARATOR = '/';
+
+    /** The pattern element matching any number of path elements. */
+    private static final String ANY_ELEMENTS = "**";
+
+    /** The include patterns. */
+    private final List<Glob> _includes = new ArrayList<Glob>();
+
+    /** The exclude patterns. */
+    private final List<Glob> _excludes = new ArrayList<Glob>();
+}
@@ -0,0 +1,316 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scans a given destroot into the list of files and directories to append to a
+ * {@link PackageTarFile}. Directories are listed in parallel and the attributes of each entry are
+ * read only once. The list is in a deterministic order: every directory is followed by its
+ * contents, and the entries of each directory are sorted by name. Paths left out by a
+ * {@link DestrootFilter} are not listed, and excluded directories are not descended into.
+ * Symbolic links are listed as links unless the {@link SymlinkPolicy} follows them, and a link
+ * leading back into a directory being scanned is never followed.
+ * Package private.
+ * @see PackageTarFile
+ */
+class DestrootScanner
+{
+    /** The default number of threads used to scan a destroot. */
+    public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Convenience constructor to create a {@link DestrootScanner} with the default number of threads.
+     * @see DestrootScanner#DestrootScanner(File, int)
+     */
+    public DestrootScanner (File destroot)
+    {
+        this(destroot, DEFAULT_THREADS);
+    }
+
+    /**
+     * Convenience constructor to create a {@link DestrootScanner} which lists every path.
+     * @see DestrootScanner#DestrootScanner(File, int, DestrootFilter)
+     */
+    public DestrootScanner (File destroot, int threads)
+    {
+        this(destroot, threads, new DestrootFilter());
+    }
+
+    /**
+     * Convenience constructor to create a {@link DestrootScanner} with the default
+     * {@link SymlinkPolicy}.
+     * @see DestrootScanner#DestrootScanner(File, int, DestrootFilter, SymlinkPolicy)
+     */
+    public DestrootScanner (File destroot, int threads, DestrootFilter filter)
+    {
+        this(destroot, threads, filter, SymlinkPolicy.DEFAULT);
+    }
+
+    /**
+     * Construct a {@link DestrootScanner}.
+     * @param destroot The {@link File} which is the root of the destroot.
+     * @param threads The number of threads used to list directories.
+     * @param filter The {@link DestrootFilter} selecting the paths to list.
+     * @param policy The {@link SymlinkPolicy} deciding which symbolic links are followed.
+     */
+    public DestrootScanner (File destroot, int threads, DestrootFilter filter,
+        SymlinkPolicy policy)
+    {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is required.");
+        _destroot = destroot.getAbsoluteFile().toPath();
+        _threads = threads;
+        // without patterns there is no need to build the relative path of every entry.
+        _filter = filter.isEmpty() ? null : filter;
+        _policy = policy;
+    }
+
+    /**
+     * Scan the destroot, returning its contents in order. The destroot itself is not included.
+     * @throws IOException If any i/o error is encountered while scanning the destroot.
+     */
+    public List<DestrootEntry> scan ()
+        throws IOException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(_threads);
+        try {
+            final Object key = _policy == SymlinkPolicy.FOLLOW ?
+                Files.readAttributes(_destroot, BasicFileAttributes.class).fileKey() : null;
+            return pool.invoke(new DirectoryScan(_destroot, key, null, ""));
+
+        } catch (final ScanException se) {
+            // the exception may have been copied by the pool, find the original i/o failure.
+            Throwable cause = se;
+            while (cause != null && !(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw cause != null ? (IOException)cause : new IOException(se.getMessage());
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Lists a single directory, forking a scan for each subdirectory, and returns the directory
+     * contents in order.
+     */
+    private class DirectoryScan extends RecursiveTask<List<DestrootEntry>>
+    {
+        /**
+         * @param key The file key of the directory, only read when directory links are followed.
+         * @param parent The scan of the enclosing directory, or null for the destroot.
+         * @param path The path of the directory relative to the destroot, followed by a / unless
+         * empty. Only used with a filter.
+         */
+        public DirectoryScan (Path directory, Object key, DirectoryScan parent, String path)
+        {
+            _directory = directory;
+            _key = key;
+            _parent = parent;
+            _path = path;
+        }
+
+        @Override // from RecursiveTask
+        protected List<DestrootEntry> compute ()
+        {
+            final List<DestrootEntry> children;
+            try {
+                children = list();
+
+            } catch (final IOException ioe) {
+                throw new ScanException(ioe);
+            }
+
+            // directories which cannot hold an included path are not descended into, leaving a
+            // null scan.
+            final List<DirectoryScan> scans = new ArrayList<DirectoryScan>();
+            for (final DestrootEntry child : children) {
+                if (!child.getAttributes().isDirectory()) {
+                    continue;
+                }
+                if (_filter != null && !_filter.couldIncludeBeneath(getPath(child))) {
+                    scans.add(null);
+                    continue;
+                }
+                final DirectoryScan scan = new DirectoryScan(child.getFile().toPath(),
+                    child.getAttributes().fileKey(), this,
+                    _filter == null ? null : getPath(child) + "/");
+                scan.fork();
+                scans.add(scan);
+            }
+
+            final List<DestrootEntry> results = new ArrayList<DestrootEntry>();
+            final Iterator<DirectoryScan> iter = scans.iterator();
+            for (final DestrootEntry child : children) {
+                if (!child.getAttributes().isDirectory()) {
+                    results.add(child);
+                    continue;
+                }
+
+                // a directory which is not itself included is only listed to hold included paths.
+                final DirectoryScan scan = iter.next();
+                final List<DestrootEntry> contents =
+                    scan == null ? Collections.<DestrootEntry>emptyList() : scan.join();
+                if (!contents.isEmpty() || _filter == null || _filter.isIncluded(getPath(child))) {
+                    results.add(child);
+                    results.addAll(contents);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Returns the entries in the directory, sorted by name.
+         */
+        private List<DestrootEntry> list ()
+            throws IOException
+        {
+            final List<DestrootEntry> children = new ArrayList<DestrootEntry>();
+            final DirectoryStream<Path> stream = Files.newDirectoryStream(_directory);
+            try {
+                for (final Path child : stream) {
+                    if (_filter == null) {
+                        children.add(read(child));
+                        continue;
+                    }
+
+                    // excluded paths are skipped before their attributes are read.
+                    final String path = _path + child.getFileName();
+                    if (_filter.isExcluded(path)) {
+                        continue;
+                    }
+                    final DestrootEntry entry = read(child);
+                    if (entry.getAttributes().isDirectory() ?
+                        _filter.couldIncludeBeneath(path) || _filter.isIncluded(path) :
+                        _filter.isIncluded(path)) {
+                        children.add(entry);
+                    }
+                }
+
+            } finally {
+                stream.close();
+            }
+
+            Collections.sort(children, BY_NAME);
+            return children;
+        }
+
+        /**
+         * Read the supplied child of the directory. A followed link to a directory being scanned
+         * is read as a link instead, as following it would never end.
+         */
+        private DestrootEntry read (Path child)
+            throws IOException
+        {
+            final DestrootEntry entry = DestrootEntry.read(child, _policy);
+            if (_policy != SymlinkPolicy.FOLLOW || !entry.getAttributes().isDirectory()) {
+                return entry;
+            }
+
+            final Object key = entry.getAttributes().fileKey();
+            for (DirectoryScan scan = this; scan != null && key != null; scan = scan._parent) {
+                if (!key.equals(scan._key)) {
+                    continue;
+                }
+                final DestrootEntry link = DestrootEntry.read(child, SymlinkPolicy.PRESERVE);
+                if (link.getLinkTarget() == null) {
+                    throw new IOException("Directory cycle found. path=[" + child + "].");
+                }
+                return link;
+            }
+            return entry;
+        }
+
+        /**
+         * Returns the path of the supplied child entry relative to the destroot.
+         */
+        private String getPath (DestrootEntry child)
+        {
+            return _path + child.getFile().getName();
+        }
+
+        /** The directory being listed. */
+        private final Path _directory;
+
+        /** The file key of the directory, or null. */
+        private final Object _key;
+
+        /** The scan of the enclosing directory, or null. */
+        private final DirectoryScan _parent;
+
+        /** The path of the directory relative to the destroot, or null without a filter. */
+        private final String _path;
+    }
+
+    /**
+     * Carries an {@link IOException} out of a {@link DirectoryScan}.
+     */
+    private static class ScanException extends RuntimeException
+    {
+        public ScanException (IOException cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /** Orders the entries of a directory by name. */
+    private static final Comparator<DestrootEntry> BY_NAME = new Comparator<DestrootEntry>() {
+        public int compare (DestrootEntry e1, DestrootEntry e2) {
+            return e1.getFile().getName().compareTo(e2.getFile().getName());
+        }
+    };
+
+    /** The root of the destroot. */
+    private final Path _destroot;
+
+    /** The number of threads used to list directories. */
+    private final int _threads;
+
+    /** The filter selecting the paths to list, or null to list every path. */
+    private final DestrootFilter _filter;
+
+    /** The policy deciding which symbolic links are followed. */
+    private final SymlinkPolicy _policy;
+}
@@ -0,0 +1,267 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits a single destroot into several packages, e.g. the -core, -doc and -dev packages of one
+ * build, selecting the paths of each package with its own {@link DestrootFilter}. The destroot is
+ * scanned once, however many packages it is split into, and each package is given a
+ * {@link PackageSource} adding its share of the entries, so the packages can be built on
+ * separate threads from the same scan. Each package keeps the semantics of a filtered destroot:
+ * an excluded directory is left out with everything beneath it, and a directory is added if it
+ * is included or holds a path which is.
+ * <p>
+ * Files selected by more than one package, or by none, are usually a mistake in the patterns,
+ * and are reported once the destroot has been scanned. Directories are shared by every package
+ * holding something beneath them, so are not reported. As every package reads from the same
+ * scan, directories excluded by every package are still listed.
+ */
+public class DestrootSplitter
+{
+    /**
+     * Construct a {@link DestrootSplitter} for the supplied destroot, reading symbolic links as
+     * the supplied {@link SymlinkPolicy} says.
+     */
+    public DestrootSplitter (File destroot, SymlinkPolicy policy)
+    {
+        _destroot = destroot;
+        _policy = policy;
+    }
+
+    /**
+     * Add a package taking the destroot paths selected by the supplied {@link DestrootFilter},
+     * returning the {@link PackageSource} adding those paths to the package. The destroot is
+     * scanned when the first source is used, unless {@link #scan()} was called first.
+     * @param name The name of the package, used when reporting overlapping paths.
+     */
+    public synchronized PackageSource addPackage (String name, DestrootFilter filter)
+    {
+        if (_scanned) {
+            throw new IllegalStateException("Packages cannot be added after the destroot is scanned.");
+        }
+        for (final SplitSource source : _sources) {
+            if (source.name.equals(name)) {
+                throw new IllegalArgumentException("Package is already defined. name=[" + name + "].");
+            }
+        }
+        final SplitSource source = new SplitSource(name, filter);
+        _sources.add(source);
+        return source;
+    }
+
+    /**
+     * Scan the destroot and divide its entries between the packages, unless already done.
+     * @throws IOException If the destroot could not be scanned.
+     */
+    public synchronized void scan ()
+        throws IOException
+    {
+        if (_scanned) {
+            return;
+        }
+
+        final List<DestrootEntry> entries =
+            new DestrootScanner(_destroot, DestrootScanner.DEFAULT_THREADS, new DestrootFilter(),
+                _policy).scan();
+        final int rootLength = _destroot.getAbsolutePath().length() + 1;
+        final String[] paths = new String[entries.size()];
+        for (int ii = 0; ii < paths.length; ii++) {
+            paths[ii] = entries.get(ii).getFile().getAbsolutePath().substring(rootLength)
+                .replace(File.separatorChar, SEPARATOR);
+        }
+
+        // find the entries each package selects itself. directories always precede their
+        // contents, so an excluded directory is known before anything beneath it.
+        final boolean[][] selected = new boolean[_sources.size()][paths.length];
+        final List<Set<String>> holders = new ArrayList<Set<String>>();
+        for (int pp = 0; pp < _sources.size(); pp++) {
+            final DestrootFilter filter = _sources.get(pp).filter;
+            final Set<String> excluded = new HashSet<String>();
+            final Set<String> holding = new HashSet<String>();
+            holders.add(holding);
+            for (int ii = 0; ii < paths.length; ii++) {
+                final String path = paths[ii];
+                final boolean directory = entries.get(ii).getAttributes().isDirectory();
+                if (excluded.contains(getParent(path)) || filter.isExcluded(path)) {
+                    if (directory) {
+                        excluded.add(path);
+                    }
+                    continue;
+                }
+                if (!filter.isIncluded(path)) {
+                    continue;
+                }
+                selected[pp][ii] = true;
+
+                // every directory above a selected path is needed to hold it.
+                String parent = getParent(path);
+                while (parent.length() > 0 && holding.add(parent)) {
+                    parent = getParent(parent);
+                }
+            }
+        }
+
+        for (int ii = 0; ii < paths.length; ii++) {
+            final DestrootEntry entry = entries.get(ii);
+            final boolean directory = entry.getAttributes().isDirectory();
+            final List<String> owners = new ArrayList<String>();
+            for (int pp = 0; pp < _sources.size(); pp++) {
+                final SplitSource source = _sources.get(pp);
+                if (selected[pp][ii] || (directory && holders.get(pp).contains(paths[ii]))) {
+                    source.entries.add(entry);
+                    owners.add(source.name);
+                }
+            }
+            if (directory) {
+                continue;
+            }
+            if (owners.isEmpty()) {
+                _unmatched.add(paths[ii]);
+
+            } else if (owners.size() > 1) {
+                _overlaps.put(paths[ii], owners);
+            }
+        }
+        _scanned = true;
+    }
+
+    /**
+     * Returns the files selected by more than one package, relative to the destroot and in scan
+     * order, along with the names of the packages selecting each. Cannot be called before
+     * {@link #scan()}.
+     */
+    public synchronized Map<String, List<String>> getOverlaps ()
+    {
+        requireScan();
+        return Collections.unmodifiableMap(_overlaps);
+    }
+
+    /**
+     * Returns the files selected by no package, relative to the destroot and in scan order.
+     * Cannot be called before {@link #scan()}.
+     */
+    public synchronized List<String> getUnmatched ()
+    {
+        requireScan();
+        return Collections.unmodifiableList(_unmatched);
+    }
+
+    /**
+     * Throws if the destroot has not been scanned yet.
+     */
+    private void requireScan ()
+    {
+        if (!_scanned) {
+            throw new IllegalStateException("The destroot has not been scanned. destroot=[" +
+                _destroot + "].");
+        }
+    }
+
+    /**
+     * Returns the path of the directory holding the supplied relative path, or the empty string
+     * for a path at the root of the destroot.
+     */
+    private static String getParent (String path)
+    {
+        final int slash = path.lastIndexOf(SEPARATOR);
+        return slash == -1 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * The {@link PackageSource} adding the entries of a single package.
+     */
+    private class SplitSource
+        implements PackageSource
+    {
+        /** The name of the package. */
+        public final String name;
+
+        /** The filter selecting the paths of the package. */
+        public final DestrootFilter filter;
+
+        /** The entries of the package, in scan order, once scanned. */
+        public final List<DestrootEntry> entries = new ArrayList<DestrootEntry>();
+
+        public SplitSource (String name, DestrootFilter filter)
+        {
+            this.name = name;
+            this.filter = filter;
+        }
+
+        // from PackageSource
+        public void addTo (PackageTarFile tar)
+            throws DuplicatePermissionsException, IOException
+        {
+            scan();
+            tar.addEntries(entries, _destroot.getAbsolutePath());
+        }
+
+        // from PackageSource
+        public void addTo (BuildFingerprint fingerprint)
+            throws IOException
+        {
+            scan();
+            fingerprint.add("split=[" + name + "] " + filter);
+            fingerprint.addEntries(entries, _destroot);
+        }
+    }
+
+    /** The path separator of relative paths. */
+    private static final char SEPARATOR = '/';
+
+    /** The destroot being split. */
+    private final File _destroot;
+
+    /** The policy deciding which symbolic links are followed. */
+    private final SymlinkPolicy _policy;
+
+    /** The source of each package, in the order added. */
+    private final List<SplitSource> _sources = new ArrayList<SplitSource>();
+
+    /** The files selected by more than one package, with the names of those packages. */
+    private final Map<String, List<String>> _overlaps = new LinkedHashMap<String, List<String>>();
+
+    /** The files selected by no package. */
+    private final List<String> _unmatched = new ArrayList<String>();
+
+    /** Whether the destroot has been scanned. */
+    private boolean _scanned;
+}
@@ -0,0 +1,343 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A persistent cache of file md5 checksums, stored in a fixed size memory mapped file. Each
+ * checksum is recorded against the file path, device and inode, size and modification time in
+ * nanoseconds, so any change to a file misses the cache.
+ * <p>
+ * The file is a hash table of buckets holding a few records each. A record which does not fit
+ * replaces the least recently used record in its bucket, so the cache never grows beyond its
+ * initial size. Every record carries a check value over its contents, and records which fail the
+ * check are treated as missing, which lets concurrent builds, in this or other processes, share a
+ * cache without locking: a record torn by two simultaneous writes is simply a miss.
+ * @see PackageTarFile#setDigestCache(DigestCache)
+ */
+public class DigestCache
+{
+    /** The default size of the cache file, enough for about one million files. */
+    public static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Convenience constructor to open a {@link DigestCache} of the default size.
+     * @see DigestCache#DigestCache(File, long)
+     */
+    public DigestCache (File file)
+        throws IOException
+    {
+        this(file, DEFAULT_SIZE);
+    }
+
+    /**
+     * Open the {@link DigestCache} stored in the supplied file, creating it if needed. An existing
+     * cache keeps its size, and a file which is not a valid cache is replaced.
+     * @param file The file holding the cache.
+     * @param size The size in bytes of the cache file, if it is created.
+     * @throws IOException If the cache file could not be opened or created.
+     */
+    public DigestCache (File file, long size)
+        throws IOException
+    {
+        if (size < HEADER_SIZE + BUCKET_SIZE || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The cache size must be between " +
+                (HEADER_SIZE + BUCKET_SIZE) + " and " + Integer.MAX_VALUE + " bytes. size=[" + size + "].");
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // the file lock excludes other processes, but within a process a second lock would
+            // fail rather than wait, so exclude other threads as well.
+            synchronized (DigestCache.class) {
+                final FileLock lock = channel.lock();
+                try {
+                    _buckets = initialize(raf, (int)((size - HEADER_SIZE) / BUCKET_SIZE));
+
+                } finally {
+                    lock.release();
+                }
+            }
+            _buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(_buckets));
+
+        } finally {
+            // the mapping remains valid once the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the cached md5 checksum of the supplied file, or null if there is none for the
+     * file in its current state.
+     * @param attributes The current attributes of the file.
+     */
+    public String get (File file, BasicFileAttributes attributes)
+    {
+        final long key = getKey(file, attributes);
+        final long size = attributes.size();
+        final long mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        final int bucket = getBucket(key);
+        for (int ii = 0; ii < SLOTS_PER_BUCKET; ii++) {
+            final int record = bucket + ii * RECORD_SIZE;
+            if (_buffer.getLong(record + KEY_OFFSET) != key) {
+                continue;
+            }
+
+            final long md5High = _buffer.getLong(record + MD5_OFFSET);
+            final long md5Low = _buffer.getLong(record + MD5_OFFSET + 8);
+            if (_buffer.getLong(record + SIZE_OFFSET) != size ||
+                _buffer.getLong(record + MTIME_OFFSET) != mtime ||
+                _buffer.getLong(record + CHECK_OFFSET) != getCheck(key, size, mtime, md5High, md5Low)) {
+                continue;
+            }
+
+            // only refresh the use time occasionally, to avoid writing to every page read.
+            final long now = getStamp();
+            if (now - _buffer.getLong(record + STAMP_OFFSET) > STAMP_RESOLUTION) {
+                _buffer.putLong(record + STAMP_OFFSET, now);
+            }
+            return toHex(md5High, md5Low);
+        }
+        return null;
+    }
+
+    /**
+     * Record the md5 checksum of the supplied file.
+     * @param attributes The attributes of the file when the checksum was computed.
+     * @param md5 The hex encoded md5 checksum of the file contents.
+     */
+    public void put (File file, BasicFileAttributes attributes, String md5)
+    {
+        final long key = getKey(file, attributes);
+        final long size = attributes.size();
+        final long mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        final ByteBuffer digest;
+        try {
+            digest = ByteBuffer.wrap(Hex.decodeHex(md5.toCharArray()));
+
+        } catch (final DecoderException de) {
+            throw new IllegalArgumentException("Invalid md5 checksum. md5=[" + md5 + "].", de);
+        }
+        final long md5High = digest.getLong();
+        final long md5Low = digest.getLong();
+
+        // replace the record for the same file, otherwise the least recently used record.
+        final int bucket = getBucket(key);
+        int target = bucket;
+        long oldest = Long.MAX_VALUE;
+        for (int ii = 0; ii < SLOTS_PER_BUCKET; ii++) {
+            final int record = bucket + ii * RECORD_SIZE;
+            if (_buffer.getLong(record + KEY_OFFSET) == key) {
+                target = record;
+                break;
+            }
+            final long stamp = _buffer.getLong(record + STAMP_OFFSET);
+            if (stamp < oldest) {
+                oldest = stamp;
+                target = record;
+            }
+        }
+
+        _buffer.putLong(target + KEY_OFFSET, key);
+        _buffer.putLong(target + SIZE_OFFSET, size);
+        _buffer.putLong(target + MTIME_OFFSET, mtime);
+        _buffer.putLong(target + MD5_OFFSET, md5High);
+        _buffer.putLong(target + MD5_OFFSET + 8, md5Low);
+        _buffer.putLong(target + STAMP_OFFSET, getStamp());
+        _buffer.putLong(target + CHECK_OFFSET, getCheck(key, size, mtime, md5High, md5Low));
+    }
+
+    /**
+     * Write any changes to the cache file to disk. Changes reach the file eventually without
+     * this, but only this guarantees they survive a system crash.
+     */
+    public void force ()
+    {
+        _buffer.force();
+    }
+
+    /**
+     * Returns the number of buckets in the cache file, initializing the file with the requested
+     * number of buckets if it is empty or invalid. Must be called with the file locked.
+     */
+    private static int initialize (RandomAccessFile raf, int requested)
+        throws IOException
+    {
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(0);
+            final long magic = raf.readLong();
+            final int version = raf.readInt();
+            final int buckets = raf.readInt();
+            if (magic == MAGIC && version == VERSION && buckets > 0 &&
+                raf.length() == getFileSize(buckets)) {
+                return buckets;
+            }
+        }
+
+        // start afresh, with every record empty.
+        raf.setLength(0);
+        raf.setLength(getFileSize(requested));
+        raf.seek(0);
+        raf.writeLong(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(requested);
+        return requested;
+    }
+
+    /**
+     * Returns the size of a cache file holding the supplied number of buckets.
+     */
+    private static long getFileSize (int buckets)
+    {
+        return HEADER_SIZE + (long)buckets * BUCKET_SIZE;
+    }
+
+    /**
+     * Returns the offset of the bucket holding the supplied key.
+     */
+    private int getBucket (long key)
+    {
+        final int index = (int)((key >>> 1) % _buckets);
+        return HEADER_SIZE + index * BUCKET_SIZE;
+    }
+
+    /**
+     * Returns the key identifying the supplied file: a hash of its path and, where the platform
+     * provides one, its device and inode. Never 0, which marks an empty record.
+     */
+    private static long getKey (File file, BasicFileAttributes attributes)
+    {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+
+        } catch (final NoSuchAlgorithmException nsa) {
+            throw new RuntimeException("md5 algorthm not found.", nsa);
+        }
+
+        try {
+            md.update(file.getAbsolutePath().getBytes("UTF-8"));
+            final Object fileKey = attributes.fileKey();
+            if (fileKey != null) {
+                md.update((byte)0);
+                md.update(fileKey.toString().getBytes("UTF-8"));
+            }
+
+        } catch (final UnsupportedEncodingException uee) {
+            throw new RuntimeException("UTF-8 encoding not found.", uee);
+        }
+
+        final long key = ByteBuffer.wrap(md.digest()).getLong();
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * Returns the check value for a record with the supplied contents.
+     */
+    private static long getCheck (long key, long size, long mtime, long md5High, long md5Low)
+    {
+        long check = MAGIC;
+        for (final long value : new long[] { key, size, mtime, md5High, md5Low }) {
+            check = Long.rotateLeft((check ^ value) * 0x9E3779B97F4A7C15L, 31);
+        }
+        return check;
+    }
+
+    /**
+     * Returns the hex encoding of the supplied md5 checksum.
+     */
+    private static String toHex (long md5High, long md5Low)
+    {
+        final ByteBuffer digest = ByteBuffer.allocate(16);
+        digest.putLong(md5High);
+        digest.putLong(md5Low);
+        return new String(Hex.encodeHex(digest.array()));
+    }
+
+    /**
+     * Returns the current time used to order records by use, in seconds.
+     */
+    private static long getStamp ()
+    {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /** Identifies a cache file, "JPKGMD5C". */
+    private static final long MAGIC = 0x4A504B474D443543L;
+
+    /** The version of the cache file layout. */
+    private static final int VERSION = 1;
+
+    /** The size of the file header: the magic, version and bucket count. */
+    private static final int HEADER_SIZE = 16;
+
+    /** The layout of a record. */
+    private static final int KEY_OFFSET = 0;
+    private static final int SIZE_OFFSET = 8;
+    private static final int MTIME_OFFSET = 16;
+    private static final int MD5_OFFSET = 24;
+    private static final int STAMP_OFFSET = 40;
+    private static final int CHECK_OFFSET = 48;
+    private static final int RECORD_SIZE = 64;
+
+    /** The number of records in each bucket. */
+    private static final int SLOTS_PER_BUCKET = 8;
+
+    /** The size of a bucket. */
+    private static final int BUCKET_SIZE = SLOTS_PER_BUCKET * RECORD_SIZE;
+
+    /** The interval in seconds at which the use time of a record is refreshed. */
+    private static final long STAMP_RESOLUTION = 60 * 60;
+
+    /** The number of buckets in the cache file. */
+    private final int _buckets;
+
+    /** The mapped cache file. */
+    private final MappedByteBuffer _buffer;
+}
@@ -0,0 +1,349 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact store of the md5 checksums of the files in a package, keyed by path. Rather than a
+ * map of strings, the paths are held as UTF-8 bytes packed into shared pages and the checksums
+ * as raw 16 byte values, so that packages with millions of files can be checksummed without
+ * holding several objects per file.
+ * <p>
+ * Entries are referred to by their index, in the order they were added. {@link #sort()} returns
+ * the indexes in path order, which are used to read the entries back without creating strings.
+ */
+public class DigestStore
+{
+    /** The length of an md5 checksum in bytes. */
+    public static final int MD5_LENGTH = 16;
+
+    /** The length of an md5 checksum formatted as hex. */
+    public static final int MD5_HEX_LENGTH = 2 * MD5_LENGTH;
+
+    /**
+     * Add the md5 checksum of a path. A checksum added again for the same path replaces the
+     * earlier one.
+     * @param md5 The checksum, as 32 hex digits.
+     * @throws IllegalArgumentException If the checksum is not 32 hex digits.
+     */
+    public void put (String path, String md5)
+    {
+        if (md5.length() != MD5_HEX_LENGTH) {
+            throw new IllegalArgumentException("Invalid md5 checksum. md5=[" + md5 + "].");
+        }
+        ensureCapacity(_count + 1);
+        for (int ii = 0; ii < MD5_LENGTH; ii++) {
+            _digests[_count * MD5_LENGTH + ii] =
+                (byte)((hexValue(md5, 2 * ii) << 4) | hexValue(md5, 2 * ii + 1));
+        }
+
+        // ASCII paths are copied straight into the page, others are encoded first.
+        byte[] bytes = null;
+        int length = path.length();
+        for (int ii = 0; ii < path.length(); ii++) {
+            if (path.charAt(ii) >= 0x80) {
+                bytes = path.getBytes(UTF8);
+                length = bytes.length;
+                break;
+            }
+        }
+
+        // a full page is never added to, so that offsets stay within the page bits.
+        if (_page == null || _pageUsed == _page.length || _pageUsed + length > _page.length) {
+            if (_pages.size() > MAX_PAGE) {
+                throw new IllegalStateException("Too much path data for the digest store. count=[" + _count + "].");
+            }
+            _page = new byte[Math.max(PAGE_SIZE, length)];
+            _pages.add(_page);
+            _pageEnds.add(0);
+            _pageUsed = 0;
+        }
+        if (bytes == null) {
+            for (int ii = 0; ii < length; ii++) {
+                _page[_pageUsed + ii] = (byte)path.charAt(ii);
+            }
+        } else {
+            System.arraycopy(bytes, 0, _page, _pageUsed, length);
+        }
+        _positions[_count] = ((_pages.size() - 1) << PAGE_BITS) | _pageUsed;
+        _pageUsed += length;
+        _pageEnds.set(_pages.size() - 1, _pageUsed);
+        _count++;
+    }
+
+    /**
+     * Returns the number of checksums added, including any replaced by a later checksum for the
+     * same path.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the indexes of the entries sorted by path, comparing the UTF-8 bytes of the paths.
+     * Where a path was added more than once, only the index of the last checksum is included.
+     */
+    public int[] sort ()
+    {
+        int[] indexes = new int[_count];
+        for (int ii = 0; ii < _count; ii++) {
+            indexes[ii] = ii;
+        }
+        mergeSort(indexes, new int[_count], 0, _count);
+
+        // the sort is stable, so the last of a run of equal paths was added last.
+        int unique = 0;
+        for (int ii = 0; ii < _count; ii++) {
+            if (ii + 1 < _count && comparePaths(indexes[ii], indexes[ii + 1]) == 0) {
+                continue;
+            }
+            indexes[unique++] = indexes[ii];
+        }
+        if (unique < _count) {
+            indexes = Arrays.copyOf(indexes, unique);
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the length in bytes of the UTF-8 path of the entry.
+     */
+    public int getPathLength (int index)
+    {
+        // paths are packed one after another, so a path ends where the next path in the same
+        // page starts, or at the end of the used part of the page.
+        final int page = getPage(index);
+        if (index + 1 < _count && getPage(index + 1) == page) {
+            return getOffset(index + 1) - getOffset(index);
+        }
+        return _pageEnds.get(page) - getOffset(index);
+    }
+
+    /**
+     * Returns the path of the entry.
+     */
+    public String getPath (int index)
+    {
+        return new String(_pages.get(getPage(index)), getOffset(index), getPathLength(index), UTF8);
+    }
+
+    /**
+     * Returns the md5 checksum of the entry, as 32 hex digits.
+     */
+    public String getMd5 (int index)
+    {
+        return new String(formatMd5(index), US_ASCII);
+    }
+
+    /**
+     * Write the UTF-8 path of the entry to the supplied stream.
+     */
+    public void writePath (int index, OutputStream output)
+        throws IOException
+    {
+        output.write(_pages.get(getPage(index)), getOffset(index), getPathLength(index));
+    }
+
+    /**
+     * Write the md5 checksum of the entry to the supplied stream, as 32 hex digits.
+     */
+    public void writeMd5 (int index, OutputStream output)
+        throws IOException
+    {
+        output.write(formatMd5(index));
+    }
+
+    /**
+     * Returns a map of every path to its md5 checksum. This creates several objects per entry,
+     * which the store otherwise avoids.
+     */
+    public Map<String, String> toMap ()
+    {
+        final Map<String, String> map = new HashMap<String, String>();
+        for (int ii = 0; ii < _count; ii++) {
+            map.put(getPath(ii), getMd5(ii));
+        }
+        return map;
+    }
+
+    /**
+     * Format the md5 checksum of the entry as hex digits, into a buffer reused by the next call.
+     */
+    private byte[] formatMd5 (int index)
+    {
+        for (int ii = 0; ii < MD5_LENGTH; ii++) {
+            final int value = _digests[index * MD5_LENGTH + ii] & 0xff;
+            _hex[2 * ii] = HEX_DIGITS[value >>> 4];
+            _hex[2 * ii + 1] = HEX_DIGITS[value & 0x0f];
+        }
+        return _hex;
+    }
+
+    /**
+     * Returns the page holding the path of the entry.
+     */
+    private int getPage (int index)
+    {
+        return _positions[index] >>> PAGE_BITS;
+    }
+
+    /**
+     * Returns the offset of the path of the entry in its page.
+     */
+    private int getOffset (int index)
+    {
+        return _positions[index] & (PAGE_SIZE - 1);
+    }
+
+    /**
+     * Grow the entry arrays to hold at least the supplied number of entries.
+     */
+    private void ensureCapacity (int count)
+    {
+        if (count <= _positions.length) {
+            return;
+        }
+        final int capacity = Math.max(count, _positions.length + (_positions.length >> 1));
+        _positions = Arrays.copyOf(_positions, capacity);
+        _digests = Arrays.copyOf(_digests, capacity * MD5_LENGTH);
+    }
+
+    /**
+     * Sort the indexes between start and end by path, keeping indexes with equal paths in order.
+     */
+    private void mergeSort (int[] indexes, int[] scratch, int start, int end)
+    {
+        if (end - start < 2) {
+            return;
+        }
+        final int middle = (start + end) >>> 1;
+        mergeSort(indexes, scratch, start, middle);
+        mergeSort(indexes, scratch, middle, end);
+        if (comparePaths(indexes[middle - 1], indexes[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(indexes, start, scratch, start, end - start);
+        int left = start;
+        int right = middle;
+        for (int ii = start; ii < end; ii++) {
+            if (right >= end || (left < middle && comparePaths(scratch[left], scratch[right]) <= 0)) {
+                indexes[ii] = scratch[left++];
+            } else {
+                indexes[ii] = scratch[right++];
+            }
+        }
+    }
+
+    /**
+     * Compare the paths of two entries as unsigned bytes.
+     */
+    private int comparePaths (int first, int second)
+    {
+        final byte[] firstPage = _pages.get(getPage(first));
+        final byte[] secondPage = _pages.get(getPage(second));
+        final int firstOffset = getOffset(first);
+        final int secondOffset = getOffset(second);
+        final int firstLength = getPathLength(first);
+        final int secondLength = getPathLength(second);
+        final int length = Math.min(firstLength, secondLength);
+        for (int ii = 0; ii < length; ii++) {
+            final int diff = (firstPage[firstOffset + ii] & 0xff) - (secondPage[secondOffset + ii] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /**
+     * Returns the value of the hex digit at the supplied index of the checksum.
+     * @throws IllegalArgumentException If the character is not a hex digit.
+     */
+    private static int hexValue (String md5, int index)
+    {
+        final int value = Character.digit(md5.charAt(index), 16);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid md5 checksum. md5=[" + md5 + "].");
+        }
+        return value;
+    }
+
+    /** The number of bits of an entry position holding the offset in the page. */
+    private static final int PAGE_BITS = 20;
+
+    /** The size of the pages holding the paths. Longer paths are given a page of their own. */
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /** The highest page index which fits an entry position. */
+    private static final int MAX_PAGE = (1 << (32 - PAGE_BITS)) - 1;
+
+    /** The initial number of entries the arrays hold. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The encodings of paths and checksums. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /** The lower case hex digits. */
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(US_ASCII);
+
+    /** The pages holding the UTF-8 paths, one after another. */
+    private final List<byte[]> _pages = new ArrayList<byte[]>();
+
+    /** The page paths are being added to, and the number of bytes of it used. */
+    private byte[] _page;
+    private int _pageUsed;
+
+    /** The used length of each page. */
+    private final List<Integer> _pageEnds = new ArrayList<Integer>();
+
+    /** The position of the path of each entry: the page index, then the offset in the page. */
+    private int[] _positions = new int[INITIAL_CAPACITY];
+
+    /** The md5 checksum of each entry, one after another. */
+    private byte[] _digests = new byte[INITIAL_CAPACITY * MD5_LENGTH];
+
+    /** The number of entries added. */
+    private int _count;
+
+    /** Holds a checksum formatted as hex. */
+    private final byte[] _hex = new byte[MD5_HEX_LENGTH];
+}
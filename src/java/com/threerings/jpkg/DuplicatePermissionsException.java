@@ -31,8 +31,8 @@
 package com.threerings.jpkg;
 
 /**
- * Thrown when more than one {@link PermissionsMap} entry maps to a path being added which would
- * result in unpredictable behavior.
+ * Thrown when more than one {@link PermissionsMap} entry is defined for the same path, e.g.
+ * "/usr/bin" and "usr/bin", which would result in unpredictable behavior.
  */
 public class DuplicatePermissionsException extends Exception
 {
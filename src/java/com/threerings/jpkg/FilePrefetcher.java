@@ -0,0 +1,321 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads and computes the md5 checksums of upcoming files on a pool of threads while earlier files
+ * are being written to a tar file, so that disk reads and hashing overlap with compression and
+ * writing. Files are handed back in the order supplied.
+ * <p>
+ * Each file is read in chunks into a small bounded queue and only a limited number of files are
+ * read ahead of the writer, which bounds the memory used regardless of file sizes. Since the
+ * reads for a file always start before those of any later file, and the writer consumes files
+ * in order, a reader can only ever be waiting on the writer, never the reverse.
+ * <p>
+ * The checksum of an entry whose md5 is already known is not computed again, and such a file is
+ * not read at all if only checksums are wanted.
+ * Package private.
+ * @see PackageTarFile
+ */
+class FilePrefetcher
+{
+    /**
+     * Construct a {@link FilePrefetcher} for the supplied files.
+     * @param entries The entries to read, in the order they will be consumed. Any which are not
+     * regular files are skipped by the readers.
+     * @param threads The number of reader threads.
+     * @param digestOnly If true, only the checksums are computed and the contents are discarded.
+     */
+    public FilePrefetcher (List<DestrootEntry> entries, int threads, boolean digestOnly)
+    {
+        _entries = entries.iterator();
+        _digestOnly = digestOnly;
+        _window = threads * WINDOW_PER_THREAD;
+        _executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread (Runnable runnable) {
+                final Thread thread = new Thread(runnable, "jpkg-read");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fill();
+    }
+
+    /**
+     * Returns the {@link PrefetchedFile} for the next file in the list, starting reads of further
+     * files as room in the read ahead window allows.
+     */
+    public PrefetchedFile next ()
+    {
+        final PrefetchedFile next = _pending.removeFirst();
+        fill();
+        return next;
+    }
+
+    /**
+     * Stop all reader threads, abandoning any files which have not been consumed.
+     */
+    public void shutdown ()
+    {
+        _executor.shutdownNow();
+        _pending.clear();
+    }
+
+    /**
+     * Submit reads for upcoming files until the read ahead window is full.
+     */
+    private void fill ()
+    {
+        while (_pending.size() < _window && _entries.hasNext()) {
+            final PrefetchedFile file = new PrefetchedFile(_entries.next(), _digestOnly);
+            _pending.add(file);
+            _executor.execute(file);
+        }
+    }
+
+    /**
+     * The contents and checksum of a single file, delivered in chunks as they are read.
+     */
+    public static class PrefetchedFile
+        implements Runnable
+    {
+        public PrefetchedFile (DestrootEntry entry, boolean digestOnly)
+        {
+            _file = entry.getFile();
+            _regular = entry.getAttributes().isRegularFile();
+            _knownMd5 = entry.getMd5();
+            _digestOnly = digestOnly;
+        }
+
+        /**
+         * Copy the contents of the file to the supplied stream as they become available. Returns
+         * the hex encoded md5 checksum of the contents. Nothing is copied if only the checksum
+         * was computed, in which case the stream may be null.
+         * @throws IOException If the file could not be read or the stream could not be written.
+         */
+        public String copyTo (OutputStream output)
+            throws IOException
+        {
+            try {
+                while (true) {
+                    final byte[] chunk = _chunks.take();
+                    if (chunk == END) {
+                        break;
+                    }
+                    output.write(chunk);
+                }
+
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException(
+                    "Interrupted while reading file. path=[" + _file.getAbsolutePath() + "].", ie);
+            }
+
+            if (_failure != null) {
+                throw _failure;
+            }
+            return _md5;
+        }
+
+        // from Runnable
+        public void run ()
+        {
+            try {
+                if (_regular) {
+                    if (_knownMd5 != null && _digestOnly) {
+                        _md5 = _knownMd5;
+                    } else {
+                        read();
+                    }
+                }
+
+            } catch (final IOException ioe) {
+                _failure = ioe;
+
+            } catch (final InterruptedException ie) {
+                // the prefetcher was shut down, nobody is waiting on this file.
+                return;
+            }
+
+            try {
+                _chunks.put(END);
+
+            } catch (final InterruptedException ie) {
+                // the prefetcher was shut down, nobody is waiting on this file.
+            }
+        }
+
+        /**
+         * Read the file into chunks, computing the md5 checksum along the way unless it is
+         * already known.
+         */
+        private void read ()
+            throws IOException, InterruptedException
+        {
+            MessageDigest md = null;
+            if (_knownMd5 == null) {
+                try {
+                    md = MessageDigest.getInstance("MD5");
+
+                } catch (final NoSuchAlgorithmException nsa) {
+                    throw new RuntimeException("md5 algorthm not found.", nsa);
+                }
+            }
+
+            final InputStream input = new FileInputStream(_file);
+            try {
+                byte[] buffer = null;
+                while (true) {
+                    // queued chunks cannot be reused, but the buffer can if nothing is queued.
+                    if (buffer == null || !_digestOnly) {
+                        buffer = new byte[CHUNK_SIZE];
+                    }
+                    final int len = readFully(input, buffer);
+                    if (len == 0) {
+                        break;
+                    }
+
+                    final byte[] chunk = len == CHUNK_SIZE ? buffer : copyOf(buffer, len);
+                    if (md != null) {
+                        md.update(chunk);
+                    }
+                    if (!_digestOnly) {
+                        _chunks.put(chunk);
+                    }
+
+                    if (len < CHUNK_SIZE) {
+                        break;
+                    }
+                }
+
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+
+            _md5 = md == null ? _knownMd5 : new String(Hex.encodeHex(md.digest()));
+        }
+
+        /**
+         * Read from the stream until the buffer is full or the end of the stream is reached.
+         * Returns the number of bytes read.
+         */
+        private static int readFully (InputStream input, byte[] buffer)
+            throws IOException
+        {
+            int total = 0;
+            while (total < buffer.length) {
+                final int len = input.read(buffer, total, buffer.length - total);
+                if (len == -1) {
+                    break;
+                }
+                total += len;
+            }
+            return total;
+        }
+
+        /**
+         * Returns the first len bytes of the supplied buffer.
+         */
+        private static byte[] copyOf (byte[] buffer, int len)
+        {
+            final byte[] copy = new byte[len];
+            System.arraycopy(buffer, 0, copy, 0, len);
+            return copy;
+        }
+
+        /** The file being read. */
+        private final File _file;
+
+        /** Whether the file is a regular file, which has contents to read. */
+        private final boolean _regular;
+
+        /** The md5 checksum of the contents if already known, otherwise null. */
+        private final String _knownMd5;
+
+        /** Whether only the checksum is computed. */
+        private final boolean _digestOnly;
+
+        /** The chunks read but not yet consumed, followed by {@link #END}. */
+        private final BlockingQueue<byte[]> _chunks = new ArrayBlockingQueue<byte[]>(CHUNKS_PER_FILE);
+
+        /** The md5 checksum of the contents, set before {@link #END} is queued. */
+        private volatile String _md5;
+
+        /** The exception which stopped the read, if any, set before {@link #END} is queued. */
+        private volatile IOException _failure;
+    }
+
+    /** The number of files read ahead of the writer for each reader thread. */
+    private static final int WINDOW_PER_THREAD = 4;
+
+    /** The size of each chunk read from a file. */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /** The number of chunks of each file which may be read ahead of the writer. */
+    private static final int CHUNKS_PER_FILE = 4;
+
+    /** Marks the end of the chunks of a file. */
+    private static final byte[] END = new byte[0];
+
+    /** The entries which have not yet been submitted for reading. */
+    private final Iterator<DestrootEntry> _entries;
+
+    /** The files submitted for reading but not yet consumed, in order. */
+    private final LinkedList<PrefetchedFile> _pending = new LinkedList<PrefetchedFile>();
+
+    /** Whether only the checksums of the files are computed. */
+    private final boolean _digestOnly;
+
+    /** The maximum number of files read ahead of the writer. */
+    private final int _window;
+
+    /** Runs the reads. */
+    private final ExecutorService _executor;
+}
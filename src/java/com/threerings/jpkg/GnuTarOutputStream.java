@@ -0,0 +1,153 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.tar.TarUtils;
+
+/**
+ * A {@link TarOutputStream} using the GNU tar extensions for entries which do not fit a ustar
+ * header.
+ * <p>
+ * Long entry names are stored in GNU tar long name entries, which are written as GNU tar writes
+ * them: with a modification time of 0, rather than the time they were written. The same entries
+ * therefore always produce the same tar data.
+ * <p>
+ * The size of an entry larger than {@link #MAX_OCTAL_SIZE}, which is the most the octal size
+ * field of a ustar header can hold, is stored as a GNU tar base-256 number instead.
+ */
+public class GnuTarOutputStream extends TarOutputStream
+{
+    /** The largest entry size which fits the octal size field of a ustar header, 8GB - 1. */
+    public static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    public GnuTarOutputStream (OutputStream output)
+    {
+        super(output);
+        setLongFileMode(LONGFILE_GNU);
+    }
+
+    public GnuTarOutputStream (OutputStream output, int blockSize, int recordSize)
+    {
+        super(output, blockSize, recordSize);
+        setLongFileMode(LONGFILE_GNU);
+    }
+
+    @Override // from TarOutputStream
+    public void putNextEntry (TarEntry entry)
+        throws IOException
+    {
+        // TarOutputStream creates the long name entry stamped with the current time, and passes
+        // it back through this method.
+        if (entry.isGNULongNameEntry()) {
+            entry.setModTime(0);
+        }
+
+        final long size = entry.getSize();
+        if (size <= MAX_OCTAL_SIZE || entry.isDirectory()) {
+            super.putNextEntry(entry);
+            return;
+        }
+
+        // TarEntry can only format the size in octal, so write the header as TarOutputStream
+        // would with an empty size, then patch in the base-256 size.
+        final String name = entry.getName();
+        if (name.length() >= TarConstants.NAMELEN) {
+            putLongName(name);
+        }
+
+        entry.setSize(0);
+        try {
+            entry.writeEntryHeader(recordBuf);
+        } finally {
+            entry.setSize(size);
+        }
+        writeBase256(size, recordBuf, SIZE_OFFSET, TarConstants.SIZELEN);
+        writeChecksum(recordBuf);
+        buffer.writeRecord(recordBuf);
+
+        currBytes = 0;
+        currSize = size;
+        currName = name;
+    }
+
+    /**
+     * Writes a GNU tar long name entry holding the supplied name, as TarOutputStream does.
+     */
+    private void putLongName (String name)
+        throws IOException
+    {
+        final byte[] bytes = name.getBytes();
+        final TarEntry longName = new TarEntry(TarConstants.GNU_LONGLINK, TarConstants.LF_GNUTYPE_LONGNAME);
+        longName.setSize(bytes.length + 1);
+        putNextEntry(longName);
+        write(bytes);
+        write(0);
+        closeEntry();
+    }
+
+    /**
+     * Stores the value in the header field as a GNU tar base-256 number: the high bit of the
+     * first byte is set, and the remaining bytes hold the value in big-endian order.
+     */
+    private static void writeBase256 (long value, byte[] header, int offset, int length)
+    {
+        for (int ii = offset + length - 1; ii > offset; ii--) {
+            header[ii] = (byte)value;
+            value >>>= 8;
+        }
+        header[offset] = (byte)0x80;
+    }
+
+    /**
+     * Recomputes the header checksum, which is the sum of the header bytes counting the checksum
+     * field as spaces.
+     */
+    private static void writeChecksum (byte[] header)
+    {
+        Arrays.fill(header, CHKSUM_OFFSET, CHKSUM_OFFSET + TarConstants.CHKSUMLEN, (byte)' ');
+        TarUtils.getCheckSumOctalBytes(TarUtils.computeCheckSum(header), header, CHKSUM_OFFSET,
+            TarConstants.CHKSUMLEN);
+    }
+
+    /** The offset of the size field in a ustar header. */
+    private static final int SIZE_OFFSET = TarConstants.NAMELEN + TarConstants.MODELEN +
+        TarConstants.UIDLEN + TarConstants.GIDLEN;
+
+    /** The offset of the checksum field in a ustar header. */
+    private static final int CHKSUM_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN + TarConstants.MODTIMELEN;
+}
@@ -0,0 +1,128 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A directory of compressed tar data, each file holding one gzip member covering a group of tar
+ * entries, named by a digest of the entry headers, the entry contents and the compression
+ * settings. A {@link PackageTarFile} using a cache copies the members of unchanged entries
+ * instead of compressing them again. Entries are never removed from the cache; the modification
+ * time of each member is updated when it is used so that stale members can be pruned by age.
+ * The cache may be shared by concurrent builds.
+ * @see PackageTarFile#setMemberCache(MemberCache)
+ */
+public class MemberCache
+{
+    /**
+     * Construct a {@link MemberCache} storing members in the supplied directory, which is created
+     * when first needed.
+     */
+    public MemberCache (File directory)
+    {
+        if (directory == null) throw new IllegalArgumentException("The cache directory cannot be null.");
+        _directory = directory;
+    }
+
+    /**
+     * Returns the directory holding the cached members.
+     */
+    public File getDirectory ()
+    {
+        return _directory;
+    }
+
+    /**
+     * Returns the cached member stored under the supplied key, or null if there is none.
+     */
+    File get (String key)
+    {
+        final File member = getMemberFile(key);
+        if (!member.isFile()) {
+            return null;
+        }
+        member.setLastModified(System.currentTimeMillis());
+        return member;
+    }
+
+    /**
+     * Create a temporary file in the cache directory, to be stored with {@link #put}.
+     * @throws IOException If the cache directory could not be created.
+     */
+    File createTempFile ()
+        throws IOException
+    {
+        if (!_directory.isDirectory() && !_directory.mkdirs() && !_directory.isDirectory()) {
+            throw new IOException("Unable to create the member cache directory. path=[" +
+                _directory.getAbsolutePath() + "].");
+        }
+        return File.createTempFile("jpkgmember", ".tmp", _directory);
+    }
+
+    /**
+     * Store the supplied temporary file as the member for the supplied key. If another build has
+     * already stored the same member, the temporary file is deleted.
+     * @throws IOException If the member could not be stored.
+     */
+    void put (String key, File temp)
+        throws IOException
+    {
+        final File member = getMemberFile(key);
+        final File parent = member.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create the member cache directory. path=[" +
+                parent.getAbsolutePath() + "].");
+        }
+
+        // the rename makes the complete member visible at once to any concurrent build.
+        if (!temp.renameTo(member)) {
+            temp.delete();
+            if (!member.isFile()) {
+                throw new IOException("Unable to store cached member. path=[" +
+                    member.getAbsolutePath() + "].");
+            }
+        }
+    }
+
+    /**
+     * Returns the file holding the member for the supplied key, spreading members across
+     * subdirectories to keep each directory small.
+     */
+    private File getMemberFile (String key)
+    {
+        return new File(new File(_directory, key.substring(0, 2)), key + ".gz");
+    }
+
+    /** The directory holding the cached members. */
+    private final File _directory;
+}
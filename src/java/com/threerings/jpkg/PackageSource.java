@@ -0,0 +1,58 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.IOException;
+
+/**
+ * Supplies package entries from somewhere other than a destroot, e.g. the files selected by a
+ * build tool, streaming them straight into the package data rather than through a staged copy.
+ */
+public interface PackageSource
+{
+    /**
+     * Add the entries of this source to the supplied {@link PackageTarFile}, reading each entry
+     * once.
+     * @throws DuplicatePermissionsException If more than one permission in the
+     * {@link PermissionsMap} of the tar file is defined for the same path.
+     * @throws IOException If an entry could not be read or written.
+     */
+    public void addTo (PackageTarFile tar)
+        throws DuplicatePermissionsException, IOException;
+
+    /**
+     * Add the path, type, size, mode and modification time of every entry of this source to the
+     * supplied {@link BuildFingerprint}, without reading the entry data.
+     * @throws IOException If the entries could not be listed.
+     */
+    public void addTo (BuildFingerprint fingerprint)
+        throws IOException;
+}
@@ -30,35 +30,61 @@
  */
 package com.threerings.jpkg;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.zip.GZIPOutputStream;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.tools.tar.TarEntry;
-import org.apache.tools.tar.TarOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 
-import com.threerings.jpkg.ar.ArchiveEntry;
+import com.threerings.jpkg.ar.Archive;
+import com.threerings.jpkg.ar.ChannelArchiveEntry;
+import com.threerings.jpkg.compress.CompressionCodec;
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.ParallelGZIPOutputStream;
 
 /**
- * A wrapper around TarOutputStream to handle adding files from a destroot into a tar file.
+ * Handles adding files from a destroot into a tar file. Entries holding generated content may
+ * also be added from streams, channels or buffers, without writing the content to disk first.
  * Every regular file will have its md5 checksum recorded and the total amount of file data in
  * kilobytes will be stored.
  */
 public class PackageTarFile
-    implements ArchiveEntry
+    implements ChannelArchiveEntry
 {
+    /** The default number of threads used to compress the tar data, one per available processor. */
+    public static final int DEFAULT_COMPRESSION_THREADS = GzipCodec.DEFAULT_THREADS;
+
+    /** The default size of the blocks the tar data is split into for compression. */
+    public static final int DEFAULT_COMPRESSION_BLOCK_SIZE = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+
+    /** The default number of threads used to read and checksum files ahead of the tar writer. */
+    public static final int DEFAULT_READ_THREADS = 4;
+
     /**
      * Convenience constructor to create {@link PackageTarFile} with an empty {@link PermissionsMap}.
      * @see PackageTarFile#PackageTarFile(File, PermissionsMap)
@@ -70,20 +96,178 @@ public class PackageTarFile
     }
 
     /**
-     * Initialize a PackageTar file.
+     * Convenience constructor to create {@link PackageTarFile} using the default compression
+     * settings.
+     * @see PackageTarFile#PackageTarFile(File, PermissionsMap, int, int)
+     */
+    public PackageTarFile (File safeTemp, PermissionsMap permissions)
+        throws IOException
+    {
+        this(safeTemp, permissions, DEFAULT_COMPRESSION_THREADS, DEFAULT_COMPRESSION_BLOCK_SIZE);
+    }
+
+    /**
+     * Convenience constructor to create {@link PackageTarFile} compressed with gzip using the
+     * supplied number of threads and block size. The compressed data is identical regardless of
+     * the number of threads used.
+     * @see PackageTarFile#PackageTarFile(File, PermissionsMap, CompressionCodec)
+     * @see ParallelGZIPOutputStream
+     */
+    public PackageTarFile (File safeTemp, PermissionsMap permissions, int compressionThreads,
+                           int compressionBlockSize)
+        throws IOException
+    {
+        this(safeTemp, permissions, new GzipCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+            compressionThreads, compressionBlockSize));
+    }
+
+    /**
+     * Initialize a PackageTar file backed by a temporary file.
      * @param safeTemp A location with enough free space to hold the tar data.
      * @param permissions A {@link PermissionsMap} will be used to manipulate entries before being
      * added to the tar file.
+     * @param codec The {@link CompressionCodec} used to compress the tar data. The codec also
+     * determines the path of this entry, e.g. data.tar.xz.
      * @throws IOException If the tar file cannot be initialized due to i/o errors.
      */
-    public PackageTarFile (File safeTemp, PermissionsMap permissions)
+    public PackageTarFile (File safeTemp, PermissionsMap permissions, CompressionCodec codec)
+        throws IOException
+    {
+        this(safeTemp, permissions, codec, NO_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Initialize a PackageTar file which holds the compressed tar data in memory until it grows
+     * beyond the supplied threshold, after which the data is moved to a temporary file.
+     * @param safeTemp A location with enough free space to hold the tar data.
+     * @param permissions A {@link PermissionsMap} will be used to manipulate entries before being
+     * added to the tar file.
+     * @param codec The {@link CompressionCodec} used to compress the tar data. The codec also
+     * determines the path of this entry, e.g. data.tar.xz.
+     * @param memoryThreshold The number of compressed bytes held in memory before using the
+     * temporary file. If 0, the temporary file is always used.
+     * @throws IOException If the tar file cannot be initialized due to i/o errors.
+     */
+    public PackageTarFile (File safeTemp, PermissionsMap permissions, CompressionCodec codec,
+                           int memoryThreshold)
+        throws IOException
+    {
+        if (memoryThreshold < 0) {
+            throw new IllegalArgumentException("The memory threshold cannot be negative.");
+        }
+
+        _permissions = permissions;
+        _path = DEB_AR_DATA_FILE + codec.getExtension();
+        _tar = File.createTempFile("jpkgtmp", ".tar" + codec.getExtension(), safeTemp);
+
+        final OutputStream output;
+        if (memoryThreshold > 0) {
+            _spill = new DeferredFileOutputStream(memoryThreshold, _tar);
+            output = _spill;
+
+        } else {
+            _spill = null;
+            output = new FileOutputStream(_tar);
+        }
+
+        _counter = new CountingOutputStream(output);
+        _codec = codec;
+    }
+
+    /**
+     * Initialize a PackageTar file which writes the compressed tar data directly to the supplied
+     * stream, e.g. into the package being assembled. The data cannot be read back, so the
+     * resulting object cannot be appended to an {@link Archive}, but its size, checksums and
+     * path are available once it is closed.
+     * @param output The {@link OutputStream} receiving the compressed tar data. Closed when this
+     * tar file is closed.
+     * @param permissions A {@link PermissionsMap} will be used to manipulate entries before being
+     * added to the tar file.
+     * @param codec The {@link CompressionCodec} used to compress the tar data. The codec also
+     * determines the path of this entry, e.g. data.tar.xz.
+     */
+    public PackageTarFile (OutputStream output, PermissionsMap permissions, CompressionCodec codec)
         throws IOException
     {
         _permissions = permissions;
-        _tar = File.createTempFile("jpkgtmp", ".tar.gz", safeTemp);
+        _path = DEB_AR_DATA_FILE + codec.getExtension();
+        _tar = null;
+        _spill = null;
+        _counter = new CountingOutputStream(output);
+        _codec = codec;
+    }
+
+    /**
+     * Set the number of threads used to read and checksum files ahead of the tar writer when
+     * adding a directory or a list of files. If 0, files are read by the calling thread as they
+     * are written. Defaults to {@link #DEFAULT_READ_THREADS}.
+     */
+    public void setReadThreads (int threads)
+    {
+        if (threads < 0) throw new IllegalArgumentException("The read threads cannot be negative.");
+        _readThreads = threads;
+    }
+
+    /**
+     * Set the {@link MemberCache} used to reuse the compressed data of entries which are unchanged
+     * since an earlier build. The tar data is then written as a series of gzip members, each
+     * holding a group of entries. Requires a {@link GzipCodec}, and must be set before any
+     * entries are added. Off by default.
+     */
+    public void setMemberCache (MemberCache cache)
+    {
+        if (!(_codec instanceof GzipCodec)) {
+            throw new IllegalArgumentException("The member cache requires gzip compression.");
+        }
+        if (_tarOut != null || _members != null) {
+            throw new IllegalStateException("The member cache must be set before entries are added.");
+        }
+        _memberCache = cache;
+    }
+
+    /**
+     * Set the {@link DigestCache} used to look up the md5 checksums of files which are unchanged
+     * since an earlier build, rather than computing them again. Checksums which are computed are
+     * recorded in the cache. With a {@link MemberCache} as well, unchanged files need not be read
+     * at all. Off by default.
+     */
+    public void setDigestCache (DigestCache cache)
+    {
+        _digestCache = cache;
+    }
+
+    /**
+     * Set the latest modification time recorded for any entry, in milliseconds since the epoch.
+     * Later times are replaced by this time, as with SOURCE_DATE_EPOCH, so that files rebuilt
+     * from the same sources produce the same tar file. Off by default.
+     */
+    public void setSourceDate (long millis)
+    {
+        if (millis < 0) throw new IllegalArgumentException("The source date cannot be negative.");
+        _sourceDate = millis;
+    }
 
-        _tarOut = new TarOutputStream(new GZIPOutputStream(new FileOutputStream(_tar)));
-        _tarOut.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+    /**
+     * Set whether a regular file with the same contents and permissions as an earlier file is
+     * stored as a hard link to the earlier file rather than storing its data again. Files are
+     * compared by md5 checksum and then byte for byte, and only files sharing their size with an
+     * earlier file are checksummed before being written, which reads them twice if they are not
+     * linked. Linked files are counted once in the total data size. Off by default.
+     */
+    public void setHardLinks (boolean hardLinks)
+    {
+        _hardLinks = hardLinks;
+    }
+
+    /**
+     * Set how symbolic links are added to the tar file. By default every link is stored as a link
+     * to its original target, with the owner from the {@link PermissionsMap} but no permissions of
+     * its own.
+     * @see SymlinkPolicy
+     */
+    public void setSymlinkPolicy (SymlinkPolicy policy)
+    {
+        _symlinkPolicy = policy;
     }
 
     /**
@@ -94,8 +278,44 @@ public class PackageTarFile
     public void addDirectory (File directory)
         throws IOException
     {
-        final DestrootWalker walker = new DestrootWalker(directory, this);
-        walker.walk();
+        addDirectory(directory, new DestrootFilter());
+    }
+
+    /**
+     * Add the contents of the supplied directory selected by the supplied {@link DestrootFilter}
+     * to the tar file, stripping the root of the directory path from all entries. Excluded
+     * directories are not read at all.
+     * @see #addDirectory(File)
+     */
+    public void addDirectory (File directory, DestrootFilter filter)
+        throws IOException
+    {
+        final List<DestrootEntry> entries =
+            new DestrootScanner(directory, DestrootScanner.DEFAULT_THREADS, filter, _symlinkPolicy)
+                .scan();
+        try {
+            addEntries(entries, directory.getAbsolutePath());
+
+        // pass any encountered exception back as an IOException, as adding a directory always has.
+        } catch (final DuplicatePermissionsException dpe) {
+            throw new IOException(dpe.getMessage());
+        }
+    }
+
+    /**
+     * Add a list of directories and files to the tar archive, in the order supplied. Upcoming files
+     * are read and checksummed by the read threads while earlier files are being written.
+     * @see PackageTarFile#addFile(File, String)
+     * @see PackageTarFile#setReadThreads(int)
+     */
+    public void addFiles (List<File> files, String stripPath)
+        throws DuplicatePermissionsException, IOException
+    {
+        final List<DestrootEntry> entries = new ArrayList<DestrootEntry>(files.size());
+        for (final File file : files) {
+            entries.add(DestrootEntry.read(file.toPath(), _symlinkPolicy));
+        }
+        addEntries(entries, stripPath);
     }
 
     /**
@@ -115,87 +335,442 @@ public class PackageTarFile
      * the tar file.
      * @throws InvalidPathException If the supplied stripPath path cannot be normalized.
      * @throws DuplicatePermissionsException If more than one permission in the defined
-     * {@link PermissionsMap} maps to the file being added.
+     * {@link PermissionsMap} is defined for the same path.
      * @throws IOException If any i/o exceptions occur when appending the file data.
      */
     public void addFile (File file, String stripPath)
         throws DuplicatePermissionsException, IOException
     {
-        // normalize the strip path and remove any leading /'s
-        final String normalizedStripPath = PathUtils.stripLeadingSeparators(PathUtils.normalize(stripPath));
+        final DestrootEntry entry = DestrootEntry.read(file.toPath(), _symlinkPolicy);
+        lookupDigest(entry);
+        addEntry(entry, normalizeStripPath(stripPath), null);
+    }
+
+    /**
+     * Add a regular file entry whose data is read from the supplied stream rather than from a
+     * file, e.g. a file from a build tool or generated content. Exactly size bytes are copied
+     * from the stream, which is not closed. The entry is checksummed, counted in the total data
+     * size and given permissions from the {@link PermissionsMap} as a file from a destroot would
+     * be, and any parent directories not yet in the tar file are added first. Streamed entries
+     * are never hard linked, and with a {@link MemberCache} are compressed without being cached.
+     * @param path The path of the entry relative to the root of the package.
+     * @param mode The mode of the entry unless set by the {@link PermissionsMap}, e.g.
+     * {@link UnixStandardPermissions#STANDARD_FILE_MODE}.
+     * @param modTime The modification time of the entry in milliseconds since the epoch.
+     * @return The md5 checksum of the entry data.
+     * @throws DuplicatePermissionsException If more than one permission in the defined
+     * {@link PermissionsMap} is defined for the same path.
+     * @throws IOException If the stream could not be read, or held less data than the supplied
+     * size.
+     */
+    public String addEntry (String path, long size, InputStream input, int mode, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        if (size < 0) throw new IllegalArgumentException("The entry size cannot be negative.");
+        final String entryPath = normalizeEntryPath(path);
+        addParentDirectories(entryPath, modTime);
+
+        final TarHeader header = initHeader(entryPath, modTime, size, mode);
+        final String md5;
+        if (_memberCache != null) {
+            md5 = copyStream(entryPath, input, size, getMembers().startStreamEntry(header));
+            getMembers().endStreamEntry();
+
+        } else {
+            final TarWriter tarOut = getTarOut();
+            tarOut.putNextEntry(header);
+            md5 = copyStream(entryPath, input, size, tarOut);
+            tarOut.closeEntry();
+        }
+        _digests.put(entryPath, md5);
+        _totalSize += bytesToKilobytes(size);
+        return md5;
+    }
+
+    /**
+     * Add a regular file entry whose data is read from the supplied channel, which is not closed.
+     * @see #addEntry(String, long, InputStream, int, long)
+     */
+    public String addEntry (String path, long size, ReadableByteChannel channel, int mode,
+        long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        return addEntry(path, size, Channels.newInputStream(channel), mode, modTime);
+    }
 
-        // use the file to initialize the TarEntry, and then override various properties.
-        final TarEntry entry = new TarEntry(file.getAbsoluteFile());
+    /**
+     * Add a regular file entry holding the data between the position and the limit of the
+     * supplied buffer, e.g. generated content. The buffer itself is left unchanged.
+     * @see #addEntry(String, long, InputStream, int, long)
+     */
+    public String addEntry (String path, ByteBuffer data, int mode, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        final ByteBuffer buffer = data.duplicate();
+        return addEntry(path, buffer.remaining(), new BufferInputStream(buffer), mode, modTime);
+    }
 
-        // normalize the entry path
-        entry.setName(PathUtils.normalize(entry.getName()));
+    /**
+     * Add a symbolic link entry to the supplied target, which is stored as is, along with any
+     * parent directories not yet in the tar file. The link is owned as set by the
+     * {@link PermissionsMap}, but has no permissions of its own.
+     * @param path The path of the link relative to the root of the package.
+     * @param target The path the link points to, relative to the directory holding the link or
+     * absolute.
+     * @param modTime The modification time of the entry in milliseconds since the epoch.
+     * @throws DuplicatePermissionsException If more than one permission in the defined
+     * {@link PermissionsMap} is defined for the same path.
+     * @throws IOException If any i/o exceptions occur when appending the entry.
+     */
+    public void addSymlink (String path, String target, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        if (target == null || target.length() == 0) {
+            throw new IllegalArgumentException("The symbolic link target cannot be empty.");
+        }
+        final String entryPath = normalizeEntryPath(path);
+        addParentDirectories(entryPath, modTime);
+
+        final TarHeader header =
+            initHeader(entryPath, modTime, 0, UnixStandardPermissions.SYMLINK_MODE);
+        header.setSymbolicLinkName(target);
+        header.setMode(UnixStandardPermissions.SYMLINK_MODE);
+        writeEmptyEntry(header);
+    }
+
+    /**
+     * Add a hard link entry to a regular file added earlier, e.g. a hard link read from another
+     * archive, along with any parent directories not yet in the tar file. The link is listed with
+     * the checksum of its target, but adds nothing to the total data size.
+     * @param path The path of the link relative to the root of the package.
+     * @param target The path of the linked file relative to the root of the package.
+     * @param md5 The md5 checksum of the linked file, as returned when it was added.
+     * @param mode The mode of the entry unless set by the {@link PermissionsMap}.
+     * @param modTime The modification time of the entry in milliseconds since the epoch.
+     * @throws DuplicatePermissionsException If more than one permission in the defined
+     * {@link PermissionsMap} is defined for the same path.
+     * @throws IOException If any i/o exceptions occur when appending the entry.
+     */
+    public void addHardLink (String path, String target, String md5, int mode, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        if (md5 == null) throw new IllegalArgumentException("The hard link checksum cannot be null.");
+        final String entryPath = normalizeEntryPath(path);
+        final String targetPath = normalizeEntryPath(target);
+        addParentDirectories(entryPath, modTime);
+        addHardLink(initHeader(entryPath, modTime, 0, mode), targetPath, md5);
+    }
+
+    /**
+     * Add a directory entry, along with any parent directories not yet in the tar file. A
+     * directory already in the tar file is not added again.
+     * @param path The path of the directory relative to the root of the package.
+     * @param mode The mode of the entry unless set by the {@link PermissionsMap}, e.g.
+     * {@link UnixStandardPermissions#STANDARD_DIR_MODE}.
+     * @param modTime The modification time of the entry in milliseconds since the epoch.
+     * @throws DuplicatePermissionsException If more than one permission in the defined
+     * {@link PermissionsMap} is defined for the same path.
+     * @throws IOException If any i/o exceptions occur when appending the entry.
+     * @see #addEntry(String, long, InputStream, int, long)
+     */
+    public void addDirectoryEntry (String path, int mode, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        final String entryPath = normalizeEntryPath(path);
+        addParentDirectories(entryPath, modTime);
+        addDirectoryHeader(entryPath + '/', mode, modTime);
+    }
+
+    /**
+     * Closes the tar file. This must be called to create a valid tar file.
+     */
+    public void close ()
+        throws IOException
+    {
+        if (_memberCache != null) {
+            getMembers().close();
+
+        } else {
+            getTarOut().close();
+        }
+    }
+
+    /**
+     * Add a list of directories and files to the tar archive, in the order supplied, reading
+     * upcoming files ahead of the writer if any read threads are configured. Package private, for
+     * entries scanned elsewhere, e.g. by a {@link DestrootSplitter}.
+     */
+    void addEntries (List<DestrootEntry> entries, String stripPath)
+        throws DuplicatePermissionsException, IOException
+    {
+        for (final DestrootEntry entry : entries) {
+            lookupDigest(entry);
+        }
+
+        final String normalizedStripPath = normalizeStripPath(stripPath);
+        if (_readThreads == 0) {
+            for (final DestrootEntry entry : entries) {
+                addEntry(entry, normalizedStripPath, null);
+            }
+            return;
+        }
+
+        // with a member cache, unchanged files are not written so only their checksums are read
+        // ahead, if not already known. changed files are read again when their group is compressed.
+        final FilePrefetcher prefetcher = new FilePrefetcher(entries, _readThreads, _memberCache != null);
+        try {
+            for (final DestrootEntry entry : entries) {
+                addEntry(entry, normalizedStripPath, prefetcher.next());
+            }
+
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    /**
+     * Add a directory or file to the tar archive, copying the file data from the supplied
+     * {@link FilePrefetcher.PrefetchedFile} if not null. The attributes read when the file was
+     * found are used throughout, rather than querying the file system again.
+     * @param normalizedStripPath The path removed from the start of the entry path, normalized
+     * by {@link #normalizeStripPath(String)}.
+     */
+    private void addEntry (DestrootEntry destrootEntry, String normalizedStripPath,
+        FilePrefetcher.PrefetchedFile prefetched)
+        throws DuplicatePermissionsException, IOException
+    {
+        final File file = destrootEntry.getFile();
+        final BasicFileAttributes attributes = destrootEntry.getAttributes();
+
+        // the entry path is relative to the root, and normalized. paths found in a destroot are
+        // normally normalized already, so only normalize the path if needed.
+        String entryPath = PathUtils.stripLeadingSeparators(file.getAbsolutePath());
+        if (!PathUtils.isNormalized(entryPath)) {
+            entryPath = PathUtils.stripLeadingSeparators(PathUtils.normalize(entryPath));
+        }
 
         // if the entry path includes the strip path, remove it.
-        final String entryPath = entry.getName();
         if (entryPath.startsWith(normalizedStripPath)) {
-            final String stripped = entryPath.substring(normalizedStripPath.length());
             // be extra sure that the modified path has no leading separators so that the entry
             // does not expand into the root.
-            entry.setName(PathUtils.stripLeadingSeparators(stripped));
+            entryPath = PathUtils.stripLeadingSeparators(entryPath.substring(normalizedStripPath.length()));
         }
 
-        // set standard permission modes
-        if (file.isDirectory()) {
-            // set the entry size to 0 if this is a directory
-            entry.setSize(0);
-            entry.setMode(UnixStandardPermissions.STANDARD_DIR_MODE);
+        // directory entries have trailing /'s.
+        if (attributes.isDirectory() && !entryPath.endsWith(File.separator)) {
+            entryPath = entryPath + File.separatorChar;
+        }
 
-        } else if (file.isFile()) {
-            entry.setMode(UnixStandardPermissions.STANDARD_FILE_MODE);
+        // set standard permission modes, with a size of 0 for anything but a regular file.
+        final TarHeader header;
+        if (attributes.isDirectory()) {
+            header = initHeader(entryPath, attributes.lastModifiedTime().toMillis(), 0,
+                UnixStandardPermissions.STANDARD_DIR_MODE);
+            _directories.add(entryPath);
+
+        } else {
+            header = initHeader(entryPath, attributes.lastModifiedTime().toMillis(),
+                attributes.isRegularFile() ? attributes.size() : 0,
+                UnixStandardPermissions.STANDARD_FILE_MODE);
         }
 
-        // configure the permissions in the entry.
-        setEntryPermissions(entry, file);
-
-        // verify that the directory entries have trailing /'s which may have been removed
-        // during normalization
-        if (file.isDirectory()) {
-            final StringBuffer currentPath = new StringBuffer(entry.getName());
-            if (currentPath.charAt(currentPath.length() - 1) != File.separatorChar) {
-                currentPath.append(File.separatorChar);
+        // a symbolic link keeps its owner, but its permissions are always those of the target.
+        final String linkTarget = destrootEntry.getLinkTarget();
+        if (linkTarget != null) {
+            header.setSymbolicLinkName(linkTarget);
+            header.setMode(UnixStandardPermissions.SYMLINK_MODE);
+        }
+
+        // a file sharing its size with an earlier file may be a copy of it, so its checksum is
+        // needed before the entry is written. the prefetched data is consumed computing it.
+        final boolean linkable = _hardLinks && attributes.isRegularFile() && attributes.size() > 0;
+        if (linkable && !_linkSizes.add(attributes.size())) {
+            final String md5 = computeMd5(destrootEntry, prefetched);
+            prefetched = null;
+
+            final LinkTarget target = _linkTargets.get(md5);
+            if (target != null && target.matches(header, file)) {
+                addHardLink(header, target.name, md5);
+                return;
             }
-            entry.setName(currentPath.toString());
         }
 
-        // write out the tar entry header.
-        _tarOut.putNextEntry(entry);
+        String md5 = null;
+        if (_memberCache != null) {
+            // calculate the md5 checksum for any regular file, leaving the entry to be written
+            // along with the rest of its group.
+            if (attributes.isRegularFile()) {
+                md5 = handleRegularFile(destrootEntry, header, prefetched, null);
+            }
+            getMembers().add(header, md5 == null ? null : file, md5);
 
-        // insert the file data into the tar and calculate the md5 checksum for any regular file.
-        if (file.isFile()) {
-            handleRegularFile(file, entry);
+        } else {
+            // write out the tar entry header.
+            final TarWriter tarOut = getTarOut();
+            tarOut.putNextEntry(header);
+
+            // insert the file data into the tar and calculate the md5 checksum for any regular file.
+            if (attributes.isRegularFile()) {
+                md5 = handleRegularFile(destrootEntry, header, prefetched, tarOut);
+            }
+
+            tarOut.closeEntry();
         }
 
-        _tarOut.closeEntry();
+        // later copies of the file are linked to the first.
+        if (linkable && !_linkTargets.containsKey(md5)) {
+            _linkTargets.put(md5, new LinkTarget(header, file));
+        }
     }
 
     /**
-     * Closes the tar file. This must be called to create a valid tar file.
+     * Prepare the reusable {@link TarHeader} for an entry with the supplied path, modification
+     * time, size and default mode, applying the source date and the {@link PermissionsMap}.
      */
-    public void close ()
+    private TarHeader initHeader (String entryPath, long modTime, long size, int mode)
+        throws DuplicatePermissionsException
+    {
+        final TarHeader header = _header;
+        header.setName(entryPath);
+        header.setLinkName(null);
+        header.setModTime(_sourceDate == NO_SOURCE_DATE ? modTime : Math.min(modTime, _sourceDate));
+        header.setSize(size);
+        header.setMode(mode);
+
+        // configure the permissions in the entry.
+        setEntryPermissions(header);
+        return header;
+    }
+
+    /**
+     * Add a directory entry with no data, unless a directory with the same path was already
+     * added.
+     * @param entryPath The path of the directory, ending with a /.
+     */
+    private void addDirectoryHeader (String entryPath, int mode, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        if (!_directories.add(entryPath)) {
+            return;
+        }
+
+        writeEmptyEntry(initHeader(entryPath, modTime, 0, mode));
+    }
+
+    /**
+     * Add an entry for every parent directory of the supplied entry path not yet in the tar file,
+     * with the standard directory mode and the supplied modification time.
+     */
+    private void addParentDirectories (String entryPath, long modTime)
+        throws DuplicatePermissionsException, IOException
+    {
+        int slash = -1;
+        while ((slash = entryPath.indexOf('/', slash + 1)) != -1) {
+            addDirectoryHeader(entryPath.substring(0, slash + 1),
+                UnixStandardPermissions.STANDARD_DIR_MODE, modTime);
+        }
+    }
+
+    /**
+     * Returns the supplied entry path normalized and relative to the root of the package, without
+     * a trailing /.
+     * @throws IllegalArgumentException If the path is empty or names the root itself.
+     */
+    private static String normalizeEntryPath (String path)
+    {
+        final String entryPath = PathUtils.stripLeadingSeparators(PathUtils.normalize(path));
+        if (entryPath.length() == 0) {
+            throw new IllegalArgumentException("The entry path cannot be empty. path=[" + path + "].");
+        }
+        return entryPath;
+    }
+
+    /**
+     * Add the entry described by the header as a hard link to the supplied earlier entry, which
+     * holds the same data. The linked file is listed with its checksum, but adds nothing to the
+     * total data size.
+     */
+    private void addHardLink (TarHeader header, String target, String md5)
         throws IOException
     {
-        _tarOut.close();
+        header.setLinkName(target);
+        header.setSize(0);
+        writeEmptyEntry(header);
+        _digests.put(header.getName(), md5);
     }
 
     /**
-     * Deletes the tar file. Returns true if the file was deleted, false otherwise.
+     * Write the entry described by the header, which has no data.
+     */
+    private void writeEmptyEntry (TarHeader header)
+        throws IOException
+    {
+        if (_memberCache != null) {
+            getMembers().add(header, null, null);
+
+        } else {
+            final TarWriter tarOut = getTarOut();
+            tarOut.putNextEntry(header);
+            tarOut.closeEntry();
+        }
+    }
+
+    /**
+     * Returns the md5 checksum of a regular file, consuming the supplied
+     * {@link FilePrefetcher.PrefetchedFile} if not null. A newly computed checksum is recorded in
+     * the entry, so that the file data need not be checksummed again when it is written.
+     */
+    private String computeMd5 (DestrootEntry destrootEntry, FilePrefetcher.PrefetchedFile prefetched)
+        throws IOException
+    {
+        final String knownMd5 = destrootEntry.getMd5();
+        final String md5;
+        if (prefetched != null) {
+            md5 = prefetched.copyTo(new NullOutputStream());
+
+        } else if (knownMd5 != null) {
+            return knownMd5;
+
+        } else {
+            md5 = copyFile(destrootEntry.getFile(), null, null);
+        }
+
+        if (knownMd5 == null) {
+            destrootEntry.setMd5(md5);
+            if (_digestCache != null) {
+                _digestCache.put(destrootEntry.getFile(), destrootEntry.getAttributes(), md5);
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * Deletes the temporary tar file, if any. Returns true if the file was deleted or there was
+     * no file, false otherwise.
      */
     public boolean delete ()
     {
-        return _tar.delete();
+        return _tar == null || _tar.delete();
     }
 
     /**
-     * Return the map of tar entry paths to md5 checksums for regular files added to this tar file.
+     * Return the {@link DigestStore} holding the md5 checksums of the regular files added to this
+     * tar file, keyed by tar entry path.
+     */
+    public DigestStore getDigests ()
+    {
+        return _digests;
+    }
+
+    /**
+     * Return a map of tar entry paths to md5 checksums for regular files added to this tar file.
+     * The map is built from the {@link DigestStore} on each call, which is costly for large
+     * packages.
+     * @see #getDigests()
      */
     public Map<String, String> getMd5s ()
     {
-        return _md5s;
+        return _digests.toMap();
     }
 
     /**
@@ -211,19 +786,35 @@ public class PackageTarFile
     public InputStream getInputStream ()
         throws IOException
     {
+        if (_tar == null) {
+            throw new IllegalStateException("The tar data was written to a stream and cannot be read back.");
+        }
+        if (_spill != null && _spill.isInMemory()) {
+            return new ByteArrayInputStream(_spill.getData());
+        }
         return new FileInputStream(_tar);
     }
 
+    // from ChannelArchiveEntry
+    public FileChannel getChannel ()
+        throws IOException
+    {
+        if (_tar == null || (_spill != null && _spill.isInMemory())) {
+            return null;
+        }
+        return FileChannel.open(_tar.toPath(), StandardOpenOption.READ);
+    }
+
     // from ArchiveEntry
     public long getSize ()
     {
-        return _tar.length();
+        return _counter.getByteCount();
     }
 
     // from ArchiveEntry
     public String getPath ()
     {
-        return DEB_AR_DATA_FILE;
+        return _path;
     }
 
     // from ArchiveEntry
@@ -245,10 +836,10 @@ public class PackageTarFile
     }
 
     /**
-     * Set the permissions in the TarEntry, applying any matches from the PermissionsMap.
-     * @throws DuplicatePermissionsException
+     * Set the permissions in the TarHeader, applying any matches from the PermissionsMap.
+     * @throws DuplicatePermissionsException If more than one permission is defined for a path.
      */
-    private void setEntryPermissions (TarEntry entry, File file)
+    private void setEntryPermissions (TarHeader entry)
         throws DuplicatePermissionsException
     {
         // default permissions to root
@@ -257,73 +848,172 @@ public class PackageTarFile
         entry.setIds(UnixStandardPermissions.ROOT_USER.getId(),
             UnixStandardPermissions.ROOT_GROUP.getId());
 
-        // apply any permissions map to this entry to modify permissions. the first permission
-        // encountered will be applied. if any additional permissions are encountered that also
-        // match, a DuplicatePermissionsException will be thrown.
-        // NOTE: this should eventually be built into a tree that maps the filesystem and allows
-        // for nested recursive permissions to override earlier recursive permissions in a
-        // reasonable manner.
-        // TODO: Use Google collections to filter the permissions list down to the one applicable
-        // permission, or throw the exception if more than one is found.
-        boolean permissionFound = false;
-        for (final Entry<String, PathPermissions> permEntry : _permissions.getPermissions()) {
-            // since the entries in the tar file have any leading / stripped, the permission paths
-            // must also have the / stripped.
-            final String permPath = PathUtils.stripLeadingSeparators(permEntry.getKey());
-
-            final String entryPath = entry.getName();
-            final PathPermissions permissions = permEntry.getValue();
-
-            // if the permission path does not match, continue to the next permission
-            if (!permissionMatches(permPath, entryPath, permissions.isRecursive())) {
-                continue;
-            }
-
-            // if we have already applied a permission to this path, throw an exception.
-            if (permissionFound) {
-                throw new DuplicatePermissionsException(
-                    "A permission already mapped to this file. Refusing to apply another. path=[" + file.getAbsolutePath() + "].");
-            }
-
-            // apply the permission to the entry.
+        // apply the permission with the deepest path matching this entry, if any.
+        final PathPermissions permissions = getPermissionsTree().getPermissions(entry.getName());
+        if (permissions != null) {
             entry.setNames(permissions.getUser(), permissions.getGroup());
             entry.setIds(permissions.getUid(), permissions.getGid());
             entry.setMode(permissions.getMode());
-            permissionFound = true;
         }
     }
 
+    /**
+     * Returns the {@link PermissionsTree} compiled from the {@link PermissionsMap}, compiling it
+     * when first needed.
+     * @throws DuplicatePermissionsException If more than one permission is defined for a path.
+     */
+    private PermissionsTree getPermissionsTree ()
+        throws DuplicatePermissionsException
+    {
+        if (_permissionsTree == null) {
+            _permissionsTree = new PermissionsTree(_permissions);
+        }
+        return _permissionsTree;
+    }
+
     /**
      * Handles adding a regular file {@link File} object to the tar file. This includes
-     * calculating and recording the md5 checksum of the file data.
+     * calculating and recording the md5 checksum of the file data, which is returned. If the file
+     * has been prefetched, its data and checksum are taken from the
+     * {@link FilePrefetcher.PrefetchedFile}. A checksum already known for the file is used
+     * rather than computed again.
+     * @param output The stream the file data is copied to, or null if only the checksum is needed.
      */
-    private void handleRegularFile (File file, TarEntry entry)
+    private String handleRegularFile (DestrootEntry destrootEntry, TarHeader entry,
+        FilePrefetcher.PrefetchedFile prefetched, OutputStream output)
+        throws FileNotFoundException, IOException
+    {
+        final String knownMd5 = destrootEntry.getMd5();
+        final String md5;
+        if (prefetched != null) {
+            md5 = prefetched.copyTo(output);
+
+        } else if (knownMd5 != null && output == null) {
+            md5 = knownMd5;
+
+        } else {
+            md5 = copyFile(destrootEntry.getFile(), knownMd5, output);
+        }
+        _digests.put(entry.getName(), md5);
+
+        // remember a newly computed checksum for later builds.
+        if (_digestCache != null && knownMd5 == null) {
+            _digestCache.put(destrootEntry.getFile(), destrootEntry.getAttributes(), md5);
+        }
+
+        // record the kilobyte size of this file in the total file data count
+        _totalSize += bytesToKilobytes(entry.getSize());
+        return md5;
+    }
+
+    /**
+     * Copy the contents of the file to the supplied stream, if not null, returning the md5
+     * checksum of the contents. The checksum is only computed if the supplied known checksum is
+     * null.
+     */
+    private String copyFile (File file, String knownMd5, OutputStream output)
         throws FileNotFoundException, IOException
     {
         try {
-            final MessageDigest md = MessageDigest.getInstance("MD5");
+            final MessageDigest md = knownMd5 == null ? MessageDigest.getInstance("MD5") : null;
             InputStream input = null;
             try {
                 input = new FileInputStream(file);
-                final byte[] buf = new byte[1024];
+                final byte[] buf = new byte[COPY_BUFFER_SIZE];
                 int len;
                 while ((len = input.read(buf)) > 0) {
-                    _tarOut.write(buf, 0, len);
-                    md.update(buf, 0, len);
+                    if (output != null) {
+                        output.write(buf, 0, len);
+                    }
+                    if (md != null) {
+                        md.update(buf, 0, len);
+                    }
                 }
 
             } finally {
                 IOUtils.closeQuietly(input);
             }
 
-            _md5s.put(entry.getName(), new String(Hex.encodeHex(md.digest())));
+            return md == null ? knownMd5 : new String(Hex.encodeHex(md.digest()));
 
         } catch (final NoSuchAlgorithmException nsa) {
             throw new RuntimeException("md5 algorthm not found.", nsa);
         }
+    }
 
-        // record the kilobyte size of this file in the total file data count
-        _totalSize += bytesToKilobytes(file.length());
+    /**
+     * Copy exactly size bytes from the supplied stream to the supplied output, returning the md5
+     * checksum of the data.
+     * @throws IOException If the stream ends before size bytes were read.
+     */
+    private static String copyStream (String entryPath, InputStream input, long size,
+        OutputStream output)
+        throws IOException
+    {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+
+        } catch (final NoSuchAlgorithmException nsa) {
+            throw new RuntimeException("md5 algorthm not found.", nsa);
+        }
+
+        final byte[] buf = new byte[(int)Math.min(COPY_BUFFER_SIZE, Math.max(size, 1))];
+        long remaining = size;
+        while (remaining > 0) {
+            final int len = input.read(buf, 0, (int)Math.min(buf.length, remaining));
+            if (len < 0) {
+                throw new IOException("The entry stream ended before the entry size. path=[" +
+                    entryPath + "], remaining=[" + remaining + "].");
+            }
+            output.write(buf, 0, len);
+            md.update(buf, 0, len);
+            remaining -= len;
+        }
+        return new String(Hex.encodeHex(md.digest()));
+    }
+
+    /**
+     * Look up the md5 checksum of the supplied entry in the {@link DigestCache}, if any, recording
+     * it in the entry.
+     */
+    private void lookupDigest (DestrootEntry entry)
+    {
+        if (_digestCache != null && entry.getAttributes().isRegularFile()) {
+            entry.setMd5(_digestCache.get(entry.getFile(), entry.getAttributes()));
+        }
+    }
+
+    /**
+     * Returns the stream writing the tar data, creating it when first needed.
+     */
+    private TarWriter getTarOut ()
+        throws IOException
+    {
+        if (_tarOut == null) {
+            _tarOut = new TarWriter(_codec.compress(_counter));
+        }
+        return _tarOut;
+    }
+
+    /**
+     * Returns the {@link CachedMemberWriter} writing the tar data when a member cache is used,
+     * creating it when first needed.
+     */
+    private CachedMemberWriter getMembers ()
+    {
+        if (_members == null) {
+            _members = new CachedMemberWriter(_counter, (GzipCodec)_codec, _memberCache);
+        }
+        return _members;
+    }
+
+    /**
+     * Normalize the path stripped from the start of entry paths, removing any leading /'s.
+     */
+    private static String normalizeStripPath (String stripPath)
+    {
+        return PathUtils.stripLeadingSeparators(PathUtils.normalize(stripPath));
     }
 
     /**
@@ -338,31 +1028,91 @@ public class PackageTarFile
     }
 
     /**
-     * Determine if the supplied permission path matches the supplied entry path.
+     * A regular file entry which later entries with the same contents and permissions may be
+     * hard linked to.
      */
-    private boolean permissionMatches (String permPath, String entryPath, boolean recursive)
+    private static class LinkTarget
     {
-        // don't match if this permission path is not part of the entry.
-        if (!entryPath.startsWith(permPath)) {
-            return false;
+        /** The tar entry path of the file. */
+        public final String name;
+
+        public LinkTarget (TarHeader header, File file)
+        {
+            name = header.getName();
+            _file = file;
+            _mode = header.getMode();
+            _userId = header.getUserId();
+            _groupId = header.getGroupId();
+            _userName = header.getUserName();
+            _groupName = header.getGroupName();
         }
 
-        // match if the permission matches the path exactly.
-        if ((permPath.equals(entryPath))) {
-            return true;
+        /**
+         * Returns true if the supplied entry has the same permissions as this file, and the
+         * supplied file the same contents.
+         */
+        public boolean matches (TarHeader header, File file)
+            throws IOException
+        {
+            // a link shares the permissions of its target, so the permissions must agree.
+            return _mode == header.getMode() && _userId == header.getUserId() &&
+                _groupId == header.getGroupId() && _userName.equals(header.getUserName()) &&
+                _groupName.equals(header.getGroupName()) && FileUtils.contentEquals(_file, file);
         }
 
-        // or match if the permission is recursive, and the entry is inside of the recursive path.
-        if (recursive && entryPath.charAt(permPath.length()) == File.separatorChar) {
-            return true;
+        /** The file holding the contents. */
+        private final File _file;
+
+        /** The permissions of the entry. */
+        private final int _mode;
+        private final int _userId;
+        private final int _groupId;
+        private final String _userName;
+        private final String _groupName;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, heap or direct, as a stream.
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        public BufferInputStream (ByteBuffer buffer)
+        {
+            _buffer = buffer;
+        }
+
+        @Override // from InputStream
+        public int read ()
+        {
+            return _buffer.hasRemaining() ? _buffer.get() & 0xFF : -1;
         }
 
-        // otherwise the permission did not match.
-        return false;
+        @Override // from InputStream
+        public int read (byte[] b, int off, int len)
+        {
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, count);
+            return count;
+        }
+
+        /** The buffer being read. */
+        private final ByteBuffer _buffer;
     }
 
-    /** The name of the data file in the Debian package. */
-    private static final String DEB_AR_DATA_FILE = "data.tar.gz";
+    /** The size of the buffer used to copy files read by the calling thread. */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** The name of the data file in the Debian package, without the compression extension. */
+    private static final String DEB_AR_DATA_FILE = "data.tar";
+
+    /** Used to indicate that the tar data should always be written to the temporary file. */
+    private static final int NO_MEMORY_THRESHOLD = 0;
+
+    /** Used to indicate that entry modification times are not limited. */
+    private static final long NO_SOURCE_DATE = -1;
 
     /** Used to indicate that the file being added should have nothing stripped from its path. */
     private static final String NO_STRIP_PATH = "";
@@ -370,15 +1120,63 @@ public class PackageTarFile
     /** The PermissionsMap to be applied to this tar file. */
     private final PermissionsMap _permissions;
 
-    /** An md5 map for every regular file entry in the tar file. */
-    private final Map<String, String> _md5s = new HashMap<String, String>();
+    /** The PermissionsMap compiled for lookups, or null if not yet needed. */
+    private PermissionsTree _permissionsTree;
+
+    /** The md5 checksum of every regular file entry in the tar file. */
+    private final DigestStore _digests = new DigestStore();
 
     /** The amount of file data added to the tar file, stored in kilobytes. */
     private long _totalSize;
 
-    /** The file location of the tar file. */
+    /** The latest modification time recorded for any entry, or {@link #NO_SOURCE_DATE}. */
+    private long _sourceDate = NO_SOURCE_DATE;
+
+    /** The paths of the directory entries added to the tar file, each ending with a /. */
+    private final Set<String> _directories = new HashSet<String>();
+
+    /** How symbolic links are added to the tar file. */
+    private SymlinkPolicy _symlinkPolicy = SymlinkPolicy.DEFAULT;
+
+    /** Whether files with the same contents as an earlier file are stored as hard links. */
+    private boolean _hardLinks;
+
+    /** The sizes of the files which later files may be hard linked to. */
+    private final Set<Long> _linkSizes = new HashSet<Long>();
+
+    /** The files which later files may be hard linked to, keyed by md5 checksum. */
+    private final Map<String, LinkTarget> _linkTargets = new HashMap<String, LinkTarget>();
+
+    /** The number of threads reading files ahead of the tar writer. */
+    private int _readThreads = DEFAULT_READ_THREADS;
+
+    /** The path of this entry in the package, including the compression extension. */
+    private final String _path;
+
+    /** The file location of the tar file, or null if the data is written to a stream. */
     private final File _tar;
 
-    /** Used to write the tar file to the file system. */
-    private final TarOutputStream _tarOut;
+    /** Holds the tar data in memory until it is moved to the tar file, or null if not used. */
+    private final DeferredFileOutputStream _spill;
+
+    /** Counts the compressed bytes written. */
+    private final CountingOutputStream _counter;
+
+    /** Used to write the tar file to the file system, created when first needed. */
+    private TarWriter _tarOut;
+
+    /** The header of the entry being added, reused from entry to entry. */
+    private final TarHeader _header = new TarHeader();
+
+    /** The codec used to compress the tar data. */
+    private final CompressionCodec _codec;
+
+    /** The cache of compressed members, or null if none is used. */
+    private MemberCache _memberCache;
+
+    /** The cache of file checksums, or null if none is used. */
+    private DigestCache _digestCache;
+
+    /** Writes the tar data when a member cache is used, created when first needed. */
+    private CachedMemberWriter _members;
 }
@@ -123,6 +123,27 @@ public class PathUtils
         return trimPath.toString();
     }
 
+    /**
+     * Returns true if {@link #normalize(String)} would return the path unchanged, without
+     * allocating, so that normalization can be skipped for paths which do not need it.
+     */
+    public static boolean isNormalized (String path)
+    {
+        final int len = path.length();
+        if (len == 0) {
+            return true;
+        }
+
+        /* Leading or trailing whitespace and trailing slashes are removed. */
+        if (path.charAt(0) <= ' ' || path.charAt(len - 1) <= ' ' || path.charAt(len - 1) == '/') {
+            return false;
+        }
+
+        /* As are double slashes and ./ and ../ path elements. */
+        return !(path.contains("//") || path.startsWith("./") || path.startsWith("../") ||
+            path.contains("/./") || path.contains("/../"));
+    }
+
     /**
      * Strip any leading path separators from the start of the path.
      */
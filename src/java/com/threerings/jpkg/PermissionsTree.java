@@ -0,0 +1,175 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A {@link PermissionsMap} compiled into a tree of path components, allowing the permissions for
+ * a path to be found in time proportional to the depth of the path rather than the number of
+ * permissions defined.
+ * <p>
+ * A permission applies to its own path, and if recursive, to every path below it. When more than
+ * one permission applies to a path, the permission defined for the deepest path wins, allowing
+ * nested recursive permissions to override the permissions of their parents.
+ */
+class PermissionsTree
+{
+    /**
+     * Compile the supplied {@link PermissionsMap} into a tree.
+     * @throws DuplicatePermissionsException If more than one permission is defined for the same
+     * path, e.g. "/usr/bin" and "usr/bin".
+     */
+    public PermissionsTree (PermissionsMap permissions)
+        throws DuplicatePermissionsException
+    {
+        for (final Entry<String, PathPermissions> entry : permissions.getPermissions()) {
+            Node node = _root;
+            final String path = entry.getKey();
+            int start = 0;
+            while (start < path.length()) {
+                int end = path.indexOf(File.separatorChar, start);
+                if (end == -1) {
+                    end = path.length();
+                }
+                // skip empty components created by leading or repeated separators.
+                if (end > start) {
+                    node = node.getOrCreateChild(path.substring(start, end));
+                }
+                start = end + 1;
+            }
+
+            if (node.permissions != null) {
+                throw new DuplicatePermissionsException("More than one permission is defined for the same " +
+                    "path. path=[" + node.path + "], duplicate=[" + path + "].");
+            }
+            node.permissions = entry.getValue();
+            node.path = path;
+        }
+    }
+
+    /**
+     * Return the {@link PathPermissions} which apply to the supplied path, or null if none apply.
+     * The path is treated as relative to the root whether or not it has a leading separator.
+     */
+    public PathPermissions getPermissions (String path)
+    {
+        // ignore any trailing separators, which would otherwise hide the last component.
+        int length = path.length();
+        while (length > 0 && path.charAt(length - 1) == File.separatorChar) {
+            length--;
+        }
+
+        Node node = _root;
+        PathPermissions match = recursivePermissions(node);
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end == -1 || end > length) {
+                end = length;
+            }
+            if (end > start) {
+                node = node.getChild(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+
+                // a permission applies to its own path, or any path below it if recursive.
+                if (end == length) {
+                    if (node.permissions != null) {
+                        match = node.permissions;
+                    }
+
+                } else {
+                    final PathPermissions recursive = recursivePermissions(node);
+                    if (recursive != null) {
+                        match = recursive;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        return match;
+    }
+
+    /**
+     * Returns the permissions of the supplied node if they apply to the paths below it.
+     */
+    private static PathPermissions recursivePermissions (Node node)
+    {
+        return (node.permissions != null && node.permissions.isRecursive()) ? node.permissions : null;
+    }
+
+    /**
+     * A single path component in the tree.
+     */
+    private static class Node
+    {
+        /** The permissions defined for this path, or null. */
+        public PathPermissions permissions;
+
+        /** The path as supplied in the {@link PermissionsMap}, used in error messages. */
+        public String path;
+
+        /**
+         * Returns the child for the supplied path component, or null if there is none.
+         */
+        public Node getChild (String component)
+        {
+            return _children == null ? null : _children.get(component);
+        }
+
+        /**
+         * Returns the child for the supplied path component, creating it if needed.
+         */
+        public Node getOrCreateChild (String component)
+        {
+            if (_children == null) {
+                _children = new HashMap<String, Node>();
+            }
+            Node child = _children.get(component);
+            if (child == null) {
+                child = new Node();
+                _children.put(component, child);
+            }
+            return child;
+        }
+
+        /** The children of this node keyed by path component, created on demand. */
+        private Map<String, Node> _children;
+    }
+
+    /** The root of the tree, holding the permissions for the root path, if any. */
+    private final Node _root = new Node();
+}
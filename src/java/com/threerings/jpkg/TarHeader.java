@@ -0,0 +1,489 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.tar.TarConstants;
+
+/**
+ * A reusable tar entry header, encoded directly into ustar header records. The fields are set
+ * for each entry, and {@link #encode()} produces the header records in a buffer reused from
+ * entry to entry. Paths are encoded without allocation when they are ASCII, and user and group
+ * names are encoded once.
+ * <p>
+ * The records are formatted as {@link GnuTarOutputStream} formats them: long names are stored in
+ * a GNU tar long name entry, and sizes too large for the octal size field as GNU tar base-256
+ * numbers. Hard link targets too long for the link name field are stored in a GNU tar long link
+ * entry.
+ * Package private.
+ * @see TarWriter
+ */
+class TarHeader
+{
+    /** The size of a tar record. */
+    public static final int RECORD_SIZE = 512;
+
+    /**
+     * Set the path of the entry, which must end with a / for a directory.
+     */
+    public void setName (String name)
+    {
+        _name = name;
+    }
+
+    /**
+     * Returns the path of the entry.
+     */
+    public String getName ()
+    {
+        return _name;
+    }
+
+    /**
+     * Returns true if the entry is a directory, i.e. its path ends with a /.
+     */
+    public boolean isDirectory ()
+    {
+        return _name.endsWith("/");
+    }
+
+    /**
+     * Make the entry a hard link to the supplied path, which must be the path of an earlier entry
+     * in the tar file, or a regular entry if null. A hard link has no data.
+     */
+    public void setLinkName (String linkName)
+    {
+        _linkName = linkName;
+        _symbolicLink = false;
+    }
+
+    /**
+     * Make the entry a symbolic link to the supplied target, which is stored as is. A symbolic
+     * link has no data.
+     */
+    public void setSymbolicLinkName (String target)
+    {
+        _linkName = target;
+        _symbolicLink = true;
+    }
+
+    /**
+     * Returns the path the entry is a hard or symbolic link to, or null if it is not a link.
+     */
+    public String getLinkName ()
+    {
+        return _linkName;
+    }
+
+    /**
+     * Returns true if the entry is a symbolic link rather than a hard link.
+     */
+    public boolean isSymbolicLink ()
+    {
+        return _linkName != null && _symbolicLink;
+    }
+
+    /**
+     * Set the mode of the entry, including the file type bits.
+     */
+    public void setMode (int mode)
+    {
+        _mode = mode;
+    }
+
+    /**
+     * Returns the mode of the entry.
+     */
+    public int getMode ()
+    {
+        return _mode;
+    }
+
+    /**
+     * Set the user and group ids of the entry.
+     */
+    public void setIds (int userId, int groupId)
+    {
+        _userId = userId;
+        _groupId = groupId;
+    }
+
+    /**
+     * Returns the user id of the entry.
+     */
+    public int getUserId ()
+    {
+        return _userId;
+    }
+
+    /**
+     * Returns the group id of the entry.
+     */
+    public int getGroupId ()
+    {
+        return _groupId;
+    }
+
+    /**
+     * Set the user and group names of the entry.
+     */
+    public void setNames (String userName, String groupName)
+    {
+        _userName = userName;
+        _groupName = groupName;
+    }
+
+    /**
+     * Returns the user name of the entry.
+     */
+    public String getUserName ()
+    {
+        return _userName;
+    }
+
+    /**
+     * Returns the group name of the entry.
+     */
+    public String getGroupName ()
+    {
+        return _groupName;
+    }
+
+    /**
+     * Set the size of the entry data.
+     */
+    public void setSize (long size)
+    {
+        _size = size;
+    }
+
+    /**
+     * Returns the size of the entry data.
+     */
+    public long getSize ()
+    {
+        return _size;
+    }
+
+    /**
+     * Set the modification time of the entry, in milliseconds since the epoch. The header
+     * records whole seconds.
+     */
+    public void setModTime (long millis)
+    {
+        _modTime = millis / 1000;
+    }
+
+    /**
+     * Encode the header records of the entry, preceded by a GNU tar long link entry if the hard
+     * link target does not fit the link name field and by a GNU tar long name entry if the path
+     * does not fit the name field. The returned buffer holds the records between its position and
+     * limit, and is reused by the next call.
+     */
+    public ByteBuffer encode ()
+    {
+        _encodedName.encode(_name);
+        final boolean link = _linkName != null;
+        if (link) {
+            _encodedLink.encode(_linkName);
+        }
+        final int longLinkRecords = link ? getLongRecords(_encodedLink.length) : 0;
+        final int longNameRecords = getLongRecords(_encodedName.length);
+        final int length = (longLinkRecords + longNameRecords + 1) * RECORD_SIZE;
+        if (_records.length < length) {
+            _records = new byte[length];
+            _buffer = ByteBuffer.wrap(_records);
+        }
+        Arrays.fill(_records, 0, length, (byte)0);
+
+        // GNU tar writes the long link entry ahead of the long name entry.
+        int offset = 0;
+        offset = writeLongEntry(offset, longLinkRecords, LF_GNUTYPE_LONGLINK, _encodedLink);
+        offset = writeLongEntry(offset, longNameRecords, TarConstants.LF_GNUTYPE_LONGNAME, _encodedName);
+
+        final byte type = isDirectory() ? TarConstants.LF_DIR : (!link ? TarConstants.LF_NORMAL :
+            (_symbolicLink ? TarConstants.LF_SYMLINK : TarConstants.LF_LINK));
+        writeRecord(offset, _encodedName.bytes, _encodedName.length, _mode, _userId, _groupId,
+            type == TarConstants.LF_NORMAL ? _size : 0, _modTime, type,
+            link ? _encodedLink.bytes : NO_BYTES, link ? _encodedLink.length : 0,
+            getBytes(_userName), getBytes(_groupName));
+
+        _buffer.clear();
+        _buffer.limit(length);
+        return _buffer;
+    }
+
+    /**
+     * Returns the number of records taken by a GNU tar long name or long link entry holding a
+     * path of the supplied encoded length, or 0 if the path fits a header field.
+     */
+    private static int getLongRecords (int length)
+    {
+        return length < TarConstants.NAMELEN ? 0 : 1 + (length + 1 + RECORD_SIZE - 1) / RECORD_SIZE;
+    }
+
+    /**
+     * Write a GNU tar long name or long link entry of the supplied type holding the path, if it
+     * takes any records, returning the offset following the entry.
+     */
+    private int writeLongEntry (int offset, int records, byte type, EncodedPath path)
+    {
+        if (records == 0) {
+            return offset;
+        }
+        writeRecord(offset, LONG_NAME_BYTES, LONG_NAME_BYTES.length, UnixStandardPermissions.STANDARD_FILE_MODE,
+            0, 0, path.length + 1, 0, type, NO_BYTES, 0, NO_BYTES, NO_BYTES);
+        System.arraycopy(path.bytes, 0, _records, offset + RECORD_SIZE, path.length);
+        return offset + records * RECORD_SIZE;
+    }
+
+    /**
+     * Returns the UTF-8 bytes of a user or group name, encoding each name once.
+     */
+    private byte[] getBytes (String name)
+    {
+        byte[] bytes = _names.get(name);
+        if (bytes == null) {
+            bytes = name.getBytes(UTF8);
+            _names.put(name, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Write a single header record at the supplied offset in the zeroed records, laid out and
+     * formatted as TarEntry writes it.
+     */
+    private void writeRecord (int offset, byte[] name, int nameLength, int mode, int userId,
+        int groupId, long size, long modTime, byte type, byte[] linkName, int linkNameLength,
+        byte[] userName, byte[] groupName)
+    {
+        final byte[] record = _records;
+        putBytes(record, offset + NAME_OFFSET, TarConstants.NAMELEN, name, nameLength);
+        putOctal(record, offset + MODE_OFFSET, TarConstants.MODELEN, mode);
+        putOctal(record, offset + UID_OFFSET, TarConstants.UIDLEN, userId);
+        putOctal(record, offset + GID_OFFSET, TarConstants.GIDLEN, groupId);
+        if (size > GnuTarOutputStream.MAX_OCTAL_SIZE) {
+            putBase256(record, offset + SIZE_OFFSET, TarConstants.SIZELEN, size);
+        } else {
+            putLongOctal(record, offset + SIZE_OFFSET, TarConstants.SIZELEN, size);
+        }
+        putLongOctal(record, offset + MODTIME_OFFSET, TarConstants.MODTIMELEN, modTime);
+        Arrays.fill(record, offset + CHKSUM_OFFSET, offset + CHKSUM_OFFSET + TarConstants.CHKSUMLEN, (byte)' ');
+        record[offset + TYPE_OFFSET] = type;
+        putBytes(record, offset + LINKNAME_OFFSET, TarConstants.NAMELEN, linkName, linkNameLength);
+        putBytes(record, offset + MAGIC_OFFSET, TarConstants.MAGICLEN, MAGIC, MAGIC.length);
+        putBytes(record, offset + UNAME_OFFSET, TarConstants.UNAMELEN, userName, userName.length);
+        putBytes(record, offset + GNAME_OFFSET, TarConstants.GNAMELEN, groupName, groupName.length);
+        putOctal(record, offset + DEVMAJOR_OFFSET, TarConstants.DEVLEN, 0);
+        putOctal(record, offset + DEVMINOR_OFFSET, TarConstants.DEVLEN, 0);
+
+        long checksum = 0;
+        for (int ii = offset; ii < offset + RECORD_SIZE; ii++) {
+            checksum += record[ii] & 0xff;
+        }
+        putOctal(record, offset + CHKSUM_OFFSET, TarConstants.CHKSUMLEN, checksum);
+        record[offset + CHKSUM_OFFSET + TarConstants.CHKSUMLEN - 2] = 0;
+        record[offset + CHKSUM_OFFSET + TarConstants.CHKSUMLEN - 1] = (byte)' ';
+    }
+
+    /**
+     * Copy as much of the value as fits into the field, leaving the rest zeroed.
+     */
+    private static void putBytes (byte[] record, int offset, int length, byte[] value, int valueLength)
+    {
+        System.arraycopy(value, 0, record, offset, Math.min(length, valueLength));
+    }
+
+    /**
+     * Format the value as TarUtils.getOctalBytes does: octal digits padded with leading spaces,
+     * followed by a space and a NUL.
+     */
+    private static void putOctal (byte[] record, int offset, int length, long value)
+    {
+        record[offset + length - 1] = 0;
+        putDigits(record, offset, length - 1, value);
+    }
+
+    /**
+     * Format the value as TarUtils.getLongOctalBytes does: octal digits padded with leading
+     * spaces, followed by a space.
+     */
+    private static void putLongOctal (byte[] record, int offset, int length, long value)
+    {
+        putDigits(record, offset, length, value);
+    }
+
+    /**
+     * Write the value as octal digits padded with leading spaces, followed by a space.
+     */
+    private static void putDigits (byte[] record, int offset, int length, long value)
+    {
+        int idx = offset + length - 1;
+        record[idx--] = (byte)' ';
+        if (value == 0) {
+            record[idx--] = (byte)'0';
+        }
+        for (long val = value; idx >= offset && val > 0; val >>>= 3) {
+            record[idx--] = (byte)('0' + (val & 07));
+        }
+        while (idx >= offset) {
+            record[idx--] = (byte)' ';
+        }
+    }
+
+    /**
+     * Write the value as a GNU tar base-256 number: the high bit of the first byte is set, and
+     * the remaining bytes hold the value in big-endian order.
+     */
+    private static void putBase256 (byte[] record, int offset, int length, long value)
+    {
+        for (int ii = offset + length - 1; ii > offset; ii--) {
+            record[ii] = (byte)value;
+            value >>>= 8;
+        }
+        record[offset] = (byte)0x80;
+    }
+
+    /**
+     * A path encoded as UTF-8 into a reusable buffer.
+     */
+    private static class EncodedPath
+    {
+        /** The encoded path, followed by unused space. */
+        public byte[] bytes = new byte[256];
+
+        /** The length of the encoded path. */
+        public int length;
+
+        /**
+         * Encode the supplied path, without allocation if it is ASCII.
+         */
+        public void encode (String path)
+        {
+            final int pathLength = path.length();
+            if (bytes.length < pathLength) {
+                bytes = new byte[Math.max(pathLength, 2 * bytes.length)];
+            }
+            for (int ii = 0; ii < pathLength; ii++) {
+                final char c = path.charAt(ii);
+                if (c >= 0x80) {
+                    final byte[] encoded = path.getBytes(UTF8);
+                    if (bytes.length < encoded.length) {
+                        bytes = new byte[encoded.length];
+                    }
+                    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+                    length = encoded.length;
+                    return;
+                }
+                bytes[ii] = (byte)c;
+            }
+            length = pathLength;
+        }
+    }
+
+    /** The offsets of the ustar header fields. */
+    private static final int NAME_OFFSET = 0;
+    private static final int MODE_OFFSET = NAME_OFFSET + TarConstants.NAMELEN;
+    private static final int UID_OFFSET = MODE_OFFSET + TarConstants.MODELEN;
+    private static final int GID_OFFSET = UID_OFFSET + TarConstants.UIDLEN;
+    private static final int SIZE_OFFSET = GID_OFFSET + TarConstants.GIDLEN;
+    private static final int MODTIME_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN;
+    private static final int CHKSUM_OFFSET = MODTIME_OFFSET + TarConstants.MODTIMELEN;
+    private static final int TYPE_OFFSET = CHKSUM_OFFSET + TarConstants.CHKSUMLEN;
+    private static final int LINKNAME_OFFSET = TYPE_OFFSET + 1;
+    private static final int MAGIC_OFFSET = LINKNAME_OFFSET + TarConstants.NAMELEN;
+    private static final int UNAME_OFFSET = MAGIC_OFFSET + TarConstants.MAGICLEN;
+    private static final int GNAME_OFFSET = UNAME_OFFSET + TarConstants.UNAMELEN;
+    private static final int DEVMAJOR_OFFSET = GNAME_OFFSET + TarConstants.GNAMELEN;
+    private static final int DEVMINOR_OFFSET = DEVMAJOR_OFFSET + TarConstants.DEVLEN;
+
+    /** The encoding of paths and user and group names. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The type of GNU tar long link entries, which TarConstants lacks. */
+    private static final byte LF_GNUTYPE_LONGLINK = (byte)'K';
+
+    /** The name of GNU tar long name and long link entries. */
+    private static final byte[] LONG_NAME_BYTES = TarConstants.GNU_LONGLINK.getBytes(UTF8);
+
+    /** The magic of every header, as TarEntry writes it. */
+    private static final byte[] MAGIC = TarConstants.TMAGIC.getBytes(UTF8);
+
+    /** The user and group names of GNU tar long name entries, and the empty link name. */
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /** The path of the entry. */
+    private String _name;
+
+    /** The path the entry is a hard or symbolic link to, or null. */
+    private String _linkName;
+
+    /** Whether the link name is the target of a symbolic link. */
+    private boolean _symbolicLink;
+
+    /** The mode of the entry, including the file type bits. */
+    private int _mode;
+
+    /** The user and group ids of the entry. */
+    private int _userId;
+    private int _groupId;
+
+    /** The user and group names of the entry. */
+    private String _userName = "";
+    private String _groupName = "";
+
+    /** The size of the entry data. */
+    private long _size;
+
+    /** The modification time of the entry, in seconds since the epoch. */
+    private long _modTime;
+
+    /** The encoded path, reused from entry to entry. */
+    private final EncodedPath _encodedName = new EncodedPath();
+
+    /** The encoded hard link target, reused from entry to entry. */
+    private final EncodedPath _encodedLink = new EncodedPath();
+
+    /** The encoded header records, reused from entry to entry. */
+    private byte[] _records = new byte[4 * RECORD_SIZE];
+
+    /** Wraps the encoded header records. */
+    private ByteBuffer _buffer = ByteBuffer.wrap(_records);
+
+    /** The encoded user and group names. */
+    private final Map<String, byte[]> _names = new HashMap<String, byte[]>();
+}
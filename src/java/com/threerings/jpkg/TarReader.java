@@ -0,0 +1,518 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.apache.tools.tar.TarConstants;
+
+/**
+ * Reads the entries of tar data in a single sequential pass. The data of the current entry is
+ * read from this stream between calls to {@link #next()}. Reads POSIX ustar and GNU tar data,
+ * including GNU long names and links, pax extended headers for the path, link path, size and
+ * modification time, and base-256 sizes. The mirror of {@link TarWriter}.
+ * Package private.
+ */
+class TarReader extends InputStream
+{
+    /**
+     * Construct a {@link TarReader}.
+     * @param input The stream holding the tar data. Not closed by the reader.
+     */
+    public TarReader (InputStream input)
+    {
+        _input = input;
+    }
+
+    /**
+     * Skip any unread data of the current entry and read the header of the next one. Entries
+     * which only describe the following entry, such as long names, are applied to it rather than
+     * returned.
+     * @return false at the end of the tar data.
+     * @throws IOException If the tar data is truncated or a header is invalid.
+     */
+    public boolean next ()
+        throws IOException
+    {
+        skipFully(_remaining + getPadding(_size));
+        _remaining = 0;
+        _size = 0;
+
+        String longName = null;
+        String longLink = null;
+        PaxHeaders pax = null;
+        while (true) {
+            if (!readRecord()) {
+                return false;
+            }
+
+            final byte type = _record[TYPE_OFFSET];
+            final long size = parseSize();
+            switch (type) {
+                case TarConstants.LF_GNUTYPE_LONGNAME:
+                    longName = parseString(readData(size), 0, (int)size);
+                    continue;
+
+                case LF_GNUTYPE_LONGLINK:
+                    longLink = parseString(readData(size), 0, (int)size);
+                    continue;
+
+                case LF_PAX_EXTENDED:
+                    pax = new PaxHeaders(readData(size));
+                    continue;
+
+                case LF_PAX_GLOBAL:
+                    readData(size);
+                    continue;
+
+                case LF_GNUTYPE_SPARSE:
+                    throw new IOException("Sparse tar entries are not supported. name=[" +
+                        parseName() + "].");
+
+                default:
+                    break;
+            }
+
+            _name = longName != null ? longName : parseName();
+            _linkName = longLink != null ? longLink :
+                parseString(_record, LINKNAME_OFFSET, TarConstants.NAMELEN);
+            // old tar writers mark regular files with a NUL type, contiguous files are regular.
+            _type = type == TarConstants.LF_OLDNORM || type == TarConstants.LF_CONTIG ? TarConstants.LF_NORMAL : type;
+            _mode = (int)parseOctal(MODE_OFFSET, TarConstants.MODELEN);
+            _modTime = parseOctal(MODTIME_OFFSET, TarConstants.MODTIMELEN) * 1000;
+            _size = size;
+            if (pax != null) {
+                _name = pax.get("path", _name);
+                _linkName = pax.get("linkpath", _linkName);
+                _size = pax.getLong("size", _size);
+                _modTime = pax.getMillis("mtime", _modTime);
+            }
+
+            // only regular files hold data in the tar stream.
+            _remaining = _type == TarConstants.LF_NORMAL ? _size : 0;
+            if (_remaining == 0) {
+                skipFully(_size + getPadding(_size));
+                _size = 0;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the path of the current entry, as stored.
+     */
+    public String getName ()
+    {
+        return _name;
+    }
+
+    /**
+     * Returns the type of the current entry, e.g. {@link TarConstants#LF_NORMAL}.
+     */
+    public byte getType ()
+    {
+        return _type;
+    }
+
+    /**
+     * Returns the target of the current entry if it is a hard or symbolic link, otherwise the
+     * empty string.
+     */
+    public String getLinkName ()
+    {
+        return _linkName;
+    }
+
+    /**
+     * Returns the permission bits of the current entry.
+     */
+    public int getMode ()
+    {
+        return _mode & PERMISSIONS_MASK;
+    }
+
+    /**
+     * Returns the size of the data of the current entry, 0 for anything but a regular file.
+     */
+    public long getSize ()
+    {
+        return _type == TarConstants.LF_NORMAL ? _size : 0;
+    }
+
+    /**
+     * Returns the modification time of the current entry in milliseconds since the epoch.
+     */
+    public long getModTime ()
+    {
+        return _modTime;
+    }
+
+    @Override // from InputStream
+    public int read ()
+        throws IOException
+    {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override // from InputStream
+    public int read (byte[] b, int off, int len)
+        throws IOException
+    {
+        if (_remaining == 0) {
+            return -1;
+        }
+        final int count = _input.read(b, off, (int)Math.min(len, _remaining));
+        if (count == -1) {
+            throw new EOFException("Tar data ended within an entry. name=[" + _name + "].");
+        }
+        _remaining -= count;
+        return count;
+    }
+
+    /**
+     * Read the next header record, returning false at the end of archive marker or at the end
+     * of the data.
+     */
+    private boolean readRecord ()
+        throws IOException
+    {
+        int read = 0;
+        while (read < _record.length) {
+            final int count = _input.read(_record, read, _record.length - read);
+            if (count == -1) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Tar data ended within a header.");
+            }
+            read += count;
+        }
+
+        boolean empty = true;
+        long checksum = 0;
+        for (int ii = 0; ii < _record.length; ii++) {
+            final boolean inChecksum = ii >= CHKSUM_OFFSET && ii < CHKSUM_OFFSET + TarConstants.CHKSUMLEN;
+            checksum += inChecksum ? ' ' : _record[ii] & 0xFF;
+            empty &= _record[ii] == 0;
+        }
+        if (empty) {
+            return false;
+        }
+        if (checksum != parseOctal(CHKSUM_OFFSET, TarConstants.CHKSUMLEN)) {
+            throw new IOException("Invalid tar header checksum. name=[" +
+                parseString(_record, 0, TarConstants.NAMELEN) + "].");
+        }
+        return true;
+    }
+
+    /**
+     * Read the data of an entry describing the next entry, along with its padding.
+     */
+    private byte[] readData (long size)
+        throws IOException
+    {
+        if (size > MAX_HEADER_DATA) {
+            throw new IOException("Tar header data is too large. size=[" + size + "].");
+        }
+        final byte[] data = new byte[(int)size];
+        int read = 0;
+        while (read < data.length) {
+            final int count = _input.read(data, read, data.length - read);
+            if (count == -1) {
+                throw new EOFException("Tar data ended within a header.");
+            }
+            read += count;
+        }
+        skipFully(getPadding(size));
+        return data;
+    }
+
+    /**
+     * Skip the supplied number of bytes of the underlying stream.
+     */
+    private void skipFully (long count)
+        throws IOException
+    {
+        while (count > 0) {
+            long skipped = _input.skip(count);
+            if (skipped <= 0) {
+                // some streams cannot skip, read instead.
+                skipped = _input.read(_skipBuffer, 0, (int)Math.min(_skipBuffer.length, count));
+                if (skipped == -1) {
+                    throw new EOFException("Tar data ended within an entry. name=[" + _name + "].");
+                }
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Returns the path in the current header, joined to the ustar prefix if there is one.
+     */
+    private String parseName ()
+    {
+        final String name = parseString(_record, 0, TarConstants.NAMELEN);
+        if (!isUstar()) {
+            return name;
+        }
+        final String prefix = parseString(_record, PREFIX_OFFSET, PREFIX_LENGTH);
+        return prefix.length() == 0 ? name : prefix + "/" + name;
+    }
+
+    /**
+     * Returns true if the current header is in the POSIX ustar format, which has a path prefix.
+     * GNU tar uses the same space for other fields.
+     */
+    private boolean isUstar ()
+    {
+        for (int ii = 0; ii < USTAR_MAGIC.length; ii++) {
+            if (_record[MAGIC_OFFSET + ii] != USTAR_MAGIC[ii]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size in the current header, which GNU tar stores in base-256 if too large for
+     * octal.
+     */
+    private long parseSize ()
+        throws IOException
+    {
+        if ((_record[SIZE_OFFSET] & 0x80) == 0) {
+            return parseOctal(SIZE_OFFSET, TarConstants.SIZELEN);
+        }
+        long size = 0;
+        for (int ii = 1; ii < TarConstants.SIZELEN; ii++) {
+            if ((size >>> 55) != 0) {
+                throw new IOException("Tar entry size is too large.");
+            }
+            size = (size << 8) | (_record[SIZE_OFFSET + ii] & 0xFF);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the octal number in the supplied field of the current header, which may be padded
+     * with spaces and NULs.
+     */
+    private long parseOctal (int offset, int length)
+    {
+        long value = 0;
+        for (int ii = offset; ii < offset + length; ii++) {
+            final byte b = _record[ii];
+            if (b == 0) {
+                break;
+            }
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the NUL terminated UTF-8 string in the supplied bytes.
+     */
+    private static String parseString (byte[] bytes, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, UTF8);
+    }
+
+    /**
+     * Returns the number of bytes padding data of the supplied size to a whole record.
+     */
+    private static long getPadding (long size)
+    {
+        return (TarHeader.RECORD_SIZE - (size % TarHeader.RECORD_SIZE)) % TarHeader.RECORD_SIZE;
+    }
+
+    /**
+     * The records of a pax extended header, each of the form "length key=value\n".
+     */
+    private static class PaxHeaders
+    {
+        public PaxHeaders (byte[] data)
+            throws IOException
+        {
+            _data = new String(data, UTF8);
+        }
+
+        /**
+         * Returns the value of the supplied key, or the default if it is not set.
+         */
+        public String get (String key, String defaultValue)
+            throws IOException
+        {
+            int offset = 0;
+            while (offset < _data.length()) {
+                final int space = _data.indexOf(' ', offset);
+                final int length;
+                try {
+                    length = space == -1 ? -1 : Integer.parseInt(_data.substring(offset, space));
+
+                } catch (final NumberFormatException nfe) {
+                    throw new IOException("Invalid pax header record. offset=[" + offset + "].");
+                }
+                if (length <= 0) {
+                    throw new IOException("Invalid pax header record. offset=[" + offset + "].");
+                }
+
+                // the length counts UTF-8 bytes, so convert the record back to find its end.
+                final int end = findEnd(offset, length);
+                final String record = _data.substring(space + 1, end - 1);
+                final int equals = record.indexOf('=');
+                if (equals != -1 && record.substring(0, equals).equals(key)) {
+                    return record.substring(equals + 1);
+                }
+                offset = end;
+            }
+            return defaultValue;
+        }
+
+        /**
+         * Returns the decimal value of the supplied key, or the default if it is not set.
+         */
+        public long getLong (String key, long defaultValue)
+            throws IOException
+        {
+            final String value = get(key, null);
+            try {
+                return value == null ? defaultValue : Long.parseLong(value);
+
+            } catch (final NumberFormatException nfe) {
+                throw new IOException("Invalid pax header value. key=[" + key + "], value=[" +
+                    value + "].");
+            }
+        }
+
+        /**
+         * Returns the time in seconds, with an optional fraction, of the supplied key in
+         * milliseconds, or the default if it is not set.
+         */
+        public long getMillis (String key, long defaultValue)
+            throws IOException
+        {
+            final String value = get(key, null);
+            try {
+                return value == null ? defaultValue : (long)(Double.parseDouble(value) * 1000);
+
+            } catch (final NumberFormatException nfe) {
+                throw new IOException("Invalid pax header value. key=[" + key + "], value=[" +
+                    value + "].");
+            }
+        }
+
+        /**
+         * Returns the index of the character following the record starting at the supplied
+         * offset, which is the supplied number of UTF-8 bytes long.
+         */
+        private int findEnd (int offset, int length)
+            throws IOException
+        {
+            int bytes = 0;
+            int end = offset;
+            while (bytes < length && end < _data.length()) {
+                final char c = _data.charAt(end++);
+                bytes += c < 0x80 ? 1 : (c < 0x800 ? 2 : (Character.isHighSurrogate(c) ? 4 : 3));
+                if (Character.isHighSurrogate(c)) {
+                    end++;
+                }
+            }
+            if (bytes != length) {
+                throw new IOException("Invalid pax header record. offset=[" + offset + "].");
+            }
+            return end;
+        }
+
+        /** The decoded records. */
+        private final String _data;
+    }
+
+    /** Header field offsets. */
+    private static final int MODE_OFFSET = TarConstants.NAMELEN;
+    private static final int SIZE_OFFSET = MODE_OFFSET + TarConstants.MODELEN + TarConstants.UIDLEN +
+        TarConstants.GIDLEN;
+    private static final int MODTIME_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN;
+    private static final int CHKSUM_OFFSET = MODTIME_OFFSET + TarConstants.MODTIMELEN;
+    private static final int TYPE_OFFSET = CHKSUM_OFFSET + TarConstants.CHKSUMLEN;
+    private static final int LINKNAME_OFFSET = TYPE_OFFSET + 1;
+    private static final int MAGIC_OFFSET = LINKNAME_OFFSET + TarConstants.NAMELEN;
+    private static final int PREFIX_OFFSET = 345;
+    private static final int PREFIX_LENGTH = 155;
+
+    /** The magic of POSIX ustar headers, which is followed by the "00" version. */
+    private static final byte[] USTAR_MAGIC = { 'u', 's', 't', 'a', 'r', 0, '0', '0' };
+
+    /** Entry types not defined by TarConstants. */
+    private static final byte LF_GNUTYPE_LONGLINK = (byte)'K';
+    private static final byte LF_GNUTYPE_SPARSE = (byte)'S';
+    private static final byte LF_PAX_EXTENDED = (byte)'x';
+    private static final byte LF_PAX_GLOBAL = (byte)'g';
+
+    /** The permission bits of a mode. */
+    private static final int PERMISSIONS_MASK = 07777;
+
+    /** The largest long name or pax header accepted. */
+    private static final int MAX_HEADER_DATA = 1024 * 1024;
+
+    /** Tar paths and pax headers are UTF-8. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The stream holding the tar data. */
+    private final InputStream _input;
+
+    /** The current header record. */
+    private final byte[] _record = new byte[TarHeader.RECORD_SIZE];
+
+    /** The buffer used to skip streams which cannot skip. */
+    private final byte[] _skipBuffer = new byte[TarHeader.RECORD_SIZE * 16];
+
+    /** The fields of the current entry. */
+    private String _name;
+    private String _linkName;
+    private byte _type;
+    private int _mode;
+    private long _modTime;
+    private long _size;
+
+    /** The unread data of the current entry. */
+    private long _remaining;
+}
@@ -0,0 +1,182 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes tar data, taking entry headers from a reusable {@link TarHeader}. The entry data is
+ * written to this stream between {@link #putNextEntry(TarHeader)} and {@link #closeEntry()}, and
+ * must match the size in the header. The tar data is laid out as TarOutputStream lays it out,
+ * ending with two empty records padded to a whole block.
+ * Package private.
+ */
+class TarWriter extends OutputStream
+{
+    /** The size of the blocks the tar data is padded to, as written by TarOutputStream. */
+    public static final int BLOCK_SIZE = 20 * TarHeader.RECORD_SIZE;
+
+    /**
+     * Construct a {@link TarWriter}.
+     * @param output The stream receiving the tar data. Closed by {@link #close()}.
+     */
+    public TarWriter (OutputStream output)
+    {
+        _output = new BufferedOutputStream(output, BUFFER_SIZE);
+    }
+
+    /**
+     * Write the header records of the next entry.
+     * @throws IOException If the data of the previous entry was not completed.
+     */
+    public void putNextEntry (TarHeader header)
+        throws IOException
+    {
+        if (_name != null) {
+            throw new IOException("The previous tar entry was not closed. name=[" + _name + "].");
+        }
+        final ByteBuffer records = header.encode();
+        writeBytes(records.array(), records.arrayOffset() + records.position(), records.remaining());
+
+        _name = header.getName();
+        _remaining = header.isDirectory() ? 0 : header.getSize();
+    }
+
+    /**
+     * Complete the current entry, padding its data to a whole record.
+     * @throws IOException If less data was written than the size in the entry header.
+     */
+    public void closeEntry ()
+        throws IOException
+    {
+        if (_remaining != 0) {
+            throw new IOException("Tar entry data is shorter than the size in its header. name=[" +
+                _name + "], remaining=[" + _remaining + "].");
+        }
+        writeBytes(ZEROS, 0, getPadding(TarHeader.RECORD_SIZE));
+        _name = null;
+    }
+
+    @Override // from OutputStream
+    public void write (int b)
+        throws IOException
+    {
+        checkRemaining(1);
+        _output.write(b);
+        _length++;
+        _remaining--;
+    }
+
+    @Override // from OutputStream
+    public void write (byte[] b, int off, int len)
+        throws IOException
+    {
+        checkRemaining(len);
+        writeBytes(b, off, len);
+        _remaining -= len;
+    }
+
+    /**
+     * Write the end of archive records, padded to a whole block, and close the output stream.
+     */
+    @Override // from OutputStream
+    public void close ()
+        throws IOException
+    {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            writeBytes(ZEROS, 0, 2 * TarHeader.RECORD_SIZE);
+            writeBytes(ZEROS, 0, getPadding(BLOCK_SIZE));
+            _output.flush();
+
+        } finally {
+            _output.close();
+        }
+    }
+
+    /**
+     * Throws if writing the supplied number of bytes would exceed the size of the current entry.
+     */
+    private void checkRemaining (int len)
+        throws IOException
+    {
+        if (len > _remaining) {
+            throw new IOException("Tar entry data is longer than the size in its header. name=[" +
+                _name + "].");
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to pad the tar data written so far to a multiple of the
+     * supplied size.
+     */
+    private int getPadding (int size)
+    {
+        return (int)((size - (_length % size)) % size);
+    }
+
+    /**
+     * Write bytes to the output, counting them.
+     */
+    private void writeBytes (byte[] b, int off, int len)
+        throws IOException
+    {
+        _output.write(b, off, len);
+        _length += len;
+    }
+
+    /** The size of the buffer collecting records for the output stream. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Zeros used to pad records and blocks. */
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    /** The stream receiving the tar data. */
+    private final OutputStream _output;
+
+    /** The path of the current entry, or null between entries. */
+    private String _name;
+
+    /** The number of bytes of data remaining in the current entry. */
+    private long _remaining;
+
+    /** The number of bytes of tar data written. */
+    private long _length;
+
+    /** Whether the tar data has been completed. */
+    private boolean _closed;
+}
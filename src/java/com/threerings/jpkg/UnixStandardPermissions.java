@@ -55,6 +55,9 @@ public enum UnixStandardPermissions
     /** The standard Unix filesystem permissions for a directory. */
     public static final int STANDARD_DIR_MODE = 040755;
 
+    /** The Unix filesystem permissions of a symbolic link. */
+    public static final int SYMLINK_MODE = 0120777;
+
     /**
      * The user or group name for this permission.
      */
@@ -44,6 +44,7 @@ import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
 
 /**
  * A helper class to generate silent velocity engines and work with {@link VelocityTemplate} classes.
+ * The shared engine may be used from multiple threads, as when packages are built in parallel.
  */
 public class VelocityHelper
 {
@@ -98,6 +99,10 @@ public class VelocityHelper
         final VelocityContext context = new VelocityContext();
         template.populateContext(context);
 
-        _engine.getTemplate(template.getTemplateName()).merge(context, writer);
+        // templates are loaded and cached by the engine on demand, which is not guaranteed to be
+        // safe across threads. merging is cheap compared to building a package, so serialize it.
+        synchronized (_engine) {
+            _engine.getTemplate(template.getTemplateName()).merge(context, writer);
+        }
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ant.dpkg;
+
+import com.threerings.antidote.field.BaseField;
+import com.threerings.antidote.property.FileProperty;
+import com.threerings.antidote.property.IntegerProperty;
+import com.threerings.antidote.property.StringProperty;
+import com.threerings.jpkg.ArchiveSource;
+
+/**
+ * The &lt;dpkg&gt; &lt;package&gt; &lt;archive&gt; field. Repacks the entries of an existing tar,
+ * gzipped tar, zip or jar archive into the package without extracting it.
+ * @see ArchiveSource
+ */
+public class Archive extends BaseField
+{
+    // from Field
+    public String getFieldName ()
+    {
+        return "archive";
+    }
+
+    /**
+     * Ant setter field: src. The archive whose entries are added to the package.
+     */
+    public void setSrc (String value)
+    {
+        _src.setValue(value);
+    }
+
+    /**
+     * Ant setter field: prefix. Optionally set the package path the entries are added beneath.
+     */
+    public void setPrefix (String value)
+    {
+        _prefix.setValue(value);
+    }
+
+    /**
+     * Ant setter field: stripComponents. Optionally set the number of leading path components
+     * removed from every entry. Defaults to 0.
+     */
+    public void setStripComponents (String value)
+    {
+        _stripComponents.setValue(value);
+    }
+
+    /**
+     * Returns the {@link ArchiveSource} adding the entries of the archive. Cannot be called
+     * before validate().
+     */
+    public ArchiveSource getSource ()
+    {
+        final ArchiveSource source = new ArchiveSource(_src.getValue());
+        if (_prefix.isSet()) {
+            source.setPrefix(_prefix.getValue());
+        }
+        source.setStripComponents(_stripComponents.getValue());
+        return source;
+    }
+
+    @Override // from BaseComponent
+    protected void validateField ()
+    {
+        // validate the required properties
+        switch (validateProperties(_src)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+
+        // validate the optional properties
+        switch (validateOptionalProperties(_prefix, _stripComponents)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+    }
+
+    /** Ant setter fields. */
+    private final FileProperty _src = new FileProperty("src", this);
+    private final StringProperty _prefix = new StringProperty("prefix", this);
+    private final IntegerProperty _stripComponents =
+        new IntegerProperty("stripComponents", this, DEFAULT_STRIP_COMPONENTS);
+
+    /** By default no path components are stripped. */
+    private static final int DEFAULT_STRIP_COMPONENTS = 0;
+}
@@ -0,0 +1,79 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ant.dpkg;
+
+import java.util.zip.Deflater;
+
+import com.threerings.jpkg.compress.CompressionCodec;
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.NoCompressionCodec;
+import com.threerings.jpkg.compress.XzCodec;
+import com.threerings.jpkg.compress.ZstdCodec;
+
+/**
+ * The compression formats which can be selected for package members from the &lt;dpkg&gt; task.
+ */
+public enum Compression
+{
+    /** gzip, compressed in parallel blocks. The default. */
+    GZIP,
+    /** No compression. Fastest to build, largest packages. */
+    NONE,
+    /** xz, using the xz(1) executable. */
+    XZ,
+    /** zstd, using the zstd(1) executable. Requires dpkg 1.21.18 or later to install. */
+    ZSTD;
+
+    /**
+     * Returns a {@link CompressionCodec} for this format.
+     * @param level The compression level, or null to use the default level for the format.
+     * @param threads The number of compression threads.
+     * @param blockSize The size of the blocks compressed by each thread, used by gzip only.
+     */
+    public CompressionCodec createCodec (Integer level, int threads, int blockSize)
+    {
+        switch (this) {
+            case GZIP:
+                return new GzipCodec(level == null ? Deflater.DEFAULT_COMPRESSION : level,
+                    Deflater.DEFAULT_STRATEGY, threads, blockSize);
+
+            case NONE:
+                return new NoCompressionCodec();
+
+            case XZ:
+                return new XzCodec(level == null ? XzCodec.DEFAULT_LEVEL : level, threads);
+
+            case ZSTD:
+                return new ZstdCodec(level == null ? ZstdCodec.DEFAULT_LEVEL : level, threads);
+        }
+        throw new IllegalStateException("Unknown compression. compression=[" + this + "].");
+    }
+}
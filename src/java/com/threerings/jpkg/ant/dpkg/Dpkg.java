@@ -31,6 +31,20 @@
 package com.threerings.jpkg.ant.dpkg;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.tools.ant.BuildException;
@@ -38,9 +52,18 @@ import org.apache.tools.ant.Project;
 
 import com.threerings.antidote.Validator;
 import com.threerings.antidote.field.ListTask;
+import com.threerings.antidote.property.BooleanProperty;
+import com.threerings.antidote.property.EnumProperty;
 import com.threerings.antidote.property.FileProperty;
+import com.threerings.antidote.property.IntegerProperty;
+import com.threerings.antidote.property.LongProperty;
 import com.threerings.antidote.property.StringProperty;
-import com.threerings.jpkg.PackageBuilder;
+import com.threerings.jpkg.DestrootSplitter;
+import com.threerings.jpkg.DigestCache;
+import com.threerings.jpkg.MemberCache;
+import com.threerings.jpkg.PackageSource;
+import com.threerings.jpkg.PackageTarFile;
+import com.threerings.jpkg.SymlinkPolicy;
 import com.threerings.jpkg.ant.dpkg.dependencies.Conflict;
 import com.threerings.jpkg.ant.dpkg.dependencies.Replacement;
 import com.threerings.jpkg.ant.dpkg.dependencies.Require;
@@ -49,6 +72,7 @@ import com.threerings.jpkg.ant.dpkg.dependencies.conditions.EqualOrLesserThan;
 import com.threerings.jpkg.ant.dpkg.dependencies.conditions.EqualTo;
 import com.threerings.jpkg.ant.dpkg.dependencies.conditions.GreaterThan;
 import com.threerings.jpkg.ant.dpkg.dependencies.conditions.LesserThan;
+import com.threerings.jpkg.compress.CompressionCodec;
 import com.threerings.jpkg.debian.DebianPackageBuilder;
 import com.threerings.jpkg.debian.PackageInfo;
 
@@ -95,20 +119,39 @@ public class Dpkg extends ListTask<Package>
         validator.addValidation(this);
         validator.validateAll();
 
-        for (final Package pkg : getValidatedFieldList()) {
-            final File destination = new File(FilenameUtils.concat(_output.getValue().getAbsolutePath(), pkg.getFilename()));
+        final List<Package> packages = getValidatedFieldList();
+        final int threads = _threads.getValue();
+        if (threads < 1) {
+            throw new BuildException("At least one thread is required. threads=[" + threads + "].");
+        }
 
-            final PackageInfo info = pkg.createPackageInfo(_distribution.getValue(), _prefix.getValue());
-            final PackageBuilder builder = new DebianPackageBuilder(info);
-            log("Creating dpkg package " + destination.getAbsolutePath() + " from destroot " +
-                pkg.getDestroot().getAbsolutePath(), Project.MSG_INFO);
+        // a single digest cache is shared by every package, however they are built.
+        DigestCache digestCache = null;
+        if (_digestCache.isSet()) {
             try {
-                builder.write(destination, pkg.getDestroot());
+                digestCache = new DigestCache(new File(_digestCache.getValue()));
+
+            } catch (final IOException ioe) {
+                throw new BuildException("Unable to open the digest cache.", ioe);
+            }
+        }
+
+        // every destroot split between packages is scanned once, before any package is built.
+        final Map<Package, PackageSource> splits = splitDestroots(packages);
 
-            } catch (final Exception e) {
-                throw new BuildException(e);
+        if (threads == 1 || packages.size() < 2) {
+            for (final Package pkg : packages) {
+                try {
+                    buildPackage(pkg, digestCache, splits.get(pkg));
+
+                } catch (final Exception e) {
+                    throw new BuildException(e);
+                }
             }
+            return;
         }
+
+        buildPackages(packages, Math.min(threads, packages.size()), digestCache, splits);
     }
 
     /**
@@ -135,6 +178,133 @@ public class Dpkg extends ListTask<Package>
         _distribution.setValue(value);
     }
 
+    /**
+     * Ant setter field: compression. The compression format for each package's data and control
+     * members: gzip, none, xz or zstd. Defaults to gzip.
+     */
+    public void setCompression (String value)
+    {
+        _compression.setValue(value);
+    }
+
+    /**
+     * Ant setter field: compressionLevel. The compression level, whose range depends on the
+     * compression format. Defaults to the standard level for the format.
+     */
+    public void setCompressionLevel (String value)
+    {
+        _compressionLevel.setValue(value);
+    }
+
+    /**
+     * Ant setter field: compressionThreads. The number of threads used to compress each package's
+     * data. Defaults to the number of available processors.
+     */
+    public void setCompressionThreads (String value)
+    {
+        _compressionThreads.setValue(value);
+    }
+
+    /**
+     * Ant setter field: compressionBlockSize. The size in bytes of the blocks each package's data
+     * is split into for compression.
+     */
+    public void setCompressionBlockSize (String value)
+    {
+        _compressionBlockSize.setValue(value);
+    }
+
+    /**
+     * Ant setter field: singlePass. If true, each package's data is streamed directly into the
+     * package rather than through a temporary file. Defaults to false.
+     */
+    public void setSinglePass (String value)
+    {
+        _singlePass.setValue(value);
+    }
+
+    /**
+     * Ant setter field: hardLinks. If true, files with the same contents and permissions as an
+     * earlier file in the package are stored as hard links to it. Defaults to false.
+     */
+    public void setHardLinks (String value)
+    {
+        _hardLinks.setValue(value);
+    }
+
+    /**
+     * Ant setter field: symlinks. "preserve" stores symbolic links in each destroot as links,
+     * "follow_files" stores the files behind links to regular files and "follow" also the
+     * contents of linked directories. Defaults to "preserve".
+     */
+    public void setSymlinks (String value)
+    {
+        _symlinks.setValue(value);
+    }
+
+    /**
+     * Ant setter field: readThreads. The number of threads reading files from each destroot ahead
+     * of the package data writer. Defaults to 4.
+     */
+    public void setReadThreads (String value)
+    {
+        _readThreads.setValue(value);
+    }
+
+    /**
+     * Ant setter field: memberCache. An existing directory holding the compressed data of files
+     * from earlier builds, reused for files which are unchanged. Requires gzip compression.
+     */
+    public void setMemberCache (String value)
+    {
+        _memberCache.setValue(value);
+    }
+
+    /**
+     * Ant setter field: digestCache. A file holding the md5 checksums of files from earlier builds,
+     * reused for files which are unchanged. Created if it does not exist.
+     */
+    public void setDigestCache (String value)
+    {
+        _digestCache.setValue(value);
+    }
+
+    /**
+     * Ant setter field: uptodate. "fingerprint" skips packages whose destroot, metadata and
+     * settings are unchanged since they were last built. Defaults to "never".
+     */
+    public void setUpToDate (String value)
+    {
+        _upToDate.setValue(value);
+    }
+
+    /**
+     * Ant setter field: reproducible. If true, building the same destroot with the same settings
+     * always produces the same package, recording the source date rather than the current time.
+     * Defaults to false.
+     */
+    public void setReproducible (String value)
+    {
+        _reproducible.setValue(value);
+    }
+
+    /**
+     * Ant setter field: sourceDateEpoch. The source date of reproducible packages, in seconds
+     * since the epoch. Defaults to the SOURCE_DATE_EPOCH environment variable, or 0 if unset.
+     */
+    public void setSourceDateEpoch (String value)
+    {
+        _sourceDateEpoch.setValue(value);
+    }
+
+    /**
+     * Ant setter field: threads. The number of packages built at the same time. Defaults to 1.
+     */
+    public void setThreads (String value)
+    {
+        _threads.setValue(value);
+    }
+
     /**
      * Ant adder field: Add a &lt;package&gt; definition.
      */
@@ -159,7 +329,18 @@ public class Dpkg extends ListTask<Package>
                 break;
         }
 
-        switch (validateProperties(_output, _prefix, _distribution)) {
+        switch (validateProperties(_output, _prefix, _distribution, _compression, _compressionThreads,
+                                   _compressionBlockSize, _singlePass, _hardLinks, _symlinks, _readThreads,
+                                   _threads, _upToDate, _reproducible)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+
+        switch (validateOptionalProperties(_compressionLevel, _memberCache, _digestCache, _sourceDateEpoch)) {
             case ALL_INVALID:
             case SOME_INVALID:
                 return;
@@ -169,8 +350,243 @@ public class Dpkg extends ListTask<Package>
         }
     }
 
+    /**
+     * Build the supplied packages on a pool of threads. The first build to fail cancels the
+     * builds still waiting or in progress and its failure is thrown.
+     */
+    private void buildPackages (List<Package> packages, int threads, final DigestCache digestCache,
+        final Map<Package, PackageSource> splits)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread (Runnable runnable) {
+                final Thread thread = new Thread(runnable, "jpkg-dpkg");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            final CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+            final List<Future<Void>> builds = new ArrayList<Future<Void>>();
+            for (final Package pkg : packages) {
+                builds.add(completion.submit(new Callable<Void>() {
+                    public Void call ()
+                        throws Exception
+                    {
+                        buildPackage(pkg, digestCache, splits.get(pkg));
+                        return null;
+                    }
+                }));
+            }
+
+            // wait for the builds in the order they finish, so the first failure is seen at once.
+            for (int ii = 0; ii < builds.size(); ii++) {
+                try {
+                    completion.take().get();
+
+                } catch (final ExecutionException ee) {
+                    final Throwable cause = ee.getCause();
+                    if (cause instanceof BuildException) {
+                        throw (BuildException)cause;
+                    }
+                    throw new BuildException(cause);
+
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while building packages.", ie);
+                }
+            }
+
+        } finally {
+            // cancels any remaining builds if one failed, otherwise there is nothing left to do.
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan each destroot split between packages once, returning the {@link PackageSource} adding
+     * the share of each split package. Files of a split destroot selected by several packages or
+     * by none are logged.
+     */
+    private Map<Package, PackageSource> splitDestroots (List<Package> packages)
+    {
+        final Map<Package, PackageSource> sources = new HashMap<Package, PackageSource>();
+        final Map<File, DestrootSplitter> splitters = new LinkedHashMap<File, DestrootSplitter>();
+        for (final Package pkg : packages) {
+            if (!pkg.isSplit()) {
+                continue;
+            }
+            final File destroot = pkg.getDestroot().getAbsoluteFile();
+            DestrootSplitter splitter = splitters.get(destroot);
+            if (splitter == null) {
+                splitter = new DestrootSplitter(destroot, _symlinks.getValue());
+                splitters.put(destroot, splitter);
+            }
+            sources.put(pkg, splitter.addPackage(pkg.getFilename(), pkg.getDestrootFilter()));
+        }
+
+        for (final Map.Entry<File, DestrootSplitter> entry : splitters.entrySet()) {
+            final String destroot = entry.getKey().getPath();
+            final DestrootSplitter splitter = entry.getValue();
+            log("Splitting destroot " + destroot, Project.MSG_INFO);
+            try {
+                splitter.scan();
+
+            } catch (final IOException ioe) {
+                throw new BuildException("Unable to scan the split destroot. destroot=[" + destroot + "].", ioe);
+            }
+
+            for (final Map.Entry<String, List<String>> overlap : splitter.getOverlaps().entrySet()) {
+                log("File is selected by more than one package. path=[" + overlap.getKey() +
+                    "], packages=" + overlap.getValue() + ".", Project.MSG_WARN);
+            }
+            final List<String> unmatched = splitter.getUnmatched();
+            if (!unmatched.isEmpty()) {
+                log(unmatched.size() + " files are not selected by any package. destroot=[" +
+                    destroot + "].", Project.MSG_WARN);
+                for (final String path : unmatched) {
+                    log("File is not selected by any package. path=[" + path + "].", Project.MSG_VERBOSE);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Build the supplied package into the output directory, using the supplied
+     * {@link DigestCache} if not null. A split package takes its files from the supplied
+     * {@link PackageSource} in place of its destroot.
+     */
+    private void buildPackage (Package pkg, DigestCache digestCache, PackageSource split)
+        throws Exception
+    {
+        final File destination = new File(FilenameUtils.concat(_output.getValue().getAbsolutePath(), pkg.getFilename()));
+
+        final PackageInfo info = pkg.createPackageInfo(_distribution.getValue(), _prefix.getValue());
+        final DebianPackageBuilder builder = new DebianPackageBuilder(info);
+        final File destroot = split == null ? pkg.getDestroot() : null;
+        log("Creating dpkg package " + destination.getAbsolutePath() +
+            (split != null ? " from split destroot " + pkg.getDestroot().getAbsolutePath() :
+             destroot == null ? " from filesets and archives" : " from destroot " + destroot.getAbsolutePath()),
+            Project.MSG_INFO);
+        builder.setDataCompression(createCodec(_compressionThreads.getValue()));
+        // the control data is small enough that extra threads would only add overhead.
+        builder.setControlCompression(createCodec(1));
+        builder.setSinglePass(_singlePass.getValue());
+        builder.setHardLinks(_hardLinks.getValue());
+        builder.setSymlinkPolicy(_symlinks.getValue());
+        builder.setDestrootFilter(pkg.getDestrootFilter());
+        if (split != null) {
+            builder.addSource(split);
+        }
+        for (final PackageSource source : pkg.getSources()) {
+            builder.addSource(source);
+        }
+        builder.setReadThreads(_readThreads.getValue());
+        if (_memberCache.isSet()) {
+            builder.setMemberCache(new MemberCache(_memberCache.getValue()));
+        }
+        if (digestCache != null) {
+            builder.setDigestCache(digestCache);
+        }
+        if (_reproducible.getValue()) {
+            builder.setSourceDate(getSourceDateEpoch() * 1000);
+        }
+
+        final UpToDate upToDate = pkg.getUpToDate() != null ? pkg.getUpToDate() : _upToDate.getValue();
+        if (!pkg.getVariants().isEmpty()) {
+            final Map<File, PackageInfo> variants = new LinkedHashMap<File, PackageInfo>();
+            variants.put(destination, info);
+            for (final Variant variant : pkg.getVariants()) {
+                final File variantDest = new File(FilenameUtils.concat(_output.getValue().getAbsolutePath(),
+                    pkg.getFilename(variant)));
+                if (variants.containsKey(variantDest)) {
+                    throw new BuildException("Package variants must have distinct filenames. path=[" +
+                        variantDest.getAbsolutePath() + "].");
+                }
+                log("Creating dpkg package variant " + variantDest.getAbsolutePath(), Project.MSG_INFO);
+                variants.put(variantDest, pkg.createVariantInfo(variant, _distribution.getValue(),
+                    _prefix.getValue()));
+            }
+
+            if (upToDate == UpToDate.FINGERPRINT) {
+                if (!builder.writeVariantsIfChanged(variants, destroot)) {
+                    log("Package " + destination.getAbsolutePath() + " and its variants are up to date.",
+                        Project.MSG_INFO);
+                }
+
+            } else {
+                builder.writeVariants(variants, destroot);
+            }
+
+        } else if (upToDate == UpToDate.FINGERPRINT) {
+            if (!builder.writeIfChanged(destination, destroot)) {
+                log("Package " + destination.getAbsolutePath() + " is up to date.", Project.MSG_INFO);
+            }
+
+        } else {
+            builder.write(destination, destroot);
+        }
+    }
+
+    /**
+     * Returns the source date of reproducible packages in seconds, from the sourceDateEpoch
+     * property or the SOURCE_DATE_EPOCH environment variable, or 0 if neither is set.
+     */
+    private long getSourceDateEpoch ()
+    {
+        if (_sourceDateEpoch.isSet()) {
+            return _sourceDateEpoch.getValue();
+        }
+
+        final String env = System.getenv(SOURCE_DATE_EPOCH);
+        if (env == null || env.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(env.trim());
+
+        } catch (final NumberFormatException nfe) {
+            throw new BuildException("The " + SOURCE_DATE_EPOCH + " environment variable must be an " +
+                "integer. value=[" + env + "].");
+        }
+    }
+
+    /**
+     * Create the {@link CompressionCodec} described by the compression properties, using the
+     * supplied number of threads.
+     */
+    private CompressionCodec createCodec (int threads)
+    {
+        final Integer level = _compressionLevel.isSet() ? _compressionLevel.getValue() : null;
+        return _compression.getValue().createCodec(level, threads, _compressionBlockSize.getValue());
+    }
+
+    /** The environment variable holding the default source date of reproducible packages. */
+    private static final String SOURCE_DATE_EPOCH = "SOURCE_DATE_EPOCH";
+
     /** Ant adder/setter fields. */
     private final FileProperty _output = new FileProperty("output", this);
     private final StringProperty _prefix = new StringProperty("prefix", this);
     private final StringProperty _distribution = new StringProperty("distribution", this);
+    private final EnumProperty<Compression> _compression =
+        new EnumProperty<Compression>("compression", this, Compression.class, Compression.GZIP);
+    private final IntegerProperty _compressionLevel = new IntegerProperty("compressionlevel", this);
+    private final IntegerProperty _compressionThreads =
+        new IntegerProperty("compressionthreads", this, PackageTarFile.DEFAULT_COMPRESSION_THREADS);
+    private final IntegerProperty _compressionBlockSize =
+        new IntegerProperty("compressionblocksize", this, PackageTarFile.DEFAULT_COMPRESSION_BLOCK_SIZE);
+    private final BooleanProperty _singlePass = new BooleanProperty("singlepass", this, false);
+    private final BooleanProperty _hardLinks = new BooleanProperty("hardlinks", this, false);
+    private final EnumProperty<SymlinkPolicy> _symlinks = new EnumProperty<SymlinkPolicy>(
+        "symlinks", this, SymlinkPolicy.class, SymlinkPolicy.DEFAULT);
+    private final IntegerProperty _readThreads =
+        new IntegerProperty("readthreads", this, PackageTarFile.DEFAULT_READ_THREADS);
+    private final IntegerProperty _threads = new IntegerProperty("threads", this, 1);
+    private final EnumProperty<UpToDate> _upToDate =
+        new EnumProperty<UpToDate>("uptodate", this, UpToDate.class, UpToDate.NEVER);
+    private final BooleanProperty _reproducible = new BooleanProperty("reproducible", this, false);
+    private final LongProperty _sourceDateEpoch = new LongProperty("sourcedateepoch", this);
+    private final FileProperty _memberCache = new FileProperty("membercache", this);
+    private final StringProperty _digestCache = new StringProperty("digestcache", this);
 }
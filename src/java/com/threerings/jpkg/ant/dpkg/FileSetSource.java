@@ -0,0 +1,234 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ant.dpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.ArchiveFileSet;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.ArchiveResource;
+
+import com.threerings.jpkg.BuildFingerprint;
+import com.threerings.jpkg.DuplicatePermissionsException;
+import com.threerings.jpkg.PackageSource;
+import com.threerings.jpkg.PackageTarFile;
+import com.threerings.jpkg.PathUtils;
+import com.threerings.jpkg.UnixStandardPermissions;
+
+/**
+ * A {@link PackageSource} adding the files and directories selected by Ant filesets, including
+ * zipfilesets and tarfilesets, streaming each resource into the package data without staging it
+ * in a destroot. Archive filesets place their entries beneath their prefix, or a single file at
+ * their fullpath, and give them their filemode and dirmode if set, otherwise the mode stored in
+ * the source archive. Other entries have the standard modes. The entries of each fileset are
+ * added in path order.
+ * Package private.
+ */
+class FileSetSource
+    implements PackageSource
+{
+    public FileSetSource (Project project, List<FileSet> filesets)
+    {
+        _project = project;
+        _filesets = filesets;
+    }
+
+    // from PackageSource
+    public void addTo (PackageTarFile tar)
+        throws DuplicatePermissionsException, IOException
+    {
+        for (final SourceEntry entry : listEntries()) {
+            final Resource resource = entry.resource;
+            if (resource.isDirectory()) {
+                tar.addDirectoryEntry(entry.path, entry.mode, resource.getLastModified());
+                continue;
+            }
+
+            final InputStream input = resource.getInputStream();
+            try {
+                tar.addEntry(entry.path, resource.getSize(), input, entry.mode,
+                    resource.getLastModified());
+
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+        }
+    }
+
+    // from PackageSource
+    public void addTo (BuildFingerprint fingerprint)
+        throws IOException
+    {
+        for (final SourceEntry entry : listEntries()) {
+            final Resource resource = entry.resource;
+            fingerprint.add(entry.path);
+            fingerprint.add((resource.isDirectory() ? 'd' : 'f') + " " + resource.getSize() + " " +
+                Integer.toOctalString(entry.mode) + " " + resource.getLastModified());
+        }
+    }
+
+    /**
+     * Returns the entries selected by every fileset, in fileset order and then path order.
+     */
+    private List<SourceEntry> listEntries ()
+    {
+        final List<SourceEntry> entries = new ArrayList<SourceEntry>();
+        for (final FileSet fileset : _filesets) {
+            entries.addAll(listEntries(fileset));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the entries selected by the supplied fileset, sorted by path.
+     * @throws BuildException If the fileset has a fullpath but does not select exactly one file.
+     */
+    private List<SourceEntry> listEntries (FileSet fileset)
+    {
+        final ArchiveFileSet archive =
+            fileset instanceof ArchiveFileSet ? (ArchiveFileSet)fileset : null;
+        final DirectoryScanner scanner = fileset.getDirectoryScanner(_project);
+        final String[] files = scanner.getIncludedFiles();
+        final List<SourceEntry> entries = new ArrayList<SourceEntry>();
+
+        final String fullpath = archive == null ? "" : archive.getFullpath(_project);
+        if (fullpath.length() > 0) {
+            if (files.length != 1) {
+                throw new BuildException("A fileset with a fullpath must select exactly one file. " +
+                    "fullpath=[" + fullpath + "], files=[" + files.length + "].");
+            }
+            final Resource resource = scanner.getResource(files[0]);
+            entries.add(new SourceEntry(fullpath, resource, getMode(archive, resource, false)));
+            return entries;
+        }
+
+        final String prefix = archive == null ? "" : archive.getPrefix(_project);
+        for (final String name : scanner.getIncludedDirectories()) {
+            // the fileset root is the root of the package, which needs no entry.
+            final String path = toPath(prefix, name);
+            if (path.length() > 0) {
+                final Resource resource = scanner.getResource(name);
+                entries.add(new SourceEntry(path, resource, getMode(archive, resource, true)));
+            }
+        }
+        for (final String name : files) {
+            final Resource resource = scanner.getResource(name);
+            entries.add(new SourceEntry(toPath(prefix, name), resource,
+                getMode(archive, resource, false)));
+        }
+
+        Collections.sort(entries, BY_PATH);
+        return entries;
+    }
+
+    /**
+     * Returns the mode of the supplied resource: the mode set on the archive fileset, if any,
+     * otherwise the mode stored in the source archive, if any, otherwise the standard mode.
+     */
+    private int getMode (ArchiveFileSet archive, Resource resource, boolean directory)
+    {
+        final int standard = directory ?
+            UnixStandardPermissions.STANDARD_DIR_MODE : UnixStandardPermissions.STANDARD_FILE_MODE;
+        int mode;
+        if (archive != null && (directory ? archive.hasDirModeBeenSet() : archive.hasFileModeBeenSet())) {
+            mode = directory ? archive.getDirMode(_project) : archive.getFileMode(_project);
+
+        } else if (resource instanceof ArchiveResource) {
+            mode = ((ArchiveResource)resource).getMode();
+
+        } else {
+            return standard;
+        }
+
+        // archives may not record a mode at all, and the file type is always the standard one.
+        mode &= PERMISSIONS_MASK;
+        return mode == 0 ? standard : (standard & ~PERMISSIONS_MASK) | mode;
+    }
+
+    /**
+     * Returns the package path of the supplied scanner path beneath the supplied prefix,
+     * normalized and with / separators.
+     */
+    private static String toPath (String prefix, String name)
+    {
+        return PathUtils.stripLeadingSeparators(
+            PathUtils.normalize(prefix + "/" + name.replace(File.separatorChar, '/')));
+    }
+
+    /**
+     * A resource and the package path and mode it is added with.
+     */
+    private static class SourceEntry
+    {
+        public SourceEntry (String path, Resource resource, int mode)
+        {
+            this.path = path;
+            this.resource = resource;
+            this.mode = mode;
+        }
+
+        /** The path of the entry in the package. */
+        public final String path;
+
+        /** The resource holding the entry. */
+        public final Resource resource;
+
+        /** The mode of the entry. */
+        public final int mode;
+    }
+
+    /** Orders entries by path. */
+    private static final Comparator<SourceEntry> BY_PATH = new Comparator<SourceEntry>() {
+        public int compare (SourceEntry e1, SourceEntry e2) {
+            return e1.path.compareTo(e2.path);
+        }
+    };
+
+    /** The permission bits of a mode, without the file type. */
+    private static final int PERMISSIONS_MASK = 07777;
+
+    /** The project the filesets belong to. */
+    private final Project _project;
+
+    /** The filesets selecting the entries. */
+    private final List<FileSet> _filesets;
+}
@@ -35,16 +35,26 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.StringTokenizer;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.TarFileSet;
+import org.apache.tools.ant.types.ZipFileSet;
 
+import com.threerings.antidote.ValidStatus;
+import com.threerings.antidote.Violation;
 import com.threerings.antidote.field.BaseField;
 import com.threerings.antidote.field.OptionalField;
 import com.threerings.antidote.field.RequiredField;
+import com.threerings.antidote.property.BooleanProperty;
+import com.threerings.antidote.property.EnumProperty;
 import com.threerings.antidote.property.FileProperty;
 import com.threerings.antidote.property.StringProperty;
+import com.threerings.jpkg.DestrootFilter;
+import com.threerings.jpkg.PackageSource;
 import com.threerings.jpkg.PathPermissions;
 import com.threerings.jpkg.PermissionsMap;
 import com.threerings.jpkg.ant.dpkg.dependencies.BaseDependency;
@@ -105,13 +115,88 @@ public class Package extends BaseField
     }
 
     /**
-     * Ant setter field: destroot. The directory where the root of the package starts.
+     * Ant adder field: Add a fileset whose files are added to the package beneath its root,
+     * after the destroot, without being staged in a destroot.
+     */
+    public void addFileset (FileSet fileset)
+    {
+        _filesets.add(fileset);
+    }
+
+    /**
+     * Ant adder field: Add a zipfileset, whose files may come from a zip archive, added beneath
+     * its prefix or at its fullpath with its filemode and dirmode.
+     */
+    public void addZipfileset (ZipFileSet fileset)
+    {
+        _filesets.add(fileset);
+    }
+
+    /**
+     * Ant adder field: Add a tarfileset, whose files may come from a tar archive, added beneath
+     * its prefix or at its fullpath with its filemode and dirmode.
+     */
+    public void addTarfileset (TarFileSet fileset)
+    {
+        _filesets.add(fileset);
+    }
+
+    /**
+     * Ant adder field: Add an existing tar, gzipped tar, zip or jar archive whose entries are
+     * repacked into the package, after the filesets, without being extracted.
+     */
+    public void addArchive (Archive archive)
+    {
+        _archives.add(archive);
+    }
+
+    /**
+     * Ant adder field: Add a variant, an extra package holding the same data which differs only
+     * in its package name, architecture or extra dependencies.
+     */
+    public void addVariant (Variant variant)
+    {
+        _variants.add(variant);
+    }
+
+    /**
+     * Ant setter field: destroot. The directory where the root of the package starts. Optional
+     * if the package has any filesets or archives.
      */
     public void setDestroot (String value)
     {
         _destroot.setValue(value);
     }
 
+    /**
+     * Ant setter field: includes. Optionally set the comma or space separated patterns selecting
+     * the destroot paths to add to the package, e.g. "usr/**, etc/**". Defaults to every path.
+     */
+    public void setIncludes (String value)
+    {
+        _includes.setValue(value);
+    }
+
+    /**
+     * Ant setter field: excludes. Optionally set the comma or space separated patterns selecting
+     * the destroot paths to leave out of the package, e.g. "**&#47;.git/**, **&#47;*.pyc".
+     * Excluded directories are not read at all.
+     */
+    public void setExcludes (String value)
+    {
+        _excludes.setValue(value);
+    }
+
+    /**
+     * Ant setter field: split. If true, the destroot is scanned once for this package and every
+     * other split package of the task with the same destroot, and its paths are divided between
+     * those packages by their includes and excludes. Defaults to false.
+     */
+    public void setSplit (String value)
+    {
+        _split.setValue(value);
+    }
+
     /**
      * Ant setter field: filename. Optionally set the filename of the package output.
      */
@@ -120,15 +205,76 @@ public class Package extends BaseField
         _filenameProp.setValue(value);
     }
 
+    /**
+     * Ant setter field: uptodate. Optionally override the up to date check of the &lt;dpkg&gt;
+     * task for this package.
+     */
+    public void setUpToDate (String value)
+    {
+        _upToDate.setValue(value);
+    }
+
     /**
      * Returns the user data converted into a {@link PackageInfo} object. Cannot be called before validate().
      */
     public PackageInfo createPackageInfo (String distribution, String prefix)
     {
         final Info info = _info.getField();
-        final DpkgData data = new DpkgData(info.getPackageNameAsString(), info.getVersionAsString(),
+        return populatePackageInfo(info.getPackageInfo(), info.getPackageNameAsString(),
             distribution, prefix);
-        final PackageInfo packageInfo = info.getPackageInfo();
+    }
+
+    /**
+     * Returns the user data of the supplied variant of this package converted into a new
+     * {@link PackageInfo} object, including the scripts, permissions and dependencies of this
+     * package. Cannot be called before validate().
+     */
+    public PackageInfo createVariantInfo (Variant variant, String distribution, String prefix)
+    {
+        final Info info = _info.getField();
+        final PackageInfo packageInfo = info.createPackageInfo(variant.getPackageName(),
+            variant.getPackageArchitecture());
+        final String name = variant.getPackageName() != null ?
+            variant.getPackageName().getFieldValue() : info.getPackageNameAsString();
+        appendDependencies(variant.getDependencies(), packageInfo);
+        return populatePackageInfo(packageInfo, name, distribution, prefix);
+    }
+
+    /**
+     * Returns the variants of this package. Cannot be called before validate().
+     */
+    public List<Variant> getVariants ()
+    {
+        return _variants;
+    }
+
+    /**
+     * Returns the filename to use for the supplied variant of this package. Cannot be called
+     * before validate().
+     */
+    public String getFilename (Variant variant)
+    {
+        if (variant.getFilename() != null) {
+            return variant.getFilename();
+        }
+        final Info info = _info.getField();
+        final String name = variant.getPackageName() != null ?
+            variant.getPackageName().getFieldValue() : info.getPackageNameAsString();
+        final PackageInfo packageInfo = info.createPackageInfo(variant.getPackageName(),
+            variant.getPackageArchitecture());
+        return name + "_" + info.getVersionAsString() + "_" +
+            packageInfo.getControlHeaders().getHeader(ARCHITECTURE_FIELD, null) + EXTENSION;
+    }
+
+    /**
+     * Add the scripts, permissions and dependencies of this package to the supplied
+     * {@link PackageInfo}, whose package has the supplied name.
+     */
+    private PackageInfo populatePackageInfo (PackageInfo packageInfo, String name,
+        String distribution, String prefix)
+    {
+        final Info info = _info.getField();
+        final DpkgData data = new DpkgData(name, info.getVersionAsString(), distribution, prefix);
 
         if (_scripts.isSet()) {
             appendPackageScripts(_scripts.getField().getPackageScripts(), packageInfo, data);
@@ -149,11 +295,66 @@ public class Package extends BaseField
     }
 
     /**
-     * Returns the destroot to use for this package. Cannot be called before validate().
+     * Returns the destroot to use for this package, or null if the package is built from its
+     * filesets and archives alone. Cannot be called before validate().
      */
     public File getDestroot ()
     {
-        return _destroot.getValue();
+        return _destroot.isSet() ? _destroot.getValue() : null;
+    }
+
+    /**
+     * Returns the {@link PackageSource} objects adding the files of the filesets of this package,
+     * then the entries of each of its archives. Cannot be called before validate().
+     */
+    public List<PackageSource> getSources ()
+    {
+        final List<PackageSource> sources = new ArrayList<PackageSource>();
+        if (!_filesets.isEmpty()) {
+            sources.add(new FileSetSource(getProject(), _filesets));
+        }
+        for (final Archive archive : _archives) {
+            sources.add(archive.getSource());
+        }
+        return sources;
+    }
+
+    /**
+     * Returns the {@link DestrootFilter} selecting the destroot paths to add to this package.
+     * Cannot be called before validate().
+     */
+    public DestrootFilter getDestrootFilter ()
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        if (_includes.isSet()) {
+            for (final String pattern : splitPatterns(_includes.getValue())) {
+                filter.addInclude(pattern);
+            }
+        }
+        if (_excludes.isSet()) {
+            for (final String pattern : splitPatterns(_excludes.getValue())) {
+                filter.addExclude(pattern);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns true if this package takes its share of a destroot split between several packages.
+     * Cannot be called before validate().
+     */
+    public boolean isSplit ()
+    {
+        return _split.getValue();
+    }
+
+    /**
+     * Returns the up to date check for this package, or null if the task default should be used.
+     * Cannot be called before validate().
+     */
+    public UpToDate getUpToDate ()
+    {
+        return _upToDate.isSet() ? _upToDate.getValue() : null;
     }
 
     /**
@@ -178,8 +379,32 @@ public class Package extends BaseField
                 break;
         }
 
-        // validate the required properties
-        switch (validateProperties(_destroot)) {
+        // validate the archives and variants
+        boolean childrenValid = true;
+        final List<BaseField> children = new ArrayList<BaseField>(_archives);
+        children.addAll(_variants);
+        for (final BaseField child : children) {
+            final List<Violation> violations = child.validate();
+            appendViolationList(violations);
+            childrenValid &= violations.isEmpty();
+        }
+        if (!childrenValid) {
+            return;
+        }
+
+        // validate the required properties. the destroot is optional with filesets or archives,
+        // unless it is being split.
+        switch (validateProperties(_split)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+
+        switch ((_filesets.isEmpty() && _archives.isEmpty()) || _destroot.isSet() || _split.getValue() ?
+            validateProperties(_destroot) : ValidStatus.ALL_VALID) {
             case ALL_INVALID:
             case SOME_INVALID:
                 return;
@@ -189,7 +414,7 @@ public class Package extends BaseField
         }
 
         // validate the optional properties
-        switch (validateOptionalProperties(_filenameProp)) {
+        switch (validateOptionalProperties(_filenameProp, _upToDate, _includes, _excludes)) {
             case ALL_INVALID:
             case SOME_INVALID:
                 return;
@@ -289,6 +514,19 @@ public class Package extends BaseField
         log(IOUtils.toString(runner.getStream()), Project.MSG_VERBOSE);
     }
 
+    /**
+     * Split a comma or space separated list of patterns, as Ant does for fileset patterns.
+     */
+    private static List<String> splitPatterns (String value)
+    {
+        final List<String> patterns = new ArrayList<String>();
+        final StringTokenizer tokens = new StringTokenizer(value, ", ");
+        while (tokens.hasMoreTokens()) {
+            patterns.add(tokens.nextToken());
+        }
+        return patterns;
+    }
+
     /**
      * Set the filename for this package field. Use the user supplied string if set, otherwise use
      * a default.
@@ -308,6 +546,9 @@ public class Package extends BaseField
     /** The default file extension for the package output file. */
     private static final String EXTENSION = ".dpkg";
 
+    /** The control field naming the package architecture. */
+    private static final String ARCHITECTURE_FIELD = "Architecture";
+
     /** The filename, either from the user property or a default. */
     private String _filename;
 
@@ -317,5 +558,13 @@ public class Package extends BaseField
     private final OptionalField<Permissions> _permissions = new OptionalField<Permissions>(Permissions.class, this);
     private final OptionalField<Dependencies> _dependencies = new OptionalField<Dependencies>(Dependencies.class, this);
     private final FileProperty _destroot = new FileProperty("destroot", this);
+    private final List<FileSet> _filesets = new ArrayList<FileSet>();
+    private final List<Archive> _archives = new ArrayList<Archive>();
+    private final List<Variant> _variants = new ArrayList<Variant>();
     private final StringProperty _filenameProp = new StringProperty("filename", this);
+    private final StringProperty _includes = new StringProperty("includes", this);
+    private final StringProperty _excludes = new StringProperty("excludes", this);
+    private final BooleanProperty _split = new BooleanProperty("split", this, false);
+    private final EnumProperty<UpToDate> _upToDate =
+        new EnumProperty<UpToDate>("uptodate", this, UpToDate.class);
 }
@@ -0,0 +1,163 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ant.dpkg;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.threerings.antidote.field.BaseField;
+import com.threerings.antidote.field.OptionalField;
+import com.threerings.antidote.property.StringProperty;
+import com.threerings.jpkg.ant.dpkg.dependencies.Dependencies;
+import com.threerings.jpkg.ant.dpkg.dependencies.PackageInfoDependency;
+import com.threerings.jpkg.ant.dpkg.info.Arch;
+import com.threerings.jpkg.ant.dpkg.info.Name;
+import com.threerings.jpkg.debian.PackageArchitecture;
+import com.threerings.jpkg.debian.PackageName;
+
+/**
+ * The &lt;dpkg&gt; &lt;package&gt; &lt;variant&gt; field. Describes an extra package holding the
+ * same data as the &lt;package&gt; it belongs to, which differs only in its package name,
+ * architecture or extra dependencies. The data is compressed once for the package and all of its
+ * variants.
+ */
+public class Variant extends BaseField
+{
+    // from Field
+    public String getFieldName ()
+    {
+        return "variant";
+    }
+
+    /**
+     * Ant adder field: Optionally set the package name of the variant. Defaults to the name of
+     * the package.
+     */
+    public void addName (Name name)
+    {
+        _name.setField(name);
+    }
+
+    /**
+     * Ant adder field: Optionally set the architecture of the variant. Defaults to the
+     * architecture of the package.
+     */
+    public void addArch (Arch arch)
+    {
+        _arch.setField(arch);
+    }
+
+    /**
+     * Ant adder field: Optionally set dependencies added to those of the package.
+     */
+    public void addDependencies (Dependencies dependencies)
+    {
+        _dependencies.setField(dependencies);
+    }
+
+    /**
+     * Ant setter field: filename. Optionally set the filename of the variant output. Defaults
+     * to the package name, version and architecture of the variant.
+     */
+    public void setFilename (String value)
+    {
+        _filename.setValue(value);
+    }
+
+    /**
+     * Returns the package name of the variant, or null to use the package name of the package.
+     * Cannot be called before validate().
+     */
+    public PackageName getPackageName ()
+    {
+        return _name.isSet() ? _name.getField().getPackageName() : null;
+    }
+
+    /**
+     * Returns the architecture of the variant, or null to use the architecture of the package.
+     * Cannot be called before validate().
+     */
+    public PackageArchitecture getPackageArchitecture ()
+    {
+        return _arch.isSet() ? _arch.getField().getPackageArchitecture() : null;
+    }
+
+    /**
+     * Returns the dependencies added to those of the package. Cannot be called before validate().
+     */
+    public List<PackageInfoDependency> getDependencies ()
+    {
+        if (!_dependencies.isSet()) {
+            return Collections.emptyList();
+        }
+        return _dependencies.getField().getDependencies();
+    }
+
+    /**
+     * Returns the filename of the variant output, or null to use the default. Cannot be called
+     * before validate().
+     */
+    public String getFilename ()
+    {
+        return _filename.isSet() ? _filename.getValue() : null;
+    }
+
+    @Override // from BaseComponent
+    protected void validateField ()
+    {
+        // validate the fields
+        switch (validateChildFields(_name, _arch, _dependencies)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+
+        // validate the optional properties
+        switch (validateOptionalProperties(_filename)) {
+            case ALL_INVALID:
+            case SOME_INVALID:
+                return;
+
+            case ALL_VALID:
+                break;
+        }
+    }
+
+    /** Ant adder/setter fields. */
+    private final OptionalField<Name> _name = new OptionalField<Name>(Name.class, this);
+    private final OptionalField<Arch> _arch = new OptionalField<Arch>(Arch.class, this);
+    private final OptionalField<Dependencies> _dependencies =
+        new OptionalField<Dependencies>(Dependencies.class, this);
+    private final StringProperty _filename = new StringProperty("filename", this);
+}
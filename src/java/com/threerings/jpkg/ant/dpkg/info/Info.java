@@ -33,7 +33,9 @@ package com.threerings.jpkg.ant.dpkg.info;
 import com.threerings.antidote.field.BaseField;
 import com.threerings.antidote.field.OptionalField;
 import com.threerings.antidote.field.RequiredField;
+import com.threerings.jpkg.debian.PackageArchitecture;
 import com.threerings.jpkg.debian.PackageInfo;
+import com.threerings.jpkg.debian.PackageName;
 
 import static com.threerings.antidote.MutabilityHelper.areMutablesSet;
 import static com.threerings.antidote.MutabilityHelper.requiresValidation;
@@ -114,6 +116,24 @@ public class Info extends BaseField
         return _packageInfo;
     }
 
+    /**
+     * Returns a new {@link PackageInfo} holding the user data, but with the supplied package name
+     * and architecture where not null, e.g. for a variant of the package. Cannot be called before
+     * validate().
+     */
+    public PackageInfo createPackageInfo (PackageName name, PackageArchitecture architecture)
+    {
+        requiresValidation(_packageInfo);
+        return new PackageInfo(
+            name != null ? name : _name.getField().getPackageName(),
+            _version.getField().getPackageVersion(),
+            architecture != null ? architecture : _arch.getField().getPackageArchitecture(),
+            _maintainer.getField().getPackageMaintainer(),
+            _description.getField().getPackageDescription(),
+            _section.isSet() ? _section.getField().getPackageSection() : PackageInfo.DEFAULT_SECTION,
+            _priority.isSet() ? _priority.getField().getPackagePriority() : PackageInfo.DEFAULT_PRIORITY);
+    }
+
     /**
      * Returns the user data for the package name. Cannot be called before validate().
      */
@@ -37,8 +37,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 
@@ -60,6 +69,12 @@ public class Archive
     /** The length of the header that appears before every file in the archive. */
     public static final int FILE_HEADER_LENGTH = 60;
 
+    /** Used to indicate that entry headers should record the current time. */
+    public static final long CURRENT_TIME = -1;
+
+    /** The largest entry size which fits the 10 digit size field of the file header. */
+    public static final long MAX_ENTRY_SIZE = 9999999999L;
+
     /** Initialize the AR_MAGIC header and PADDING byte arrays. */
     static {
         try {
@@ -81,6 +96,7 @@ public class Archive
         throws InvalidMagicException, IOException
     {
         _path = path;
+        _ownsOutput = true;
 
         // if the file already exists, and has content, verify it has the correct ar header.
         if (_path.exists() && _path.length() > 0) {
@@ -97,6 +113,7 @@ public class Archive
                 IOUtils.closeQuietly(input);
             }
             _output = new FileOutputStream(_path, true);
+            _channel = toChannel(_output);
 
         // otherwise create the file if necessary and write out the header.
         } else {
@@ -107,56 +124,214 @@ public class Archive
             }
 
             _output = new FileOutputStream(_path);
+            _channel = toChannel(_output);
             _output.write(AR_MAGIC);
         }
     }
 
     /**
-     * Append the contents of the supplied {@link ArchiveEntry} to this archive.
-     * @param entry The {@link ArchiveEntry} to add to the archive.
-     * @throws PathnameTooLongException If the path name is too long for an ar(1) archive.
-     * @throws PathnameInvalidException If the path name is invalid, e.g. contains a space.
-     * @throws DataTooLargeException If the data contained in the entry is too large for an ar(1) archive.
-     * @throws IOException If any exception occurs during data i/o.
+     * Construct a new archive written to the supplied {@link OutputStream}, starting with the ar(1)
+     * magic header. The stream is not closed by the archive.
+     * @throws IOException If any exception occurs writing the header.
      */
-    public void appendEntry (ArchiveEntry entry)
-        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    public Archive (OutputStream output)
+        throws IOException
     {
-        // ar(1) only supports storing the file size as an integer. throw an exception if the
-        // data is too large.
-        if (entry.getSize() > Integer.MAX_VALUE) {
-            throw new DataTooLargeException("Data being added to the archive is too large. " +
-                "path=[" + entry.getPath() + "], size=[" + entry.getSize() + "].");
+        _path = null;
+        _output = output;
+        _ownsOutput = false;
+        _channel = toChannel(output);
+        _output.write(AR_MAGIC);
+    }
+
+    /**
+     * Set the modification time recorded in the headers of entries appended to this archive, in
+     * seconds since the epoch. Defaults to {@link #CURRENT_TIME}, the time each entry is appended.
+     */
+    public void setModificationTime (long seconds)
+    {
+        if (seconds < 0 && seconds != CURRENT_TIME) {
+            throw new IllegalArgumentException("The modification time cannot be negative. seconds=[" +
+                seconds + "].");
+        }
+        _modificationTime = seconds;
+    }
+
+    /**
+     * Returns the members of the existing ar(1) archive at the supplied path, in archive order,
+     * without reading their data. GNU style names, which end with a /, are returned without it.
+     * @throws InvalidMagicException If the file is not an ar(1) archive.
+     * @throws ArchiveException If a member header is invalid.
+     * @throws IOException If the file could not be read, or ends within a member.
+     */
+    public static List<ArchiveMember> readMembers (File path)
+        throws ArchiveException, IOException
+    {
+        final List<ArchiveMember> members = new ArrayList<ArchiveMember>();
+        final FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer magic = ByteBuffer.allocate(AR_MAGIC.length);
+            readFully(channel, magic);
+            if (magic.hasRemaining() || !Arrays.equals(magic.array(), AR_MAGIC)) {
+                throw new InvalidMagicException("Archive header is invalid: " + Arrays.toString(magic.array()));
+            }
+
+            final long length = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            long offset = AR_MAGIC.length;
+            while (offset < length) {
+                header.clear();
+                channel.position(offset);
+                readFully(channel, header);
+                if (header.hasRemaining()) {
+                    throw new IOException("The archive ends within a member header. path=[" +
+                        path.getAbsolutePath() + "], offset=[" + offset + "].");
+                }
+
+                final ArchiveMember member = parseHeader(path, offset + FILE_HEADER_LENGTH,
+                    new String(header.array(), CHAR_ENCODING));
+                if (member.getOffset() + member.getSize() > length) {
+                    throw new IOException("The archive ends within a member. path=[" +
+                        path.getAbsolutePath() + "], member=[" + member.getPath() + "].");
+                }
+                members.add(member);
+                offset = member.getOffset() + member.getSize() + (member.getSize() % 2);
+            }
+
+        } finally {
+            closeQuietly(channel);
         }
+        return members;
+    }
+
+    /**
+     * Returns the number of bytes an entry with the supplied data size occupies in an archive,
+     * including its header and any padding.
+     */
+    public static long getEntryLength (long size)
+    {
+        return FILE_HEADER_LENGTH + size + (size % 2);
+    }
+
+    /**
+     * Write the header, data and padding for the supplied {@link ArchiveEntry} to the supplied
+     * stream. Allows entries to be written to space reserved within an archive.
+     * @see #writeEntry(WritableByteChannel, ArchiveEntry)
+     */
+    public static void writeEntry (OutputStream output, ArchiveEntry entry)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
+        writeEntry(output, entry, CURRENT_TIME);
+    }
+
+    /**
+     * Write the supplied {@link ArchiveEntry} to the supplied stream, recording the supplied
+     * modification time in its header.
+     * @see #writeEntry(WritableByteChannel, ArchiveEntry, long)
+     */
+    public static void writeEntry (OutputStream output, ArchiveEntry entry, long modificationTime)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
+        writeEntry(toChannel(output), entry, modificationTime);
+    }
+
+    /**
+     * Write the supplied {@link ArchiveEntry} to the supplied channel, recording the current time
+     * in its header.
+     * @see #writeEntry(WritableByteChannel, ArchiveEntry, long)
+     */
+    public static void writeEntry (WritableByteChannel channel, ArchiveEntry entry)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
+        writeEntry(channel, entry, CURRENT_TIME);
+    }
 
+    /**
+     * Write the header, data and padding for the supplied {@link ArchiveEntry} to the supplied
+     * channel. The data of a {@link ChannelArchiveEntry} held in a file is transferred directly
+     * from its {@link FileChannel}, which avoids copying the data through the Java heap when the
+     * destination is also a file. Other entries are copied through a large buffer.
+     * @param modificationTime The modification time recorded in the header, in seconds since the
+     * epoch, or {@link #CURRENT_TIME}.
+     * @see #appendEntry(ArchiveEntry)
+     */
+    public static void writeEntry (WritableByteChannel channel, ArchiveEntry entry, long modificationTime)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
         // add the entry header to the archive
-        addEntryHeader(entry);
+        writeFully(channel, ByteBuffer.wrap(createEntryHeader(entry, modificationTime)));
 
         // append the entry data to the archive
-        final byte[] buffer = new byte[1024];
-        int len;
-        final InputStream input = entry.getInputStream();
-        try {
-            while ((len = input.read(buffer)) > 0) {
-                _output.write(buffer, 0, len);
+        FileChannel source = null;
+        if (entry instanceof ChannelArchiveEntry) {
+            source = ((ChannelArchiveEntry)entry).getChannel();
+        }
+
+        if (source != null) {
+            try {
+                transferFully(source, channel, entry);
+
+            } finally {
+                closeQuietly(source);
             }
 
-        } finally {
-            IOUtils.closeQuietly(input);
+        } else {
+            final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            final InputStream input = entry.getInputStream();
+            final ReadableByteChannel inputChannel = Channels.newChannel(input);
+            try {
+                while (inputChannel.read(buffer) >= 0) {
+                    // only write out full buffers, or whatever is left at the end of the data.
+                    if (!buffer.hasRemaining()) {
+                        buffer.flip();
+                        writeFully(channel, buffer);
+                        buffer.clear();
+                    }
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
         }
 
         // pad the data section if necessary
         if (entry.getSize() % 2 != 0) {
-            _output.write(PADDING);
+            writeFully(channel, ByteBuffer.wrap(PADDING));
         }
     }
 
     /**
-     * Add a file header to the archive for the given ArchiveEntry.
+     * Create the file header for the supplied {@link ArchiveEntry}, recording the current time.
+     * @see #createEntryHeader(ArchiveEntry, long)
      */
-    private void addEntryHeader (ArchiveEntry entry)
-        throws IOException, PathnameTooLongException, PathnameInvalidException
+    public static byte[] createEntryHeader (ArchiveEntry entry)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
     {
+        return createEntryHeader(entry, CURRENT_TIME);
+    }
+
+    /**
+     * Create the file header for the supplied {@link ArchiveEntry}. The header can be written
+     * before or after the entry data, allowing the header of streamed data to be filled in once
+     * the size of the data is known.
+     * @param modificationTime The modification time recorded in the header, in seconds since the
+     * epoch, or {@link #CURRENT_TIME}.
+     * @throws PathnameTooLongException If the path name is too long for an ar(1) archive.
+     * @throws PathnameInvalidException If the path name is invalid, e.g. contains a space.
+     * @throws DataTooLargeException If the data contained in the entry is too large for an ar(1) archive.
+     */
+    public static byte[] createEntryHeader (ArchiveEntry entry, long modificationTime)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
+        // ar(1) stores the file size in a 10 digit decimal field. throw an exception if the
+        // data is too large.
+        if (entry.getSize() > MAX_ENTRY_SIZE) {
+            throw new DataTooLargeException("Data being added to the archive is too large. " +
+                "path=[" + entry.getPath() + "], size=[" + entry.getSize() + "].");
+        }
+
         if (entry.getPath().getBytes(CHAR_ENCODING).length > 16) {
             throw new PathnameTooLongException("The supplied path name is too long: " + entry.getPath());
         }
@@ -165,8 +340,9 @@ public class Archive
             throw new PathnameInvalidException("The path name cannot contain spaces: " + entry.getPath());
         }
 
-        // set the file mtime to now
-        final int mtime = (int)(System.currentTimeMillis() / 1000L);
+        // set the file mtime to now, unless a time was supplied
+        final long mtime = modificationTime == CURRENT_TIME ?
+            System.currentTimeMillis() / 1000L : modificationTime;
 
         final StringBuffer buffer = new StringBuffer();
         final Formatter formatter = new Formatter(buffer);
@@ -185,27 +361,160 @@ public class Archive
         formatter.format("%-16s%-12s%-6s%-6s%-8o%-10s%s%s",
             entry.getPath(), mtime, entry.getUserId(), entry.getGroupId(), entry.getMode(), entry.getSize(), '\140', '\012');
 
-        _output.write(buffer.toString().getBytes(CHAR_ENCODING));
+        return buffer.toString().getBytes(CHAR_ENCODING);
+    }
+
+    /**
+     * Append the contents of the supplied {@link ArchiveEntry} to this archive.
+     * @param entry The {@link ArchiveEntry} to add to the archive.
+     * @throws PathnameTooLongException If the path name is too long for an ar(1) archive.
+     * @throws PathnameInvalidException If the path name is invalid, e.g. contains a space.
+     * @throws DataTooLargeException If the data contained in the entry is too large for an ar(1) archive.
+     * @throws IOException If any exception occurs during data i/o.
+     */
+    public void appendEntry (ArchiveEntry entry)
+        throws PathnameInvalidException, PathnameTooLongException, DataTooLargeException, IOException
+    {
+        writeEntry(_channel, entry, _modificationTime);
+    }
+
+    /**
+     * Returns a channel writing to the supplied stream, using the channel of the underlying file
+     * if the stream writes to one.
+     */
+    private static WritableByteChannel toChannel (OutputStream output)
+    {
+        if (output instanceof FileOutputStream) {
+            return ((FileOutputStream)output).getChannel();
+        }
+        return Channels.newChannel(output);
+    }
+
+    /**
+     * Parse the supplied member header, whose data starts at the supplied offset.
+     */
+    private static ArchiveMember parseHeader (File path, long offset, String header)
+        throws ArchiveException
+    {
+        if (!header.endsWith(HEADER_END)) {
+            throw new ArchiveException("Invalid archive member header. path=[" + path.getAbsolutePath() +
+                "], offset=[" + (offset - FILE_HEADER_LENGTH) + "].");
+        }
+
+        String name = header.substring(0, 16).trim();
+        if (name.endsWith("/") && name.length() > 1) {
+            name = name.substring(0, name.length() - 1);
+        }
+        try {
+            return new ArchiveMember(path, offset, name, parseField(header, 16, 12, 10),
+                (int)parseField(header, 28, 6, 10), (int)parseField(header, 34, 6, 10),
+                (int)parseField(header, 40, 8, 8), parseField(header, 48, 10, 10));
+
+        } catch (final NumberFormatException nfe) {
+            throw new ArchiveException("Invalid archive member header. path=[" + path.getAbsolutePath() +
+                "], member=[" + name + "].");
+        }
     }
 
     /**
-     * Make sure the {@link OutputStream} gets closed.
+     * Returns the number in the supplied header field, which is 0 if the field is blank.
+     */
+    private static long parseField (String header, int offset, int length, int radix)
+    {
+        final String field = header.substring(offset, offset + length).trim();
+        return field.length() == 0 ? 0 : Long.parseLong(field, radix);
+    }
+
+    /**
+     * Transfer the data of the supplied entry to the supplied channel, starting at the current
+     * position of its file.
+     */
+    private static void transferFully (FileChannel source, WritableByteChannel channel, ArchiveEntry entry)
+        throws IOException
+    {
+        final long size = entry.getSize();
+        final long start = source.position();
+        if (source.size() - start < size) {
+            throw new IOException("The entry data is smaller than the entry size. path=[" +
+                entry.getPath() + "], size=[" + size + "], available=[" + (source.size() - start) + "].");
+        }
+
+        long position = 0;
+        while (position < size) {
+            position += source.transferTo(start + position, size - position, channel);
+        }
+    }
+
+    /**
+     * Read from the supplied channel until the buffer is full or the channel ends.
+     */
+    private static void readFully (FileChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+        }
+    }
+
+    /**
+     * Close the supplied channel, ignoring any exceptions.
+     */
+    private static void closeQuietly (Channel channel)
+    {
+        try {
+            channel.close();
+
+        } catch (final IOException ioe) {
+            // ignored
+        }
+    }
+
+    /**
+     * Write all of the remaining bytes in the supplied buffer to the supplied channel.
+     */
+    private static void writeFully (WritableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Make sure the {@link OutputStream} gets closed, unless it was supplied by the caller.
      */
     @Override
     protected void finalize ()
         throws Throwable
     {
         try {
-            _output.close();
+            if (_ownsOutput) {
+                _output.close();
+            }
 
         } finally {
             super.finalize();
         }
     }
 
+    /** The magic which ends every member header. */
+    private static final String HEADER_END = "\140\012";
+
+    /** The size of the buffer used to copy entry data which is not held in a file. */
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
     /** The path to the archive being operated upon. */
     private final File _path;
 
     /** The output stream used to append data and files to this archive. */
     private final OutputStream _output;
+
+    /** The channel used to write entry data, writing to the same destination as the stream. */
+    private final WritableByteChannel _channel;
+
+    /** Whether the output stream was opened by this archive and should be closed by it. */
+    private final boolean _ownsOutput;
+
+    /** The modification time recorded in entry headers, or {@link #CURRENT_TIME}. */
+    private long _modificationTime = CURRENT_TIME;
 }
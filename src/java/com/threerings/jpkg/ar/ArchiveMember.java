@@ -0,0 +1,218 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ar;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A member of an existing ar(1) archive file, as listed by {@link Archive#readMembers(File)}. The
+ * member can be appended to another archive, in which case its data is transferred straight from
+ * the existing file.
+ */
+public class ArchiveMember
+    implements ChannelArchiveEntry
+{
+    /**
+     * Construct a member whose data starts at the supplied offset in the archive file.
+     * Package private.
+     */
+    ArchiveMember (File archive, long offset, String path, long modificationTime, int userId,
+        int groupId, int mode, long size)
+    {
+        _archive = archive;
+        _offset = offset;
+        _path = path;
+        _modificationTime = modificationTime;
+        _userId = userId;
+        _groupId = groupId;
+        _mode = mode;
+        _size = size;
+    }
+
+    /**
+     * Returns the modification time recorded in the member header, in seconds since the epoch.
+     */
+    public long getModificationTime ()
+    {
+        return _modificationTime;
+    }
+
+    /**
+     * Returns the offset of the member data in the archive file.
+     */
+    public long getOffset ()
+    {
+        return _offset;
+    }
+
+    // from ChannelArchiveEntry
+    public FileChannel getChannel ()
+        throws IOException
+    {
+        final FileChannel channel = FileChannel.open(_archive.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(_offset);
+
+        } catch (final IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        return channel;
+    }
+
+    // from ArchiveEntry
+    public InputStream getInputStream ()
+        throws IOException
+    {
+        return new MemberInputStream(Channels.newInputStream(getChannel()), _size);
+    }
+
+    // from ArchiveEntry
+    public long getSize ()
+    {
+        return _size;
+    }
+
+    // from ArchiveEntry
+    public String getPath ()
+    {
+        return _path;
+    }
+
+    // from ArchiveEntry
+    public int getUserId ()
+    {
+        return _userId;
+    }
+
+    // from ArchiveEntry
+    public int getGroupId ()
+    {
+        return _groupId;
+    }
+
+    // from ArchiveEntry
+    public int getMode ()
+    {
+        return _mode;
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        return "path=[" + _path + "], size=[" + _size + "], offset=[" + _offset + "].";
+    }
+
+    /**
+     * Reads no further than the end of the member data.
+     */
+    private static class MemberInputStream extends FilterInputStream
+    {
+        public MemberInputStream (InputStream in, long size)
+        {
+            super(in);
+            _remaining = size;
+        }
+
+        @Override // from FilterInputStream
+        public int read ()
+            throws IOException
+        {
+            if (_remaining == 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                _remaining--;
+            }
+            return b;
+        }
+
+        @Override // from FilterInputStream
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            if (_remaining == 0) {
+                return -1;
+            }
+            final int count = in.read(b, off, (int)Math.min(len, _remaining));
+            if (count > 0) {
+                _remaining -= count;
+            }
+            return count;
+        }
+
+        @Override // from FilterInputStream
+        public long skip (long n)
+            throws IOException
+        {
+            final long skipped = in.skip(Math.min(n, _remaining));
+            _remaining -= skipped;
+            return skipped;
+        }
+
+        @Override // from FilterInputStream
+        public int available ()
+            throws IOException
+        {
+            return (int)Math.min(in.available(), _remaining);
+        }
+
+        @Override // from FilterInputStream
+        public boolean markSupported ()
+        {
+            return false;
+        }
+
+        /** The number of member bytes not yet read. */
+        private long _remaining;
+    }
+
+    /** The archive file holding the member. */
+    private final File _archive;
+
+    /** The offset of the member data in the archive file. */
+    private final long _offset;
+
+    /** The fields of the member header. */
+    private final String _path;
+    private final long _modificationTime;
+    private final int _userId;
+    private final int _groupId;
+    private final int _mode;
+    private final long _size;
+}
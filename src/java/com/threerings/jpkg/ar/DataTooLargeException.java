@@ -32,7 +32,7 @@ package com.threerings.jpkg.ar;
 
 /**
  * Thrown when the data being added to an {@link Archive} has a size larger than can be
- * stored in a 32 bit integer meaning that it cannot be added to an ar(1) archive.
+ * stored in the 10 digit size field of an ar(1) file header, see {@link Archive#MAX_ENTRY_SIZE}.
  */
 public class DataTooLargeException extends ArchiveException
 {
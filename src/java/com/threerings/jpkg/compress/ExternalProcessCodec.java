@@ -0,0 +1,250 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A {@link CompressionCodec} which pipes data through an external compressor, e.g. xz(1). The
+ * compressor must read uncompressed data on its standard input and write the compressed data to
+ * its standard output.
+ */
+public abstract class ExternalProcessCodec
+    implements CompressionCodec
+{
+    /**
+     * Returns true if the supplied executable can be started, e.g. is found in the PATH.
+     * The executable is run with the single argument "--version".
+     */
+    public static boolean isExecutableAvailable (String executable)
+    {
+        try {
+            final Process process = new ProcessBuilder(executable, "--version").redirectErrorStream(true).start();
+            try {
+                IOUtils.copy(process.getInputStream(), new ByteArrayOutputStream());
+                return process.waitFor() == 0;
+
+            } finally {
+                process.destroy();
+            }
+
+        } catch (final IOException ioe) {
+            return false;
+
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // from CompressionCodec
+    public OutputStream compress (OutputStream out)
+        throws IOException
+    {
+        final List<String> command = getCommand();
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).start();
+
+        } catch (final IOException ioe) {
+            throw new IOException("Unable to start compressor. command=" + command + ".", ioe);
+        }
+
+        return new ProcessOutputStream(process, command, out);
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        return "command=" + getCommand() + ".";
+    }
+
+    /**
+     * Returns the command line, executable first, used to start the compressor.
+     */
+    protected abstract List<String> getCommand ();
+
+    /**
+     * Builds a command line from the supplied executable and arguments.
+     */
+    protected static List<String> command (String executable, String... args)
+    {
+        final List<String> command = new ArrayList<String>();
+        command.add(executable);
+        for (final String arg : args) {
+            command.add(arg);
+        }
+        return command;
+    }
+
+    /**
+     * Writes to the standard input of a compressor process while its standard output is copied to
+     * the destination stream on a separate thread.
+     */
+    private static class ProcessOutputStream extends FilterOutputStream
+    {
+        public ProcessOutputStream (Process process, List<String> command, OutputStream dest)
+        {
+            super(process.getOutputStream());
+            _process = process;
+            _command = command;
+            _dest = dest;
+
+            _stdout = new StreamPump(process.getInputStream(), dest);
+            _stderr = new StreamPump(process.getErrorStream(), _errors);
+            _stdout.start();
+            _stderr.start();
+        }
+
+        @Override // from FilterOutputStream
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override // from FilterOutputStream
+        public void close ()
+            throws IOException
+        {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+
+            try {
+                // closing the process input signals the compressor to finish.
+                IOUtils.closeQuietly(out);
+
+                final int exit;
+                try {
+                    _stdout.join();
+                    _stderr.join();
+                    exit = _process.waitFor();
+
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the compressor. command=" +
+                        _command + ".", ie);
+                }
+
+                if (_stdout.getFailure() != null) {
+                    throw _stdout.getFailure();
+                }
+                if (exit != 0) {
+                    throw new IOException("The compressor failed. command=" + _command + ", exit=[" +
+                        exit + "], errors=[" + _errors.toString().trim() + "].");
+                }
+                _dest.close();
+
+            } finally {
+                _process.destroy();
+                IOUtils.closeQuietly(_dest);
+            }
+        }
+
+        /** The compressor process. */
+        private final Process _process;
+
+        /** The command line used to start the process, for error messages. */
+        private final List<String> _command;
+
+        /** The stream receiving the compressed data. */
+        private final OutputStream _dest;
+
+        /** Holds anything the compressor reports on its standard error. */
+        private final ByteArrayOutputStream _errors = new ByteArrayOutputStream();
+
+        /** Copies the compressor standard output to the destination. */
+        private final StreamPump _stdout;
+
+        /** Copies the compressor standard error to the error buffer. */
+        private final StreamPump _stderr;
+
+        /** Whether the stream has been closed. */
+        private boolean _closed;
+    }
+
+    /**
+     * Copies one stream to another on its own thread, recording any failure.
+     */
+    private static class StreamPump extends Thread
+    {
+        public StreamPump (InputStream input, OutputStream output)
+        {
+            super("jpkg-compressor");
+            setDaemon(true);
+            _input = input;
+            _output = output;
+        }
+
+        @Override // from Thread
+        public void run ()
+        {
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = _input.read(buffer)) != -1) {
+                    _output.write(buffer, 0, len);
+                }
+
+            } catch (final IOException ioe) {
+                _failure = ioe;
+
+            } finally {
+                IOUtils.closeQuietly(_input);
+            }
+        }
+
+        /**
+         * Returns the exception which stopped the copy, or null if the copy completed.
+         */
+        public IOException getFailure ()
+        {
+            return _failure;
+        }
+
+        private final InputStream _input;
+        private final OutputStream _output;
+        private volatile IOException _failure;
+    }
+
+    /** The size of the buffer used to copy the compressor output. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,146 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * A {@link CompressionCodec} producing gzip data, compressed in blocks by one or more threads.
+ * @see ParallelGZIPOutputStream
+ */
+public class GzipCodec
+    implements CompressionCodec
+{
+    /** The default number of compression threads, one per available processor. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Construct a {@link GzipCodec} using the default compression level and strategy, the default
+     * number of threads and the default block size.
+     */
+    public GzipCodec ()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Construct a {@link GzipCodec} with the given compression level, using the default strategy,
+     * the default number of threads and the default block size.
+     */
+    public GzipCodec (int level)
+    {
+        this(level, Deflater.DEFAULT_STRATEGY, DEFAULT_THREADS, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Construct a {@link GzipCodec}.
+     * @param level The {@link Deflater} compression level, 0-9 or
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param strategy The {@link Deflater} strategy, e.g. {@link Deflater#FILTERED}.
+     * @param threads The number of threads used to compress blocks. Must be at least 1.
+     * @param blockSize The size in bytes of each uncompressed block. Must be at least
+     * {@link ParallelGZIPOutputStream#MINIMUM_BLOCK_SIZE}.
+     */
+    public GzipCodec (int level, int strategy, int threads, int blockSize)
+    {
+        ParallelGZIPOutputStream.checkParameters(level, strategy, threads, blockSize);
+        _level = level;
+        _strategy = strategy;
+        _threads = threads;
+        _blockSize = blockSize;
+    }
+
+    // from CompressionCodec
+    public String getExtension ()
+    {
+        return ".gz";
+    }
+
+    // from CompressionCodec
+    public OutputStream compress (OutputStream out)
+        throws IOException
+    {
+        return new ParallelGZIPOutputStream(out, _level, _strategy, _threads, _blockSize);
+    }
+
+    /**
+     * Returns the {@link Deflater} compression level.
+     */
+    public int getLevel ()
+    {
+        return _level;
+    }
+
+    /**
+     * Returns the {@link Deflater} strategy.
+     */
+    public int getStrategy ()
+    {
+        return _strategy;
+    }
+
+    /**
+     * Returns the number of threads used to compress blocks.
+     */
+    public int getThreads ()
+    {
+        return _threads;
+    }
+
+    /**
+     * Returns the size in bytes of each uncompressed block.
+     */
+    public int getBlockSize ()
+    {
+        return _blockSize;
+    }
+
+    @Override // from Object
+    public String toString ()
+    {
+        // the compressed data does not depend on the number of threads.
+        return "gzip level=[" + _level + "], strategy=[" + _strategy + "], blockSize=[" + _blockSize + "].";
+    }
+
+    /** The compression level. */
+    private final int _level;
+
+    /** The compression strategy. */
+    private final int _strategy;
+
+    /** The number of compression threads. */
+    private final int _threads;
+
+    /** The size of each uncompressed block. */
+    private final int _blockSize;
+}
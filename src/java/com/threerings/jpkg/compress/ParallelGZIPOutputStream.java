@@ -0,0 +1,489 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link OutputStream} which writes a single gzip stream, compressing fixed size blocks of the
+ * input concurrently in the manner of pigz(1).
+ * <p>
+ * Each block is deflated independently, primed with the last 32 kilobytes of the previous block
+ * as a preset dictionary, and ended with a sync flush so the compressed blocks can be concatenated
+ * into one deflate stream. Since the compressed form of a block depends only on the block size and
+ * the data, the output is byte for byte identical regardless of the number of threads used.
+ * <p>
+ * For the same reason a block of zeros primed with a dictionary of zeros always compresses to the
+ * same fragment. Runs of zeros, such as the holes of sparse files, are therefore compressed once
+ * and the fragment repeated, rather than deflating every block of them.
+ * @see <a href="http://www.ietf.org/rfc/rfc1952.txt">RFC 1952: GZIP file format specification</a>
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream
+{
+    /** The default size of the uncompressed blocks handed to each compression thread. */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /** The smallest block size allowed, the size of the deflate dictionary. */
+    public static final int MINIMUM_BLOCK_SIZE = 32 * 1024;
+
+    /**
+     * Construct a {@link ParallelGZIPOutputStream} using the default block size.
+     * @see ParallelGZIPOutputStream#ParallelGZIPOutputStream(OutputStream, int, int)
+     */
+    public ParallelGZIPOutputStream (OutputStream out, int threads)
+        throws IOException
+    {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Construct a {@link ParallelGZIPOutputStream} using the default compression level and
+     * strategy.
+     * @see ParallelGZIPOutputStream#ParallelGZIPOutputStream(OutputStream, int, int, int, int)
+     */
+    public ParallelGZIPOutputStream (OutputStream out, int threads, int blockSize)
+        throws IOException
+    {
+        this(out, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, threads, blockSize);
+    }
+
+    /**
+     * Construct a {@link ParallelGZIPOutputStream} and write the gzip header to the supplied stream.
+     * @param out The {@link OutputStream} the compressed data will be written to.
+     * @param level The {@link Deflater} compression level, 0-9 or
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param strategy The {@link Deflater} strategy, e.g. {@link Deflater#FILTERED}.
+     * @param threads The number of threads used to compress blocks. Must be at least 1.
+     * @param blockSize The size in bytes of each uncompressed block. Must be at least
+     * {@link #MINIMUM_BLOCK_SIZE}.
+     * @throws IOException If the gzip header could not be written.
+     */
+    public ParallelGZIPOutputStream (OutputStream out, int level, int strategy, int threads, int blockSize)
+        throws IOException
+    {
+        super(out);
+
+        checkParameters(level, strategy, threads, blockSize);
+
+        _level = level;
+        _strategy = strategy;
+        _blockSize = blockSize;
+        _maxPending = threads * 2;
+        _block = new byte[blockSize];
+
+        // with one thread there is nothing to gain from handing blocks off, so compress them
+        // on the calling thread.
+        if (threads > 1) {
+            _executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread (Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "jpkg-gzip");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            _executor = null;
+        }
+
+        out.write(GZIP_HEADER);
+    }
+
+    @Override // from FilterOutputStream
+    public void write (int b)
+        throws IOException
+    {
+        _oneByte[0] = (byte)b;
+        write(_oneByte, 0, 1);
+    }
+
+    @Override // from FilterOutputStream
+    public void write (byte[] b, int off, int len)
+        throws IOException
+    {
+        if (_finished) {
+            throw new IOException("Write attempted after the stream was finished.");
+        }
+
+        _crc.update(b, off, len);
+        _length += len;
+
+        while (len > 0) {
+            // only hand off a full block once more data arrives, so the final block written by
+            // finish() is never empty unless the entire stream is.
+            if (_blockLength == _blockSize) {
+                submitBlock(false);
+            }
+
+            final int count = Math.min(len, _blockSize - _blockLength);
+            System.arraycopy(b, off, _block, _blockLength, count);
+            _blockLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Compress any remaining data and write the gzip trailer without closing the underlying
+     * stream.
+     */
+    public void finish ()
+        throws IOException
+    {
+        if (_finished) {
+            return;
+        }
+
+        try {
+            submitBlock(true);
+            while (!_pending.isEmpty()) {
+                writeNextPending();
+            }
+
+            writeInt((int)_crc.getValue());
+            writeInt((int)_length);
+            _finished = true;
+
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Blocks still being compressed are not forced out since doing
+     * so would make the output depend on when the stream was flushed.
+     */
+    @Override // from FilterOutputStream
+    public void flush ()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    @Override // from FilterOutputStream
+    public void close ()
+        throws IOException
+    {
+        try {
+            finish();
+
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Verify the supplied compression parameters, throwing {@link IllegalArgumentException} if
+     * any are out of range.
+     */
+    static void checkParameters (int level, int strategy, int threads, int blockSize)
+    {
+        if (level != Deflater.DEFAULT_COMPRESSION &&
+            (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("The compression level must be between " +
+                Deflater.NO_COMPRESSION + " and " + Deflater.BEST_COMPRESSION + ". level=[" + level + "].");
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED &&
+            strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Unknown compression strategy. strategy=[" + strategy + "].");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("The thread count must be at least 1. threads=[" + threads + "].");
+        }
+        if (blockSize < MINIMUM_BLOCK_SIZE) {
+            throw new IllegalArgumentException("The block size must be at least " + MINIMUM_BLOCK_SIZE +
+                " bytes. blockSize=[" + blockSize + "].");
+        }
+    }
+
+    /**
+     * Hand the current block off to be compressed, writing out finished blocks if too many are
+     * pending.
+     */
+    private void submitBlock (boolean last)
+        throws IOException
+    {
+        // only full blocks are submitted before the last, so every block of zeros following a
+        // dictionary of zeros compresses to the same fragment.
+        if (!last && _dictionaryZero && isZero(_block, 0, _blockLength)) {
+            if (_zeroFragment == null) {
+                _zeroFragment = new BlockCompressor(
+                    _level, _strategy, _block, _blockLength, _dictionary, false).call();
+            }
+            // the dictionary is left as it is, and the block can be filled again.
+            _blockLength = 0;
+            submitFragment(_zeroFragment);
+            return;
+        }
+
+        final BlockCompressor compressor = new BlockCompressor(
+            _level, _strategy, _block, _blockLength, _dictionary, last);
+
+        // the submitted block is never written to again, so its tail can safely serve as the
+        // dictionary for the next block.
+        _dictionary = _block;
+        _dictionaryZero = !last && isZero(_block, _blockSize - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        _block = new byte[_blockSize];
+        _blockLength = 0;
+
+        if (_executor == null) {
+            out.write(compressor.call());
+            return;
+        }
+
+        while (_pending.size() >= _maxPending) {
+            writeNextPending();
+        }
+        _pending.add(_executor.submit(compressor));
+    }
+
+    /**
+     * Write a block already compressed, after any blocks still being compressed.
+     */
+    private void submitFragment (final byte[] fragment)
+        throws IOException
+    {
+        if (_pending.isEmpty()) {
+            out.write(fragment);
+            return;
+        }
+
+        while (_pending.size() >= _maxPending) {
+            writeNextPending();
+        }
+        final FutureTask<byte[]> written = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call () {
+                return fragment;
+            }
+        });
+        written.run();
+        _pending.add(written);
+    }
+
+    /**
+     * Returns true if the supplied range of the data holds only zeros.
+     */
+    private static boolean isZero (byte[] data, int offset, int length)
+    {
+        // combine each stride without branching, which the JIT can vectorize, and stop at the
+        // first stride holding any data.
+        final int end = offset + length;
+        for (int start = offset; start < end; start += ZERO_SCAN_STRIDE) {
+            final int strideEnd = Math.min(end, start + ZERO_SCAN_STRIDE);
+            int bits = 0;
+            for (int ii = start; ii < strideEnd; ii++) {
+                bits |= data[ii];
+            }
+            if (bits != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the oldest pending block to finish compressing and write it out.
+     */
+    private void writeNextPending ()
+        throws IOException
+    {
+        try {
+            out.write(_pending.removeFirst().get());
+
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a block to compress.", ie);
+
+        } catch (final ExecutionException ee) {
+            throw new IOException("Failed to compress a block.", ee.getCause());
+        }
+    }
+
+    /**
+     * Write an integer to the underlying stream in little endian byte order.
+     */
+    private void writeInt (int value)
+        throws IOException
+    {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    /**
+     * Stop the compression threads, if any, abandoning any blocks which have not been written.
+     */
+    private void shutdown ()
+    {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        _pending.clear();
+    }
+
+    /**
+     * Compresses a single block of data into a raw deflate fragment.
+     */
+    private static class BlockCompressor
+        implements Callable<byte[]>
+    {
+        public BlockCompressor (int level, int strategy, byte[] data, int length, byte[] dictionary,
+                                boolean last)
+        {
+            _level = level;
+            _strategy = strategy;
+            _data = data;
+            _length = length;
+            _dictionary = dictionary;
+            _last = last;
+        }
+
+        // from Callable
+        public byte[] call ()
+        {
+            final Deflater deflater = new Deflater(_level, true);
+            try {
+                if (_strategy != Deflater.DEFAULT_STRATEGY) {
+                    // the Deflater only applies a new strategy on the next call to deflate, which
+                    // would discard the dictionary. apply it now, before there is any input.
+                    deflater.setStrategy(_strategy);
+                    deflater.deflate(_scratch);
+                }
+                if (_dictionary != null) {
+                    deflater.setDictionary(_dictionary, _dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+                }
+                deflater.setInput(_data, 0, _length);
+
+                final ByteArrayOutputStream output = new ByteArrayOutputStream(_length / 2 + 64);
+                final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+                int len;
+                if (_last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        len = deflater.deflate(buffer);
+                        output.write(buffer, 0, len);
+                    }
+
+                } else {
+                    // a sync flush ends the fragment on a byte boundary without marking the
+                    // deflate stream as finished. keep flushing until the buffer is not filled.
+                    do {
+                        len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        output.write(buffer, 0, len);
+                    } while (len == buffer.length);
+                }
+                return output.toByteArray();
+
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private final int _level;
+        private final int _strategy;
+        private final byte[] _data;
+        private final int _length;
+        private final byte[] _dictionary;
+        private final boolean _last;
+        private final byte[] _scratch = new byte[1];
+    }
+
+    /** The deflate window size, and the amount of the previous block used as a dictionary. */
+    private static final int DICTIONARY_SIZE = MINIMUM_BLOCK_SIZE;
+
+    /** The number of bytes checked at a time when looking for blocks of zeros. */
+    private static final int ZERO_SCAN_STRIDE = 256;
+
+    /** The size of the buffer used to drain each Deflater. */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** The gzip member header: deflate, no flags, no modification time. */
+    private static final byte[] GZIP_HEADER = {
+        (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    /** The {@link Deflater} compression level. */
+    private final int _level;
+
+    /** The {@link Deflater} compression strategy. */
+    private final int _strategy;
+
+    /** The size of each uncompressed block. */
+    private final int _blockSize;
+
+    /** The number of compressed blocks which may be waiting to be written. */
+    private final int _maxPending;
+
+    /** Compresses blocks concurrently, or null if blocks are compressed on the calling thread. */
+    private final ExecutorService _executor;
+
+    /** The blocks being compressed, in the order they must be written. */
+    private final LinkedList<Future<byte[]>> _pending = new LinkedList<Future<byte[]>>();
+
+    /** The block currently being filled. */
+    private byte[] _block;
+
+    /** The amount of data in the current block. */
+    private int _blockLength;
+
+    /** The previous block, whose tail primes the compression of the current block. */
+    private byte[] _dictionary;
+
+    /** Whether the dictionary holds only zeros. */
+    private boolean _dictionaryZero;
+
+    /** The compressed form of a block of zeros following a dictionary of zeros, once needed. */
+    private byte[] _zeroFragment;
+
+    /** The checksum of all the uncompressed data. */
+    private final CRC32 _crc = new CRC32();
+
+    /** The total length of the uncompressed data. */
+    private long _length;
+
+    /** Whether the gzip trailer has been written. */
+    private boolean _finished;
+
+    /** Used by write(int). */
+    private final byte[] _oneByte = new byte[1];
+}
@@ -0,0 +1,90 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.util.List;
+
+/**
+ * A {@link CompressionCodec} producing xz data using the xz(1) command line compressor, which
+ * must be installed.
+ */
+public class XzCodec extends ExternalProcessCodec
+{
+    /** The name of the xz executable, looked up in the PATH. */
+    public static final String EXECUTABLE = "xz";
+
+    /** The default compression level, matching xz(1) and dpkg-deb(1). */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * Construct an {@link XzCodec} using the default compression level and a single thread.
+     */
+    public XzCodec ()
+    {
+        this(DEFAULT_LEVEL, 1);
+    }
+
+    /**
+     * Construct an {@link XzCodec}.
+     * @param level The compression preset, 0-9.
+     * @param threads The number of compression threads, or 0 to use one per processor. Output
+     * compressed with more than one thread is split into blocks and is slightly larger.
+     */
+    public XzCodec (int level, int threads)
+    {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("The xz level must be between 0 and 9. level=[" + level + "].");
+        }
+        if (threads < 0) {
+            throw new IllegalArgumentException("The xz thread count cannot be negative. threads=[" + threads + "].");
+        }
+        _level = level;
+        _threads = threads;
+    }
+
+    // from CompressionCodec
+    public String getExtension ()
+    {
+        return ".xz";
+    }
+
+    @Override // from ExternalProcessCodec
+    protected List<String> getCommand ()
+    {
+        return command(EXECUTABLE, "-c", "-q", "-" + _level, "-T" + _threads);
+    }
+
+    /** The compression preset. */
+    private final int _level;
+
+    /** The number of compression threads. */
+    private final int _threads;
+}
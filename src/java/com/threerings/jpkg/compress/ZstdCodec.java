@@ -0,0 +1,89 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.util.List;
+
+/**
+ * A {@link CompressionCodec} producing zstd data using the zstd(1) command line compressor, which
+ * must be installed. Debian packages using zstd members require dpkg 1.21.18 or later.
+ */
+public class ZstdCodec extends ExternalProcessCodec
+{
+    /** The name of the zstd executable, looked up in the PATH. */
+    public static final String EXECUTABLE = "zstd";
+
+    /** The default compression level, matching dpkg-deb(1). */
+    public static final int DEFAULT_LEVEL = 3;
+
+    /**
+     * Construct a {@link ZstdCodec} using the default compression level and a single thread.
+     */
+    public ZstdCodec ()
+    {
+        this(DEFAULT_LEVEL, 1);
+    }
+
+    /**
+     * Construct a {@link ZstdCodec}.
+     * @param level The compression level, 1-19.
+     * @param threads The number of compression threads, or 0 to use one per processor.
+     */
+    public ZstdCodec (int level, int threads)
+    {
+        if (level < 1 || level > 19) {
+            throw new IllegalArgumentException("The zstd level must be between 1 and 19. level=[" + level + "].");
+        }
+        if (threads < 0) {
+            throw new IllegalArgumentException("The zstd thread count cannot be negative. threads=[" + threads + "].");
+        }
+        _level = level;
+        _threads = threads;
+    }
+
+    // from CompressionCodec
+    public String getExtension ()
+    {
+        return ".zst";
+    }
+
+    @Override // from ExternalProcessCodec
+    protected List<String> getCommand ()
+    {
+        return command(EXECUTABLE, "-c", "-q", "-" + _level, "-T" + _threads);
+    }
+
+    /** The compression level. */
+    private final int _level;
+
+    /** The number of compression threads. */
+    private final int _threads;
+}
@@ -31,12 +31,13 @@
 package com.threerings.jpkg.debian;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Enumeration;
-import java.util.Map.Entry;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import javax.mail.internet.InternetHeaders;
 
@@ -44,12 +45,17 @@ import org.apache.commons.io.IOUtils;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarOutputStream;
 
+import com.threerings.jpkg.DigestStore;
+import com.threerings.jpkg.GnuTarOutputStream;
 import com.threerings.jpkg.PackageTarFile;
 import com.threerings.jpkg.UnixStandardPermissions;
 import com.threerings.jpkg.ar.ArchiveEntry;
+import com.threerings.jpkg.compress.CompressionCodec;
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.ParallelGZIPOutputStream;
 
 /**
- * Handles the creation of the Debian package control.tar.gz file.
+ * Handles the creation of the Debian package control.tar file, compressed by default with gzip.
  */
 public class ControlFile
     implements ArchiveEntry
@@ -57,6 +63,7 @@ public class ControlFile
     /**
      * Construct a new ControlFile which creates the contents of control.tar.gz entry in the
      * Debian package.
+     * @see ControlFile#ControlFile(PackageInfo, PackageTarFile, CompressionCodec)
      * @param info The fully populated package meta data.
      * @param dataTar The fully populated {@link PackageTarFile} represented by this control file.
      * @throws IOException If any i/o exceptions occur during the control file creation.
@@ -65,7 +72,66 @@ public class ControlFile
     public ControlFile (PackageInfo info, PackageTarFile dataTar)
         throws IOException, ScriptDataTooLargeException
     {
-        _controlData = createTarArray(info, dataTar);
+        this(info, dataTar, new GzipCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, 1,
+            ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE));
+    }
+
+    /**
+     * Construct a new ControlFile which creates the contents of the control.tar entry in the
+     * Debian package, compressed with the supplied codec.
+     * @param info The fully populated package meta data.
+     * @param dataTar The fully populated {@link PackageTarFile} represented by this control file.
+     * @param codec The {@link CompressionCodec} used to compress the control.tar file. The codec
+     * also determines the path of this entry, e.g. control.tar.xz.
+     * @throws IOException If any i/o exceptions occur during the control file creation.
+     * @throws ScriptDataTooLargeException If any maintainer script is too large to be added to the tar file.
+     */
+    public ControlFile (PackageInfo info, PackageTarFile dataTar, CompressionCodec codec)
+        throws IOException, ScriptDataTooLargeException
+    {
+        this(info, dataTar, codec, System.currentTimeMillis());
+    }
+
+    /**
+     * Construct a new ControlFile which creates the contents of the control.tar entry in the
+     * Debian package, compressed with the supplied codec, with every entry recording the supplied
+     * modification time.
+     * @param info The fully populated package meta data.
+     * @param dataTar The fully populated {@link PackageTarFile} represented by this control file.
+     * @param codec The {@link CompressionCodec} used to compress the control.tar file. The codec
+     * also determines the path of this entry, e.g. control.tar.xz.
+     * @param modTime The modification time of the entries, in milliseconds since the epoch.
+     * @throws IOException If any i/o exceptions occur during the control file creation.
+     * @throws ScriptDataTooLargeException If any maintainer script is too large to be added to the tar file.
+     */
+    public ControlFile (PackageInfo info, PackageTarFile dataTar, CompressionCodec codec, long modTime)
+        throws IOException, ScriptDataTooLargeException
+    {
+        _path = DEB_AR_CONTROL_FILE + codec.getExtension();
+        _modTime = modTime;
+        _controlData = createTarArray(info, dataTar.getTotalDataSize(), dataTar.getDigests(), null,
+            codec);
+    }
+
+    /**
+     * Construct a new ControlFile for package data which is not being rebuilt, e.g. the data of an
+     * existing package whose metadata has changed, taking the installed size and the md5sums file
+     * from the existing package rather than computing them.
+     * @param info The fully populated package meta data.
+     * @param installedSize The installed size of the package data, in kilobytes.
+     * @param md5sums The contents of the md5sums file of the package data, copied verbatim.
+     * @param codec The {@link CompressionCodec} used to compress the control.tar file.
+     * @param modTime The modification time of the entries, in milliseconds since the epoch.
+     * @throws IOException If any i/o exceptions occur during the control file creation.
+     * @throws ScriptDataTooLargeException If any maintainer script is too large to be added to the tar file.
+     */
+    public ControlFile (PackageInfo info, long installedSize, byte[] md5sums, CompressionCodec codec,
+        long modTime)
+        throws IOException, ScriptDataTooLargeException
+    {
+        _path = DEB_AR_CONTROL_FILE + codec.getExtension();
+        _modTime = modTime;
+        _controlData = createTarArray(info, installedSize, null, md5sums, codec);
     }
 
     // from ArchiveEntry
@@ -83,7 +149,7 @@ public class ControlFile
     // from ArchiveEntry
     public String getPath ()
     {
-        return DEB_AR_CONTROL_FILE;
+        return _path;
     }
 
     // from ArchiveEntry
@@ -105,20 +171,27 @@ public class ControlFile
     }
 
     /**
-     * Create the control.tar.gz file as a byte array.
+     * Create the compressed control.tar file as a byte array, with an md5sums file listing the
+     * supplied digests, or holding the supplied md5sums data if the digests are null.
      */
-    private byte[] createTarArray (PackageInfo info, PackageTarFile dataTar)
+    private byte[] createTarArray (PackageInfo info, long installedSize, DigestStore digests,
+        byte[] md5sums, CompressionCodec codec)
         throws IOException, ScriptDataTooLargeException
     {
-        // this file will never be big, so do all the work in memory.
+        // the compressed data is held in memory. the md5sums file, which is large for packages
+        // with many files, is streamed into the tar rather than built first.
         final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        final TarOutputStream controlTar = new TarOutputStream(new GZIPOutputStream(output));
-        controlTar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        final TarOutputStream controlTar = new GnuTarOutputStream(codec.compress(output));
 
         try {
             // construct the tar file.
-            addControlFile(controlTar, info, dataTar);
-            addMd5Sums(controlTar, dataTar);
+            addControlFile(controlTar, info, installedSize);
+            if (digests != null) {
+                addMd5Sums(controlTar, digests);
+
+            } else {
+                addMd5Sums(controlTar, md5sums);
+            }
             addMaintainerScripts(controlTar, info);
 
         } finally {
@@ -131,14 +204,14 @@ public class ControlFile
     /**
      * Add the control file to the tar file.
      */
-    private void addControlFile (TarOutputStream tar, PackageInfo info, PackageTarFile dataTar)
+    private void addControlFile (TarOutputStream tar, PackageInfo info, long installedSize)
         throws IOException
     {
         // setup the RFC822 formatted header used for package metadata.
         final InternetHeaders headers = info.getControlHeaders();
 
         // add the "Installed-Size" field.
-        headers.addHeader(INSTALLED_SIZE, String.valueOf(dataTar.getTotalDataSize()));
+        headers.addHeader(INSTALLED_SIZE, String.valueOf(installedSize));
 
         final StringBuilder controlFile = new StringBuilder();
         @SuppressWarnings("unchecked")
@@ -158,17 +231,40 @@ public class ControlFile
     /**
      * Add the md5sums file to the tar file.
      */
-    private void addMd5Sums (TarOutputStream tar, PackageTarFile dataTar)
+    private void addMd5Sums (TarOutputStream tar, DigestStore digests)
         throws IOException
     {
-        final StringBuilder md5sums = new StringBuilder();
-        for (final Entry<String, String> sum : dataTar.getMd5s().entrySet()) {
-            md5sums.append(sum.getKey()).append(' ').append(sum.getValue()).append('\n');
+        // sort the files by path, so that the same files always produce the same md5sums.
+        final int[] sorted = digests.sort();
+
+        // the file is streamed a line at a time, so add up its length first.
+        long length = 0;
+        for (final int index : sorted) {
+            length += digests.getPathLength(index) + 1 + DigestStore.MD5_HEX_LENGTH + 1;
         }
 
-        final TarEntry entry = standardEntry(DEB_MD5_FILE, UnixStandardPermissions.STANDARD_FILE_MODE, md5sums.length());
+        final TarEntry entry = standardEntry(DEB_MD5_FILE, UnixStandardPermissions.STANDARD_FILE_MODE, length);
         tar.putNextEntry(entry);
-        IOUtils.write(md5sums.toString(), tar);
+        final OutputStream output = new BufferedOutputStream(tar, MD5SUMS_BUFFER_SIZE);
+        for (final int index : sorted) {
+            digests.writePath(index, output);
+            output.write(' ');
+            digests.writeMd5(index, output);
+            output.write('\n');
+        }
+        output.flush();
+        tar.closeEntry();
+    }
+
+    /**
+     * Add an md5sums file holding the supplied data to the tar file.
+     */
+    private void addMd5Sums (TarOutputStream tar, byte[] md5sums)
+        throws IOException
+    {
+        final TarEntry entry = standardEntry(DEB_MD5_FILE, UnixStandardPermissions.STANDARD_FILE_MODE, md5sums.length);
+        tar.putNextEntry(entry);
+        tar.write(md5sums);
         tar.closeEntry();
     }
 
@@ -179,12 +275,13 @@ public class ControlFile
         throws IOException, ScriptDataTooLargeException
     {
         for (final MaintainerScript script : info.getMaintainerScripts().values()) {
+            // the control tar is built in a byte array, which cannot hold more than this.
             if (script.getSize() > Integer.MAX_VALUE) {
                 throw new ScriptDataTooLargeException(
                     "The script data is too large for the tar file. script=[" + script.getType().getFilename() + "].");
             }
 
-            final TarEntry entry = standardEntry(script.getType().getFilename(), UnixStandardPermissions.EXECUTABLE_FILE_MODE, (int)script.getSize());
+            final TarEntry entry = standardEntry(script.getType().getFilename(), UnixStandardPermissions.EXECUTABLE_FILE_MODE, script.getSize());
             tar.putNextEntry(entry);
             IOUtils.copy(script.getStream(), tar);
             tar.closeEntry();
@@ -194,13 +291,14 @@ public class ControlFile
     /**
      * Returns a TarEntry object with correct default values.
      */
-    private TarEntry standardEntry (String name, int mode, int size)
+    private TarEntry standardEntry (String name, int mode, long size)
     {
         final TarEntry entry = new TarEntry(name);
         entry.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
         entry.setIds(UnixStandardPermissions.ROOT_USER.getId(), UnixStandardPermissions.ROOT_GROUP.getId());
         entry.setSize(size);
         entry.setMode(mode);
+        entry.setModTime(_modTime);
 
         return entry;
     }
@@ -208,14 +306,22 @@ public class ControlFile
     /** The field name in the control file for the installed size of the package. */
     private static final String INSTALLED_SIZE = "Installed-Size";
 
-    /** The name of the control file in the Debian package. */
-    private static final String DEB_AR_CONTROL_FILE = "control.tar.gz";
+    /** The name of the control file in the Debian package, without the compression extension. */
+    private static final String DEB_AR_CONTROL_FILE = "control.tar";
 
     /** Constants for entries in the control file. */
     private static final String DEB_CONTROL_FILE = "control";
     private static final String DEB_MD5_FILE = "md5sums";
 
+    /** The size of the buffer collecting md5sums lines for the control.tar. */
+    private static final int MD5SUMS_BUFFER_SIZE = 64 * 1024;
+
+    /** The path of this entry in the package, including the compression extension. */
+    private final String _path;
+
+    /** The modification time of the control.tar entries, in milliseconds. */
+    private final long _modTime;
 
-    /** The control.tar.gz data is held in this byte array after creation. */
+    /** The compressed control.tar data is held in this byte array after creation. */
     private final byte[] _controlData;
 }
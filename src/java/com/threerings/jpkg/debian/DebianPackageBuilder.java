@@ -31,74 +31,870 @@
 package com.threerings.jpkg.debian;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+import com.threerings.jpkg.BuildFingerprint;
 import com.threerings.jpkg.PackageBuilder;
 import com.threerings.jpkg.PackageBuilderException;
+import com.threerings.jpkg.PackageSource;
+import com.threerings.jpkg.DestrootFilter;
+import com.threerings.jpkg.DigestCache;
+import com.threerings.jpkg.DuplicatePermissionsException;
+import com.threerings.jpkg.MemberCache;
 import com.threerings.jpkg.PackageTarFile;
+import com.threerings.jpkg.PermissionsMap;
+import com.threerings.jpkg.SymlinkPolicy;
 import com.threerings.jpkg.ar.Archive;
 import com.threerings.jpkg.ar.ArchiveEntry;
 import com.threerings.jpkg.ar.ArchiveException;
+import com.threerings.jpkg.ar.ArchiveMember;
 import com.threerings.jpkg.ar.ArchiveStringEntry;
+import com.threerings.jpkg.compress.CompressionCodec;
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.ParallelGZIPOutputStream;
 
 /**
  * Creates Debian package files.
+ * <p>
+ * By default the compressed package data is first written to a temporary file next to the
+ * package, since the control data which precedes it in the package depends on its contents.
+ * In single pass mode the data is instead streamed directly into the package after a region
+ * reserved for the control data, which is written into the reserved region once the data is
+ * complete. Any unused reserved space is filled with an ignored "_pad" member, as permitted by
+ * deb(5). If the control data does not fit the data is moved forward to make room.
  */
 public class DebianPackageBuilder
     implements PackageBuilder
 {
+    /** The default space in bytes reserved for the control data in single pass mode. */
+    public static final int DEFAULT_CONTROL_RESERVE = 32 * 1024;
+
+    /** The default number of compressed bytes held in memory when writing to a stream. */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 8 * 1024 * 1024;
+
     public DebianPackageBuilder (PackageInfo info)
     {
         _info = info;
     }
 
+    /**
+     * Set the {@link CompressionCodec} used to compress the package data, which also determines
+     * the name of the data member, e.g. data.tar.xz. Defaults to a {@link GzipCodec} using the
+     * default compression settings.
+     */
+    public void setDataCompression (CompressionCodec codec)
+    {
+        if (codec == null) throw new IllegalArgumentException("The data compression codec cannot be null.");
+        _dataCodec = codec;
+    }
+
+    /**
+     * Set the {@link CompressionCodec} used to compress the package control data, which also
+     * determines the name of the control member, e.g. control.tar.xz. Defaults to a single
+     * threaded {@link GzipCodec}.
+     */
+    public void setControlCompression (CompressionCodec codec)
+    {
+        if (codec == null) throw new IllegalArgumentException("The control compression codec cannot be null.");
+        _controlCodec = codec;
+    }
+
+    /**
+     * Set whether packages written to a {@link File} are assembled in a single pass, without a
+     * temporary data file. Defaults to false.
+     */
+    public void setSinglePass (boolean singlePass)
+    {
+        _singlePass = singlePass;
+    }
+
+    /**
+     * Set the {@link DestrootFilter} selecting the destroot paths added to the package. Defaults
+     * to a filter selecting every path.
+     */
+    public void setDestrootFilter (DestrootFilter filter)
+    {
+        if (filter == null) throw new IllegalArgumentException("The destroot filter cannot be null.");
+        _filter = filter;
+    }
+
+    /**
+     * Add a {@link PackageSource} whose entries are added to the package after those of the
+     * destroot, in the order the sources were added. With at least one source the destroot may
+     * be null, building the package from the sources alone.
+     */
+    public void addSource (PackageSource source)
+    {
+        if (source == null) throw new IllegalArgumentException("The package source cannot be null.");
+        _sources.add(source);
+    }
+
+    /**
+     * Set how symbolic links in the destroot are added to the package. Defaults to
+     * {@link SymlinkPolicy#PRESERVE}, storing every link as a link.
+     * @see PackageTarFile#setSymlinkPolicy(SymlinkPolicy)
+     */
+    public void setSymlinkPolicy (SymlinkPolicy policy)
+    {
+        if (policy == null) throw new IllegalArgumentException("The symlink policy cannot be null.");
+        _symlinkPolicy = policy;
+    }
+
+    /**
+     * Set whether destroot files with the same contents and permissions as an earlier file are
+     * stored as hard links to it, reducing both the package size and its installed size.
+     * Defaults to false.
+     * @see PackageTarFile#setHardLinks(boolean)
+     */
+    public void setHardLinks (boolean hardLinks)
+    {
+        _hardLinks = hardLinks;
+    }
+
+    /**
+     * Set the number of threads used to read and checksum files from the destroot ahead of the
+     * package data writer. Defaults to {@link PackageTarFile#DEFAULT_READ_THREADS}.
+     * @see PackageTarFile#setReadThreads(int)
+     */
+    public void setReadThreads (int threads)
+    {
+        if (threads < 0) throw new IllegalArgumentException("The read threads cannot be negative.");
+        _readThreads = threads;
+    }
+
+    /**
+     * Set the {@link MemberCache} used to reuse the compressed package data of files which are
+     * unchanged since an earlier build. Requires gzip data compression. Defaults to none.
+     * @see PackageTarFile#setMemberCache(MemberCache)
+     */
+    public void setMemberCache (MemberCache cache)
+    {
+        _memberCache = cache;
+    }
+
+    /**
+     * Set the {@link DigestCache} used to look up the md5 checksums of files which are unchanged
+     * since an earlier build. Defaults to none.
+     * @see PackageTarFile#setDigestCache(DigestCache)
+     */
+    public void setDigestCache (DigestCache cache)
+    {
+        _digestCache = cache;
+    }
+
+    /**
+     * Make the package reproducible: the same destroot and settings always produce the same bytes.
+     * Every ar(1) member and control file entry records the supplied time, in milliseconds since
+     * the epoch, and no destroot entry records a later time. Typically derived from
+     * SOURCE_DATE_EPOCH. Off by default, in which case the current time is recorded.
+     */
+    public void setSourceDate (long millis)
+    {
+        if (millis < 0) throw new IllegalArgumentException("The source date cannot be negative.");
+        _sourceDate = millis;
+    }
+
+    /**
+     * Set the space in bytes reserved for the control data when assembling a package in a single
+     * pass. Unused space is carried as padding in the package, while control data larger than the
+     * reserve requires the package data to be moved. Defaults to {@link #DEFAULT_CONTROL_RESERVE}.
+     */
+    public void setControlReserve (int bytes)
+    {
+        if (bytes < Archive.FILE_HEADER_LENGTH || bytes % 2 != 0) {
+            throw new IllegalArgumentException("The control reserve must be an even number of bytes, " +
+                "at least " + Archive.FILE_HEADER_LENGTH + ". bytes=[" + bytes + "].");
+        }
+        _controlReserve = bytes;
+    }
+
+    /**
+     * Set the directory used to hold the package data when writing to a stream which cannot be
+     * repositioned. Defaults to the system temporary directory.
+     */
+    public void setTempDirectory (File directory)
+    {
+        if (directory == null) throw new IllegalArgumentException("The temporary directory cannot be null.");
+        _tempDirectory = directory;
+    }
+
+    /**
+     * Set the number of compressed data bytes held in memory when writing to a stream which cannot
+     * be repositioned, beyond which the data is moved to the temporary directory. Defaults to
+     * {@link #DEFAULT_MEMORY_THRESHOLD}.
+     */
+    public void setMemoryThreshold (int bytes)
+    {
+        if (bytes < 0) throw new IllegalArgumentException("The memory threshold cannot be negative.");
+        _memoryThreshold = bytes;
+    }
+
     // from PackageBuilder
     public void write (File dest, File destroot)
         throws PackageBuilderException, IOException
     {
         if (dest == null) throw new IllegalArgumentException("The destination cannot be null.");
-        if (destroot == null) throw new IllegalArgumentException("The destroot cannot be null.");
+        checkDestroot(destroot);
+
+        if (_singlePass) {
+            removeDestination(dest);
+            final FileChannel channel = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean written = false;
+            try {
+                writeSinglePass(channel, destroot);
+                written = true;
+
+            } finally {
+                channel.close();
+                // do not leave a partial package behind.
+                if (!written) {
+                    dest.delete();
+                }
+            }
+            return;
+        }
 
         PackageTarFile dataTar = null;
         try {
-            // create the temporary data.tar.gz file in the destination location, which we assume
-            // has enough available space to construct both the data.tar.gz and the package.
-            dataTar = new PackageTarFile(dest.getParentFile(), _info.getPermissionsMap());
-            dataTar.addDirectory(destroot);
+            // create the temporary data.tar file in the destination location, which we assume
+            // has enough available space to construct both the data.tar and the package.
+            dataTar = new PackageTarFile(dest.getParentFile(), _info.getPermissionsMap(), _dataCodec);
+            configureDataTar(dataTar);
+            addContents(dataTar, destroot);
             dataTar.close();
 
-            // Overwrite any file at the destination location.
-            if (dest.exists()) {
-                if (!dest.delete()) {
-                    throw new PackageBuilderException(
-                        "Unable to overwrite existing package destination. path=[" + dest.getAbsolutePath() + "].");
-                }
-            }
+            removeDestination(dest);
 
             // create the ar(1) archive which is the package itself
             try {
-                final Archive archive = new Archive(dest);
+                appendMembers(new Archive(dest), _info, dataTar);
 
-                // add the standard header to the package
-                final ArchiveEntry entry = new ArchiveStringEntry(DEB_AR_MAGIC_CONTENTS, DEB_AR_MAGIC_FILE);
-                archive.appendEntry(entry);
+            } catch (final ArchiveException ae) {
+                throw new PackageBuilderException(ae);
+            }
 
-                // add the control.tar.gz file to the package
-                final ControlFile control = new ControlFile(_info, dataTar);
-                archive.appendEntry(control);
+        } finally {
+            if (dataTar != null) {
+                dataTar.delete();
+            }
+        }
+    }
+
+    /**
+     * Write several packages holding the same data, which differ only in their package
+     * information, e.g. the architecture, the package name of a flavor or distribution specific
+     * dependencies. The data is read and compressed once, then each package gets its own control
+     * member and a copy of the compressed data, transferred from file to file by the operating
+     * system. The data is built with the {@link PermissionsMap} of the package information of this
+     * builder, so any permissions of the variants are not used. Single pass mode does not apply.
+     * @param variants The package information of each package to write, by destination, written
+     * in iteration order.
+     * @see #write(File, File)
+     */
+    public void writeVariants (Map<File, PackageInfo> variants, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        if (variants == null || variants.isEmpty()) {
+            throw new IllegalArgumentException("At least one package variant is required.");
+        }
+        checkDestroot(destroot);
 
-                // add the data.tar.gz file to the package
-                archive.appendEntry(dataTar);
+        PackageTarFile dataTar = null;
+        try {
+            // the data is held next to the first package, as when writing a single package.
+            final File first = variants.keySet().iterator().next();
+            dataTar = new PackageTarFile(first.getAbsoluteFile().getParentFile(),
+                _info.getPermissionsMap(), _dataCodec);
+            configureDataTar(dataTar);
+            addContents(dataTar, destroot);
+            dataTar.close();
+
+            for (final Map.Entry<File, PackageInfo> variant : variants.entrySet()) {
+                final File dest = variant.getKey();
+                removeDestination(dest);
+                try {
+                    appendMembers(new Archive(dest), variant.getValue(), dataTar);
+
+                } catch (final ArchiveException ae) {
+                    throw new PackageBuilderException(ae);
+                }
+            }
+
+        } finally {
+            if (dataTar != null) {
+                dataTar.delete();
+            }
+        }
+    }
+
+    /**
+     * Write several packages holding the same data, as with {@link #writeVariants(Map, File)},
+     * unless every package already exists and was built from the same destroot, package
+     * information and settings. Returns true if the packages were written, false if they were
+     * all up to date.
+     * @see #writeIfChanged(File, File)
+     */
+    public boolean writeVariantsIfChanged (Map<File, PackageInfo> variants, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        if (variants == null || variants.isEmpty()) {
+            throw new IllegalArgumentException("At least one package variant is required.");
+        }
+        checkDestroot(destroot);
+
+        final Map<File, BuildFingerprint> fingerprints = new LinkedHashMap<File, BuildFingerprint>();
+        boolean upToDate = true;
+        for (final Map.Entry<File, PackageInfo> variant : variants.entrySet()) {
+            final File dest = variant.getKey();
+            final BuildFingerprint fingerprint = getFingerprint(destroot, variant.getValue());
+            final File fingerprintFile = new File(dest.getPath() + FINGERPRINT_EXTENSION);
+            upToDate &= dest.isFile() && fingerprint.matches(fingerprintFile);
+            fingerprints.put(fingerprintFile, fingerprint);
+        }
+        if (upToDate) {
+            return false;
+        }
+
+        for (final File fingerprintFile : fingerprints.keySet()) {
+            if (fingerprintFile.exists() && !fingerprintFile.delete()) {
+                throw new PackageBuilderException("Unable to remove existing package fingerprint. path=[" +
+                    fingerprintFile.getAbsolutePath() + "].");
+            }
+        }
+        writeVariants(variants, destroot);
+        for (final Map.Entry<File, BuildFingerprint> entry : fingerprints.entrySet()) {
+            entry.getValue().store(entry.getKey());
+        }
+        return true;
+    }
+
+    /**
+     * Write a package to the supplied file with the package information of this builder and the
+     * data of an existing package, e.g. to change only the version, dependencies or maintainer
+     * scripts of a package without reading or compressing its files again. Only the control
+     * member is created: the data member of the existing package is copied verbatim, by channel
+     * transfer, and the installed size and md5sums of the new control data are taken from the
+     * existing control data. The data and control compression, source date and control reserve
+     * are honored, while the settings which only affect the package data are not used.
+     * @param dest The package to write, which cannot be the existing package.
+     * @param original The existing package, whose control member must be uncompressed or gzipped.
+     * @throws PackageBuilderException If the existing package is not a valid Debian package.
+     */
+    public void rebuild (File dest, File original)
+        throws PackageBuilderException, IOException
+    {
+        if (dest == null) throw new IllegalArgumentException("The destination cannot be null.");
+        if (original == null) throw new IllegalArgumentException("The original package cannot be null.");
+        if (dest.getCanonicalFile().equals(original.getCanonicalFile())) {
+            throw new IllegalArgumentException("The destination cannot be the original package. path=[" +
+                dest.getAbsolutePath() + "].");
+        }
+
+        final List<ArchiveMember> members;
+        try {
+            members = Archive.readMembers(original);
+
+        } catch (final ArchiveException ae) {
+            throw new PackageBuilderException(ae);
+        }
+        final ArchiveMember control = findMember(members, DEB_AR_CONTROL_PREFIX, original);
+        final ArchiveMember data = findMember(members, DEB_AR_DATA_PREFIX, original);
+        final OriginalControl originalControl = readControl(control, original);
+
+        removeDestination(dest);
+        boolean written = false;
+        try {
+            final Archive archive = new Archive(dest);
+            archive.setModificationTime(getArchiveTime());
+            archive.appendEntry(new ArchiveStringEntry(DEB_AR_MAGIC_CONTENTS, DEB_AR_MAGIC_FILE));
+            archive.appendEntry(new ControlFile(_info, originalControl.installedSize,
+                originalControl.md5sums, _controlCodec, getControlTime()));
+            archive.appendEntry(data);
+            written = true;
+
+        } catch (final ArchiveException ae) {
+            throw new PackageBuilderException(ae);
+
+        } catch (final ScriptDataTooLargeException sdtle) {
+            throw new PackageBuilderException(sdtle);
+
+        } finally {
+            // do not leave a partial package behind.
+            if (!written) {
+                dest.delete();
+            }
+        }
+    }
+
+    /**
+     * Write the package to the supplied file, as with {@link #write(File, File)}, unless the file
+     * already holds a package built from the same destroot, package information and settings.
+     * The {@link BuildFingerprint} of each package written is stored next to it, in a file with
+     * the same name plus ".fingerprint". Returns true if the package was written, false if it was
+     * already up to date.
+     * @see #getFingerprint(File)
+     */
+    public boolean writeIfChanged (File dest, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        if (dest == null) throw new IllegalArgumentException("The destination cannot be null.");
+        checkDestroot(destroot);
+
+        // compute the fingerprint before building, so that any change made during the build will
+        // be seen by the next one.
+        final BuildFingerprint fingerprint = getFingerprint(destroot);
+        final File fingerprintFile = new File(dest.getPath() + FINGERPRINT_EXTENSION);
+        if (dest.isFile() && fingerprint.matches(fingerprintFile)) {
+            return false;
+        }
+
+        // never leave a stale fingerprint alongside a package which failed to build.
+        if (fingerprintFile.exists() && !fingerprintFile.delete()) {
+            throw new PackageBuilderException("Unable to remove existing package fingerprint. path=[" +
+                fingerprintFile.getAbsolutePath() + "].");
+        }
+        write(dest, destroot);
+        fingerprint.store(fingerprintFile);
+        return true;
+    }
+
+    /**
+     * Returns the {@link BuildFingerprint} of the package this builder would write from the
+     * supplied destroot. It covers the entries of the destroot, the control headers, the
+     * permissions, the maintainer scripts and the settings which affect the package contents.
+     * @throws IOException If the destroot or the maintainer scripts could not be read.
+     */
+    public BuildFingerprint getFingerprint (File destroot)
+        throws IOException
+    {
+        return getFingerprint(destroot, _info);
+    }
+
+    /**
+     * Write the package to the supplied stream, using the files from the supplied destroot. The
+     * package data is held in memory, or in the temporary directory if it grows too large, until
+     * the control data preceding it has been written. The stream is not closed.
+     * @see #setMemoryThreshold(int)
+     * @see #setTempDirectory(File)
+     */
+    public void write (OutputStream output, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        if (output == null) throw new IllegalArgumentException("The output cannot be null.");
+        checkDestroot(destroot);
+
+        PackageTarFile dataTar = null;
+        try {
+            dataTar = new PackageTarFile(_tempDirectory, _info.getPermissionsMap(), _dataCodec,
+                _memoryThreshold);
+            configureDataTar(dataTar);
+            addContents(dataTar, destroot);
+            dataTar.close();
+
+            try {
+                appendMembers(new Archive(output), _info, dataTar);
 
             } catch (final ArchiveException ae) {
                 throw new PackageBuilderException(ae);
+            }
+
+        } finally {
+            if (dataTar != null) {
+                dataTar.delete();
+            }
+        }
+    }
+
+    /**
+     * Write the package to the supplied channel, using the files from the supplied destroot. If
+     * the channel is a {@link SeekableByteChannel} the package is assembled in a single pass
+     * starting at the current position, which requires the channel to be readable if the control
+     * data overflows the reserved space. Otherwise the package is written as with
+     * {@link #write(OutputStream, File)}. The channel is not closed.
+     */
+    public void write (WritableByteChannel channel, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        if (channel == null) throw new IllegalArgumentException("The channel cannot be null.");
+        checkDestroot(destroot);
+
+        if (channel instanceof SeekableByteChannel) {
+            writeSinglePass((SeekableByteChannel)channel, destroot);
+
+        } else {
+            write(Channels.newOutputStream(channel), destroot);
+        }
+    }
+
+    /**
+     * Assemble the package in the supplied channel, streaming the package data directly into
+     * place after the space reserved for the control data.
+     */
+    private void writeSinglePass (SeekableByteChannel channel, File destroot)
+        throws PackageBuilderException, IOException
+    {
+        // the channel stream writes at the current channel position, so it can be moved around
+        // the archive by positioning the channel.
+        final OutputStream output = new UnclosableOutputStream(Channels.newOutputStream(channel));
+
+        try {
+            final Archive archive = new Archive(output);
+            archive.setModificationTime(getArchiveTime());
+            archive.appendEntry(new ArchiveStringEntry(DEB_AR_MAGIC_CONTENTS, DEB_AR_MAGIC_FILE));
+
+            // leave room for the control data and the data member header, then stream the data.
+            final long reserveStart = channel.position();
+            final long dataStart = reserveStart + _controlReserve;
+            channel.position(dataStart + Archive.FILE_HEADER_LENGTH);
+
+            final PackageTarFile dataTar = new PackageTarFile(output, _info.getPermissionsMap(), _dataCodec);
+            configureDataTar(dataTar);
+            addContents(dataTar, destroot);
+            dataTar.close();
+            if (dataTar.getSize() % 2 != 0) {
+                output.write(Archive.PADDING);
+            }
+            final long dataEnd = channel.position();
+
+            // now that the size is known, fill in the data member header.
+            channel.position(dataStart);
+            output.write(Archive.createEntryHeader(dataTar, getArchiveTime()));
+
+            final ControlFile control = new ControlFile(_info, dataTar, _controlCodec, getControlTime());
+
+            // the space left over after the control member must either be filled exactly, or be
+            // large enough to hold a padding member header. otherwise move the data forward so a
+            // padding member with no data fills the gap.
+            final long controlLength = Archive.getEntryLength(control.getSize());
+            long gap = _controlReserve - controlLength;
+            long shift = 0;
+            if (gap != 0 && gap < Archive.FILE_HEADER_LENGTH) {
+                shift = Archive.FILE_HEADER_LENGTH - gap;
+                moveForward(channel, dataStart, dataEnd, shift);
+                gap = Archive.FILE_HEADER_LENGTH;
+            }
+
+            channel.position(reserveStart);
+            Archive.writeEntry(output, control, getArchiveTime());
+            if (gap > 0) {
+                final char[] padding = new char[(int)(gap - Archive.FILE_HEADER_LENGTH)];
+                Arrays.fill(padding, '\n');
+                Archive.writeEntry(output, new ArchiveStringEntry(new String(padding), DEB_AR_PADDING_FILE),
+                    getArchiveTime());
+            }
+
+            // leave the channel positioned after the package.
+            channel.position(dataEnd + shift);
+
+        } catch (final ArchiveException ae) {
+            throw new PackageBuilderException(ae);
+
+        } catch (final ScriptDataTooLargeException sdtle) {
+            throw new PackageBuilderException(sdtle);
+        }
+    }
+
+    /**
+     * Returns the {@link BuildFingerprint} of the package this builder would write from the
+     * supplied destroot with the supplied package information. The data always uses the
+     * permissions of the package information of this builder.
+     */
+    private BuildFingerprint getFingerprint (File destroot, PackageInfo info)
+        throws IOException
+    {
+        final BuildFingerprint fingerprint = new BuildFingerprint();
+        fingerprint.add(info.toString());
+        fingerprint.addPermissions(_info.getPermissionsMap());
+        for (final MaintainerScript script : info.getMaintainerScripts().values()) {
+            fingerprint.add(script.getType().getFilename());
+            fingerprint.add(script.getStream());
+        }
+
+        fingerprint.add("data=[" + _dataCodec + "], control=[" + _controlCodec + "], memberCache=[" +
+            (_memberCache != null) + "], singlePass=[" + _singlePass + "], hardLinks=[" + _hardLinks + "], symlinks=[" + _symlinkPolicy + "], controlReserve=[" +
+            _controlReserve + "], sourceDate=[" + _sourceDate + "].");
+        if (destroot != null) {
+            fingerprint.addDestroot(destroot, _filter, _symlinkPolicy);
+        }
+        for (final PackageSource source : _sources) {
+            source.addTo(fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Throws if there is neither a destroot nor any {@link PackageSource} to build the package
+     * from.
+     */
+    private void checkDestroot (File destroot)
+    {
+        if (destroot == null && _sources.isEmpty()) {
+            throw new IllegalArgumentException("The destroot cannot be null without package sources.");
+        }
+    }
+
+    /**
+     * Add the destroot, if any, and then the entries of every {@link PackageSource} to the
+     * package data tar file.
+     */
+    private void addContents (PackageTarFile dataTar, File destroot)
+        throws IOException
+    {
+        if (destroot != null) {
+            dataTar.addDirectory(destroot, _filter);
+        }
+        try {
+            for (final PackageSource source : _sources) {
+                source.addTo(dataTar);
+            }
+
+        // pass any encountered exception back as an IOException, as adding a directory does.
+        } catch (final DuplicatePermissionsException dpe) {
+            throw new IOException(dpe.getMessage());
+        }
+    }
+
+    /**
+     * Returns the first of the supplied members whose path starts with the supplied prefix.
+     * @throws PackageBuilderException If there is no such member.
+     */
+    private static ArchiveMember findMember (List<ArchiveMember> members, String prefix, File original)
+        throws PackageBuilderException
+    {
+        for (final ArchiveMember member : members) {
+            if (member.getPath().startsWith(prefix)) {
+                return member;
+            }
+        }
+        throw new PackageBuilderException("The package has no " + prefix + " member. path=[" +
+            original.getAbsolutePath() + "].");
+    }
+
+    /**
+     * Read the installed size and the md5sums file from the supplied control member.
+     * @throws PackageBuilderException If the member is compressed with an unsupported codec, or
+     * does not hold a control file with an installed size.
+     */
+    private static OriginalControl readControl (ArchiveMember control, File original)
+        throws PackageBuilderException, IOException
+    {
+        final String extension = control.getPath().substring(DEB_AR_CONTROL_PREFIX.length());
+        if (!extension.equals("") && !extension.equals(GZIP_EXTENSION)) {
+            throw new PackageBuilderException("Unsupported control member compression. path=[" +
+                original.getAbsolutePath() + "], member=[" + control.getPath() + "].");
+        }
 
-            } catch (final ScriptDataTooLargeException sdtle) {
-                throw new PackageBuilderException(sdtle);
+        final OriginalControl result = new OriginalControl();
+        InputStream input = control.getInputStream();
+        try {
+            if (extension.equals(GZIP_EXTENSION)) {
+                input = new GZIPInputStream(input);
+            }
+            final TarInputStream tar = new TarInputStream(input);
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                final String name = entry.getName().startsWith("./") ?
+                    entry.getName().substring(2) : entry.getName();
+                if (name.equals(DEB_CONTROL_FILE)) {
+                    result.installedSize = parseInstalledSize(IOUtils.toString(tar, CONTROL_ENCODING));
+
+                } else if (name.equals(DEB_MD5_FILE)) {
+                    result.md5sums = IOUtils.toByteArray(tar);
+                }
             }
 
         } finally {
-            dataTar.delete();
+            IOUtils.closeQuietly(input);
+        }
+
+        if (result.installedSize < 0) {
+            throw new PackageBuilderException("The package control file has no installed size. " +
+                "path=[" + original.getAbsolutePath() + "].");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of the Installed-Size field of the supplied control file, or -1 if it
+     * has none.
+     */
+    private static long parseInstalledSize (String control)
+        throws PackageBuilderException
+    {
+        for (final String line : control.split("\n")) {
+            final int colon = line.indexOf(':');
+            if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase(INSTALLED_SIZE)) {
+                final String value = line.substring(colon + 1).trim();
+                try {
+                    return Long.parseLong(value);
+
+                } catch (final NumberFormatException nfe) {
+                    throw new PackageBuilderException("Invalid installed size. value=[" + value + "].");
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Apply the configured read threads, caches, source date, hard links and symbolic link policy
+     * to the package data tar file.
+     */
+    private void configureDataTar (PackageTarFile dataTar)
+    {
+        dataTar.setHardLinks(_hardLinks);
+        dataTar.setSymlinkPolicy(_symlinkPolicy);
+        if (_sourceDate != NO_SOURCE_DATE) {
+            dataTar.setSourceDate(_sourceDate);
+        }
+        dataTar.setReadThreads(_readThreads);
+        if (_memberCache != null) {
+            dataTar.setMemberCache(_memberCache);
+        }
+        dataTar.setDigestCache(_digestCache);
+    }
+
+    /**
+     * Returns the modification time recorded in the ar(1) member headers, in seconds.
+     */
+    private long getArchiveTime ()
+    {
+        return _sourceDate == NO_SOURCE_DATE ? Archive.CURRENT_TIME : _sourceDate / 1000;
+    }
+
+    /**
+     * Returns the modification time recorded in the control file entries, in milliseconds.
+     */
+    private long getControlTime ()
+    {
+        return _sourceDate == NO_SOURCE_DATE ? System.currentTimeMillis() : _sourceDate;
+    }
+
+    /**
+     * Append the standard package members to the supplied archive, with control data describing
+     * the supplied package.
+     */
+    private void appendMembers (Archive archive, PackageInfo info, PackageTarFile dataTar)
+        throws ArchiveException, PackageBuilderException, IOException
+    {
+        archive.setModificationTime(getArchiveTime());
+        try {
+            // add the standard header to the package
+            final ArchiveEntry entry = new ArchiveStringEntry(DEB_AR_MAGIC_CONTENTS, DEB_AR_MAGIC_FILE);
+            archive.appendEntry(entry);
+
+            // add the control.tar file to the package
+            final ControlFile control = new ControlFile(info, dataTar, _controlCodec, getControlTime());
+            archive.appendEntry(control);
+
+            // add the data.tar file to the package
+            archive.appendEntry(dataTar);
+
+        } catch (final ScriptDataTooLargeException sdtle) {
+            throw new PackageBuilderException(sdtle);
+        }
+    }
+
+    /**
+     * Overwrite any file at the destination location.
+     */
+    private void removeDestination (File dest)
+        throws PackageBuilderException
+    {
+        if (dest.exists()) {
+            if (!dest.delete()) {
+                throw new PackageBuilderException(
+                    "Unable to overwrite existing package destination. path=[" + dest.getAbsolutePath() + "].");
+            }
+        }
+    }
+
+    /**
+     * Move the bytes between start and end in the supplied channel forward by shift bytes,
+     * copying from the end so that no data is overwritten before it is moved.
+     */
+    private static void moveForward (SeekableByteChannel channel, long start, long end, long shift)
+        throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(MOVE_BUFFER_SIZE);
+        long remaining = end;
+        while (remaining > start) {
+            final int len = (int)Math.min(buffer.capacity(), remaining - start);
+            remaining -= len;
+
+            buffer.clear();
+            buffer.limit(len);
+            channel.position(remaining);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of package while moving data.");
+                }
+            }
+
+            buffer.flip();
+            channel.position(remaining + shift);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * The values taken from the control member of an existing package.
+     */
+    private static class OriginalControl
+    {
+        /** The installed size, in kilobytes, or -1 if not found. */
+        public long installedSize = -1;
+
+        /** The contents of the md5sums file, empty if the package has none. */
+        public byte[] md5sums = new byte[0];
+    }
+
+    /**
+     * Passes writes through to the wrapped stream, but leaves it open when closed, allowing the
+     * package data compressor to be finished without closing the package.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream
+    {
+        public UnclosableOutputStream (OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override // from FilterOutputStream
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override // from FilterOutputStream
+        public void close ()
+            throws IOException
+        {
+            flush();
         }
     }
 
@@ -106,6 +902,78 @@ public class DebianPackageBuilder
     private static final String DEB_AR_MAGIC_FILE = "debian-binary";
     private static final String DEB_AR_MAGIC_CONTENTS = "2.0\n";
 
+    /** The names of the control and data members, without the compression extension. */
+    private static final String DEB_AR_CONTROL_PREFIX = "control.tar";
+    private static final String DEB_AR_DATA_PREFIX = "data.tar";
+
+    /** The files read from the control member of an existing package. */
+    private static final String DEB_CONTROL_FILE = "control";
+    private static final String DEB_MD5_FILE = "md5sums";
+
+    /** The control file field holding the installed size. */
+    private static final String INSTALLED_SIZE = "Installed-Size";
+
+    /** The control file is written in UTF-8. */
+    private static final String CONTROL_ENCODING = "UTF-8";
+
+    /** The extension of a gzipped control member. */
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /** The name of the member filling any unused space reserved for the control data. */
+    private static final String DEB_AR_PADDING_FILE = "_pad";
+
+    /** The extension added to the package file name to name its fingerprint file. */
+    private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+
+    /** Used to indicate that the package records the current time. */
+    private static final long NO_SOURCE_DATE = -1;
+
+    /** The size of the buffer used to move the package data. */
+    private static final int MOVE_BUFFER_SIZE = 1024 * 1024;
+
     /** The meta information used to create this package. */
     private final PackageInfo _info;
+
+    /** The codec used to compress the package data. */
+    private CompressionCodec _dataCodec = new GzipCodec();
+
+    /** The codec used to compress the package control data. */
+    private CompressionCodec _controlCodec = new GzipCodec(Deflater.DEFAULT_COMPRESSION,
+        Deflater.DEFAULT_STRATEGY, 1, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE);
+
+    /** Whether packages written to files are assembled in a single pass. */
+    private boolean _singlePass;
+
+    /** Selects the destroot paths added to the package. */
+    private DestrootFilter _filter = new DestrootFilter();
+
+    /** The sources of the package entries added after the destroot. */
+    private final List<PackageSource> _sources = new ArrayList<PackageSource>();
+
+    /** Whether files identical to an earlier file are stored as hard links. */
+    private boolean _hardLinks;
+
+    /** How symbolic links in the destroot are added to the package. */
+    private SymlinkPolicy _symlinkPolicy = SymlinkPolicy.DEFAULT;
+
+    /** The number of threads reading destroot files ahead of the data writer. */
+    private int _readThreads = PackageTarFile.DEFAULT_READ_THREADS;
+
+    /** The cache of compressed package data members, or null. */
+    private MemberCache _memberCache;
+
+    /** The cache of file checksums, or null if none is used. */
+    private DigestCache _digestCache;
+
+    /** The time recorded in the package, or {@link #NO_SOURCE_DATE}. */
+    private long _sourceDate = NO_SOURCE_DATE;
+
+    /** The space reserved for the control data in single pass mode. */
+    private int _controlReserve = DEFAULT_CONTROL_RESERVE;
+
+    /** The directory holding package data too large for memory when writing to a stream. */
+    private File _tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    /** The compressed data held in memory when writing to a stream. */
+    private int _memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
 }
@@ -0,0 +1,278 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threerings.jpkg.compress.GzipCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveSourceTest
+{
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _archive = File.createTempFile("archivesourcetest", ".archive");
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _archive.delete();
+    }
+
+    @Test
+    public void testRepackTarGz ()
+        throws Exception
+    {
+        final OutputStream output = new GZIPOutputStream(new FileOutputStream(_archive));
+        try {
+            writeTar(output);
+
+        } finally {
+            output.close();
+        }
+
+        // strip the top level directory and place the rest beneath opt/app.
+        final ArchiveSource source = new ArchiveSource(_archive);
+        source.setPrefix("/opt/app/");
+        source.setStripComponents(1);
+        final PackageTarFile tar = createTarFile();
+        source.addTo(tar);
+        tar.close();
+
+        final Map<String, TarEntry> entries = readEntries();
+        assertEquals(Arrays.asList("opt/", "opt/app/", "opt/app/bin/", "opt/app/bin/tool",
+            "opt/app/lib/", "opt/app/lib/a.jar", "opt/app/lib/b.jar", "opt/app/current"),
+            new ArrayList<String>(entries.keySet()));
+        assertEquals(0100755, entries.get("opt/app/bin/tool").getMode());
+        assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entries.get("opt/app/lib/a.jar").getMode());
+        assertEquals(4, entries.get("opt/app/lib/a.jar").getSize());
+        assertEquals("opt/app/lib/a.jar", entries.get("opt/app/lib/b.jar").getLinkName());
+        assertEquals("lib", entries.get("opt/app/current").getLinkName());
+        assertEquals(UnixStandardPermissions.SYMLINK_MODE, entries.get("opt/app/current").getMode());
+
+        // the hard link is listed with the checksum of its target.
+        final Map<String, String> md5s = tar.getMd5s();
+        assertEquals(3, md5s.size());
+        assertEquals(md5s.get("opt/app/lib/a.jar"), md5s.get("opt/app/lib/b.jar"));
+    }
+
+    @Test
+    public void testRepackTar ()
+        throws Exception
+    {
+        final OutputStream output = new FileOutputStream(_archive);
+        try {
+            writeTar(output);
+
+        } finally {
+            output.close();
+        }
+
+        final PackageTarFile tar = createTarFile();
+        new ArchiveSource(_archive).addTo(tar);
+        tar.close();
+
+        final Map<String, TarEntry> entries = readEntries();
+        assertTrue(entries.containsKey("dist-1.0/bin/tool"));
+        assertEquals("dist-1.0/lib/a.jar", entries.get("dist-1.0/lib/b.jar").getLinkName());
+    }
+
+    @Test
+    public void testRepackZip ()
+        throws Exception
+    {
+        // the entries are written out of order, without a unix mode unless set.
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(_archive));
+        try {
+            addZipEntry(zip, "lib/b.jar", "b", 0);
+            addZipEntry(zip, "bin/tool", "#!/bin/sh", 0100750);
+            addZipEntry(zip, "current", "lib", 0120777);
+            addZipEntry(zip, "META-INF/", null, 0);
+
+        } finally {
+            zip.close();
+        }
+
+        final PackageTarFile tar = createTarFile();
+        new ArchiveSource(_archive).addTo(tar);
+        tar.close();
+
+        final Map<String, TarEntry> entries = readEntries();
+        assertEquals(Arrays.asList("META-INF/", "bin/", "bin/tool", "current", "lib/", "lib/b.jar"),
+            new ArrayList<String>(entries.keySet()));
+        assertEquals(0100750, entries.get("bin/tool").getMode());
+        assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entries.get("lib/b.jar").getMode());
+        assertEquals("lib", entries.get("current").getLinkName());
+        assertEquals(2, tar.getMd5s().size());
+    }
+
+    @Test
+    public void testFingerprint ()
+        throws Exception
+    {
+        FileUtils.writeStringToFile(_archive, "archive");
+        final ArchiveSource source = new ArchiveSource(_archive);
+        final BuildFingerprint first = new BuildFingerprint();
+        source.addTo(first);
+        final BuildFingerprint second = new BuildFingerprint();
+        source.addTo(second);
+        assertEquals(first.getValue(), second.getValue());
+
+        // a different layout changes the fingerprint.
+        source.setStripComponents(1);
+        final BuildFingerprint stripped = new BuildFingerprint();
+        source.addTo(stripped);
+        assertFalse(first.getValue().equals(stripped.getValue()));
+    }
+
+    /**
+     * Write a distribution tarball with a top level directory, an executable, a file with a
+     * hard link to it and a symbolic link.
+     */
+    private static void writeTar (OutputStream output)
+        throws IOException
+    {
+        final TarWriter writer = new TarWriter(output);
+        final TarHeader header = new TarHeader();
+        addTarEntry(writer, header, "dist-1.0/", UnixStandardPermissions.STANDARD_DIR_MODE, null);
+        addTarEntry(writer, header, "dist-1.0/bin/", UnixStandardPermissions.STANDARD_DIR_MODE, null);
+        addTarEntry(writer, header, "dist-1.0/bin/tool", 0100755, "tool");
+        addTarEntry(writer, header, "dist-1.0/lib/", UnixStandardPermissions.STANDARD_DIR_MODE, null);
+        addTarEntry(writer, header, "dist-1.0/lib/a.jar", 0100644, "jars");
+        header.setLinkName("dist-1.0/lib/a.jar");
+        addTarEntry(writer, header, "dist-1.0/lib/b.jar", 0100644, null);
+        header.setSymbolicLinkName("lib");
+        addTarEntry(writer, header, "dist-1.0/current", UnixStandardPermissions.SYMLINK_MODE, null);
+        writer.close();
+    }
+
+    /**
+     * Add an entry holding the supplied data, if any, to the tar data.
+     */
+    private static void addTarEntry (TarWriter writer, TarHeader header, String name, int mode,
+        String data)
+        throws IOException
+    {
+        final byte[] bytes = data == null ? new byte[0] : data.getBytes("UTF-8");
+        header.setName(name);
+        header.setMode(mode);
+        header.setSize(bytes.length);
+        header.setModTime(TEST_TIME);
+        writer.putNextEntry(header);
+        writer.write(bytes);
+        writer.closeEntry();
+        header.setLinkName(null);
+    }
+
+    /**
+     * Add an entry holding the supplied data, if any, with the supplied unix mode, if not 0.
+     */
+    private static void addZipEntry (ZipOutputStream zip, String name, String data, int mode)
+        throws IOException
+    {
+        final ZipEntry entry = new ZipEntry(name);
+        if (mode != 0) {
+            entry.setUnixMode(mode);
+        }
+        zip.putNextEntry(entry);
+        if (data != null) {
+            zip.write(data.getBytes("UTF-8"));
+        }
+        zip.closeEntry();
+    }
+
+    /**
+     * Returns a {@link PackageTarFile} writing to memory.
+     */
+    private PackageTarFile createTarFile ()
+        throws IOException
+    {
+        _output = new ByteArrayOutputStream();
+        return new PackageTarFile(_output, new PermissionsMap(), new GzipCodec());
+    }
+
+    /**
+     * Returns the entries written by the last tar file created, by name, in order.
+     */
+    private Map<String, TarEntry> readEntries ()
+        throws IOException
+    {
+        final Map<String, TarEntry> entries = new LinkedHashMap<String, TarEntry>();
+        final TarInputStream input = new TarInputStream(
+            new GZIPInputStream(new ByteArrayInputStream(_output.toByteArray())));
+        try {
+            TarEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return entries;
+    }
+
+    /** A modification time with no fraction of a second. */
+    private static final long TEST_TIME = 1200000000000L;
+
+    /** The archive written by each test. */
+    private File _archive;
+
+    /** The data written by the last tar file created. */
+    private ByteArrayOutputStream _output;
+}
@@ -0,0 +1,126 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DestrootFilterTest
+{
+    @Test
+    public void testEmpty ()
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.isIncluded("usr/bin/tool"));
+        assertTrue(filter.couldIncludeBeneath("usr"));
+        assertFalse(filter.isExcluded("usr/bin/tool"));
+    }
+
+    @Test
+    public void testExcludes ()
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        filter.addExclude("**/.git/**");
+        filter.addExclude("**/*.pyc");
+        filter.addExclude("**/__pycache__");
+        filter.addExclude("var/cache/");
+        assertFalse(filter.isEmpty());
+
+        assertTrue(filter.isExcluded(".git"));
+        assertTrue(filter.isExcluded("src/project/.git"));
+        assertTrue(filter.isExcluded("src/.git/config"));
+        assertTrue(filter.isExcluded("lib/module.pyc"));
+        assertTrue(filter.isExcluded("module.pyc"));
+        assertTrue(filter.isExcluded("lib/__pycache__"));
+        assertTrue(filter.isExcluded("var/cache"));
+        assertTrue(filter.isExcluded("var/cache/file"));
+
+        assertFalse(filter.isExcluded("src/.gitignore"));
+        assertFalse(filter.isExcluded("lib/module.py"));
+        assertFalse(filter.isExcluded("lib/__pycache__2"));
+        assertFalse(filter.isExcluded("var/cached"));
+        assertFalse(filter.isExcluded("var"));
+    }
+
+    @Test
+    public void testIncludes ()
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        filter.addInclude("usr/share/**/*.jar");
+        filter.addInclude("etc/app.?onf");
+
+        assertTrue(filter.isIncluded("usr/share/app.jar"));
+        assertTrue(filter.isIncluded("usr/share/lib/deep/app.jar"));
+        assertTrue(filter.isIncluded("etc/app.conf"));
+        assertFalse(filter.isIncluded("usr/share/app.war"));
+        assertFalse(filter.isIncluded("usr/app.jar"));
+        assertFalse(filter.isIncluded("etc/app.config"));
+        assertFalse(filter.isIncluded("usr/share"));
+
+        // directories on the way to an include pattern may hold included paths.
+        assertTrue(filter.couldIncludeBeneath("usr"));
+        assertTrue(filter.couldIncludeBeneath("usr/share"));
+        assertTrue(filter.couldIncludeBeneath("usr/share/lib"));
+        assertTrue(filter.couldIncludeBeneath("etc"));
+        assertFalse(filter.couldIncludeBeneath("var"));
+        assertFalse(filter.couldIncludeBeneath("usr/lib"));
+        assertFalse(filter.couldIncludeBeneath("etc/app.conf"));
+
+        // includes say nothing of exclusion.
+        assertFalse(filter.isExcluded("var"));
+    }
+
+    @Test
+    public void testWildcardsWithinElement ()
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        filter.addInclude("/lib*/*.so.*");
+
+        assertTrue(filter.isIncluded("lib/libc.so.6"));
+        assertTrue(filter.isIncluded("lib64/libm.so.6"));
+        assertFalse(filter.isIncluded("lib/libc.so"));
+        assertFalse(filter.isIncluded("lib/sub/libc.so.6"));
+
+        // regular expression characters are matched literally.
+        filter.addInclude("opt/a+b(1).[x]");
+        assertTrue(filter.isIncluded("opt/a+b(1).[x]"));
+        assertFalse(filter.isIncluded("opt/aab(1).[x]"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testEmptyPattern ()
+    {
+        new DestrootFilter().addExclude(" ");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarInputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DestrootScannerTest extends TestTarFile
+{
+    @Test
+    public void testScanDestRoot ()
+        throws Exception
+    {
+        final File destroot = dummyDestroot();
+
+        final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR, new PermissionsMap());
+        try {
+            tar.addDirectory(destroot);
+            tar.close();
+
+            TarInputStream input = null;
+            try {
+                input = getTarInput(tar);
+
+                assertEquals(ROOT_DIR, input.getNextEntry().getName());
+                assertEquals(ROOT_DIR_FILE, input.getNextEntry().getName());
+                assertEquals(ROOT_FILE, input.getNextEntry().getName());
+
+                // verify there are no more entries in the tar file.
+                assertNull(input.getNextEntry());
+
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+
+        } finally {
+            tar.delete();
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testScanOrder ()
+        throws Exception
+    {
+        final File destroot = dummyDestroot();
+        try {
+            // add entries whose names sort differently than they would be created or listed.
+            for (final String path : new String[] { "b/z", "b/a/y", "a", "c/x", "b/a/b" }) {
+                FileUtils.touch(new File(destroot, path));
+            }
+
+            final List<String> paths = new ArrayList<String>();
+            for (final DestrootEntry entry : new DestrootScanner(destroot, 3).scan()) {
+                paths.add(entry.getFile().getAbsolutePath().substring(
+                    destroot.getAbsolutePath().length() + 1));
+            }
+
+            final List<String> expected = new ArrayList<String>();
+            for (final String path : new String[] {
+                "a", "b", "b/a", "b/a/b", "b/a/y", "b/z", "c", "c/x", "directory",
+                "directory/file.txt", "file.txt" }) {
+                expected.add(path.replace('/', File.separatorChar));
+            }
+            assertEquals(expected, paths);
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testScanAttributes ()
+        throws Exception
+    {
+        final File destroot = dummyDestroot();
+        try {
+            FileUtils.writeStringToFile(new File(destroot, ROOT_FILE), "contents");
+            final List<DestrootEntry> entries = new DestrootScanner(destroot).scan();
+            assertEquals(3, entries.size());
+            assertTrue(entries.get(0).getAttributes().isDirectory());
+            assertTrue(entries.get(1).getAttributes().isRegularFile());
+            assertEquals(0, entries.get(1).getAttributes().size());
+            assertEquals(8, entries.get(2).getAttributes().size());
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testScanFilter ()
+        throws Exception
+    {
+        final File destroot = dummyDestroot();
+        try {
+            for (final String path : new String[] {
+                "app/.git/objects/ab/cdef", "app/main.py", "app/main.pyc", "app/__pycache__/main.pyc",
+                "docs/readme", "lib/empty/none.pyc" }) {
+                FileUtils.touch(new File(destroot, path));
+            }
+
+            final DestrootFilter filter = new DestrootFilter();
+            filter.addExclude("**/.git/**");
+            filter.addExclude("**/__pycache__");
+            filter.addExclude("**/*.pyc");
+            assertEquals(Arrays.asList("app", "app/main.py", "directory", "directory/file.txt",
+                "docs", "docs/readme", "file.txt", "lib", "lib/empty"), scan(destroot, filter));
+
+            // only directories holding included paths are listed, unless included themselves.
+            filter.addInclude("app/**");
+            filter.addInclude("**/*.txt");
+            assertEquals(Arrays.asList("app", "app/main.py", "directory", "directory/file.txt",
+                "file.txt"), scan(destroot, filter));
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testScanMissingDestroot ()
+        throws Exception
+    {
+        new DestrootScanner(new File(TestData.TEMP_DIR, "missing_destroot")).scan();
+    }
+
+    /**
+     * Scan the supplied destroot with the supplied filter, returning the relative paths found.
+     */
+    private List<String> scan (File destroot, DestrootFilter filter)
+        throws Exception
+    {
+        final List<String> paths = new ArrayList<String>();
+        for (final DestrootEntry entry : new DestrootScanner(destroot, 3, filter).scan()) {
+            paths.add(entry.getFile().getAbsolutePath().substring(
+                destroot.getAbsolutePath().length() + 1).replace(File.separatorChar, '/'));
+        }
+        return paths;
+    }
+
+    /**
+     * Dummy up a destroot instead of using a tree full of .svn entries.
+     */
+    private File dummyDestroot ()
+        throws Exception
+    {
+        final File destroot = File.createTempFile("jpkgtest", "destroot");
+        destroot.delete();
+        destroot.mkdir();
+        final String destrootPath = destroot.getAbsolutePath();
+        FileUtils.touch(new File(destrootPath, ROOT_FILE));
+        final File rootDir = new File(destrootPath, ROOT_DIR);
+        rootDir.mkdir();
+        FileUtils.touch(new File(destrootPath, ROOT_DIR_FILE));
+        return destroot;
+    }
+
+    /** Test files and directories. */
+    public static final String ROOT_FILE = "file.txt";
+    public static final String ROOT_DIR = "directory/";
+    public static final String ROOT_DIR_FILE = ROOT_DIR + "file.txt";
+}
@@ -0,0 +1,193 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DestrootSplitterTest extends TestTarFile
+{
+    @Test
+    public void testSplit ()
+        throws Exception
+    {
+        final File destroot = createDestroot();
+        try {
+            final DestrootSplitter splitter = new DestrootSplitter(destroot, SymlinkPolicy.DEFAULT);
+            final PackageSource core = splitter.addPackage("core", createFilter("usr/bin/, usr/lib/", null));
+            final PackageSource doc = splitter.addPackage("doc", createFilter("usr/share/doc/", null));
+            final PackageSource dev = splitter.addPackage("dev", createFilter("usr/include/, usr/lib/*.so", null));
+            splitter.scan();
+
+            assertEquals(Arrays.asList("usr/", "usr/bin/", "usr/bin/tool", "usr/lib/", "usr/lib/libapp.so",
+                "usr/lib/libapp.so.1"), getEntries(core));
+            assertEquals(Arrays.asList("usr/", "usr/share/", "usr/share/doc/", "usr/share/doc/app/",
+                "usr/share/doc/app/README"), getEntries(doc));
+            assertEquals(Arrays.asList("usr/", "usr/include/", "usr/include/app.h", "usr/lib/",
+                "usr/lib/libapp.so"), getEntries(dev));
+
+            assertEquals(Collections.singletonMap("usr/lib/libapp.so", Arrays.asList("core", "dev")),
+                splitter.getOverlaps());
+            assertEquals(Arrays.asList("var/cache/state"), splitter.getUnmatched());
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testSplitExcludes ()
+        throws Exception
+    {
+        final File destroot = createDestroot();
+        try {
+            final DestrootSplitter splitter = new DestrootSplitter(destroot, SymlinkPolicy.DEFAULT);
+            final PackageSource data = splitter.addPackage("data", createFilter(null, "usr/, var/cache/state"));
+            final PackageSource rest = splitter.addPackage("rest", createFilter("usr/**", "usr/lib/"));
+
+            // the destroot is scanned when a source is first used.
+            assertEquals(Arrays.asList("var/", "var/cache/"), getEntries(data));
+            assertEquals(Arrays.asList("usr/", "usr/bin/", "usr/bin/tool", "usr/include/", "usr/include/app.h",
+                "usr/share/", "usr/share/doc/", "usr/share/doc/app/", "usr/share/doc/app/README"),
+                getEntries(rest));
+            assertEquals(Collections.emptyMap(), splitter.getOverlaps());
+            assertEquals(Arrays.asList("usr/lib/libapp.so", "usr/lib/libapp.so.1", "var/cache/state"),
+                splitter.getUnmatched());
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testAddAfterScan ()
+        throws Exception
+    {
+        final File destroot = createDestroot();
+        try {
+            final DestrootSplitter splitter = new DestrootSplitter(destroot, SymlinkPolicy.DEFAULT);
+            splitter.scan();
+            splitter.addPackage("core", new DestrootFilter());
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testReportBeforeScan ()
+    {
+        new DestrootSplitter(TestData.TEMP_DIR, SymlinkPolicy.DEFAULT).getUnmatched();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicatePackage ()
+    {
+        final DestrootSplitter splitter = new DestrootSplitter(TestData.TEMP_DIR, SymlinkPolicy.DEFAULT);
+        splitter.addPackage("core", new DestrootFilter());
+        splitter.addPackage("core", new DestrootFilter());
+    }
+
+    /**
+     * Returns the names of the entries the supplied source adds to a tar file, in order.
+     */
+    private List<String> getEntries (PackageSource source)
+        throws Exception
+    {
+        final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR, new PermissionsMap());
+        try {
+            source.addTo(tar);
+            tar.close();
+
+            final List<String> names = new ArrayList<String>();
+            final TarInputStream input = getTarInput(tar);
+            try {
+                for (TarEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+                    names.add(entry.getName());
+                }
+
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+            return names;
+
+        } finally {
+            tar.delete();
+        }
+    }
+
+    /**
+     * Create a {@link DestrootFilter} from comma separated include and exclude patterns.
+     */
+    private DestrootFilter createFilter (String includes, String excludes)
+    {
+        final DestrootFilter filter = new DestrootFilter();
+        if (includes != null) {
+            for (final String pattern : includes.split(", ")) {
+                filter.addInclude(pattern);
+            }
+        }
+        if (excludes != null) {
+            for (final String pattern : excludes.split(", ")) {
+                filter.addExclude(pattern);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Create a destroot holding the files of an application and its documentation.
+     */
+    private File createDestroot ()
+        throws Exception
+    {
+        final File destroot = File.createTempFile("jpkgtest", "destroot");
+        destroot.delete();
+        destroot.mkdir();
+        for (final String path : new String[] {
+            "usr/bin/tool", "usr/lib/libapp.so", "usr/lib/libapp.so.1", "usr/include/app.h",
+            "usr/share/doc/app/README", "var/cache/state" }) {
+            FileUtils.touch(new File(destroot, path));
+        }
+        return destroot;
+    }
+}
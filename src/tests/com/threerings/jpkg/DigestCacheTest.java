@@ -0,0 +1,168 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DigestCacheTest
+{
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _root = new File(TestData.TEMP_DIR, "digest_cache_test_files");
+        _cacheFile = new File(TestData.TEMP_DIR, "digest_cache_test.cache");
+        _cacheFile.delete();
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        FileUtils.deleteDirectory(_root);
+        _cacheFile.delete();
+    }
+
+    @Test
+    public void testGetPut ()
+        throws Exception
+    {
+        final File file = createFile("file", "contents");
+        final DigestCache cache = new DigestCache(_cacheFile, CACHE_SIZE);
+        assertNull(cache.get(file, readAttributes(file)));
+
+        cache.put(file, readAttributes(file), DigestUtils.md5Hex("contents"));
+        assertEquals(DigestUtils.md5Hex("contents"), cache.get(file, readAttributes(file)));
+
+        // the entries persist, and the size of an existing cache is kept.
+        final DigestCache reopened = new DigestCache(_cacheFile, CACHE_SIZE * 2);
+        assertEquals(DigestUtils.md5Hex("contents"), reopened.get(file, readAttributes(file)));
+        assertEquals(CACHE_SIZE, _cacheFile.length());
+    }
+
+    @Test
+    public void testChangedFile ()
+        throws Exception
+    {
+        final File file = createFile("file", "contents");
+        final DigestCache cache = new DigestCache(_cacheFile, CACHE_SIZE);
+        cache.put(file, readAttributes(file), DigestUtils.md5Hex("contents"));
+
+        // a change of modification time or size misses the cache.
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(1000));
+        assertNull(cache.get(file, readAttributes(file)));
+        cache.put(file, readAttributes(file), DigestUtils.md5Hex("contents"));
+        FileUtils.writeStringToFile(file, "longer contents");
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(1000));
+        assertNull(cache.get(file, readAttributes(file)));
+
+        // as does a different file with the same attributes.
+        final File other = createFile("other", "contents");
+        assertNull(cache.get(other, readAttributes(file)));
+    }
+
+    @Test
+    public void testEviction ()
+        throws Exception
+    {
+        final DigestCache cache = new DigestCache(_cacheFile, CACHE_SIZE);
+        final File file = createFile("file", "contents");
+        final BasicFileAttributes attributes = readAttributes(file);
+        for (int ii = 0; ii < 10000; ii++) {
+            cache.put(new File(_root, "file" + ii), attributes, DigestUtils.md5Hex("file" + ii));
+        }
+
+        // the cache never grows, but recent entries remain.
+        assertEquals(CACHE_SIZE, _cacheFile.length());
+        assertEquals(DigestUtils.md5Hex("file9999"), cache.get(new File(_root, "file9999"), attributes));
+    }
+
+    @Test
+    public void testInvalidFile ()
+        throws Exception
+    {
+        final File file = createFile("file", "contents");
+        FileUtils.writeStringToFile(_cacheFile, "not a cache");
+
+        // a file which is not a cache is replaced.
+        final DigestCache cache = new DigestCache(_cacheFile, CACHE_SIZE);
+        assertEquals(CACHE_SIZE, _cacheFile.length());
+        assertNull(cache.get(file, readAttributes(file)));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testTooSmall ()
+        throws Exception
+    {
+        new DigestCache(_cacheFile, 16);
+    }
+
+    /**
+     * Create a file with the supplied name and contents in the test directory.
+     */
+    private File createFile (String name, String contents)
+        throws Exception
+    {
+        final File file = new File(_root, name);
+        FileUtils.writeStringToFile(file, contents);
+        return file;
+    }
+
+    /**
+     * Returns the current attributes of the supplied file.
+     */
+    private BasicFileAttributes readAttributes (File file)
+        throws Exception
+    {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    /** The size of the test caches, a header and 16 buckets. */
+    private static final long CACHE_SIZE = 16 + 16 * 512;
+
+    /** The directory holding the test files. */
+    private File _root;
+
+    /** The test cache file. */
+    private File _cacheFile;
+}
@@ -0,0 +1,121 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DigestStoreTest
+{
+    @Test
+    public void testPut ()
+        throws Exception
+    {
+        final DigestStore store = new DigestStore();
+        store.put("dir/file", MD5_A);
+        store.put("dir/f\u00fcr", MD5_B);
+
+        assertEquals(2, store.size());
+        assertEquals("dir/file", store.getPath(0));
+        assertEquals(MD5_A, store.getMd5(0));
+        assertEquals("dir/f\u00fcr", store.getPath(1));
+        assertEquals("dir/f\u00fcr".getBytes("UTF-8").length, store.getPathLength(1));
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        store.writePath(1, output);
+        output.write(' ');
+        store.writeMd5(1, output);
+        assertEquals("dir/f\u00fcr " + MD5_B, output.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSort ()
+    {
+        final DigestStore store = new DigestStore();
+        store.put("b", MD5_A);
+        store.put("a/b", MD5_A);
+        store.put("a", MD5_A);
+        store.put("a/b", MD5_B);
+        store.put("a-b", MD5_A);
+
+        // later checksums for the same path replace earlier ones.
+        final int[] sorted = store.sort();
+        assertEquals(4, sorted.length);
+        assertEquals("a", store.getPath(sorted[0]));
+        assertEquals("a-b", store.getPath(sorted[1]));
+        assertEquals("a/b", store.getPath(sorted[2]));
+        assertEquals(MD5_B, store.getMd5(sorted[2]));
+        assertEquals("b", store.getPath(sorted[3]));
+    }
+
+    @Test
+    public void testManyEntries ()
+    {
+        // enough entries to fill several pages and grow the arrays.
+        final DigestStore store = new DigestStore();
+        final Map<String, String> expected = new HashMap<String, String>();
+        for (int ii = 0; ii < 200000; ii++) {
+            final String path = "usr/share/package/directory" + (ii % 97) + "/file" + ii;
+            final String md5 = DigestUtils.md5Hex(path);
+            store.put(path, md5);
+            expected.put(path, md5);
+        }
+        assertEquals(expected, store.toMap());
+
+        final int[] sorted = store.sort();
+        assertEquals(expected.size(), sorted.length);
+        for (int ii = 1; ii < sorted.length; ii++) {
+            assertEquals(true, store.getPath(sorted[ii - 1]).compareTo(store.getPath(sorted[ii])) < 0);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidMd5 ()
+    {
+        new DigestStore().put("file", "not an md5 checksum at all, no..");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testShortMd5 ()
+    {
+        new DigestStore().put("file", "0123");
+    }
+
+    /** Test checksums. */
+    private static final String MD5_A = "5228465a3ee0e7630c6748d16ee9dc00";
+    private static final String MD5_B = "0123456789abcdef0123456789abcdef";
+}
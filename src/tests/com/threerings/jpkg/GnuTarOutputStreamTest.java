@@ -0,0 +1,171 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.tar.TarUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GnuTarOutputStreamTest
+{
+    @Test
+    public void testOctalSize ()
+        throws Exception
+    {
+        // entries which fit a ustar header keep the octal size.
+        final byte[] header = writeHeaders(largeEntry("file.txt", GnuTarOutputStream.MAX_OCTAL_SIZE));
+        assertEquals(GnuTarOutputStream.MAX_OCTAL_SIZE,
+            TarUtils.parseOctal(header, SIZE_OFFSET, TarConstants.SIZELEN));
+        assertValidChecksum(header, 0);
+    }
+
+    @Test
+    public void testBase256Size ()
+        throws Exception
+    {
+        final long size = GnuTarOutputStream.MAX_OCTAL_SIZE + 2;
+        final byte[] header = writeHeaders(largeEntry("file.txt", size));
+
+        assertEquals((byte)0x80, header[SIZE_OFFSET]);
+        assertEquals(size, parseBase256(header, SIZE_OFFSET));
+        assertEquals("file.txt", TarUtils.parseName(header, 0, TarConstants.NAMELEN).toString());
+        assertValidChecksum(header, 0);
+    }
+
+    @Test
+    public void testBase256SizeLongName ()
+        throws Exception
+    {
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < 120) {
+            name.append("long_name/");
+        }
+        name.append("file.txt");
+        final long size = 20L * GnuTarOutputStream.MAX_OCTAL_SIZE;
+        final byte[] header = writeHeaders(largeEntry(name.toString(), size));
+
+        // the long name entry comes first, then its data, then the entry itself.
+        assertEquals(TarConstants.GNU_LONGLINK, TarUtils.parseName(header, 0, TarConstants.NAMELEN).toString());
+        assertEquals(0, TarUtils.parseOctal(header, MODTIME_OFFSET, TarConstants.MODTIMELEN));
+        assertValidChecksum(header, 0);
+        assertEquals(name.toString(), TarUtils.parseName(header, RECORD_SIZE, RECORD_SIZE).toString());
+
+        final int offset = 2 * RECORD_SIZE;
+        assertEquals(size, parseBase256(header, offset + SIZE_OFFSET));
+        assertValidChecksum(header, offset);
+    }
+
+    @Test(expected=IOException.class)
+    public void testBase256SizeShortData ()
+        throws Exception
+    {
+        final TarOutputStream tar = new GnuTarOutputStream(new ByteArrayOutputStream());
+        tar.putNextEntry(largeEntry("file.txt", GnuTarOutputStream.MAX_OCTAL_SIZE + 1));
+        tar.write(new byte[RECORD_SIZE]);
+        tar.closeEntry();
+    }
+
+    /**
+     * Returns the header records written for the supplied entry.
+     */
+    private static byte[] writeHeaders (TarEntry entry)
+        throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final SkippingTarOutputStream tar = new SkippingTarOutputStream(output);
+        tar.putNextEntry(entry);
+        tar.skipEntryData();
+        tar.close();
+        return output.toByteArray();
+    }
+
+    private static TarEntry largeEntry (String name, long size)
+    {
+        final TarEntry entry = new TarEntry(name);
+        entry.setSize(size);
+        entry.setModTime(0);
+        return entry;
+    }
+
+    private static long parseBase256 (byte[] header, int offset)
+    {
+        long value = header[offset] & 0x7f;
+        for (int ii = 1; ii < TarConstants.SIZELEN; ii++) {
+            value = (value << 8) | (header[offset + ii] & 0xff);
+        }
+        return value;
+    }
+
+    private static void assertValidChecksum (byte[] header, int offset)
+    {
+        final byte[] record = new byte[RECORD_SIZE];
+        System.arraycopy(header, offset, record, 0, RECORD_SIZE);
+        final long stored = TarUtils.parseOctal(record, CHKSUM_OFFSET, TarConstants.CHKSUMLEN);
+        for (int ii = 0; ii < TarConstants.CHKSUMLEN; ii++) {
+            record[CHKSUM_OFFSET + ii] = (byte)' ';
+        }
+        assertEquals(TarUtils.computeCheckSum(record), stored);
+    }
+
+    /**
+     * Writes entry headers without their data.
+     */
+    private static class SkippingTarOutputStream extends GnuTarOutputStream
+    {
+        public SkippingTarOutputStream (OutputStream output)
+        {
+            super(output, RECORD_SIZE, RECORD_SIZE);
+        }
+
+        public void skipEntryData ()
+            throws IOException
+        {
+            currBytes = currSize;
+            closeEntry();
+        }
+    }
+
+    /** The size of a tar record. */
+    private static final int RECORD_SIZE = 512;
+
+    /** The offsets of the ustar header fields checked. */
+    private static final int SIZE_OFFSET = 124;
+    private static final int MODTIME_OFFSET = 136;
+    private static final int CHKSUM_OFFSET = 148;
+}
@@ -30,21 +30,51 @@
  */
 package com.threerings.jpkg;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarConstants;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.tar.TarUtils;
+import org.junit.Before;
 import org.junit.Test;
 
+import com.threerings.jpkg.compress.GzipCodec;
+import com.threerings.jpkg.compress.NoCompressionCodec;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PackageTarFileTest extends TestTarFile
 {
+    @Before
+    public void setUp ()
+    {
+        // git does not track the empty directories used by the recursive permission tests.
+        RECURSIVE_DIR.mkdirs();
+        NON_RECURSIVE_DIR.mkdirs();
+    }
+
     @Test
     public void testPackageTarFile ()
         throws Exception
@@ -57,6 +87,464 @@ public class PackageTarFileTest extends TestTarFile
         }
     }
 
+    @Test
+    public void testGetChannel ()
+        throws Exception
+    {
+        final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR);
+        try {
+            tar.addFile(TEST_FILE, DESTROOT);
+            tar.close();
+
+            final FileChannel channel = tar.getChannel();
+            try {
+                assertEquals(tar.getSize(), channel.size());
+
+            } finally {
+                channel.close();
+            }
+
+        } finally {
+            tar.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryThreshold ()
+        throws Exception
+    {
+        // a threshold larger than the tar data keeps it in memory, with no file to transfer from.
+        final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR, new PermissionsMap(),
+            new GzipCodec(), 1024 * 1024);
+        TarInputStream input = null;
+        try {
+            tar.addFile(TEST_FILE, DESTROOT);
+            tar.close();
+            assertNull(tar.getChannel());
+
+            input = getTarInput(tar);
+            assertEquals("file.txt", input.getNextEntry().getName());
+            assertNull(input.getNextEntry());
+
+        } finally {
+            tar.delete();
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    @Test
+    public void testStream ()
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PackageTarFile tar = new PackageTarFile(output, new PermissionsMap(), new NoCompressionCodec());
+        tar.addFile(TEST_FILE, DESTROOT);
+        tar.close();
+
+        assertEquals("data.tar", tar.getPath());
+        assertEquals(output.size(), tar.getSize());
+        assertNull(tar.getChannel());
+        assertEquals(TEST_FILE_MD5, tar.getMd5s().get("file.txt"));
+
+        final TarInputStream input = new TarInputStream(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals("file.txt", input.getNextEntry().getName());
+    }
+
+    @Test
+    public void testReadThreads ()
+        throws Exception
+    {
+        // files both smaller and larger than the prefetch chunks, and more than the read ahead window.
+        final File root = new File(TestData.TEMP_DIR, "read_threads_test");
+        final List<File> files = new ArrayList<File>();
+        final Random random = new Random(42);
+        try {
+            for (int ii = 0; ii < 40; ii++) {
+                final File file = new File(root, "file" + ii);
+                final byte[] data = new byte[ii % 5 == 0 ? random.nextInt(700 * 1024) : ii * 100];
+                random.nextBytes(data);
+                FileUtils.writeByteArrayToFile(file, data);
+                files.add(file);
+            }
+
+            final ByteArrayOutputStream serialOutput = new ByteArrayOutputStream();
+            final PackageTarFile serial = new PackageTarFile(serialOutput, new PermissionsMap(),
+                new NoCompressionCodec());
+            serial.setReadThreads(0);
+            serial.addFiles(files, root.getAbsolutePath());
+            serial.close();
+
+            final ByteArrayOutputStream threadedOutput = new ByteArrayOutputStream();
+            final PackageTarFile threaded = new PackageTarFile(threadedOutput, new PermissionsMap(),
+                new NoCompressionCodec());
+            threaded.setReadThreads(3);
+            threaded.addFiles(files, root.getAbsolutePath());
+            threaded.close();
+
+            assertEquals(files.size(), threaded.getMd5s().size());
+            assertEquals(serial.getMd5s(), threaded.getMd5s());
+            assertEquals(serial.getTotalDataSize(), threaded.getTotalDataSize());
+            assertTrue(Arrays.equals(serialOutput.toByteArray(), threadedOutput.toByteArray()));
+
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testMemberCache ()
+        throws Exception
+    {
+        final File root = new File(TestData.TEMP_DIR, "member_cache_test");
+        final File cacheDir = new File(TestData.TEMP_DIR, "member_cache_test_cache");
+        final Random random = new Random(7);
+        try {
+            for (int ii = 0; ii < 60; ii++) {
+                // include names longer than a plain tar header allows, and a file spanning blocks.
+                final String name = (ii % 10 == 0 ? repeat("long", 30) : "file") + ii;
+                final byte[] data = new byte[ii == 0 ? 1500 * 1024 : random.nextInt(4096)];
+                random.nextBytes(data);
+                FileUtils.writeByteArrayToFile(new File(root, "dir" + (ii % 3) + "/" + name), data);
+            }
+
+            final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            final PackageTarFile reference = new PackageTarFile(plain, new PermissionsMap(), new GzipCodec());
+            reference.addDirectory(root);
+            reference.close();
+
+            final MemberCache cache = new MemberCache(cacheDir);
+            final ByteArrayOutputStream cold = new ByteArrayOutputStream();
+            final PackageTarFile coldTar = writeCached(root, cache, cold);
+            final int cached = FileUtils.listFiles(cacheDir, null, true).size();
+            assertTrue(cached > 1);
+            assertEquals(reference.getMd5s(), coldTar.getMd5s());
+            assertEquals(reference.getTotalDataSize(), coldTar.getTotalDataSize());
+            assertEquals(cold.size(), coldTar.getSize());
+            assertTarEquals(readTar(plain.toByteArray()), readTar(cold.toByteArray()));
+
+            // a rebuild of the same files uses only cached members, and is identical.
+            final ByteArrayOutputStream warm = new ByteArrayOutputStream();
+            writeCached(root, cache, warm);
+            assertTrue(Arrays.equals(cold.toByteArray(), warm.toByteArray()));
+            assertEquals(cached, FileUtils.listFiles(cacheDir, null, true).size());
+
+            // changing a file only changes its own group, which may now extend into the next.
+            FileUtils.writeStringToFile(new File(root, "dir1/file1"), "changed");
+            final ByteArrayOutputStream changed = new ByteArrayOutputStream();
+            final PackageTarFile changedTar = writeCached(root, cache, changed);
+            final int recached = FileUtils.listFiles(cacheDir, null, true).size();
+            assertTrue(recached > cached && recached <= cached + 2);
+            assertEquals("changed", new String(readTar(changed.toByteArray()).get("dir1/file1")));
+            assertEquals(DigestUtils.md5Hex("changed"), changedTar.getMd5s().get("dir1/file1"));
+
+        } finally {
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(cacheDir);
+        }
+    }
+
+    @Test
+    public void testDigestCache ()
+        throws Exception
+    {
+        final File root = new File(TestData.TEMP_DIR, "digest_cache_test");
+        final File cacheFile = new File(TestData.TEMP_DIR, "digest_cache_test.cache");
+        final File cacheDir = new File(TestData.TEMP_DIR, "digest_cache_test_members");
+        try {
+            final File file = new File(root, "dir/file");
+            FileUtils.writeStringToFile(file, "contents");
+            FileUtils.writeStringToFile(new File(root, "other"), "other contents");
+
+            final DigestCache cache = new DigestCache(cacheFile, 64 * 1024);
+            final PackageTarFile first = writeDigestCached(root, cache, null);
+            assertEquals(DigestUtils.md5Hex("contents"), first.getMd5s().get("dir/file"));
+            assertEquals(DigestUtils.md5Hex("other contents"), first.getMd5s().get("other"));
+
+            // with a member cache as well, the cached checksums select the cached members.
+            final PackageTarFile members = writeDigestCached(root, cache, new MemberCache(cacheDir));
+            assertEquals(first.getMd5s(), members.getMd5s());
+            assertEquals(first.getMd5s(), writeDigestCached(root, cache, new MemberCache(cacheDir)).getMd5s());
+
+            // the checksums of unchanged files now come from the cache, shown by altering one.
+            final String fake = DigestUtils.md5Hex("fake");
+            cache.put(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class), fake);
+            assertEquals(fake, writeDigestCached(root, cache, null).getMd5s().get("dir/file"));
+
+            // a changed file is checksummed again.
+            FileUtils.writeStringToFile(file, "changed contents");
+            assertEquals(DigestUtils.md5Hex("changed contents"),
+                writeDigestCached(root, cache, null).getMd5s().get("dir/file"));
+
+        } finally {
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(cacheDir);
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void testHardLinks ()
+        throws Exception
+    {
+        final File root = new File(TestData.TEMP_DIR, "hard_links_test");
+        final File cacheDir = new File(TestData.TEMP_DIR, "hard_links_test_cache");
+        final Random random = new Random(11);
+        try {
+            // copies further apart than the gzip window would otherwise be stored again.
+            final byte[] data = new byte[100 * 1024];
+            random.nextBytes(data);
+            final byte[] other = new byte[data.length];
+            random.nextBytes(other);
+            FileUtils.writeByteArrayToFile(new File(root, "a/lib.jar"), data);
+            FileUtils.writeByteArrayToFile(new File(root, "b/lib.jar"), data);
+            FileUtils.writeByteArrayToFile(new File(root, "b/other.jar"), other);
+            FileUtils.writeByteArrayToFile(new File(root, "c/lib.jar"), data);
+            FileUtils.writeByteArrayToFile(new File(root, "private/lib.jar"), data);
+            FileUtils.writeStringToFile(new File(root, "a/empty"), "");
+            FileUtils.writeStringToFile(new File(root, "b/empty"), "");
+
+            // a copy with different permissions cannot share the data.
+            final PermissionsMap permissions = new PermissionsMap();
+            permissions.addPathPermissions("/private", new PathPermissions(TEST_UID, TEST_GID, TEST_MODE, true));
+
+            final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            final PackageTarFile reference = new PackageTarFile(plain, permissions, new GzipCodec());
+            reference.addDirectory(root);
+            reference.close();
+
+            final Map<String, String> expected = new LinkedHashMap<String, String>();
+            expected.put("b/lib.jar", "a/lib.jar");
+            expected.put("c/lib.jar", "a/lib.jar");
+
+            for (final int readThreads : new int[] { 0, PackageTarFile.DEFAULT_READ_THREADS }) {
+                for (final boolean cached : new boolean[] { false, true }) {
+                    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    final PackageTarFile tar = new PackageTarFile(output, permissions, new GzipCodec());
+                    tar.setReadThreads(readThreads);
+                    tar.setHardLinks(true);
+                    if (cached) {
+                        tar.setMemberCache(new MemberCache(cacheDir));
+                    }
+                    tar.addDirectory(root);
+                    tar.close();
+
+                    assertEquals(expected, readLinks(output.toByteArray()));
+                    assertEquals(reference.getMd5s(), tar.getMd5s());
+                    assertTrue(tar.getSize() < reference.getSize());
+                    // each linked copy of the 100 kilobyte file is not counted.
+                    assertEquals(reference.getTotalDataSize() - 2 * 100, tar.getTotalDataSize());
+
+                    final Map<String, byte[]> entries = readTar(output.toByteArray());
+                    assertEquals(0, entries.get("b/lib.jar").length);
+                    assertTrue(Arrays.equals(data, entries.get("a/lib.jar")));
+                    assertTrue(Arrays.equals(data, entries.get("private/lib.jar")));
+                    assertTrue(Arrays.equals(other, entries.get("b/other.jar")));
+                }
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(cacheDir);
+        }
+    }
+
+    @Test
+    public void testSymlinks ()
+        throws Exception
+    {
+        final File root = new File(TestData.TEMP_DIR, "symlinks_test");
+        try {
+            FileUtils.writeStringToFile(new File(root, "file.txt"), "file");
+            FileUtils.writeStringToFile(new File(root, "dir/inner.txt"), "inner");
+            Files.createSymbolicLink(new File(root, "file-link").toPath(), new File("file.txt").toPath());
+            Files.createSymbolicLink(new File(root, "dir-link").toPath(), new File("dir").toPath());
+            Files.createSymbolicLink(new File(root, "dangling").toPath(), new File("missing").toPath());
+            Files.createSymbolicLink(new File(root, "dir/loop").toPath(), new File("..").toPath());
+
+            // by default every link is kept, owned as set by the permissions map.
+            final PermissionsMap permissions = new PermissionsMap();
+            permissions.addPathPermissions("/dir-link", new PathPermissions(TEST_UID, TEST_GID, TEST_MODE, false));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PackageTarFile tar = new PackageTarFile(output, permissions, new GzipCodec());
+            tar.addDirectory(root);
+            tar.close();
+
+            final Map<String, String> expected = new LinkedHashMap<String, String>();
+            expected.put("dangling", "missing");
+            expected.put("dir/loop", "..");
+            expected.put("dir-link", "dir");
+            expected.put("file-link", "file.txt");
+            assertEquals(expected, readLinks(output.toByteArray()));
+            assertEquals(Arrays.asList("dangling", "dir/", "dir/inner.txt", "dir/loop", "dir-link",
+                "file-link", "file.txt"), new ArrayList<String>(readTar(output.toByteArray()).keySet()));
+            assertTrue(tar.getMd5s().containsKey("file.txt"));
+            assertTrue(!tar.getMd5s().containsKey("file-link"));
+
+            final TarInputStream input =
+                new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())));
+            TarEntry entry;
+            while (!(entry = input.getNextEntry()).getName().equals("dir-link")) {
+            }
+            assertEquals(UnixStandardPermissions.SYMLINK_MODE, entry.getMode());
+            assertEquals(TEST_UID, entry.getUserId());
+
+            // links to files are replaced by the files, links to directories are kept.
+            output = new ByteArrayOutputStream();
+            tar = new PackageTarFile(output, new PermissionsMap(), new GzipCodec());
+            tar.setSymlinkPolicy(SymlinkPolicy.FOLLOW_FILES);
+            tar.addDirectory(root);
+            tar.close();
+
+            expected.remove("file-link");
+            assertEquals(expected, readLinks(output.toByteArray()));
+            assertEquals("file", new String(readTar(output.toByteArray()).get("file-link"), "UTF-8"));
+            assertTrue(tar.getMd5s().containsKey("file-link"));
+
+            // following every link copies the linked directory, but not the link back to the root.
+            output = new ByteArrayOutputStream();
+            tar = new PackageTarFile(output, new PermissionsMap(), new GzipCodec());
+            tar.setSymlinkPolicy(SymlinkPolicy.FOLLOW);
+            tar.addDirectory(root);
+            tar.close();
+
+            expected.remove("dir-link");
+            expected.put("dir-link/loop", "..");
+            assertEquals(expected, readLinks(output.toByteArray()));
+            assertEquals(Arrays.asList("dangling", "dir/", "dir/inner.txt", "dir/loop", "dir-link/",
+                "dir-link/inner.txt", "dir-link/loop", "file-link", "file.txt"),
+                new ArrayList<String>(readTar(output.toByteArray()).keySet()));
+
+        } finally {
+            deleteSymlinks(root, "file-link", "dir-link", "dangling", "dir/loop");
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testAddStreamEntries ()
+        throws Exception
+    {
+        final File cacheDir = new File(TestData.TEMP_DIR, "stream_entries_test_cache");
+        final byte[] data = repeat("streamed ", 1000).getBytes("UTF-8");
+        final PermissionsMap permissions = new PermissionsMap();
+        permissions.addPathPermissions("/usr/bin", new PathPermissions(TEST_UID, TEST_GID, TEST_MODE, true));
+        try {
+            for (final boolean cached : new boolean[] { false, true }) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final PackageTarFile tar = new PackageTarFile(output, permissions, new GzipCodec());
+                if (cached) {
+                    tar.setMemberCache(new MemberCache(cacheDir));
+                }
+                tar.addFile(TEST_FILE, DESTROOT);
+                tar.addEntry("/usr/share/app/data.txt", data.length, new ByteArrayInputStream(data),
+                    UnixStandardPermissions.STANDARD_FILE_MODE, 1000L);
+                tar.addDirectoryEntry("usr/share/app/", UnixStandardPermissions.STANDARD_DIR_MODE, 1000L);
+                tar.addEntry("usr/bin/tool", 4, new ByteArrayInputStream(data),
+                    UnixStandardPermissions.EXECUTABLE_FILE_MODE, 1000L);
+                tar.close();
+
+                // parent directories are added once, before the first entry beneath them.
+                final Map<String, byte[]> entries = readTar(output.toByteArray());
+                assertEquals(Arrays.asList("file.txt", "usr/", "usr/share/", "usr/share/app/",
+                    "usr/share/app/data.txt", "usr/bin/", "usr/bin/tool"),
+                    new ArrayList<String>(entries.keySet()));
+                assertTrue(Arrays.equals(data, entries.get("usr/share/app/data.txt")));
+                assertEquals("stre", new String(entries.get("usr/bin/tool"), "UTF-8"));
+
+                assertEquals(DigestUtils.md5Hex(data), tar.getMd5s().get("usr/share/app/data.txt"));
+                assertEquals(TEST_FILE_MD5, tar.getMd5s().get("file.txt"));
+                assertEquals(3, tar.getMd5s().size());
+                assertEquals(1 + data.length / 1024 + 1, tar.getTotalDataSize());
+
+                final TarInputStream input =
+                    new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())));
+                TarEntry entry;
+                while (!(entry = input.getNextEntry()).getName().equals("usr/bin/tool")) {
+                    if (entry.getName().equals("usr/share/app/data.txt")) {
+                        assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entry.getMode());
+                        assertEquals(1000L, entry.getModTime().getTime());
+                    }
+                }
+                assertEquals(TEST_MODE, entry.getMode());
+                assertEquals(TEST_UID, entry.getUserId());
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(cacheDir);
+        }
+    }
+
+    @Test
+    public void testAddGeneratedEntries ()
+        throws Exception
+    {
+        final byte[] config = "name=value\n".getBytes("UTF-8");
+        // a slice of a larger array, so that the array offset is not 0.
+        final ByteBuffer heap = ((ByteBuffer)ByteBuffer.allocate(config.length + 10).position(10)).slice();
+        heap.put(config).flip();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(config.length);
+        direct.put(config).flip();
+
+        final PermissionsMap permissions = new PermissionsMap();
+        permissions.addPathPermissions("/usr/lib/libapp.so", new PathPermissions(TEST_UID, TEST_GID, TEST_MODE, false));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PackageTarFile tar = new PackageTarFile(output, permissions, new GzipCodec());
+        tar.addEntry("etc/app/heap.conf", heap, UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        tar.addEntry("etc/app/direct.conf", direct, UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        tar.addEntry("etc/app/channel.conf", config.length,
+            Channels.newChannel(new ByteArrayInputStream(config)), UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        tar.addSymlink("usr/lib/libapp.so", "libapp.so.1", 0);
+        tar.close();
+
+        // the buffers are left as they were.
+        assertEquals(0, heap.position());
+        assertEquals(config.length, direct.remaining());
+
+        final Map<String, byte[]> entries = readTar(output.toByteArray());
+        for (final String name : new String[] { "heap", "direct", "channel" }) {
+            assertTrue(Arrays.equals(config, entries.get("etc/app/" + name + ".conf")));
+            assertEquals(DigestUtils.md5Hex(config), tar.getMd5s().get("etc/app/" + name + ".conf"));
+        }
+        assertEquals(3, tar.getMd5s().size());
+
+        final Map<String, String> links = readLinks(output.toByteArray());
+        assertEquals("libapp.so.1", links.get("usr/lib/libapp.so"));
+        final TarInputStream input =
+            new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())));
+        TarEntry entry;
+        while (!(entry = input.getNextEntry()).getName().equals("usr/lib/libapp.so")) {
+        }
+        assertEquals(UnixStandardPermissions.SYMLINK_MODE, entry.getMode());
+        assertEquals(TEST_UID, entry.getUserId());
+        assertEquals(0, entry.getSize());
+    }
+
+    @Test(expected=IOException.class)
+    public void testAddShortStreamEntry ()
+        throws Exception
+    {
+        final PackageTarFile tar =
+            new PackageTarFile(new ByteArrayOutputStream(), new PermissionsMap(), new GzipCodec());
+        tar.addEntry("short.txt", 10, new ByteArrayInputStream(new byte[5]),
+            UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMemberCacheRequiresGzip ()
+        throws Exception
+    {
+        new PackageTarFile(new ByteArrayOutputStream(), new PermissionsMap(), new NoCompressionCodec())
+            .setMemberCache(new MemberCache(TestData.TEMP_DIR));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNegativeReadThreads ()
+        throws Exception
+    {
+        new PackageTarFile(new ByteArrayOutputStream(), new PermissionsMap(), new NoCompressionCodec())
+            .setReadThreads(-1);
+    }
+
     @Test
     public void testAddFileNoStrip ()
         throws Exception
@@ -122,16 +610,96 @@ public class PackageTarFileTest extends TestTarFile
     public void testLargeDataSize ()
         throws Exception
     {
+        final File destroot = TestData.createLargeDestroot();
         final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR);
 
         try {
-            tar.addFile(TestData.LARGE_FILE, DESTROOT);
+            tar.addFile(new File(destroot, TestData.TEST_FILE_NAME), destroot.getAbsolutePath());
             tar.close();
 
             assertEquals(TestData.LARGE_FILE_SIZE_KBS, tar.getTotalDataSize());
 
         } finally {
             tar.delete();
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testSparseFile ()
+        throws Exception
+    {
+        // a file too large for the octal size field of a ustar header.
+        final long size = GnuTarOutputStream.MAX_OCTAL_SIZE + 2;
+        final File destroot = TestData.createSparseDestroot(size);
+        final HeadOutputStream output = new HeadOutputStream(TAR_RECORD_SIZE);
+
+        try {
+            final PackageTarFile tar = new PackageTarFile(output, new PermissionsMap(), new NoCompressionCodec());
+            tar.addFile(new File(destroot, TestData.TEST_FILE_NAME), destroot.getAbsolutePath());
+            tar.close();
+
+            assertEquals(size / FileUtils.ONE_KB, tar.getTotalDataSize());
+            assertEquals(output.getCount(), tar.getSize());
+
+            // the header and data, padded to a record, then the end of archive records.
+            final long records = 1 + (size + TAR_RECORD_SIZE - 1) / TAR_RECORD_SIZE + 2;
+            final long blocks = (records * TAR_RECORD_SIZE + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE;
+            assertEquals(blocks * TAR_BLOCK_SIZE, tar.getSize());
+
+            // the size is stored as a GNU tar base-256 number.
+            final byte[] header = output.getHead();
+            assertEquals(TestData.TEST_FILE_NAME, TarUtils.parseName(header, 0, TarConstants.NAMELEN).toString());
+            assertEquals((byte)0x80, header[124]);
+            long stored = 0;
+            for (int ii = 125; ii < 124 + TarConstants.SIZELEN; ii++) {
+                stored = (stored << 8) | (header[ii] & 0xff);
+            }
+            assertEquals(size, stored);
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testSparseFileCompression ()
+        throws Exception
+    {
+        // the holes of a sparse file compress to a repeated fragment of zeros.
+        final long size = 256 * FileUtils.ONE_MB;
+        final File destroot = TestData.createSparseDestroot(size);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            final PackageTarFile tar = new PackageTarFile(output, new PermissionsMap(), new GzipCodec());
+            tar.addFile(new File(destroot, TestData.TEST_FILE_NAME), destroot.getAbsolutePath());
+            tar.close();
+            assertTrue(output.size() < size / 500);
+
+            final TarInputStream input =
+                new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())));
+            final TarEntry entry = input.getNextEntry();
+            assertEquals(size, entry.getSize());
+            final byte[] buffer = new byte[64 * 1024];
+            long read = 0;
+            int nonZero = 0;
+            byte last = 0;
+            int len;
+            while ((len = input.read(buffer)) > 0) {
+                for (int ii = 0; ii < len; ii++) {
+                    nonZero += buffer[ii] == 0 ? 0 : 1;
+                }
+                last = buffer[len - 1];
+                read += len;
+            }
+            assertEquals(size, read);
+            assertEquals(1, nonZero);
+            assertEquals((byte)'x', last);
+            assertNull(input.getNextEntry());
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
         }
     }
 
@@ -223,8 +791,9 @@ public class PackageTarFileTest extends TestTarFile
 
             entry = input.getNextEntry();
             assertEquals(TEST_LINK.getName(), entry.getName());
-            assertEquals(TEST_LINK.length(), entry.getSize());
-            assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entry.getMode());
+            assertEquals(TEST_FILE.getName(), entry.getLinkName());
+            assertEquals(0, entry.getSize());
+            assertEquals(UnixStandardPermissions.SYMLINK_MODE, entry.getMode());
 
             entry = input.getNextEntry();
             assertEquals(TEST_DIR_PATH, entry.getName());
@@ -396,11 +965,12 @@ public class PackageTarFileTest extends TestTarFile
     public void testDuplicatePermissions ()
         throws Exception
     {
+        // both paths refer to the same entry, so which permission applies would be ambiguous.
         final PermissionsMap permissions = new PermissionsMap();
-        permissions.addPathPermissions(
-            "recursive_dir", new PathPermissions(TEST_USER, TEST_GROUP, TEST_MODE, true));
         permissions.addPathPermissions(
             "recursive_dir/dir", new PathPermissions(TEST_USER, TEST_GROUP, TEST_MODE, true));
+        permissions.addPathPermissions(
+            "/recursive_dir/dir", new PathPermissions(TEST_USER, TEST_GROUP, TEST_MODE, true));
 
         final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR, permissions);
         try {
@@ -411,6 +981,189 @@ public class PackageTarFileTest extends TestTarFile
         }
     }
 
+    @Test
+    public void testNestedRecursivePermissions ()
+        throws Exception
+    {
+        // the deepest permission applying to an entry wins.
+        final PermissionsMap permissions = new PermissionsMap();
+        permissions.addPathPermissions("/", new PathPermissions(TEST_USER, TEST_GROUP, 0700, true));
+        permissions.addPathPermissions("/directory", new PathPermissions(TEST_UID, TEST_GID, TEST_MODE, true));
+
+        final PackageTarFile tar = new PackageTarFile(TestData.TEMP_DIR, permissions);
+
+        TarInputStream input = null;
+        try {
+            tar.addFile(TEST_FILE, DESTROOT);
+            tar.addFile(TEST_DIR_FILE, DESTROOT);
+            tar.close();
+
+            input = getTarInput(tar);
+
+            TarEntry entry = input.getNextEntry();
+            assertEquals("file.txt", entry.getName());
+            assertEquals(TEST_USER, entry.getUserName());
+            assertEquals(0700, entry.getMode());
+
+            entry = input.getNextEntry();
+            assertEquals("directory/file.txt", entry.getName());
+            assertEquals(TEST_UID, entry.getUserId());
+            assertEquals(TEST_GID, entry.getGroupId());
+            assertEquals(TEST_MODE, entry.getMode());
+
+            assertNull(input.getNextEntry());
+        } finally {
+            tar.delete();
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Write the supplied directory to a tar file using the supplied member cache.
+     */
+    private PackageTarFile writeCached (File root, MemberCache cache, ByteArrayOutputStream output)
+        throws Exception
+    {
+        final PackageTarFile tar = new PackageTarFile(output, new PermissionsMap(), new GzipCodec());
+        tar.setMemberCache(cache);
+        tar.addDirectory(root);
+        tar.close();
+        return tar;
+    }
+
+    /**
+     * Write the supplied directory to a discarded tar file using the supplied digest cache, and
+     * the supplied member cache if not null.
+     */
+    private PackageTarFile writeDigestCached (File root, DigestCache cache, MemberCache members)
+        throws Exception
+    {
+        final PackageTarFile tar = new PackageTarFile(new ByteArrayOutputStream(), new PermissionsMap(),
+            new GzipCodec());
+        if (members != null) {
+            tar.setMemberCache(members);
+        }
+        tar.setDigestCache(cache);
+        tar.addDirectory(root);
+        tar.close();
+        return tar;
+    }
+
+    /**
+     * Returns the entries of the supplied gzip compressed tar data, mapped to their contents.
+     */
+    private Map<String, byte[]> readTar (byte[] data)
+        throws Exception
+    {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        final TarInputStream input =
+            new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+        TarEntry entry;
+        while ((entry = input.getNextEntry()) != null) {
+            final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            input.copyEntryContents(contents);
+            entries.put(entry.getName(), contents.toByteArray());
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the hard and symbolic link entries of the supplied gzip compressed tar data, mapped
+     * to the paths they link to.
+     */
+    private Map<String, String> readLinks (byte[] data)
+        throws Exception
+    {
+        final Map<String, String> links = new LinkedHashMap<String, String>();
+        final TarInputStream input =
+            new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+        TarEntry entry;
+        while ((entry = input.getNextEntry()) != null) {
+            if (entry.getLinkName().length() > 0) {
+                links.put(entry.getName(), entry.getLinkName());
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Delete the supplied symbolic links beneath the root, which deleting the directory would
+     * otherwise follow.
+     */
+    private static void deleteSymlinks (File root, String... links)
+        throws Exception
+    {
+        for (final String link : links) {
+            Files.deleteIfExists(new File(root, link).toPath());
+        }
+    }
+
+    /**
+     * Verify the supplied tar entries have the same names, in the same order, and contents.
+     */
+    private void assertTarEquals (Map<String, byte[]> expected, Map<String, byte[]> actual)
+    {
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+        for (final Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), actual.get(entry.getKey())));
+        }
+    }
+
+    /**
+     * Returns the supplied string repeated the given number of times.
+     */
+    private static String repeat (String value, int count)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int ii = 0; ii < count; ii++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Keeps the first bytes written to it, and counts the rest.
+     */
+    private static class HeadOutputStream extends OutputStream
+    {
+        public HeadOutputStream (int length)
+        {
+            _head = new byte[length];
+        }
+
+        public byte[] getHead ()
+        {
+            return _head;
+        }
+
+        public long getCount ()
+        {
+            return _count;
+        }
+
+        @Override // from OutputStream
+        public void write (int b)
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override // from OutputStream
+        public void write (byte[] b, int off, int len)
+        {
+            if (_count < _head.length) {
+                System.arraycopy(b, off, _head, (int)_count, (int)Math.min(len, _head.length - _count));
+            }
+            _count += len;
+        }
+
+        private final byte[] _head;
+        private long _count;
+    }
+
+    /** The tar record and default block sizes. */
+    private static final int TAR_RECORD_SIZE = 512;
+    private static final int TAR_BLOCK_SIZE = 10240;
+
     /** Test files in the destroot. */
     private static final String DESTROOT = new File("src/tests/data/package_destroot").getAbsolutePath();
     static final File TEST_FILE = new File(DESTROOT, "file.txt");
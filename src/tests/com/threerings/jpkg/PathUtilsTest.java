@@ -104,6 +104,17 @@ public class PathUtilsTest
         assertEquals("/test", PathUtils.normalize("/test"));
     }
 
+    @Test
+    public void testIsNormalized ()
+    {
+        final String[] paths = { "", "foo", "/foo/bar.txt", "usr/.../tmp", "foo/..", "/foobar/",
+            "//file", "./foo/bar.txt", "../foo/bar.txt", "xyz/./foo.txt", "/usr/tmp/../foo",
+            " foo", "foo\t", "/test///" };
+        for (final String path : paths) {
+            assertEquals(path, PathUtils.normalize(path).equals(path), PathUtils.isNormalized(path));
+        }
+    }
+
     @Test
     public void testStripLeadingSeparators ()
     {
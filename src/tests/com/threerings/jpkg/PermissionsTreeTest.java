@@ -0,0 +1,104 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PermissionsTreeTest
+{
+    @Test
+    public void testExactPermissions ()
+        throws Exception
+    {
+        final PermissionsMap map = new PermissionsMap();
+        map.addPathPermissions("/usr/bin/tool", FILE_PERMISSIONS);
+        final PermissionsTree tree = new PermissionsTree(map);
+
+        assertSame(FILE_PERMISSIONS, tree.getPermissions("usr/bin/tool"));
+        assertSame(FILE_PERMISSIONS, tree.getPermissions("/usr/bin/tool/"));
+        assertNull(tree.getPermissions("usr/bin"));
+        assertNull(tree.getPermissions("usr/bin/tool/child"));
+        assertNull(tree.getPermissions("usr/bin/toolbox"));
+    }
+
+    @Test
+    public void testRecursivePermissions ()
+        throws Exception
+    {
+        final PermissionsMap map = new PermissionsMap();
+        map.addPathPermissions("usr/lib", RECURSIVE_PERMISSIONS);
+        final PermissionsTree tree = new PermissionsTree(map);
+
+        assertSame(RECURSIVE_PERMISSIONS, tree.getPermissions("usr/lib"));
+        assertSame(RECURSIVE_PERMISSIONS, tree.getPermissions("usr/lib/a/b/c"));
+        assertNull(tree.getPermissions("usr/libexec"));
+        assertNull(tree.getPermissions("usr"));
+    }
+
+    @Test
+    public void testNestedPermissions ()
+        throws Exception
+    {
+        final PermissionsMap map = new PermissionsMap();
+        map.addPathPermissions("/", ROOT_PERMISSIONS);
+        map.addPathPermissions("usr/lib", RECURSIVE_PERMISSIONS);
+        map.addPathPermissions("usr/lib/app", NESTED_PERMISSIONS);
+        map.addPathPermissions("usr/lib/app/bin", FILE_PERMISSIONS);
+        final PermissionsTree tree = new PermissionsTree(map);
+
+        assertSame(ROOT_PERMISSIONS, tree.getPermissions("etc/config"));
+        assertSame(RECURSIVE_PERMISSIONS, tree.getPermissions("usr/lib/other"));
+        assertSame(NESTED_PERMISSIONS, tree.getPermissions("usr/lib/app/data/file"));
+
+        // a non recursive permission applies only to its own path.
+        assertSame(FILE_PERMISSIONS, tree.getPermissions("usr/lib/app/bin"));
+        assertSame(NESTED_PERMISSIONS, tree.getPermissions("usr/lib/app/bin/tool"));
+    }
+
+    @Test(expected=DuplicatePermissionsException.class)
+    public void testDuplicatePermissions ()
+        throws Exception
+    {
+        final PermissionsMap map = new PermissionsMap();
+        map.addPathPermissions("usr/lib", RECURSIVE_PERMISSIONS);
+        map.addPathPermissions("/usr/lib", NESTED_PERMISSIONS);
+        new PermissionsTree(map);
+    }
+
+    /** Test permissions. */
+    private static final PathPermissions ROOT_PERMISSIONS = new PathPermissions(0700, true);
+    private static final PathPermissions RECURSIVE_PERMISSIONS = new PathPermissions(0755, true);
+    private static final PathPermissions NESTED_PERMISSIONS = new PathPermissions("user", "group", 0750, true);
+    private static final PathPermissions FILE_PERMISSIONS = new PathPermissions(100, 100, 0644, false);
+}
@@ -0,0 +1,138 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Compares the time taken to write the tar headers of many small entries through TarEntry and
+ * {@link GnuTarOutputStream}, as {@link PackageTarFile} once did, with {@link TarHeader} and
+ * {@link TarWriter}. Run with "ant benchmark".
+ */
+public class TarHeaderBenchmark
+{
+    public static void main (String[] args)
+        throws IOException
+    {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+        final List<String> paths = new ArrayList<String>(count);
+        for (int ii = 0; ii < count; ii++) {
+            paths.add(ROOT + "usr/share/jpkg/dir" + (ii % 100) + "/file" + ii + ".txt");
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            writeTarEntries(paths);
+            final long tarEntry = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            writeTarHeaders(paths);
+            final long tarHeader = System.nanoTime() - start;
+
+            System.out.println("round=[" + round + "], entries=[" + count + "], " +
+                "TarEntry=[" + (tarEntry / count) + " ns/entry], " +
+                "TarHeader=[" + (tarHeader / count) + " ns/entry].");
+        }
+    }
+
+    /**
+     * Writes the entries as PackageTarFile did with TarEntry and TarOutputStream.
+     */
+    private static void writeTarEntries (List<String> paths)
+        throws IOException
+    {
+        final String stripPath = PathUtils.stripLeadingSeparators(PathUtils.normalize(ROOT));
+        final TarOutputStream tar = new GnuTarOutputStream(new NullOutputStream());
+        for (final String path : paths) {
+            final TarEntry entry = new TarEntry(PathUtils.stripLeadingSeparators(path));
+            entry.setModTime(MOD_TIME);
+            entry.setName(PathUtils.normalize(entry.getName()));
+            if (entry.getName().startsWith(stripPath)) {
+                entry.setName(PathUtils.stripLeadingSeparators(entry.getName().substring(stripPath.length())));
+            }
+            entry.setSize(0);
+            entry.setMode(UnixStandardPermissions.STANDARD_FILE_MODE);
+            entry.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
+            entry.setIds(UnixStandardPermissions.ROOT_USER.getId(), UnixStandardPermissions.ROOT_GROUP.getId());
+            tar.putNextEntry(entry);
+            tar.closeEntry();
+        }
+        tar.close();
+    }
+
+    /**
+     * Writes the entries as PackageTarFile does with TarHeader and TarWriter.
+     */
+    private static void writeTarHeaders (List<String> paths)
+        throws IOException
+    {
+        final String stripPath = PathUtils.stripLeadingSeparators(PathUtils.normalize(ROOT));
+        final TarWriter tar = new TarWriter(new NullOutputStream());
+        final TarHeader header = new TarHeader();
+        for (final String path : paths) {
+            String name = PathUtils.stripLeadingSeparators(path);
+            if (!PathUtils.isNormalized(name)) {
+                name = PathUtils.stripLeadingSeparators(PathUtils.normalize(name));
+            }
+            if (name.startsWith(stripPath)) {
+                name = PathUtils.stripLeadingSeparators(name.substring(stripPath.length()));
+            }
+            header.setName(name);
+            header.setModTime(MOD_TIME);
+            header.setSize(0);
+            header.setMode(UnixStandardPermissions.STANDARD_FILE_MODE);
+            header.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
+            header.setIds(UnixStandardPermissions.ROOT_USER.getId(), UnixStandardPermissions.ROOT_GROUP.getId());
+            tar.putNextEntry(header);
+            tar.closeEntry();
+        }
+        tar.close();
+    }
+
+    /** The number of entries written by default. */
+    private static final int DEFAULT_ENTRIES = 200000;
+
+    /** The number of times the entries are written by each path. */
+    private static final int ROUNDS = 5;
+
+    /** The destroot the entry paths are found in. */
+    private static final String ROOT = new File("/tmp/destroot").getAbsolutePath() + File.separator;
+
+    /** The modification time of every entry. */
+    private static final long MOD_TIME = 1577836800000L;
+}
@@ -0,0 +1,287 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TarHeaderTest
+{
+    @Test
+    public void testFile ()
+        throws Exception
+    {
+        assertSameHeader("usr/share/file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 12345);
+    }
+
+    @Test
+    public void testDirectory ()
+        throws Exception
+    {
+        assertSameHeader("usr/share/", UnixStandardPermissions.STANDARD_DIR_MODE, 0);
+    }
+
+    @Test
+    public void testLongName ()
+        throws Exception
+    {
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < 600) {
+            name.append("long_name/");
+        }
+        assertSameHeader(name + "file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+
+        // names either side of the name field length.
+        final String file = name.substring(0, TarConstants.NAMELEN - 1);
+        assertSameHeader(file + "x", UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+        assertSameHeader(file + "xy", UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+    }
+
+    @Test
+    public void testLargeSize ()
+        throws Exception
+    {
+        assertSameHeader("file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, GnuTarOutputStream.MAX_OCTAL_SIZE);
+        assertSameHeader("file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, GnuTarOutputStream.MAX_OCTAL_SIZE + 1);
+    }
+
+    @Test
+    public void testReuse ()
+        throws Exception
+    {
+        // a short entry after a long one leaves nothing of the long one behind.
+        final TarHeader header = new TarHeader();
+        fill(header, "a/very/long/path/" + new String(new char[200]).replace('\0', 'x'),
+            UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+        header.encode();
+        fill(header, "file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+        assertArrayEquals(writeHeader("file.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 1),
+            toArray(header.encode()));
+    }
+
+    @Test
+    public void testUtf8Name ()
+        throws Exception
+    {
+        final String name = "usr/share/f\u00fcr.txt";
+        final TarHeader header = new TarHeader();
+        fill(header, name, UnixStandardPermissions.STANDARD_FILE_MODE, 1);
+        final byte[] records = toArray(header.encode());
+
+        assertEquals(TarHeader.RECORD_SIZE, records.length);
+        assertEquals(name, new String(records, 0, name.getBytes("UTF-8").length, "UTF-8"));
+        assertChecksum(records);
+    }
+
+    @Test
+    public void testHardLink ()
+        throws Exception
+    {
+        final TarHeader header = new TarHeader();
+        fill(header, "usr/share/copy.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 12345);
+        header.setLinkName("usr/share/file.txt");
+        final byte[] records = toArray(header.encode());
+
+        // a link has no data, whatever the size, and otherwise matches a regular entry.
+        assertEquals(TarHeader.RECORD_SIZE, records.length);
+        final TarEntry entry = new TarEntry(records);
+        assertEquals("usr/share/copy.txt", entry.getName());
+        assertEquals("usr/share/file.txt", entry.getLinkName());
+        assertEquals(0, entry.getSize());
+        assertEquals(TarConstants.LF_LINK, records[156]);
+        assertChecksum(records);
+
+        final byte[] regular = writeHeader("usr/share/copy.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        for (int ii = 0; ii < TarHeader.RECORD_SIZE; ii++) {
+            if (ii < 148 || ii >= 157 + TarConstants.NAMELEN) {
+                assertEquals(regular[ii], records[ii]);
+            }
+        }
+    }
+
+    @Test
+    public void testSymbolicLink ()
+        throws Exception
+    {
+        final TarHeader header = new TarHeader();
+        fill(header, "usr/lib/libfoo.so", UnixStandardPermissions.SYMLINK_MODE, 0);
+        header.setSymbolicLinkName("../../opt/foo/libfoo.so.1");
+        assertTrue(header.isSymbolicLink());
+        final byte[] records = toArray(header.encode());
+
+        assertEquals(TarHeader.RECORD_SIZE, records.length);
+        final TarEntry entry = new TarEntry(records);
+        assertEquals("usr/lib/libfoo.so", entry.getName());
+        assertEquals("../../opt/foo/libfoo.so.1", entry.getLinkName());
+        assertEquals(UnixStandardPermissions.SYMLINK_MODE, entry.getMode());
+        assertEquals(TarConstants.LF_SYMLINK, records[156]);
+        assertChecksum(records);
+
+        // making the entry a hard link replaces the symbolic link.
+        header.setLinkName("usr/lib/libbar.so");
+        assertFalse(header.isSymbolicLink());
+        assertEquals(TarConstants.LF_LINK, toArray(header.encode())[156]);
+    }
+
+    @Test
+    public void testLongHardLink ()
+        throws Exception
+    {
+        final String name = "usr/share/" + new String(new char[150]).replace('\0', 'n');
+        final String link = "usr/share/" + new String(new char[600]).replace('\0', 'l');
+        final TarHeader header = new TarHeader();
+        fill(header, name, UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        header.setLinkName(link);
+        final byte[] records = toArray(header.encode());
+
+        // the long link entry comes first, then the long name entry and the header.
+        final int linkRecords = 1 + (link.length() + 1 + TarHeader.RECORD_SIZE - 1) / TarHeader.RECORD_SIZE;
+        final int nameRecords = 1 + (name.length() + 1 + TarHeader.RECORD_SIZE - 1) / TarHeader.RECORD_SIZE;
+        assertEquals((linkRecords + nameRecords + 1) * TarHeader.RECORD_SIZE, records.length);
+
+        final TarEntry longLink = new TarEntry(records);
+        assertEquals(TarConstants.GNU_LONGLINK, longLink.getName());
+        assertEquals(link.length() + 1, longLink.getSize());
+        assertEquals((byte)'K', records[156]);
+        assertEquals(link, new String(records, TarHeader.RECORD_SIZE, link.length(), "US-ASCII"));
+
+        final int nameOffset = linkRecords * TarHeader.RECORD_SIZE;
+        assertEquals(TarConstants.LF_GNUTYPE_LONGNAME, records[nameOffset + 156]);
+        assertEquals(name, new String(records, nameOffset + TarHeader.RECORD_SIZE, name.length(), "US-ASCII"));
+
+        final TarEntry entry = new TarEntry(Arrays.copyOfRange(records,
+            records.length - TarHeader.RECORD_SIZE, records.length));
+        assertEquals(link.substring(0, TarConstants.NAMELEN), entry.getLinkName());
+        assertEquals(0, entry.getSize());
+        assertEquals(TarConstants.LF_LINK, records[records.length - TarHeader.RECORD_SIZE + 156]);
+    }
+
+    /**
+     * Checks the checksum of the first record of the supplied records.
+     */
+    private static void assertChecksum (byte[] records)
+    {
+        final byte[] checked = Arrays.copyOf(records, TarHeader.RECORD_SIZE);
+        Arrays.fill(checked, 148, 156, (byte)' ');
+        assertEquals(TarUtils.computeCheckSum(checked), TarUtils.parseOctal(records, 148, 8));
+    }
+
+    /**
+     * Checks the records encoded by a {@link TarHeader} match those written by
+     * {@link GnuTarOutputStream} for the same entry.
+     */
+    private static void assertSameHeader (String name, int mode, long size)
+        throws IOException
+    {
+        final TarHeader header = new TarHeader();
+        fill(header, name, mode, size);
+        assertArrayEquals(writeHeader(name, mode, size), toArray(header.encode()));
+    }
+
+    private static void fill (TarHeader header, String name, int mode, long size)
+    {
+        header.setName(name);
+        header.setMode(mode);
+        header.setIds(TEST_UID, TEST_GID);
+        header.setNames(TEST_USER, TEST_GROUP);
+        header.setSize(size);
+        header.setModTime(TEST_TIME);
+    }
+
+    /**
+     * Returns the header records written by {@link GnuTarOutputStream} for the entry.
+     */
+    private static byte[] writeHeader (String name, int mode, long size)
+        throws IOException
+    {
+        final TarEntry entry = new TarEntry(name);
+        entry.setMode(mode);
+        entry.setIds(TEST_UID, TEST_GID);
+        entry.setNames(TEST_USER, TEST_GROUP);
+        entry.setSize(size);
+        entry.setModTime(TEST_TIME);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final HeaderOnlyTarOutputStream tar = new HeaderOnlyTarOutputStream(output);
+        tar.putNextEntry(entry);
+        tar.skipEntryData();
+        tar.close();
+
+        // drop the end of archive records.
+        final byte[] written = output.toByteArray();
+        return Arrays.copyOf(written, written.length - 2 * TarHeader.RECORD_SIZE);
+    }
+
+    private static byte[] toArray (ByteBuffer buffer)
+    {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes entry headers without their data.
+     */
+    private static class HeaderOnlyTarOutputStream extends GnuTarOutputStream
+    {
+        public HeaderOnlyTarOutputStream (OutputStream output)
+        {
+            super(output, TarHeader.RECORD_SIZE, TarHeader.RECORD_SIZE);
+        }
+
+        public void skipEntryData ()
+            throws IOException
+        {
+            currBytes = currSize;
+            closeEntry();
+        }
+    }
+
+    /** Test entry values. */
+    private static final String TEST_USER = "testuser";
+    private static final String TEST_GROUP = "testgroup";
+    private static final int TEST_UID = 1001;
+    private static final int TEST_GID = 1002;
+    private static final long TEST_TIME = 1577836800000L;
+}
@@ -0,0 +1,232 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarConstants;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TarReaderTest
+{
+    @Test
+    public void testReadTarWriter ()
+        throws Exception
+    {
+        final StringBuilder longName = new StringBuilder("usr/");
+        while (longName.length() < 150) {
+            longName.append("long_name/");
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TarWriter writer = new TarWriter(output);
+        final TarHeader header = new TarHeader();
+        addHeader(writer, header, "usr/", UnixStandardPermissions.STANDARD_DIR_MODE, 0);
+        writer.closeEntry();
+        addHeader(writer, header, longName + "file.txt", 0100755, 700);
+        writer.write(new byte[700]);
+        writer.closeEntry();
+        header.setSymbolicLinkName(longName + "target");
+        addHeader(writer, header, "usr/link", UnixStandardPermissions.SYMLINK_MODE, 0);
+        writer.closeEntry();
+        header.setLinkName("usr/" + longName + "file.txt");
+        addHeader(writer, header, "usr/hard", UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+        writer.closeEntry();
+        writer.close();
+
+        final TarReader reader = new TarReader(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals("usr/", reader.getName());
+        assertEquals(TarConstants.LF_DIR, reader.getType());
+        assertEquals(0755, reader.getMode());
+        assertEquals(TEST_TIME, reader.getModTime());
+
+        // the data of the long named file is skipped rather than read.
+        assertTrue(reader.next());
+        assertEquals(longName + "file.txt", reader.getName());
+        assertEquals(TarConstants.LF_NORMAL, reader.getType());
+        assertEquals(700, reader.getSize());
+
+        assertTrue(reader.next());
+        assertEquals("usr/link", reader.getName());
+        assertEquals(TarConstants.LF_SYMLINK, reader.getType());
+        assertEquals(longName + "target", reader.getLinkName());
+        assertEquals(0, reader.getSize());
+        assertEquals(-1, reader.read());
+
+        assertTrue(reader.next());
+        assertEquals(TarConstants.LF_LINK, reader.getType());
+        assertEquals("usr/" + longName + "file.txt", reader.getLinkName());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testReadData ()
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TarWriter writer = new TarWriter(output);
+        final TarHeader header = new TarHeader();
+        addHeader(writer, header, "a.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 5);
+        writer.write("hello".getBytes("UTF-8"));
+        writer.closeEntry();
+        addHeader(writer, header, "b.txt", UnixStandardPermissions.STANDARD_FILE_MODE, 3);
+        writer.write("bye".getBytes("UTF-8"));
+        writer.closeEntry();
+        writer.close();
+
+        final TarReader reader = new TarReader(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals((int)'h', reader.read());
+        assertTrue(reader.next());
+        assertEquals("bye", IOUtils.toString(reader, "UTF-8"));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testPaxAndUstarHeaders ()
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] pax = paxRecord("path", "pax/long/path.txt");
+        output.write(createRecord("PaxHeaders/path.txt", (byte)'x', pax.length, ""));
+        output.write(pax);
+        output.write(new byte[TarHeader.RECORD_SIZE - pax.length]);
+        output.write(createRecord("path.txt", TarConstants.LF_NORMAL, 0, ""));
+        output.write(createRecord("file.txt", (byte)0, 0, "usr/share"));
+        output.write(new byte[2 * TarHeader.RECORD_SIZE]);
+
+        final TarReader reader = new TarReader(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals("pax/long/path.txt", reader.getName());
+        assertTrue(reader.next());
+        assertEquals("usr/share/file.txt", reader.getName());
+        assertEquals(TarConstants.LF_NORMAL, reader.getType());
+        assertFalse(reader.next());
+    }
+
+    @Test(expected=IOException.class)
+    public void testInvalidChecksum ()
+        throws Exception
+    {
+        final byte[] record = createRecord("file.txt", TarConstants.LF_NORMAL, 0, "");
+        record[0] = 'g';
+        new TarReader(new ByteArrayInputStream(record)).next();
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncatedData ()
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(createRecord("file.txt", TarConstants.LF_NORMAL, 100, ""));
+        output.write(new byte[10]);
+
+        final TarReader reader = new TarReader(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(reader.next());
+        IOUtils.toByteArray(reader);
+    }
+
+    /**
+     * Set up the supplied header and start an entry with it.
+     */
+    private static void addHeader (TarWriter writer, TarHeader header, String name, int mode,
+        long size)
+        throws IOException
+    {
+        header.setName(name);
+        header.setMode(mode);
+        header.setSize(size);
+        header.setModTime(TEST_TIME);
+        writer.putNextEntry(header);
+        header.setLinkName(null);
+    }
+
+    /**
+     * Returns a pax extended header record holding the supplied key and value.
+     */
+    private static byte[] paxRecord (String key, String value)
+        throws IOException
+    {
+        final String record = " " + key + "=" + value + "\n";
+        int length = record.length();
+        length += String.valueOf(length + String.valueOf(length).length()).length();
+        return (length + record).getBytes("UTF-8");
+    }
+
+    /**
+     * Returns a POSIX ustar header record with the supplied fields.
+     */
+    private static byte[] createRecord (String name, byte type, long size, String prefix)
+        throws IOException
+    {
+        final byte[] record = new byte[TarHeader.RECORD_SIZE];
+        putString(record, 0, name);
+        putString(record, 100, "0000644");
+        putString(record, 124, String.format("%011o", size));
+        putString(record, 136, String.format("%011o", TEST_TIME / 1000));
+        record[156] = type;
+        putString(record, 257, "ustar");
+        putString(record, 263, "00");
+        putString(record, 345, prefix);
+
+        for (int ii = 148; ii < 156; ii++) {
+            record[ii] = ' ';
+        }
+        long checksum = 0;
+        for (final byte b : record) {
+            checksum += b & 0xFF;
+        }
+        putString(record, 148, String.format("%06o", checksum));
+        record[154] = 0;
+        return record;
+    }
+
+    /**
+     * Copy the supplied ASCII string into the record at the supplied offset.
+     */
+    private static void putString (byte[] record, int offset, String value)
+        throws IOException
+    {
+        final byte[] bytes = value.getBytes("US-ASCII");
+        System.arraycopy(bytes, 0, record, offset, bytes.length);
+    }
+
+    /** A modification time with no fraction of a second. */
+    private static final long TEST_TIME = 1200000000000L;
+}
@@ -0,0 +1,137 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TarWriterTest
+{
+    @Test
+    public void testSameAsTarOutputStream ()
+        throws Exception
+    {
+        final StringBuilder longName = new StringBuilder("usr/");
+        while (longName.length() < 150) {
+            longName.append("long_name/");
+        }
+        final String[] names = { "usr/", "usr/share/empty.txt", "usr/share/file.txt",
+            longName + "file.txt", "usr/share/block.dat" };
+        final int[] sizes = { 0, 0, 33, 700, 1024 };
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final TarOutputStream tar = new GnuTarOutputStream(expected);
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final TarWriter writer = new TarWriter(actual);
+        final TarHeader header = new TarHeader();
+
+        for (int ii = 0; ii < names.length; ii++) {
+            final byte[] data = new byte[sizes[ii]];
+            for (int jj = 0; jj < data.length; jj++) {
+                data[jj] = (byte)(ii + jj);
+            }
+            final int mode = names[ii].endsWith("/") ?
+                UnixStandardPermissions.STANDARD_DIR_MODE : UnixStandardPermissions.STANDARD_FILE_MODE;
+
+            final TarEntry entry = new TarEntry(names[ii]);
+            entry.setMode(mode);
+            entry.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
+            entry.setSize(data.length);
+            entry.setModTime(TEST_TIME);
+            tar.putNextEntry(entry);
+            tar.write(data);
+            tar.closeEntry();
+
+            header.setName(names[ii]);
+            header.setMode(mode);
+            header.setIds(0, 0);
+            header.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
+            header.setSize(data.length);
+            header.setModTime(TEST_TIME);
+            writer.putNextEntry(header);
+            writer.write(data);
+            writer.closeEntry();
+        }
+        tar.close();
+        writer.close();
+
+        assertEquals(0, actual.size() % TarWriter.BLOCK_SIZE);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test(expected=IOException.class)
+    public void testDataTooLong ()
+        throws Exception
+    {
+        final TarWriter writer = new TarWriter(new ByteArrayOutputStream());
+        writer.putNextEntry(createHeader("file.txt", 1));
+        writer.write(new byte[2]);
+    }
+
+    @Test(expected=IOException.class)
+    public void testDataTooShort ()
+        throws Exception
+    {
+        final TarWriter writer = new TarWriter(new ByteArrayOutputStream());
+        writer.putNextEntry(createHeader("file.txt", 2));
+        writer.write(new byte[1]);
+        writer.closeEntry();
+    }
+
+    @Test(expected=IOException.class)
+    public void testEntryNotClosed ()
+        throws Exception
+    {
+        final TarWriter writer = new TarWriter(new ByteArrayOutputStream());
+        writer.putNextEntry(createHeader("file.txt", 0));
+        writer.putNextEntry(createHeader("other.txt", 0));
+    }
+
+    private static TarHeader createHeader (String name, long size)
+    {
+        final TarHeader header = new TarHeader();
+        header.setName(name);
+        header.setMode(UnixStandardPermissions.STANDARD_FILE_MODE);
+        header.setNames(UnixStandardPermissions.ROOT_USER.getName(), UnixStandardPermissions.ROOT_GROUP.getName());
+        header.setSize(size);
+        return header;
+    }
+
+    /** The modification time of the test entries. */
+    private static final long TEST_TIME = 1577836800000L;
+}
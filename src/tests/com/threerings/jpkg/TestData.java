@@ -31,6 +31,8 @@
 package com.threerings.jpkg;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import org.apache.commons.io.FileUtils;
 
@@ -70,14 +72,53 @@ public class TestData
     public static final File TEST_FILE = new File(DESTROOT, TEST_FILE_NAME);
     public static final String TEST_FILE_MD5 = "5228465a3ee0e7630c6748d16ee9dc00";
 
-    /** Mock large files for testing. */
+    /** Large files for testing. */
     public static final long LARGE_FILE_SIZE_KBS = 2201;
     public static final long LARGE_FILE_SIZE_BYTES = FileUtils.ONE_KB * LARGE_FILE_SIZE_KBS;
-    public static final File LARGE_FILE = new MockFile(TEST_FILE.getAbsolutePath(), LARGE_FILE_SIZE_BYTES);
 
     /** The system temp directory in a handy constant. */
     public static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"));
 
+    /**
+     * Create a temporary destroot holding a single file named {@link #TEST_FILE_NAME} of
+     * {@link #LARGE_FILE_SIZE_BYTES}. The caller is responsible for deleting the destroot.
+     */
+    public static File createLargeDestroot ()
+        throws IOException
+    {
+        final File destroot = File.createTempFile("jpkgtest", "large");
+        destroot.delete();
+        destroot.mkdir();
+        final byte[] data = new byte[(int)LARGE_FILE_SIZE_BYTES];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte)ii;
+        }
+        FileUtils.writeByteArrayToFile(new File(destroot, TEST_FILE_NAME), data);
+        return destroot;
+    }
+
+    /**
+     * Create a temporary destroot holding a single sparse file named {@link #TEST_FILE_NAME} of
+     * the supplied size, which is all zeros apart from a last byte of 'x'. The caller is
+     * responsible for deleting the destroot.
+     */
+    public static File createSparseDestroot (long size)
+        throws IOException
+    {
+        final File destroot = File.createTempFile("jpkgtest", "sparse");
+        destroot.delete();
+        destroot.mkdir();
+        final RandomAccessFile file = new RandomAccessFile(new File(destroot, TEST_FILE_NAME), "rw");
+        try {
+            file.setLength(size);
+            file.seek(size - 1);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+        return destroot;
+    }
+
     public static final PackageInfo testPkgInfo ()
     {
         PackageInfo info = null;
@@ -33,6 +33,7 @@ package com.threerings.jpkg.ant.dpkg;
 import java.io.File;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.tools.ant.BuildException;
 import org.junit.Test;
 
 import com.threerings.antidote.AntTestHelper;
@@ -43,7 +44,10 @@ import com.threerings.jpkg.debian.DpkgVerifier;
 
 import static com.threerings.antidote.ValidationTestHelper.assertOneViolation;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DpkgTest extends AntTestHelper
 {
@@ -69,6 +73,86 @@ public class DpkgTest extends AntTestHelper
         }
     }
 
+    @Test
+    public void testParallelPackages ()
+        throws Exception
+    {
+        MockDpkg dpkg = null;
+        try {
+            dpkg = new MockDpkg();
+            for (int ii = 0; ii < 4; ii++) {
+                dpkg.addPackage(new MockPackage("testpkg" + ii + ".dpkg"));
+            }
+            dpkg.setThreads("3");
+            dpkg.execute();
+
+            assertPackage(new File(dpkg.getOutput(), MockPackage.FILENAME));
+            for (int ii = 0; ii < 4; ii++) {
+                assertPackage(new File(dpkg.getOutput(), "testpkg" + ii + ".dpkg"));
+            }
+
+        } finally {
+            dpkg.deleteOutput();
+        }
+    }
+
+    @Test
+    public void testParallelPackageFailure ()
+        throws Exception
+    {
+        MockDpkg dpkg = null;
+        try {
+            dpkg = new MockDpkg();
+            // the output subdirectory does not exist, so this package cannot be written.
+            dpkg.addPackage(new MockPackage("missing/testpkg.dpkg"));
+            dpkg.setThreads("2");
+            try {
+                dpkg.execute();
+                fail("Expected the failed package to fail the task.");
+
+            } catch (final BuildException be) {
+                // expected
+            }
+            assertFalse(new File(dpkg.getOutput(), "missing/testpkg.dpkg").exists());
+
+        } finally {
+            dpkg.deleteOutput();
+        }
+    }
+
+    @Test
+    public void testUpToDateFingerprint ()
+        throws Exception
+    {
+        MockDpkg dpkg = null;
+        try {
+            dpkg = new MockDpkg();
+            dpkg.setUpToDate("fingerprint");
+            dpkg.execute();
+
+            final File outputPkg = new File(dpkg.getOutput(), MockPackage.FILENAME);
+            assertPackage(outputPkg);
+            assertTrue(new File(dpkg.getOutput(), MockPackage.FILENAME + ".fingerprint").exists());
+
+            // an unchanged package is left alone.
+            assertTrue(outputPkg.setLastModified(0));
+            dpkg.execute();
+            assertEquals(0, outputPkg.lastModified());
+
+            // unless a package overrides the check.
+            final MockPackage never = new MockPackage("testpkg-never.dpkg");
+            never.setUpToDate("never");
+            dpkg.addPackage(never);
+            dpkg.execute();
+            assertEquals(0, outputPkg.lastModified());
+            assertPackage(new File(dpkg.getOutput(), "testpkg-never.dpkg"));
+            assertFalse(new File(dpkg.getOutput(), "testpkg-never.dpkg.fingerprint").exists());
+
+        } finally {
+            dpkg.deleteOutput();
+        }
+    }
+
     @Test
     public void testMissingPackage ()
         throws Exception
@@ -130,4 +214,15 @@ public class DpkgTest extends AntTestHelper
             dpkg.deleteOutput();
         }
     }
+
+    /**
+     * Verify the supplied package was written and is a valid package.
+     */
+    private void assertPackage (File pkg)
+        throws Exception
+    {
+        assertTrue(pkg.exists());
+        assertTrue(pkg.length() > 0);
+        DpkgVerifier.checkFormat(pkg, MockInfo.PACKAGENAME, MockInfo.PACKAGEVERSION);
+    }
 }
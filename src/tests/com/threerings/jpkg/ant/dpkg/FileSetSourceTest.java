@@ -0,0 +1,213 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ant.dpkg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.TarFileSet;
+import org.apache.tools.ant.types.ZipFileSet;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threerings.antidote.AntTestHelper;
+import com.threerings.jpkg.BuildFingerprint;
+import com.threerings.jpkg.PackageTarFile;
+import com.threerings.jpkg.PermissionsMap;
+import com.threerings.jpkg.TestData;
+import com.threerings.jpkg.UnixStandardPermissions;
+import com.threerings.jpkg.compress.GzipCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FileSetSourceTest extends AntTestHelper
+{
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _project = createProject();
+        FileUtils.writeStringToFile(new File(ROOT, "lib/app.jar"), "jar");
+        FileUtils.writeStringToFile(new File(ROOT, "lib/skip.tmp"), "tmp");
+        FileUtils.writeStringToFile(new File(ROOT, "bin/app"), "#!/bin/sh");
+        new File(ROOT, "empty").mkdirs();
+
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(ZIP));
+        try {
+            zip.putNextEntry(new ZipEntry("docs/"));
+            zip.putNextEntry(new ZipEntry("docs/README"));
+            zip.write("readme".getBytes("UTF-8"));
+            zip.closeEntry();
+
+        } finally {
+            zip.close();
+        }
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        FileUtils.deleteDirectory(ROOT);
+        ZIP.delete();
+    }
+
+    @Test
+    public void testAddFilesets ()
+        throws Exception
+    {
+        // <fileset dir="root" excludes="**/*.tmp, bin/**"/>
+        final FileSet files = new FileSet();
+        files.setProject(_project);
+        files.setDir(ROOT);
+        files.setExcludes("**/*.tmp, bin/**");
+
+        // <zipfileset src="docs.zip" prefix="usr/share/doc/app" filemode="600"/>
+        final ZipFileSet zip = new ZipFileSet();
+        zip.setProject(_project);
+        zip.setSrc(ZIP);
+        zip.setPrefix("usr/share/doc/app");
+        zip.setFileMode("600");
+
+        // <tarfileset dir="root" includes="bin/app" fullpath="usr/bin/app" filemode="755"/>
+        final TarFileSet tool = new TarFileSet();
+        tool.setProject(_project);
+        tool.setDir(ROOT);
+        tool.setIncludes("bin/app");
+        tool.setFullpath("usr/bin/app");
+        tool.setFileMode("755");
+
+        final FileSetSource source = new FileSetSource(_project, Arrays.asList(files, zip, tool));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PackageTarFile tar = new PackageTarFile(output, new PermissionsMap(), new GzipCodec());
+        source.addTo(tar);
+        tar.close();
+
+        final Map<String, TarEntry> entries = readEntries(output.toByteArray());
+        assertEquals(Arrays.asList("empty/", "lib/", "lib/app.jar", "usr/", "usr/share/",
+            "usr/share/doc/", "usr/share/doc/app/", "usr/share/doc/app/docs/",
+            "usr/share/doc/app/docs/README", "usr/bin/", "usr/bin/app"),
+            new ArrayList<String>(entries.keySet()));
+        assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entries.get("lib/app.jar").getMode());
+        assertEquals(0100600, entries.get("usr/share/doc/app/docs/README").getMode());
+        assertEquals(UnixStandardPermissions.EXECUTABLE_FILE_MODE, entries.get("usr/bin/app").getMode());
+        assertEquals(6, entries.get("usr/share/doc/app/docs/README").getSize());
+        assertEquals(3, tar.getMd5s().size());
+    }
+
+    @Test(expected=BuildException.class)
+    public void testFullpathSelectsOneFile ()
+        throws Exception
+    {
+        final TarFileSet fileset = new TarFileSet();
+        fileset.setProject(_project);
+        fileset.setDir(ROOT);
+        fileset.setFullpath("usr/lib/app.jar");
+
+        final List<FileSet> filesets = new ArrayList<FileSet>();
+        filesets.add(fileset);
+        new FileSetSource(_project, filesets).addTo(
+            new PackageTarFile(new ByteArrayOutputStream(), new PermissionsMap(), new GzipCodec()));
+    }
+
+    @Test
+    public void testFingerprint ()
+        throws Exception
+    {
+        final FileSet fileset = new FileSet();
+        fileset.setProject(_project);
+        fileset.setDir(ROOT);
+        final List<FileSet> filesets = new ArrayList<FileSet>();
+        filesets.add(fileset);
+        final FileSetSource source = new FileSetSource(_project, filesets);
+
+        final BuildFingerprint first = new BuildFingerprint();
+        source.addTo(first);
+        final BuildFingerprint second = new BuildFingerprint();
+        source.addTo(second);
+        assertEquals(first.getValue(), second.getValue());
+
+        // a changed file changes the fingerprint.
+        FileUtils.writeStringToFile(new File(ROOT, "lib/app.jar"), "changed jar");
+        final BuildFingerprint changed = new BuildFingerprint();
+        source.addTo(changed);
+        assertFalse(first.getValue().equals(changed.getValue()));
+    }
+
+    /**
+     * Returns the entries of the supplied gzip compressed tar data by name, in order.
+     */
+    private static Map<String, TarEntry> readEntries (byte[] data)
+        throws Exception
+    {
+        final Map<String, TarEntry> entries = new LinkedHashMap<String, TarEntry>();
+        final TarInputStream input =
+            new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+        try {
+            TarEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return entries;
+    }
+
+    /** The directory holding the fileset files. */
+    private static final File ROOT = new File(TestData.TEMP_DIR, "jpkg_fileset_source");
+
+    /** A zip archive read by a zipfileset. */
+    private static final File ZIP = new File(TestData.TEMP_DIR, "jpkg_fileset_source.zip");
+
+    /** The project owning the filesets. */
+    private Project _project;
+}
@@ -30,6 +30,9 @@
  */
 package com.threerings.jpkg.ant.dpkg;
 
+import java.io.File;
+
+import org.apache.tools.ant.types.FileSet;
 import org.junit.Test;
 
 import com.threerings.antidote.AntTestHelper;
@@ -37,12 +40,15 @@ import com.threerings.antidote.RequiresValidationException;
 import com.threerings.antidote.field.OnlyOneFieldViolation;
 import com.threerings.antidote.field.UnsetFieldViolation;
 import com.threerings.antidote.property.UnsetPropertyViolation;
+import com.threerings.jpkg.DestrootFilter;
 import com.threerings.jpkg.PermissionsMap;
 import com.threerings.jpkg.ant.dpkg.dependencies.Dependencies;
 import com.threerings.jpkg.ant.dpkg.dependencies.Require;
 import com.threerings.jpkg.ant.dpkg.dependencies.conditions.Condition;
 import com.threerings.jpkg.ant.dpkg.dependencies.conditions.EqualTo;
+import com.threerings.jpkg.ant.dpkg.info.Arch;
 import com.threerings.jpkg.ant.dpkg.info.MockInfo;
+import com.threerings.jpkg.ant.dpkg.info.Name;
 import com.threerings.jpkg.ant.dpkg.permissions.MockPermission;
 import com.threerings.jpkg.ant.dpkg.permissions.Permission;
 import com.threerings.jpkg.ant.dpkg.permissions.Permissions;
@@ -54,7 +60,10 @@ import static com.threerings.antidote.ValidationTestHelper.assertNoViolations;
 import static com.threerings.antidote.ValidationTestHelper.assertOneViolation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class PackageTest extends AntTestHelper
 {
@@ -82,6 +91,26 @@ public class PackageTest extends AntTestHelper
         assertEquals(MockPackage.FILENAME, pkg.getFilename());
     }
 
+    @Test
+    public void testIncludesExcludes ()
+    {
+        // <package includes="usr/**, etc/**" excludes="**/*.pyc **/.git/**">
+        //   <info>...</info>
+        // </package>
+        final Package pkg = new MockPackage();
+        pkg.setIncludes("usr/**, etc/**");
+        pkg.setExcludes("**/*.pyc **/.git/**");
+
+        assertNoViolations(pkg);
+        final DestrootFilter filter = pkg.getDestrootFilter();
+        assertTrue(filter.isIncluded("usr/lib/module.py"));
+        assertTrue(filter.isIncluded("etc/app.conf"));
+        assertFalse(filter.isIncluded("var/log"));
+        assertTrue(filter.isExcluded("usr/lib/module.pyc"));
+        assertTrue(filter.isExcluded("usr/src/.git"));
+        assertTrue(new MockPackage().getDestrootFilter().isEmpty());
+    }
+
     @Test
     public void testUnsetInfo ()
     {
@@ -115,6 +144,155 @@ public class PackageTest extends AntTestHelper
         assertOneViolation(pkg, UnsetPropertyViolation.class);
     }
 
+    @Test
+    public void testFilesetsWithoutDestroot ()
+    {
+        // <package>
+        //   <info>...</info>
+        //   <fileset dir="..."/>
+        // </package>
+        final Package pkg = new MockPackage();
+        pkg.setDestroot(null);
+        final FileSet fileset = new FileSet();
+        fileset.setProject(pkg.getProject());
+        fileset.setDir(new File("src/tests/data/package_destroot"));
+        pkg.addFileset(fileset);
+
+        assertNoViolations(pkg);
+        assertNull(pkg.getDestroot());
+        assertEquals(1, pkg.getSources().size());
+        assertTrue(new MockPackage().getSources().isEmpty());
+    }
+
+    @Test
+    public void testSplit ()
+    {
+        // <package destroot="..." split="true" includes="usr/share/doc/">
+        //   <info>...</info>
+        // </package>
+        final Package pkg = new MockPackage();
+        pkg.setSplit("true");
+        pkg.setIncludes("usr/share/doc/");
+
+        assertNoViolations(pkg);
+        assertTrue(pkg.isSplit());
+
+        final Package unsplit = new MockPackage();
+        assertNoViolations(unsplit);
+        assertFalse(unsplit.isSplit());
+    }
+
+    @Test
+    public void testSplitWithoutDestroot ()
+    {
+        // <package split="true">
+        //   <info>...</info>
+        //   <fileset dir="..."/>
+        // </package>
+        final Package pkg = new MockPackage();
+        pkg.setDestroot(null);
+        pkg.setSplit("true");
+        final FileSet fileset = new FileSet();
+        fileset.setProject(pkg.getProject());
+        fileset.setDir(new File("src/tests/data/package_destroot"));
+        pkg.addFileset(fileset);
+
+        assertOneViolation(pkg, UnsetPropertyViolation.class);
+    }
+
+    @Test
+    public void testArchivesWithoutDestroot ()
+    {
+        // <package>
+        //   <info>...</info>
+        //   <fileset dir="..."/>
+        //   <archive src="..." prefix="opt/app" stripComponents="1"/>
+        // </package>
+        final Package pkg = new MockPackage();
+        pkg.setDestroot(null);
+        final FileSet fileset = new FileSet();
+        fileset.setProject(pkg.getProject());
+        fileset.setDir(new File("src/tests/data/package_destroot"));
+        pkg.addFileset(fileset);
+        final Archive archive = new Archive();
+        archive.setProject(pkg.getProject());
+        archive.setSrc("src/tests/data/testfile.txt");
+        archive.setPrefix("opt/app");
+        archive.setStripComponents("1");
+        pkg.addArchive(archive);
+
+        assertNoViolations(pkg);
+        assertNull(pkg.getDestroot());
+        assertEquals(2, pkg.getSources().size());
+    }
+
+    @Test
+    public void testAddVariant ()
+    {
+        // <package>
+        //   <info>...</info>
+        //   <variant>
+        //     <arch>amd64</arch>
+        //     <dependencies>
+        //       <require package="packagename"/>
+        //     </dependencies>
+        //   </variant>
+        //   <variant filename="value">
+        //     <name>othername</name>
+        //   </variant>
+        // </package>
+        final Package pkg = new MockPackage();
+        final Variant arch = new Variant();
+        arch.setProject(pkg.getProject());
+        final Arch archField = new Arch();
+        archField.setProject(pkg.getProject());
+        archField.addText("amd64");
+        arch.addArch(archField);
+        final Dependencies dependencies = new Dependencies();
+        dependencies.setProject(pkg.getProject());
+        final Require require = new Require();
+        require.setPackage("packagename");
+        dependencies.add(require);
+        arch.addDependencies(dependencies);
+        pkg.addVariant(arch);
+
+        final Variant name = new Variant();
+        name.setProject(pkg.getProject());
+        final Name nameField = new Name();
+        nameField.setProject(pkg.getProject());
+        nameField.addText("othername");
+        name.addName(nameField);
+        name.setFilename(MockPackage.FILENAME);
+        pkg.addVariant(name);
+
+        assertNoViolations(pkg);
+        assertEquals(2, pkg.getVariants().size());
+        assertEquals(MockInfo.PACKAGENAME + "_" + MockInfo.PACKAGEVERSION + "_amd64.dpkg",
+            pkg.getFilename(arch));
+        assertEquals(MockPackage.FILENAME, pkg.getFilename(name));
+
+        final String archControl =
+            pkg.createVariantInfo(arch, DISTRIBUTION, PREFIX).toString();
+        assertTrue(archControl.contains("Architecture: amd64"));
+        assertTrue(archControl.contains("packagename"));
+        final String nameControl =
+            pkg.createVariantInfo(name, DISTRIBUTION, PREFIX).toString();
+        assertTrue(nameControl.contains("Package: othername"));
+        assertTrue(nameControl.contains("Architecture: " + MockInfo.PACKAGEARCH));
+        assertFalse(nameControl.contains("packagename"));
+    }
+
+    @Test
+    public void testArchiveMissingSource ()
+    {
+        final Package pkg = new MockPackage();
+        final Archive archive = new Archive();
+        archive.setProject(pkg.getProject());
+        pkg.addArchive(archive);
+
+        assertOneViolation(pkg, UnsetPropertyViolation.class);
+    }
+
     @Test
     public void testAddScriptsSection ()
     {
@@ -30,11 +30,16 @@
  */
 package com.threerings.jpkg.ar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
@@ -151,6 +156,151 @@ public class ArchiveTest
         }
     }
 
+    @Test
+    public void testStreamArchive ()
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Archive archive = new Archive(output);
+        archive.appendEntry(new ArchiveStringEntry(APPEND_DATA, "filename.txt"));
+
+        // the stream archive should be identical to the file archive apart from the header mtime.
+        final byte[] data = output.toByteArray();
+        assertEquals(Archive.AR_MAGIC.length + Archive.getEntryLength(APPEND_DATA.length()), data.length);
+        assertTrue(Arrays.equals(Archive.AR_MAGIC, Arrays.copyOf(data, Archive.AR_MAGIC.length)));
+        assertEquals(Archive.PADDING[0], data[data.length - 1]);
+    }
+
+    @Test
+    public void testEntryLength ()
+    {
+        assertEquals(Archive.FILE_HEADER_LENGTH + 2, Archive.getEntryLength(1));
+        assertEquals(Archive.FILE_HEADER_LENGTH + 2, Archive.getEntryLength(2));
+        assertEquals(Archive.FILE_HEADER_LENGTH, Archive.getEntryLength(0));
+    }
+
+    @Test
+    public void testCreateEntryHeader ()
+        throws Exception
+    {
+        final byte[] header = Archive.createEntryHeader(new ArchiveStringEntry(APPEND_DATA, "filename.txt"));
+        assertEquals(Archive.FILE_HEADER_LENGTH, header.length);
+        assertEquals(String.valueOf(APPEND_DATA.length()), new String(header).split("\\s+")[5]);
+    }
+
+    @Test
+    public void testModificationTime ()
+        throws Exception
+    {
+        final ArchiveEntry entry = new ArchiveStringEntry(APPEND_DATA, "filename.txt");
+        assertEquals("1234567890", new String(Archive.createEntryHeader(entry, 1234567890L)).split("\\s+")[1]);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Archive archive = new Archive(output);
+        archive.setModificationTime(0);
+        archive.appendEntry(entry);
+        final String header = new String(output.toByteArray(), Archive.AR_MAGIC.length,
+            Archive.FILE_HEADER_LENGTH, Archive.CHAR_ENCODING);
+        assertEquals("0", header.split("\\s+")[1]);
+    }
+
+    @Test
+    public void testAppendChannelEntry ()
+        throws Exception
+    {
+        final File data = File.createTempFile("test_entry", ".dat");
+        data.deleteOnExit();
+        FileUtils.writeStringToFile(data, APPEND_DATA, Archive.CHAR_ENCODING);
+
+        final Archive archive = new Archive(_arFile);
+        archive.appendEntry(new MockChannelArchiveEntry("filename.txt", data, data.length()));
+
+        // the entry data should be transferred from the file, followed by the padding.
+        final byte[] contents = FileUtils.readFileToByteArray(_arFile);
+        assertEquals(Archive.AR_MAGIC.length + Archive.getEntryLength(APPEND_DATA.length()), contents.length);
+        final int start = Archive.AR_MAGIC.length + Archive.FILE_HEADER_LENGTH;
+        assertEquals(APPEND_DATA, new String(contents, start, APPEND_DATA.length(), Archive.CHAR_ENCODING));
+        assertEquals(Archive.PADDING[0], contents[contents.length - 1]);
+    }
+
+    @Test
+    public void testAppendChannelEntryWithoutFile ()
+        throws Exception
+    {
+        // an entry not held in a file is read from its stream.
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Archive archive = new Archive(output);
+        archive.appendEntry(new MockChannelArchiveEntry("filename.txt", null, 0));
+        assertEquals(Archive.AR_MAGIC.length + Archive.FILE_HEADER_LENGTH, output.size());
+    }
+
+    @Test(expected=IOException.class)
+    public void testAppendChannelEntryTooSmall ()
+        throws Exception
+    {
+        final File data = File.createTempFile("test_entry", ".dat");
+        data.deleteOnExit();
+        FileUtils.writeStringToFile(data, APPEND_DATA, Archive.CHAR_ENCODING);
+
+        final Archive archive = new Archive(_arFile);
+        archive.appendEntry(new MockChannelArchiveEntry("filename.txt", data, data.length() + 1));
+    }
+
+    @Test
+    public void testReadMembers ()
+        throws Exception
+    {
+        final Archive archive = new Archive(_arFile);
+        archive.setModificationTime(1234);
+        archive.appendEntry(new ArchiveStringEntry(APPEND_DATA, "first.txt"));
+        archive.appendEntry(new ArchiveStringEntry("odd", "second.txt"));
+
+        final List<ArchiveMember> members = Archive.readMembers(_arFile);
+        assertEquals(2, members.size());
+        assertEquals("first.txt", members.get(0).getPath());
+        assertEquals(1234, members.get(0).getModificationTime());
+        assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, members.get(0).getMode());
+        assertEquals(APPEND_DATA, IOUtils.toString(members.get(0).getInputStream(), Archive.CHAR_ENCODING));
+        assertEquals("second.txt", members.get(1).getPath());
+        assertEquals(3, members.get(1).getSize());
+        assertEquals("odd", IOUtils.toString(members.get(1).getInputStream(), Archive.CHAR_ENCODING));
+
+        // a member appended to another archive is copied from the middle of the existing file.
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Archive copy = new Archive(output);
+        copy.setModificationTime(1234);
+        copy.appendEntry(members.get(1));
+        final byte[] expected = FileUtils.readFileToByteArray(_arFile);
+        final int secondStart = Archive.AR_MAGIC.length + (int)Archive.getEntryLength(APPEND_DATA.length());
+        final byte[] actual = output.toByteArray();
+        assertEquals(expected.length - secondStart + Archive.AR_MAGIC.length, actual.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, secondStart, expected.length),
+            Arrays.copyOfRange(actual, Archive.AR_MAGIC.length, actual.length)));
+    }
+
+    @Test(expected=InvalidMagicException.class)
+    public void testReadMembersBadArchive ()
+        throws Exception
+    {
+        Archive.readMembers(BAD_ARCHIVE);
+    }
+
+    @Test(expected=IOException.class)
+    public void testReadMembersTruncated ()
+        throws Exception
+    {
+        final Archive archive = new Archive(_arFile);
+        archive.appendEntry(new ArchiveStringEntry(APPEND_DATA, "first.txt"));
+        final RandomAccessFile file = new RandomAccessFile(_arFile, "rw");
+        try {
+            file.setLength(_arFile.length() - 2);
+
+        } finally {
+            file.close();
+        }
+        Archive.readMembers(_arFile);
+    }
+
     @Test(expected=PathnameTooLongException.class)
     public void testAppendTooLongPathname ()
         throws Exception
@@ -174,7 +324,56 @@ public class ArchiveTest
         throws Exception
     {
         final Archive archive = new Archive(_arFile);
-        archive.appendEntry(TWO_GIG_PLUS_ENTRY);
+        archive.appendEntry(TOO_BIG_ENTRY);
+    }
+
+    @Test
+    public void testCreateBiggestEntryHeader ()
+        throws Exception
+    {
+        final byte[] header = Archive.createEntryHeader(new MockArchiveEntry("testfile", Archive.MAX_ENTRY_SIZE));
+        assertEquals(Archive.FILE_HEADER_LENGTH, header.length);
+        assertEquals("9999999999", new String(header, 48, 10, Archive.CHAR_ENCODING));
+    }
+
+    @Test
+    public void testAppendSparseFile ()
+        throws Exception
+    {
+        // a sparse file larger than an int can count, with data at the end.
+        final File data = File.createTempFile("test_entry", ".dat");
+        data.deleteOnExit();
+        final long size = Integer.MAX_VALUE + 2L;
+        final RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        try {
+            raf.setLength(size);
+            raf.seek(size - 1);
+            raf.write('x');
+        } finally {
+            raf.close();
+        }
+
+        try {
+            final Archive archive = new Archive(_arFile);
+            archive.appendEntry(new MockChannelArchiveEntry("filename.txt", data, size));
+            assertEquals(Archive.AR_MAGIC.length + Archive.getEntryLength(size), _arFile.length());
+
+            final RandomAccessFile ar = new RandomAccessFile(_arFile, "r");
+            try {
+                final byte[] header = new byte[Archive.FILE_HEADER_LENGTH];
+                ar.seek(Archive.AR_MAGIC.length);
+                ar.readFully(header);
+                assertEquals(Long.toString(size), new String(header, 48, 10, Archive.CHAR_ENCODING).trim());
+                ar.seek(Archive.AR_MAGIC.length + Archive.FILE_HEADER_LENGTH + size - 1);
+                assertEquals((int)'x', ar.read());
+            } finally {
+                ar.close();
+            }
+
+        } finally {
+            data.delete();
+            _arFile.delete();
+        }
     }
 
     @Test
@@ -194,7 +393,7 @@ public class ArchiveTest
 
     /** Mock large files for testing. */
     private static final ArchiveEntry TWO_GIG_ENTRY = new MockArchiveEntry("testfile", Integer.MAX_VALUE);
-    private static final ArchiveEntry TWO_GIG_PLUS_ENTRY = new MockArchiveEntry("testfile", (Integer.MAX_VALUE + 1L));
+    private static final ArchiveEntry TOO_BIG_ENTRY = new MockArchiveEntry("testfile", Archive.MAX_ENTRY_SIZE + 1);
 
     /** A temporary ar file available to each test which will be deleted when the JVM exits. */
     private File _arFile;
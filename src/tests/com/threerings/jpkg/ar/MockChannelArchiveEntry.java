@@ -0,0 +1,88 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.ar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.input.NullInputStream;
+
+/**
+ * Tiny mock {@link ChannelArchiveEntry} backed by a file, or by an empty stream if the file is null.
+ */
+public class MockChannelArchiveEntry
+    implements ChannelArchiveEntry
+{
+    public MockChannelArchiveEntry (String path, File file, long size)
+    {
+        _path = path;
+        _file = file;
+        _size = size;
+    }
+
+    public FileChannel getChannel ()
+        throws IOException
+    {
+        return _file == null ? null : FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+    }
+    public int getGroupId ()
+    {
+        return 0;
+    }
+    public InputStream getInputStream ()
+        throws IOException
+    {
+        return new NullInputStream(0);
+    }
+    public int getMode ()
+    {
+        return 0;
+    }
+    public String getPath ()
+    {
+        return _path;
+    }
+    public long getSize ()
+    {
+        return _size;
+    }
+    public int getUserId ()
+    {
+        return 0;
+    }
+
+    private final String _path;
+    private final File _file;
+    private final long _size;
+}
@@ -0,0 +1,174 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExternalProcessCodecTest
+{
+    @Test
+    public void testXz ()
+        throws Exception
+    {
+        // only test xz if the compressor is installed.
+        if (!ExternalProcessCodec.isExecutableAvailable(XzCodec.EXECUTABLE)) {
+            return;
+        }
+        final XzCodec codec = new XzCodec(1, 1);
+        assertEquals(".xz", codec.getExtension());
+        checkRoundTrip(codec, XzCodec.EXECUTABLE);
+    }
+
+    @Test
+    public void testZstd ()
+        throws Exception
+    {
+        // only test zstd if the compressor is installed.
+        if (!ExternalProcessCodec.isExecutableAvailable(ZstdCodec.EXECUTABLE)) {
+            return;
+        }
+        final ZstdCodec codec = new ZstdCodec();
+        assertEquals(".zst", codec.getExtension());
+        checkRoundTrip(codec, ZstdCodec.EXECUTABLE);
+    }
+
+    @Test
+    public void testMissingExecutable ()
+        throws Exception
+    {
+        assertTrue(!ExternalProcessCodec.isExecutableAvailable(MISSING));
+        try {
+            new TestCodec(MISSING).compress(new ByteArrayOutputStream());
+            fail("Starting a missing compressor should fail.");
+
+        } catch (final IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailingCompressor ()
+        throws Exception
+    {
+        // only test if the shell is available.
+        if (!ExternalProcessCodec.isExecutableAvailable("sh")) {
+            return;
+        }
+        final OutputStream out = new TestCodec("sh", "-c", "cat > /dev/null; exit 3").compress(new ByteArrayOutputStream());
+        out.write(DATA);
+        try {
+            out.close();
+            fail("A compressor exiting with an error should fail on close.");
+
+        } catch (final IOException ioe) {
+            assertTrue(ioe.getMessage().contains("exit=[3]"));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidXzLevel ()
+    {
+        new XzCodec(10, 1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidZstdLevel ()
+    {
+        new ZstdCodec(0, 1);
+    }
+
+    /**
+     * Compress the test data with the supplied codec and check that it decompresses with the
+     * supplied executable.
+     */
+    private void checkRoundTrip (CompressionCodec codec, String executable)
+        throws Exception
+    {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = codec.compress(compressed);
+        out.write(DATA);
+        out.close();
+
+        final Process process = new ProcessBuilder(executable, "-d", "-c").start();
+        process.getOutputStream().write(compressed.toByteArray());
+        process.getOutputStream().close();
+        final byte[] decompressed = IOUtils.toByteArray(process.getInputStream());
+        assertEquals(0, process.waitFor());
+        assertTrue(Arrays.equals(DATA, decompressed));
+    }
+
+    /**
+     * A codec running an arbitrary command.
+     */
+    private static class TestCodec extends ExternalProcessCodec
+    {
+        public TestCodec (String executable, String... args)
+        {
+            _command = command(executable, args);
+        }
+
+        // from CompressionCodec
+        public String getExtension ()
+        {
+            return ".test";
+        }
+
+        @Override // from ExternalProcessCodec
+        protected List<String> getCommand ()
+        {
+            return _command;
+        }
+
+        private final List<String> _command;
+    }
+
+    /** An executable which does not exist. */
+    private static final String MISSING = "jpkg-no-such-compressor";
+
+    /** Compressible test data. */
+    private static final byte[] DATA = new byte[256 * 1024];
+    static {
+        for (int ii = 0; ii < DATA.length; ii++) {
+            DATA[ii] = (byte)(ii % 251);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Jpkg - Java library and tools for operating system package creation.
+ *
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.threerings.jpkg.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGZIPOutputStreamTest
+{
+    @Test
+    public void testRoundTrip ()
+        throws Exception
+    {
+        final byte[] data = testData(5 * BLOCK_SIZE + 1234);
+        assertTrue(Arrays.equals(data, decompress(compress(data, 4))));
+    }
+
+    @Test
+    public void testEmptyStream ()
+        throws Exception
+    {
+        final byte[] data = new byte[0];
+        assertTrue(Arrays.equals(data, decompress(compress(data, 2))));
+    }
+
+    @Test
+    public void testExactBlockMultiple ()
+        throws Exception
+    {
+        final byte[] data = testData(3 * BLOCK_SIZE);
+        assertTrue(Arrays.equals(data, decompress(compress(data, 3))));
+    }
+
+    @Test
+    public void testIdenticalRegardlessOfThreads ()
+        throws Exception
+    {
+        final byte[] data = testData(7 * BLOCK_SIZE + 99);
+        final byte[] single = compress(data, 1);
+        assertTrue(Arrays.equals(single, compress(data, 2)));
+        assertTrue(Arrays.equals(single, compress(data, 8)));
+    }
+
+    @Test
+    public void testZeroBlocks ()
+        throws Exception
+    {
+        // runs of zeros longer than a block, starting and ending mid block, and a run at the end.
+        final byte[] data = new byte[20 * BLOCK_SIZE];
+        System.arraycopy(testData(BLOCK_SIZE + 100), 0, data, 0, BLOCK_SIZE + 100);
+        System.arraycopy(testData(3 * BLOCK_SIZE), 0, data, 9 * BLOCK_SIZE + 7, 3 * BLOCK_SIZE);
+        data[16 * BLOCK_SIZE + 5] = 'x';
+
+        // the repeated fragments of zeros match the blocks as deflated one by one.
+        final byte[] compressed = compress(data, 1);
+        final byte[] deflated = Arrays.copyOfRange(compressed, GZIP_HEADER_LENGTH,
+            compressed.length - GZIP_TRAILER_LENGTH);
+        assertTrue(Arrays.equals(deflateBlocks(data), deflated));
+        assertTrue(Arrays.equals(compressed, compress(data, 4)));
+        assertTrue(Arrays.equals(data, decompress(compressed)));
+    }
+
+    @Test
+    public void testSingleByteWrites ()
+        throws Exception
+    {
+        final byte[] data = testData(BLOCK_SIZE + 10);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(output, 2, BLOCK_SIZE);
+        for (final byte b : data) {
+            gzip.write(b);
+        }
+        gzip.close();
+
+        assertTrue(Arrays.equals(compress(data, 1), output.toByteArray()));
+    }
+
+    @Test
+    public void testTrailer ()
+        throws Exception
+    {
+        final byte[] data = testData(2 * BLOCK_SIZE);
+        final byte[] compressed = compress(data, 2);
+
+        // the last four bytes hold the uncompressed length in little endian order.
+        final int len = compressed.length;
+        final int size = (compressed[len - 4] & 0xff) | (compressed[len - 3] & 0xff) << 8 |
+            (compressed[len - 2] & 0xff) << 16 | (compressed[len - 1] & 0xff) << 24;
+        assertEquals(data.length, size);
+    }
+
+    @Test
+    public void testLevelAndStrategy ()
+        throws Exception
+    {
+        final byte[] data = testData(3 * BLOCK_SIZE + 17);
+        final int[][] settings = {
+            { Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY },
+            { Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY },
+            { Deflater.BEST_COMPRESSION, Deflater.FILTERED },
+            { Deflater.DEFAULT_COMPRESSION, Deflater.HUFFMAN_ONLY } };
+        for (final int[] setting : settings) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final ParallelGZIPOutputStream gzip =
+                new ParallelGZIPOutputStream(output, setting[0], setting[1], 2, BLOCK_SIZE);
+            gzip.write(data);
+            gzip.close();
+            assertTrue(Arrays.equals(data, decompress(output.toByteArray())));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidLevel ()
+        throws Exception
+    {
+        new ParallelGZIPOutputStream(new ByteArrayOutputStream(), 10, Deflater.DEFAULT_STRATEGY, 1, BLOCK_SIZE);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidStrategy ()
+        throws Exception
+    {
+        new ParallelGZIPOutputStream(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION, 99, 1, BLOCK_SIZE);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBlockSizeTooSmall ()
+        throws Exception
+    {
+        new ParallelGZIPOutputStream(new ByteArrayOutputStream(), 1, ParallelGZIPOutputStream.MINIMUM_BLOCK_SIZE - 1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoThreads ()
+        throws Exception
+    {
+        new ParallelGZIPOutputStream(new ByteArrayOutputStream(), 0);
+    }
+
+    /**
+     * Compress the supplied data using the supplied number of threads.
+     */
+    private byte[] compress (byte[] data, int threads)
+        throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(output, threads, BLOCK_SIZE);
+        // write in uneven pieces to exercise the block splitting.
+        int off = 0;
+        while (off < data.length) {
+            final int len = Math.min(WRITE_SIZE, data.length - off);
+            gzip.write(data, off, len);
+            off += len;
+        }
+        gzip.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Deflate each block of the supplied data on its own, primed with the end of the previous
+     * block, and concatenate the fragments as {@link ParallelGZIPOutputStream} does.
+     */
+    private byte[] deflateBlocks (byte[] data)
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64 * 1024];
+        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            if (off > 0) {
+                deflater.setDictionary(data, off - BLOCK_SIZE, BLOCK_SIZE);
+            }
+            deflater.setInput(data, off, BLOCK_SIZE);
+            if (off + BLOCK_SIZE == data.length) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+            } else {
+                int len;
+                do {
+                    len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, len);
+                } while (len == buffer.length);
+            }
+            deflater.end();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decompress the supplied gzip data.
+     */
+    private byte[] decompress (byte[] compressed)
+        throws Exception
+    {
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    /**
+     * Returns compressible but non trivial test data.
+     */
+    private byte[] testData (int length)
+    {
+        final Random random = new Random(length);
+        final byte[] data = new byte[length];
+        for (int ii = 0; ii < length; ii++) {
+            data[ii] = (byte)('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /** Use the smallest block size to keep the tests quick. */
+    private static final int BLOCK_SIZE = ParallelGZIPOutputStream.MINIMUM_BLOCK_SIZE;
+
+    /** The lengths of the gzip header and trailer around the deflate data. */
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    /** An awkward write size which does not line up with the block size. */
+    private static final int WRITE_SIZE = 10007;
+}
@@ -34,6 +34,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.tools.tar.TarEntry;
@@ -67,11 +68,13 @@ public class ControlFileTest
     public void testControlFile ()
         throws Exception
     {
+        final File destroot = TestData.createLargeDestroot();
+        final File largeFile = new File(destroot, TestData.TEST_FILE_NAME);
         TarInputStream input = null;
         PackageTarFile tar = null;
         try {
             tar = new PackageTarFile(TestData.TEMP_DIR);
-            tar.addFile(TestData.LARGE_FILE, TestData.DESTROOT);
+            tar.addFile(largeFile, destroot.getAbsolutePath());
             tar.close();
 
             final ControlFile control = new ControlFile(TEST_PKG, tar);
@@ -108,7 +111,8 @@ public class ControlFileTest
             data = new byte[(int)entry.getSize()];
             input.read(data);
             final String foundSums = new String(data);
-            assertTrue(foundSums.contains(TestData.TEST_FILE_NAME + " " + TestData.TEST_FILE_MD5 + "\n"));
+            final String md5 = DigestUtils.md5Hex(FileUtils.readFileToByteArray(largeFile));
+            assertTrue(foundSums.contains(TestData.TEST_FILE_NAME + " " + md5 + "\n"));
             assertEquals(UnixStandardPermissions.STANDARD_FILE_MODE, entry.getMode());
 
             // check the maintainer scripts
@@ -135,6 +139,7 @@ public class ControlFileTest
         } finally {
             tar.delete();
             IOUtils.closeQuietly(input);
+            FileUtils.deleteDirectory(destroot);
         }
     }
 
@@ -148,7 +153,7 @@ public class ControlFileTest
                 MaintainerScript.Type.PREINST, new MockFile("testfile", (Integer.MAX_VALUE + 1L))));
 
             tar = new PackageTarFile(TestData.TEMP_DIR);
-            tar.addFile(TestData.LARGE_FILE, TestData.DESTROOT);
+            tar.addFile(TestData.TEST_FILE, TestData.DESTROOT);
             tar.close();
 
             new ControlFile(TEST_PKG, tar);
@@ -30,13 +30,48 @@
  */
 package com.threerings.jpkg.debian;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
 import org.junit.Test;
 
+import com.threerings.jpkg.BuildFingerprint;
+import com.threerings.jpkg.DuplicatePermissionsException;
+import com.threerings.jpkg.MemberCache;
 import com.threerings.jpkg.PackageBuilder;
+import com.threerings.jpkg.PackageBuilderException;
+import com.threerings.jpkg.PackageSource;
+import com.threerings.jpkg.PackageTarFile;
+import com.threerings.jpkg.PathPermissions;
 import com.threerings.jpkg.TestData;
+import com.threerings.jpkg.UnixStandardPermissions;
+import com.threerings.jpkg.ar.Archive;
+import com.threerings.jpkg.ar.ArchiveStringEntry;
+import com.threerings.jpkg.compress.ExternalProcessCodec;
+import com.threerings.jpkg.compress.NoCompressionCodec;
+import com.threerings.jpkg.compress.XzCodec;
+import com.threerings.jpkg.debian.dependency.PackageDependency;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class DebianPackageBuilderTest
@@ -55,6 +90,13 @@ public class DebianPackageBuilderTest
         builder.write(null, DESTROOT);
     }
 
+    @Test(expected=IllegalArgumentException.class)
+    public void testNullCompression ()
+    {
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.setDataCompression(null);
+    }
+
     @Test
     public void testWrite ()
         throws Exception
@@ -69,7 +111,470 @@ public class DebianPackageBuilderTest
         DpkgVerifier.checkFormat(dpkg, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
     }
 
+    @Test
+    public void testWriteUncompressed ()
+        throws Exception
+    {
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.setDataCompression(new NoCompressionCodec());
+        builder.setControlCompression(new NoCompressionCodec());
+        checkWrite(builder);
+    }
+
+    @Test
+    public void testWriteXz ()
+        throws Exception
+    {
+        // only test xz if the compressor is installed.
+        if (!ExternalProcessCodec.isExecutableAvailable(XzCodec.EXECUTABLE)) {
+            return;
+        }
+
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.setDataCompression(new XzCodec());
+        builder.setControlCompression(new XzCodec());
+        checkWrite(builder);
+    }
+
+    @Test
+    public void testWriteMemberCache ()
+        throws Exception
+    {
+        final File cacheDir = new File(TestData.TEMP_DIR, "jpkg_builder_member_cache");
+        try {
+            final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+            builder.setMemberCache(new MemberCache(cacheDir));
+            final File cold = checkWrite(builder);
+            final File warm = checkWrite(builder);
+            assertTrue(Arrays.equals(readMembers(cold).get("data.tar.gz"),
+                readMembers(warm).get("data.tar.gz")));
+
+        } finally {
+            FileUtils.deleteDirectory(cacheDir);
+        }
+    }
+
+    @Test
+    public void testWriteIfChanged ()
+        throws Exception
+    {
+        final File destroot = new File(TestData.TEMP_DIR, "jpkg_builder_fingerprint");
+        final File dpkg = File.createTempFile("jpkgtest", ".dpkg");
+        final File fingerprint = new File(dpkg.getPath() + ".fingerprint");
+        try {
+            FileUtils.copyDirectory(DESTROOT, destroot);
+            dpkg.delete();
+
+            final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+            assertTrue(builder.writeIfChanged(dpkg, destroot));
+            DpkgVerifier.checkFormat(dpkg, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
+            assertEquals(builder.getFingerprint(destroot).getValue(),
+                FileUtils.readFileToString(fingerprint).trim());
+            assertFalse(builder.writeIfChanged(dpkg, destroot));
+
+            // changes to the settings, the package information or the destroot rebuild the package.
+            builder.setDataCompression(new NoCompressionCodec());
+            assertTrue(builder.writeIfChanged(dpkg, destroot));
+            assertFalse(builder.writeIfChanged(dpkg, destroot));
+
+            final PackageInfo info = TestData.testPkgInfo();
+            info.addPathPermissions("/file.txt", new PathPermissions(0600, false));
+            assertTrue(new DebianPackageBuilder(info).writeIfChanged(dpkg, destroot));
+            assertFalse(new DebianPackageBuilder(info).writeIfChanged(dpkg, destroot));
+
+            FileUtils.writeStringToFile(new File(destroot, "added.txt"), "added");
+            assertTrue(new DebianPackageBuilder(info).writeIfChanged(dpkg, destroot));
+
+            // as does removing the package.
+            assertTrue(dpkg.delete());
+            assertTrue(new DebianPackageBuilder(info).writeIfChanged(dpkg, destroot));
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+            dpkg.delete();
+            fingerprint.delete();
+        }
+    }
+
+    @Test
+    public void testReproducible ()
+        throws Exception
+    {
+        final File destroot = new File(TestData.TEMP_DIR, "jpkg_builder_reproducible");
+        try {
+            FileUtils.copyDirectory(DESTROOT, destroot);
+            // a name too long for a plain tar header is stored in an extra long name entry.
+            FileUtils.writeStringToFile(new File(destroot, new String(new char[120]).replace('\0', 'x')), "long");
+            for (final boolean singlePass : new boolean[] { false, true }) {
+                final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+                builder.setSinglePass(singlePass);
+                builder.setSourceDate(SOURCE_DATE);
+                final File first = checkWrite(builder, destroot);
+
+                // touching the destroot leaves the times after the source date, and the next
+                // build starts at least a second later.
+                Thread.sleep(1100);
+                for (final Object file : FileUtils.listFiles(destroot, null, true)) {
+                    assertTrue(((File)file).setLastModified(System.currentTimeMillis()));
+                }
+                final File second = checkWrite(builder, destroot);
+                assertTrue(Arrays.equals(FileUtils.readFileToByteArray(first),
+                    FileUtils.readFileToByteArray(second)));
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+        }
+    }
+
+    @Test
+    public void testHardLinks ()
+        throws Exception
+    {
+        final File destroot = new File(TestData.TEMP_DIR, "jpkg_builder_hard_links");
+        final File extracted = new File(TestData.TEMP_DIR, "jpkg_builder_hard_links_extracted");
+        try {
+            FileUtils.copyDirectory(DESTROOT, destroot);
+            final File copy = new File(destroot, "copy.txt");
+            FileUtils.copyFile(new File(destroot, "file.txt"), copy);
+
+            final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+            builder.setHardLinks(true);
+            final File dpkg = checkWrite(builder, destroot);
+
+            // dpkg installs the copy as a hard link to the original file.
+            if (DpkgVerifier.extract(dpkg, extracted)) {
+                final File file = new File(extracted, "file.txt");
+                assertEquals(FileUtils.readFileToString(copy), FileUtils.readFileToString(file));
+                assertEquals(Files.getAttribute(file.toPath(), "unix:ino"),
+                    Files.getAttribute(new File(extracted, "copy.txt").toPath(), "unix:ino"));
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(destroot);
+            FileUtils.deleteDirectory(extracted);
+        }
+    }
+
+    @Test
+    public void testPackageSource ()
+        throws Exception
+    {
+        final File extracted = new File(TestData.TEMP_DIR, "jpkg_builder_source_extracted");
+        final byte[] config = "key=value\n".getBytes("UTF-8");
+        try {
+            // a package may be built from its sources alone.
+            final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+            builder.addSource(new PackageSource() {
+                public void addTo (PackageTarFile tar)
+                    throws DuplicatePermissionsException, IOException {
+                    tar.addEntry("etc/app/app.conf", config.length, new ByteArrayInputStream(config),
+                        UnixStandardPermissions.STANDARD_FILE_MODE, 0);
+                }
+                public void addTo (BuildFingerprint fingerprint) {
+                    fingerprint.add("etc/app/app.conf");
+                }
+            });
+            final File dpkg = checkWrite(builder, null);
+
+            if (DpkgVerifier.extract(dpkg, extracted)) {
+                assertEquals("key=value\n",
+                    FileUtils.readFileToString(new File(extracted, "etc/app/app.conf")));
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(extracted);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNullDestrootWithoutSources ()
+        throws Exception
+    {
+        new DebianPackageBuilder(TEST_PKG).write(new ByteArrayOutputStream(), (File)null);
+    }
+
+    @Test
+    public void testWriteSinglePass ()
+        throws Exception
+    {
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.setSinglePass(true);
+        final File dpkg = checkWrite(builder);
+
+        final Map<String, byte[]> members = readMembers(dpkg);
+        assertEquals(Arrays.asList("debian-binary", "control.tar.gz", "_pad", "data.tar.gz"),
+            new ArrayList<String>(members.keySet()));
+        assertEquals(DebianPackageBuilder.DEFAULT_CONTROL_RESERVE, Archive.getEntryLength(
+            members.get("control.tar.gz").length) + Archive.getEntryLength(members.get("_pad").length));
+        assertDataEquals(members);
+    }
+
+    @Test
+    public void testWriteSinglePassOverflow ()
+        throws Exception
+    {
+        // a reserve too small for the control data forces the data to be moved.
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.setSinglePass(true);
+        builder.setControlReserve(Archive.FILE_HEADER_LENGTH);
+        final File dpkg = checkWrite(builder);
+
+        final Map<String, byte[]> members = readMembers(dpkg);
+        assertEquals(Arrays.asList("debian-binary", "control.tar.gz", "_pad", "data.tar.gz"),
+            new ArrayList<String>(members.keySet()));
+        assertEquals(0, members.get("_pad").length);
+        assertDataEquals(members);
+    }
+
+    @Test
+    public void testWriteStream ()
+        throws Exception
+    {
+        // once held in memory, once spilled to the temporary directory.
+        for (final int threshold : new int[] { DebianPackageBuilder.DEFAULT_MEMORY_THRESHOLD, 0 }) {
+            final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+            builder.setMemoryThreshold(threshold);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            builder.write(output, DESTROOT);
+
+            final Map<String, byte[]> members = readMembers(new ByteArrayInputStream(output.toByteArray()));
+            assertEquals(Arrays.asList("debian-binary", "control.tar.gz", "data.tar.gz"),
+                new ArrayList<String>(members.keySet()));
+            assertDataEquals(members);
+        }
+    }
+
+    @Test
+    public void testWriteChannel ()
+        throws Exception
+    {
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+
+        // a channel which cannot be repositioned.
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        builder.write(Channels.newChannel(output), DESTROOT);
+        assertDataEquals(readMembers(new ByteArrayInputStream(output.toByteArray())));
+
+        // a seekable channel is written in place, starting at its current position.
+        final File dpkg = File.createTempFile("jpkgtest", ".dpkg");
+        dpkg.deleteOnExit();
+        final FileChannel channel = FileChannel.open(dpkg.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            builder.write(channel, DESTROOT);
+            assertEquals(dpkg.length(), channel.position());
+
+        } finally {
+            channel.close();
+        }
+        final Map<String, byte[]> members = readMembers(dpkg);
+        assertTrue(members.containsKey("_pad"));
+        assertDataEquals(members);
+        DpkgVerifier.checkFormat(dpkg, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
+    }
+
+    @Test
+    public void testRebuild ()
+        throws Exception
+    {
+        final File original = checkWrite(new DebianPackageBuilder(TEST_PKG));
+
+        // only the control member changes, keeping the installed size and checksums.
+        final PackageInfo info = TestData.testPkgInfo();
+        info.addDependency(new PackageDependency("newdependency"));
+        final File rebuilt = File.createTempFile("jpkgtest", ".dpkg");
+        rebuilt.deleteOnExit();
+        new DebianPackageBuilder(info).rebuild(rebuilt, original);
+        DpkgVerifier.checkFormat(rebuilt, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
+
+        final Map<String, byte[]> before = readMembers(original);
+        final Map<String, byte[]> after = readMembers(rebuilt);
+        assertEquals(new ArrayList<String>(before.keySet()), new ArrayList<String>(after.keySet()));
+        assertTrue(Arrays.equals(before.get("data.tar.gz"), after.get("data.tar.gz")));
+        final Map<String, String> beforeControl = readControl(before.get("control.tar.gz"));
+        final Map<String, String> afterControl = readControl(after.get("control.tar.gz"));
+        assertEquals(beforeControl.get("md5sums"), afterControl.get("md5sums"));
+        assertTrue(afterControl.get("control").contains("newdependency"));
+        assertTrue(afterControl.get("control").contains(getInstalledSize(beforeControl.get("control"))));
+    }
+
+    @Test(expected=PackageBuilderException.class)
+    public void testRebuildNotPackage ()
+        throws Exception
+    {
+        final File archive = File.createTempFile("jpkgtest", ".ar");
+        archive.deleteOnExit();
+        new Archive(archive).appendEntry(new ArchiveStringEntry("2.0\n", "debian-binary"));
+        final File rebuilt = File.createTempFile("jpkgtest", ".dpkg");
+        rebuilt.deleteOnExit();
+        new DebianPackageBuilder(TEST_PKG).rebuild(rebuilt, archive);
+    }
+
+    @Test
+    public void testWriteVariants ()
+        throws Exception
+    {
+        final File first = File.createTempFile("jpkgtest", ".dpkg");
+        first.deleteOnExit();
+        final File second = File.createTempFile("jpkgtest", ".dpkg");
+        second.deleteOnExit();
+        final PackageInfo variant = new PackageInfo(new PackageName("testpkg-amd64"),
+            new PackageVersion(TestData.TEST_PKG_VERSION), new PackageArchitecture(DebianArchitectures.AMD64),
+            TestData.TEST_PKG_MAINTAINER, new PackageDescription(TestData.TEST_PKG_DESC));
+        final Map<File, PackageInfo> variants = new LinkedHashMap<File, PackageInfo>();
+        variants.put(first, TEST_PKG);
+        variants.put(second, variant);
+
+        final DebianPackageBuilder builder = new DebianPackageBuilder(TEST_PKG);
+        builder.writeVariants(variants, DESTROOT);
+        DpkgVerifier.checkFormat(first, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
+        DpkgVerifier.checkFormat(second, "testpkg-amd64", TestData.TEST_PKG_VERSION);
+
+        // the data member is shared and matches a package written on its own.
+        final Map<String, byte[]> firstMembers = readMembers(first);
+        final Map<String, byte[]> secondMembers = readMembers(second);
+        assertDataEquals(firstMembers);
+        assertTrue(Arrays.equals(firstMembers.get("data.tar.gz"), secondMembers.get("data.tar.gz")));
+        final Map<String, String> firstControl = readControl(firstMembers.get("control.tar.gz"));
+        final Map<String, String> secondControl = readControl(secondMembers.get("control.tar.gz"));
+        assertEquals(firstControl.get("md5sums"), secondControl.get("md5sums"));
+        assertTrue(firstControl.get("control").contains("Architecture: i386"));
+        assertTrue(secondControl.get("control").contains("Architecture: amd64"));
+
+        // nothing changed, so neither package is written again.
+        assertTrue(builder.writeVariantsIfChanged(variants, DESTROOT));
+        assertFalse(builder.writeVariantsIfChanged(variants, DESTROOT));
+        assertTrue(second.delete());
+        assertTrue(builder.writeVariantsIfChanged(variants, DESTROOT));
+        new File(first.getPath() + ".fingerprint").deleteOnExit();
+        new File(second.getPath() + ".fingerprint").deleteOnExit();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testWriteNoVariants ()
+        throws Exception
+    {
+        new DebianPackageBuilder(TEST_PKG).writeVariants(new LinkedHashMap<File, PackageInfo>(), DESTROOT);
+    }
+
+    /**
+     * Check that the data member matches the data member of a package written in the default
+     * mode.
+     */
+    private void assertDataEquals (Map<String, byte[]> members)
+        throws Exception
+    {
+        final File dpkg = File.createTempFile("jpkgtest", ".dpkg");
+        dpkg.deleteOnExit();
+        new DebianPackageBuilder(TEST_PKG).write(dpkg, DESTROOT);
+        assertTrue(Arrays.equals(readMembers(dpkg).get("data.tar.gz"), members.get("data.tar.gz")));
+    }
+
+    /**
+     * Read the members of the supplied ar(1) file, in order.
+     */
+    private Map<String, byte[]> readMembers (File file)
+        throws Exception
+    {
+        final InputStream input = new FileInputStream(file);
+        try {
+            return readMembers(input);
+
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Read the members of the supplied ar(1) stream, in order.
+     */
+    private Map<String, byte[]> readMembers (InputStream input)
+        throws Exception
+    {
+        final DataInputStream data = new DataInputStream(input);
+        final byte[] magic = new byte[Archive.AR_MAGIC.length];
+        data.readFully(magic);
+        assertTrue(Arrays.equals(Archive.AR_MAGIC, magic));
+
+        final Map<String, byte[]> members = new LinkedHashMap<String, byte[]>();
+        final byte[] header = new byte[Archive.FILE_HEADER_LENGTH];
+        while (data.read(header, 0, 1) == 1) {
+            data.readFully(header, 1, header.length - 1);
+            final String[] fields = new String(header, Archive.CHAR_ENCODING).split("\\s+");
+            final int size = Integer.parseInt(fields[5]);
+            final byte[] contents = new byte[size];
+            data.readFully(contents);
+            if (size % 2 != 0) {
+                data.readFully(new byte[1]);
+            }
+            members.put(fields[0], contents);
+        }
+        return members;
+    }
+
+    /**
+     * Read the files of the supplied gzipped control member by name.
+     */
+    private Map<String, String> readControl (byte[] member)
+        throws Exception
+    {
+        final Map<String, String> files = new LinkedHashMap<String, String>();
+        final TarInputStream tar = new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(member)));
+        try {
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                files.put(entry.getName(), IOUtils.toString(tar, "UTF-8"));
+            }
+
+        } finally {
+            IOUtils.closeQuietly(tar);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the Installed-Size line of the supplied control file.
+     */
+    private static String getInstalledSize (String control)
+    {
+        for (final String line : control.split("\n")) {
+            if (line.startsWith("Installed-Size:")) {
+                return line;
+            }
+        }
+        throw new AssertionError("No Installed-Size in the control file.");
+    }
+
+    /**
+     * Write a package with the supplied builder and check that dpkg can read it.
+     */
+    private File checkWrite (PackageBuilder builder)
+        throws Exception
+    {
+        return checkWrite(builder, DESTROOT);
+    }
+
+    /**
+     * Write a package of the supplied destroot with the supplied builder and check that dpkg can
+     * read it.
+     */
+    private File checkWrite (PackageBuilder builder, File destroot)
+        throws Exception
+    {
+        final File dpkg = File.createTempFile("jpkgtest", ".dpkg");
+        dpkg.deleteOnExit();
+        builder.write(dpkg, destroot);
+        assertTrue(dpkg.length() > 0);
+
+        DpkgVerifier.checkFormat(dpkg, TestData.TEST_PKG_NAME, TestData.TEST_PKG_VERSION);
+        return dpkg;
+    }
+
     private static final File DESTROOT = new File("src/tests/data/package_destroot");
 
     private static final PackageInfo TEST_PKG = TestData.testPkgInfo();
+
+    /** The source date of reproducible test packages, 2020-01-01. */
+    private static final long SOURCE_DATE = 1577836800000L;
 }
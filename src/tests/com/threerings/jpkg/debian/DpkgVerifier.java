@@ -107,6 +107,35 @@ public class DpkgVerifier
         assertTrue(result.equals(packageName + "\t" + packageVersion + "\n"));
     }
 
+    /**
+     * Extract the files of the supplied package into the supplied directory with -x. Returns
+     * false, extracting nothing, if the dpkg tools could not be found.
+     */
+    public static boolean extract (File dpkg, File directory)
+        throws Exception
+    {
+        final File dpkgDeb = findDpkgDeb();
+        // if the tools cannot be found do nothing.
+        if (dpkgDeb == null) {
+            return false;
+        }
+
+        final ProcessBuilder procBuilder = new ProcessBuilder(
+            dpkgDeb.getAbsolutePath(),
+            "-x", dpkg.getAbsolutePath(), directory.getAbsolutePath());
+        procBuilder.redirectErrorStream(true);
+        final Process proc = procBuilder.start();
+
+        // block the test waiting for the command to exit
+        final int exitCode = proc.waitFor();
+        final String result = IOUtils.toString(proc.getInputStream());
+
+        if (exitCode > 0) {
+            fail("Calling dpkg-deb -x failed on file=[" + dpkg.getAbsolutePath() + "]. output=[" + result + "].");
+        }
+        return true;
+    }
+
     /**
      * Determine if any of the known locations for dpkg-deb contain the binary.
      * Returns null if the binary could not be located.